@@ -26,4 +26,68 @@ create procedure TigPubSubGetNodeMeta(service_jid varchar(2049), node_name varch
 	MODIFIES SQL DATA
 	DYNAMIC RESULT SETS 1
 	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubGetNodeMeta';
--- QUERY END:
\ No newline at end of file
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetItems(node_id bigint, items_ids varchar(32672))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubGetItems';
+-- QUERY END:
+
+-- QUERY START:
+create index tig_pubsub_items_node_id_creation_date on tig_pubsub_items ( node_id, creation_date, id );
+-- QUERY END:
+
+-- QUERY START:
+create index tig_pubsub_items_node_id_update_date on tig_pubsub_items ( node_id, update_date, id );
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubQueryItems(node_id bigint, items_order int, since timestamp, after_id varchar(1024),
+	before_id varchar(1024), items_offset int, items_limit int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubQueryItems';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetNodesRecentItems(nodes_ids varchar(32672), items_limit int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubGetNodesRecentItems';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetItemPosition(node_id bigint, items_order int, item_id varchar(1024))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubGetItemPosition';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetNodeItemsCount(node_id bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubGetNodeItemsCount';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubUpdateNodeAffiliationsAndSubscriptions(node_id bigint, affiliations varchar(32672),
+	subscriptions varchar(32672))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubUpdateNodeAffiliationsAndSubscriptions';
+-- QUERY END:
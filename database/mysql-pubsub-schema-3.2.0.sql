@@ -27,6 +27,42 @@ drop procedure if exists TigPubSubCreateNode;
 drop procedure if exists TigPubSubGetNodeMeta;
 -- QUERY END:
 
+-- QUERY START:
+drop procedure if exists TigPubSubGetItems;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubQueryItems;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubGetNodesRecentItems;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubGetItemPosition;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubGetNodeItemsCount;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubCreateItemsOrderingIndexes;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubSetNodeAffiliation;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubSetNodeSubscription;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubUpdateNodeAffiliationsAndSubscriptions;
+-- QUERY END:
+
 delimiter //
 
 -- QUERY START:
@@ -75,4 +111,295 @@ begin
 end //
 -- QUERY END:
 
-delimiter ;
\ No newline at end of file
+-- QUERY START:
+create procedure TigPubSubGetItems(_node_id bigint, _items_ids mediumtext)
+begin
+	declare _pos int default 1;
+	declare _next int;
+	declare _len int;
+	declare _ids_sha1 mediumtext default '';
+
+	-- list of SHA1 of ids is used in IN clause of a prepared query, which
+	-- uses primary key (node_id, id_sha1) without creating a temporary table
+	set _len = char_length(_items_ids);
+	while _pos <= _len + 1 do
+		set _next = locate(char(1 using utf8), _items_ids, _pos);
+		if _next = 0 then
+			set _next = _len + 1;
+		end if;
+		set _ids_sha1 = concat(_ids_sha1, if(_pos = 1, '', ','), quote(SHA1(substring(_items_ids, _pos, _next - _pos))));
+		set _pos = _next + 1;
+	end while;
+
+	set @tig_pubsub_get_items_node_id = _node_id;
+	set @tig_pubsub_get_items_query = concat('select pi.id, pi.`data`, p.jid, pi.creation_date, pi.update_date',
+		' from tig_pubsub_items pi inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id',
+		' where pi.node_id = ? and pi.id_sha1 in (', _ids_sha1, ')');
+	prepare tig_pubsub_get_items_stmt from @tig_pubsub_get_items_query;
+	execute tig_pubsub_get_items_stmt using @tig_pubsub_get_items_node_id;
+	deallocate prepare tig_pubsub_get_items_stmt;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubCreateItemsOrderingIndexes()
+begin
+	if not exists (select 1 from information_schema.statistics where table_schema = database()
+			and table_name = 'tig_pubsub_items' and index_name = 'tig_pubsub_items_node_id_creation_date') then
+		create index tig_pubsub_items_node_id_creation_date on tig_pubsub_items ( node_id, creation_date );
+	end if;
+	if not exists (select 1 from information_schema.statistics where table_schema = database()
+			and table_name = 'tig_pubsub_items' and index_name = 'tig_pubsub_items_node_id_update_date') then
+		create index tig_pubsub_items_node_id_update_date on tig_pubsub_items ( node_id, update_date );
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubQueryItems(_node_id bigint, _order int, _since datetime, _after_id varchar(1024),
+	_before_id varchar(1024), _offset int, _limit int)
+begin
+	declare _after_date datetime;
+	declare _after_found int default 0;
+	declare _before_date datetime;
+	declare _before_found int default 0;
+	declare _edge_date datetime;
+	declare _edge_limit bigint;
+
+	if _after_id is not null then
+		select case when _order = 1 then update_date else creation_date end, 1 into _after_date, _after_found
+			from tig_pubsub_items where node_id = _node_id and id_sha1 = SHA1(_after_id);
+		-- there is nothing after item which does not exist
+		if _after_found = 0 then
+			set _limit = 0;
+		end if;
+	end if;
+	if _before_id is not null then
+		select case when _order = 1 then update_date else creation_date end, 1 into _before_date, _before_found
+			from tig_pubsub_items where node_id = _node_id and id_sha1 = SHA1(_before_id);
+	end if;
+	-- items with the same date are ordered by binary value of id, as on other
+	-- databases; id is too long to be a part of the index, so only items not
+	-- older than the last requested one, which is found using the index, are sorted
+	set _edge_limit = _offset + _limit;
+
+	if _order = 1 then
+		select min(e.update_date) into _edge_date from (
+			select pi.update_date
+				from tig_pubsub_items pi
+				where pi.node_id = _node_id
+					and (_since is null or pi.update_date > _since)
+					and (_after_found = 0 or pi.update_date < _after_date
+						or (pi.update_date = _after_date and cast(pi.id as binary) < cast(_after_id as binary)))
+					and (_before_found = 0 or pi.update_date > _before_date
+						or (pi.update_date = _before_date and cast(pi.id as binary) > cast(_before_id as binary)))
+				order by pi.update_date desc
+				limit _edge_limit
+		) e;
+		select pi.id, pi.`data`, p.jid, pi.creation_date, pi.update_date
+			from tig_pubsub_items pi
+			inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id
+			where pi.node_id = _node_id
+				and (_edge_date is null or pi.update_date >= _edge_date)
+				and (_since is null or pi.update_date > _since)
+				and (_after_found = 0 or pi.update_date < _after_date
+					or (pi.update_date = _after_date and cast(pi.id as binary) < cast(_after_id as binary)))
+				and (_before_found = 0 or pi.update_date > _before_date
+					or (pi.update_date = _before_date and cast(pi.id as binary) > cast(_before_id as binary)))
+			order by pi.update_date desc, cast(pi.id as binary) desc
+			limit _offset, _limit;
+	else
+		select min(e.creation_date) into _edge_date from (
+			select pi.creation_date
+				from tig_pubsub_items pi
+				where pi.node_id = _node_id
+					and (_since is null or pi.creation_date > _since)
+					and (_after_found = 0 or pi.creation_date < _after_date
+						or (pi.creation_date = _after_date and cast(pi.id as binary) < cast(_after_id as binary)))
+					and (_before_found = 0 or pi.creation_date > _before_date
+						or (pi.creation_date = _before_date and cast(pi.id as binary) > cast(_before_id as binary)))
+				order by pi.creation_date desc
+				limit _edge_limit
+		) e;
+		select pi.id, pi.`data`, p.jid, pi.creation_date, pi.update_date
+			from tig_pubsub_items pi
+			inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id
+			where pi.node_id = _node_id
+				and (_edge_date is null or pi.creation_date >= _edge_date)
+				and (_since is null or pi.creation_date > _since)
+				and (_after_found = 0 or pi.creation_date < _after_date
+					or (pi.creation_date = _after_date and cast(pi.id as binary) < cast(_after_id as binary)))
+				and (_before_found = 0 or pi.creation_date > _before_date
+					or (pi.creation_date = _before_date and cast(pi.id as binary) > cast(_before_id as binary)))
+			order by pi.creation_date desc, cast(pi.id as binary) desc
+			limit _offset, _limit;
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetNodesRecentItems(_nodes_ids mediumtext, _limit int)
+begin
+	declare _pos int default 1;
+	declare _next int;
+	declare _len int;
+	declare _node_id bigint;
+	declare _query mediumtext default '';
+
+	-- recent items of every node are selected by a separate limited select,
+	-- which sorts only items not older than the oldest of recent items found
+	-- using index on (node_id, update_date), and selects are combined by
+	-- union all in a prepared query without a temporary table
+	set _len = char_length(_nodes_ids);
+	while _pos <= _len + 1 do
+		set _next = locate(',', _nodes_ids, _pos);
+		if _next = 0 then
+			set _next = _len + 1;
+		end if;
+		set _node_id = cast(substring(_nodes_ids, _pos, _next - _pos) as unsigned);
+		set _query = concat(_query, if(_pos = 1, '', ' union all '),
+			'(select pi.node_id, pi.id, pi.`data`, p.jid, pi.creation_date, pi.update_date,',
+			' cast(pi.id as binary) as id_binary',
+			' from tig_pubsub_items pi inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id',
+			' where pi.node_id = ', _node_id,
+			' and pi.update_date >= (select min(e.update_date) from (select update_date from tig_pubsub_items',
+			' where node_id = ', _node_id, ' order by update_date desc limit ', _limit, ') e)',
+			' order by pi.update_date desc, id_binary desc limit ', _limit, ')');
+		set _pos = _next + 1;
+	end while;
+
+	set @tig_pubsub_get_nodes_recent_items_query = concat(_query,
+		' order by node_id, update_date desc, id_binary desc');
+	prepare tig_pubsub_get_nodes_recent_items_stmt from @tig_pubsub_get_nodes_recent_items_query;
+	execute tig_pubsub_get_nodes_recent_items_stmt;
+	deallocate prepare tig_pubsub_get_nodes_recent_items_stmt;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetItemPosition(_node_id bigint, _order int, _item_id varchar(1024))
+begin
+	declare _date datetime;
+
+	select case when _order = 1 then update_date else creation_date end into _date
+		from tig_pubsub_items where node_id = _node_id and id_sha1 = SHA1(_item_id);
+
+	-- newer items are counted using the index, only items with the same date
+	-- are compared by id
+	if _order = 1 then
+		select (select count(1) from tig_pubsub_items where node_id = _node_id and update_date > _date)
+			+ (select count(1) from tig_pubsub_items where node_id = _node_id and update_date = _date
+				and cast(id as binary) > cast(_item_id as binary));
+	else
+		select (select count(1) from tig_pubsub_items where node_id = _node_id and creation_date > _date)
+			+ (select count(1) from tig_pubsub_items where node_id = _node_id and creation_date = _date
+				and cast(id as binary) > cast(_item_id as binary));
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetNodeItemsCount(_node_id bigint)
+begin
+	select count(1) from tig_pubsub_items where node_id = _node_id;
+end //
+-- QUERY END:
+
+-- procedures below do not open transaction on their own, so many calls
+-- may be batched within single transaction opened by the caller
+-- QUERY START:
+create procedure TigPubSubSetNodeAffiliation(_node_id bigint, _jid varchar(2049), _affil varchar(20))
+begin
+	declare _jid_id bigint;
+
+	if _affil != 'none' then
+		select TigPubSubEnsureJid(_jid) into _jid_id;
+		insert into tig_pubsub_affiliations (node_id, jid_id, affiliation)
+			values (_node_id, _jid_id, _affil)
+			on duplicate key update affiliation = _affil;
+	else
+		select jid_id into _jid_id from tig_pubsub_jids where jid_sha1 = SHA1(_jid) and jid = _jid;
+		if _jid_id is not null then
+			delete from tig_pubsub_affiliations where node_id = _node_id and jid_id = _jid_id;
+		end if;
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubSetNodeSubscription(_node_id bigint, _jid varchar(2049),
+	_subscr varchar(20), _subscr_id varchar(40))
+begin
+	declare _jid_id bigint;
+
+	select TigPubSubEnsureJid(_jid) into _jid_id;
+	insert into tig_pubsub_subscriptions (node_id, jid_id, subscription, subscription_id)
+		values (_node_id, _jid_id, _subscr, _subscr_id)
+		on duplicate key update subscription = _subscr;
+end //
+-- QUERY END:
+
+-- QUERY START:
+-- rows are separated by char(1) and fields of a row by char(2); subscription
+-- 'none' removes subscription of jid
+create procedure TigPubSubUpdateNodeAffiliationsAndSubscriptions(_node_id bigint, _affiliations mediumtext,
+	_subscriptions mediumtext)
+begin
+	declare _pos int;
+	declare _next int;
+	declare _len int;
+	declare _row text;
+	declare _jid varchar(2049);
+	declare _value varchar(20);
+
+	declare exit handler for sqlexception
+	begin
+		rollback;
+		resignal;
+	end;
+
+	start transaction;
+	set _len = char_length(_affiliations);
+	set _pos = 1;
+	while _pos <= _len do
+		set _next = locate(char(1 using utf8), _affiliations, _pos);
+		if _next = 0 then
+			set _next = _len + 1;
+		end if;
+		set _row = substring(_affiliations, _pos, _next - _pos);
+		call TigPubSubSetNodeAffiliation(_node_id, substring_index(_row, char(2 using utf8), 1),
+			substring_index(_row, char(2 using utf8), -1));
+		set _pos = _next + 1;
+	end while;
+
+	set _len = char_length(_subscriptions);
+	set _pos = 1;
+	while _pos <= _len do
+		set _next = locate(char(1 using utf8), _subscriptions, _pos);
+		if _next = 0 then
+			set _next = _len + 1;
+		end if;
+		set _row = substring(_subscriptions, _pos, _next - _pos);
+		set _jid = substring_index(_row, char(2 using utf8), 1);
+		set _value = substring_index(substring_index(_row, char(2 using utf8), 2), char(2 using utf8), -1);
+		if _value = 'none' then
+			call TigPubSubDeleteNodeSubscription(_node_id, _jid);
+		else
+			call TigPubSubSetNodeSubscription(_node_id, _jid, _value,
+				nullif(substring_index(_row, char(2 using utf8), -1), ''));
+		end if;
+		set _pos = _next + 1;
+	end while;
+	commit;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+call TigPubSubCreateItemsOrderingIndexes();
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigPubSubCreateItemsOrderingIndexes;
+-- QUERY END:
\ No newline at end of file
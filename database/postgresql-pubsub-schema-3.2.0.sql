@@ -56,3 +56,160 @@ begin
 end ;
 $$ LANGUAGE 'plpgsql';
 -- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubGetItems(bigint, text) returns table (
+	id varchar(1024), "data" text, jid varchar(2049), creation_date timestamp, update_date timestamp
+) as $$
+	select pi.id, pi."data", p.jid, pi.creation_date, pi.update_date
+		from tig_pubsub_items pi
+		inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id
+		where pi.node_id = $1 and pi.id = any(string_to_array($2, chr(1)))
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_pubsub_items_node_id_creation_date')) is null) then
+    create index tig_pubsub_items_node_id_creation_date on tig_pubsub_items ( node_id, creation_date, id collate "C" );
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_pubsub_items_node_id_update_date')) is null) then
+    create index tig_pubsub_items_node_id_update_date on tig_pubsub_items ( node_id, update_date, id collate "C" );
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubQueryItems(_node_id bigint, _order int, _since timestamp, _after_id varchar(1024),
+	_before_id varchar(1024), _offset int, _limit int) returns table (
+	id varchar(1024), "data" text, jid varchar(2049), creation_date timestamp, update_date timestamp
+) as $$
+declare
+	_after_date timestamp;
+	_before_date timestamp;
+begin
+	if _after_id is not null then
+		select case when _order = 1 then pi.update_date else pi.creation_date end into _after_date
+			from tig_pubsub_items pi where pi.node_id = _node_id and pi.id = _after_id;
+		-- there is nothing after item which does not exist
+		if not found then
+			return;
+		end if;
+	end if;
+	if _before_id is not null then
+		select case when _order = 1 then pi.update_date else pi.creation_date end into _before_date
+			from tig_pubsub_items pi where pi.node_id = _node_id and pi.id = _before_id;
+		if not found then
+			_before_id := null;
+		end if;
+	end if;
+
+	if _order = 1 then
+		return query select pi.id, pi."data", p.jid, pi.creation_date, pi.update_date
+			from tig_pubsub_items pi
+			inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id
+			where pi.node_id = _node_id
+				and (_since is null or pi.update_date > _since)
+				and (_after_id is null or (pi.update_date, pi.id collate "C") < (_after_date, _after_id))
+				and (_before_id is null or (pi.update_date, pi.id collate "C") > (_before_date, _before_id))
+			order by pi.update_date desc, pi.id collate "C" desc
+			limit _limit offset _offset;
+	else
+		return query select pi.id, pi."data", p.jid, pi.creation_date, pi.update_date
+			from tig_pubsub_items pi
+			inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id
+			where pi.node_id = _node_id
+				and (_since is null or pi.creation_date > _since)
+				and (_after_id is null or (pi.creation_date, pi.id collate "C") < (_after_date, _after_id))
+				and (_before_id is null or (pi.creation_date, pi.id collate "C") > (_before_date, _before_id))
+			order by pi.creation_date desc, pi.id collate "C" desc
+			limit _limit offset _offset;
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubGetNodesRecentItems(text, int) returns table (
+	node_id bigint, id varchar(1024), "data" text, jid varchar(2049), creation_date timestamp, update_date timestamp
+) as $$
+	select pi.node_id, pi.id, pi."data", p.jid, pi.creation_date, pi.update_date
+		from unnest(string_to_array($1, ',')::bigint[]) n(node_id)
+		cross join lateral (
+			select i.node_id, i.id, i."data", i.publisher_id, i.creation_date, i.update_date
+				from tig_pubsub_items i
+				where i.node_id = n.node_id
+				order by i.update_date desc, i.id collate "C" desc
+				limit $2
+		) pi
+		inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id
+		order by pi.node_id, pi.update_date desc, pi.id collate "C" desc
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubGetItemPosition(_node_id bigint, _order int, _item_id varchar(1024)) returns bigint as $$
+declare
+	_date timestamp;
+	_result bigint;
+begin
+	select case when _order = 1 then pi.update_date else pi.creation_date end into _date
+		from tig_pubsub_items pi where pi.node_id = _node_id and pi.id = _item_id;
+	if not found then
+		return 0;
+	end if;
+
+	if _order = 1 then
+		select count(1) into _result from tig_pubsub_items pi
+			where pi.node_id = _node_id and (pi.update_date, pi.id collate "C") > (_date, _item_id);
+	else
+		select count(1) into _result from tig_pubsub_items pi
+			where pi.node_id = _node_id and (pi.creation_date, pi.id collate "C") > (_date, _item_id);
+	end if;
+	return _result;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubGetNodeItemsCount(bigint) returns bigint as $$
+	select count(1) from tig_pubsub_items where node_id = $1
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+-- rows are separated by chr(1) and fields of a row by chr(2); subscription
+-- 'none' removes subscription of jid
+create or replace function TigPubSubUpdateNodeAffiliationsAndSubscriptions(_node_id bigint, _affiliations text,
+	_subscriptions text) returns void as $$
+declare
+	_row text;
+	_fields text[];
+begin
+	if _affiliations is not null and _affiliations <> '' then
+		foreach _row in array string_to_array(_affiliations, chr(1)) loop
+			_fields := string_to_array(_row, chr(2));
+			perform TigPubSubSetNodeAffiliation(_node_id, _fields[1]::varchar(2049), _fields[2]::varchar(20));
+		end loop;
+	end if;
+	if _subscriptions is not null and _subscriptions <> '' then
+		foreach _row in array string_to_array(_subscriptions, chr(1)) loop
+			_fields := string_to_array(_row, chr(2));
+			if _fields[2] = 'none' then
+				perform TigPubSubDeleteNodeSubscription(_node_id, _fields[1]::varchar(2049));
+			else
+				perform TigPubSubSetNodeSubscription(_node_id, _fields[1]::varchar(2049), _fields[2]::varchar(20),
+					nullif(_fields[3], '')::varchar(40));
+			end if;
+		end loop;
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
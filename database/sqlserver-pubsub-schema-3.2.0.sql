@@ -43,3 +43,329 @@ begin
 end
 -- QUERY END:
 GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubGetItems')
+	DROP PROCEDURE TigPubSubGetItems
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubGetItems
+	@_node_id bigint,
+	@_items_ids nvarchar(MAX)
+AS
+begin
+	declare @_ids table (id nvarchar(1024));
+	declare @_pos int;
+	declare @_next int;
+	declare @_len int;
+
+	set @_pos = 1;
+	set @_len = DATALENGTH(@_items_ids) / 2;
+	while @_pos <= @_len + 1
+	begin
+		set @_next = CHARINDEX(NCHAR(1), @_items_ids COLLATE Latin1_General_BIN, @_pos);
+		if @_next = 0
+			set @_next = @_len + 1;
+		insert into @_ids (id) values (SUBSTRING(@_items_ids, @_pos, @_next - @_pos));
+		set @_pos = @_next + 1;
+	end
+
+	select pit.id, pit.data, p.jid as publisher, pit.creation_date, pit.update_date
+		from @_ids i
+		inner join dbo.tig_pubsub_items pit on pit.node_id = @_node_id
+			and pit.id_sha1 = HASHBYTES('SHA1', i.id) and pit.id = i.id
+		inner join tig_pubsub_jids p on p.jid_id = pit.publisher_id;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_pubsub_items') AND NAME ='IX_tig_pubsub_items_node_id_creation_date')
+	CREATE INDEX IX_tig_pubsub_items_node_id_creation_date ON [dbo].[tig_pubsub_items](node_id, creation_date);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_pubsub_items') AND NAME ='IX_tig_pubsub_items_node_id_update_date')
+	CREATE INDEX IX_tig_pubsub_items_node_id_update_date ON [dbo].[tig_pubsub_items](node_id, update_date);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubQueryItems')
+	DROP PROCEDURE TigPubSubQueryItems
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubQueryItems
+	@_node_id bigint,
+	@_order int,
+	@_since datetime,
+	@_after_id nvarchar(1024),
+	@_before_id nvarchar(1024),
+	@_offset int,
+	@_limit int
+AS
+begin
+	declare @_after_date datetime;
+	declare @_after_found int;
+	declare @_before_date datetime;
+	declare @_before_found int;
+	declare @_edge_date datetime;
+	declare @_edge_limit bigint;
+
+	set @_after_found = 0;
+	set @_before_found = 0;
+	if @_after_id is not null
+	begin
+		select @_after_date = case when @_order = 1 then update_date else creation_date end, @_after_found = 1
+			from tig_pubsub_items where node_id = @_node_id and id_sha1 = HASHBYTES('SHA1', @_after_id);
+		-- there is nothing after item which does not exist
+		if @_after_found = 0
+			set @_limit = 0;
+	end
+	if @_before_id is not null
+		select @_before_date = case when @_order = 1 then update_date else creation_date end, @_before_found = 1
+			from tig_pubsub_items where node_id = @_node_id and id_sha1 = HASHBYTES('SHA1', @_before_id);
+
+	-- items with the same date are ordered by binary value of id, as on other
+	-- databases; id is too long to be a part of the index, so only items not
+	-- older than the last requested one, which is found using the index, are sorted
+	set @_edge_limit = cast(@_offset as bigint) + @_limit;
+
+	if @_order = 1
+	begin
+		select @_edge_date = min(e.update_date) from (
+			select top (@_edge_limit) pit.update_date
+				from dbo.tig_pubsub_items pit
+				where pit.node_id = @_node_id
+					and (@_since is null or pit.update_date > @_since)
+					and (@_after_found = 0 or pit.update_date < @_after_date
+						or (pit.update_date = @_after_date and pit.id collate Latin1_General_BIN2 < @_after_id))
+					and (@_before_found = 0 or pit.update_date > @_before_date
+						or (pit.update_date = @_before_date and pit.id collate Latin1_General_BIN2 > @_before_id))
+				order by pit.update_date desc
+		) e;
+		select id, data, publisher, creation_date, update_date from (
+			select pit.id, pit.data, p.jid as publisher, pit.creation_date, pit.update_date,
+					row_number() over (order by pit.update_date desc, pit.id collate Latin1_General_BIN2 desc) as row_num
+				from dbo.tig_pubsub_items pit
+				inner join tig_pubsub_jids p on p.jid_id = pit.publisher_id
+				where pit.node_id = @_node_id
+					and (@_edge_date is null or pit.update_date >= @_edge_date)
+					and (@_since is null or pit.update_date > @_since)
+					and (@_after_found = 0 or pit.update_date < @_after_date
+						or (pit.update_date = @_after_date and pit.id collate Latin1_General_BIN2 < @_after_id))
+					and (@_before_found = 0 or pit.update_date > @_before_date
+						or (pit.update_date = @_before_date and pit.id collate Latin1_General_BIN2 > @_before_id))
+			) x
+			where row_num > @_offset and row_num - @_offset <= @_limit
+			order by row_num;
+	end
+	else
+	begin
+		select @_edge_date = min(e.creation_date) from (
+			select top (@_edge_limit) pit.creation_date
+				from dbo.tig_pubsub_items pit
+				where pit.node_id = @_node_id
+					and (@_since is null or pit.creation_date > @_since)
+					and (@_after_found = 0 or pit.creation_date < @_after_date
+						or (pit.creation_date = @_after_date and pit.id collate Latin1_General_BIN2 < @_after_id))
+					and (@_before_found = 0 or pit.creation_date > @_before_date
+						or (pit.creation_date = @_before_date and pit.id collate Latin1_General_BIN2 > @_before_id))
+				order by pit.creation_date desc
+		) e;
+		select id, data, publisher, creation_date, update_date from (
+			select pit.id, pit.data, p.jid as publisher, pit.creation_date, pit.update_date,
+					row_number() over (order by pit.creation_date desc, pit.id collate Latin1_General_BIN2 desc) as row_num
+				from dbo.tig_pubsub_items pit
+				inner join tig_pubsub_jids p on p.jid_id = pit.publisher_id
+				where pit.node_id = @_node_id
+					and (@_edge_date is null or pit.creation_date >= @_edge_date)
+					and (@_since is null or pit.creation_date > @_since)
+					and (@_after_found = 0 or pit.creation_date < @_after_date
+						or (pit.creation_date = @_after_date and pit.id collate Latin1_General_BIN2 < @_after_id))
+					and (@_before_found = 0 or pit.creation_date > @_before_date
+						or (pit.creation_date = @_before_date and pit.id collate Latin1_General_BIN2 > @_before_id))
+			) x
+			where row_num > @_offset and row_num - @_offset <= @_limit
+			order by row_num;
+	end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubGetNodesRecentItems')
+	DROP PROCEDURE TigPubSubGetNodesRecentItems
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubGetNodesRecentItems
+	@_nodes_ids nvarchar(MAX),
+	@_limit int
+AS
+begin
+	declare @_nodes table (node_id bigint);
+	declare @_pos int;
+	declare @_next int;
+	declare @_len int;
+
+	set @_pos = 1;
+	set @_len = DATALENGTH(@_nodes_ids) / 2;
+	while @_pos <= @_len + 1
+	begin
+		set @_next = CHARINDEX(',', @_nodes_ids, @_pos);
+		if @_next = 0
+			set @_next = @_len + 1;
+		insert into @_nodes (node_id) values (CAST(SUBSTRING(@_nodes_ids, @_pos, @_next - @_pos) as bigint));
+		set @_pos = @_next + 1;
+	end
+
+	select pit.node_id, pit.id, pit.data, p.jid as publisher, pit.creation_date, pit.update_date
+		from @_nodes n
+		cross apply (
+			select top (@_limit) i.node_id, i.id, i.data, i.publisher_id, i.creation_date, i.update_date
+				from dbo.tig_pubsub_items i
+				where i.node_id = n.node_id
+					-- only items not older than the oldest of recent items are sorted by id
+					and i.update_date >= (select min(e.update_date) from (
+						select top (@_limit) update_date from dbo.tig_pubsub_items
+							where node_id = n.node_id order by update_date desc) e)
+				order by i.update_date desc, i.id collate Latin1_General_BIN2 desc
+		) pit
+		inner join tig_pubsub_jids p on p.jid_id = pit.publisher_id
+		order by pit.node_id, pit.update_date desc, pit.id collate Latin1_General_BIN2 desc;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubGetItemPosition')
+	DROP PROCEDURE TigPubSubGetItemPosition
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubGetItemPosition
+	@_node_id bigint,
+	@_order int,
+	@_item_id nvarchar(1024)
+AS
+begin
+	declare @_date datetime;
+
+	select @_date = case when @_order = 1 then update_date else creation_date end
+		from tig_pubsub_items where node_id = @_node_id and id_sha1 = HASHBYTES('SHA1', @_item_id);
+
+	-- newer items are counted using the index, only items with the same date
+	-- are compared by id
+	if @_order = 1
+		select (select count(1) from tig_pubsub_items where node_id = @_node_id and update_date > @_date)
+			+ (select count(1) from tig_pubsub_items where node_id = @_node_id and update_date = @_date
+				and id collate Latin1_General_BIN2 > @_item_id);
+	else
+		select (select count(1) from tig_pubsub_items where node_id = @_node_id and creation_date > @_date)
+			+ (select count(1) from tig_pubsub_items where node_id = @_node_id and creation_date = @_date
+				and id collate Latin1_General_BIN2 > @_item_id);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubGetNodeItemsCount')
+	DROP PROCEDURE TigPubSubGetNodeItemsCount
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubGetNodeItemsCount
+	@_node_id bigint
+AS
+begin
+	select count(1) from tig_pubsub_items where node_id = @_node_id;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubUpdateNodeAffiliationsAndSubscriptions')
+	DROP PROCEDURE TigPubSubUpdateNodeAffiliationsAndSubscriptions
+-- QUERY END:
+GO
+
+-- QUERY START:
+-- rows are separated by NCHAR(1) and fields of a row by NCHAR(2); subscription
+-- 'none' removes subscription of jid
+create procedure dbo.TigPubSubUpdateNodeAffiliationsAndSubscriptions
+	@_node_id bigint,
+	@_affiliations nvarchar(MAX),
+	@_subscriptions nvarchar(MAX)
+AS
+begin
+	SET NOCOUNT ON;
+	declare @_pos int;
+	declare @_next int;
+	declare @_len int;
+	declare @_row nvarchar(MAX);
+	declare @_sep1 int;
+	declare @_sep2 int;
+	declare @_jid nvarchar(2049);
+	declare @_value nvarchar(20);
+	declare @_subscr_id nvarchar(40);
+
+	BEGIN TRY
+		BEGIN TRANSACTION;
+
+		set @_pos = 1;
+		set @_len = ISNULL(DATALENGTH(@_affiliations) / 2, 0);
+		while @_pos <= @_len
+		begin
+			set @_next = CHARINDEX(NCHAR(1), @_affiliations COLLATE Latin1_General_BIN, @_pos);
+			if @_next = 0
+				set @_next = @_len + 1;
+			set @_row = SUBSTRING(@_affiliations, @_pos, @_next - @_pos);
+			set @_sep1 = CHARINDEX(NCHAR(2), @_row COLLATE Latin1_General_BIN);
+			set @_jid = SUBSTRING(@_row, 1, @_sep1 - 1);
+			set @_value = SUBSTRING(@_row, @_sep1 + 1, DATALENGTH(@_row) / 2 - @_sep1);
+			exec TigPubSubSetNodeAffiliation @_node_id=@_node_id, @_jid=@_jid, @_affil=@_value;
+			set @_pos = @_next + 1;
+		end
+
+		set @_pos = 1;
+		set @_len = ISNULL(DATALENGTH(@_subscriptions) / 2, 0);
+		while @_pos <= @_len
+		begin
+			set @_next = CHARINDEX(NCHAR(1), @_subscriptions COLLATE Latin1_General_BIN, @_pos);
+			if @_next = 0
+				set @_next = @_len + 1;
+			set @_row = SUBSTRING(@_subscriptions, @_pos, @_next - @_pos);
+			set @_sep1 = CHARINDEX(NCHAR(2), @_row COLLATE Latin1_General_BIN);
+			set @_sep2 = CHARINDEX(NCHAR(2), @_row COLLATE Latin1_General_BIN, @_sep1 + 1);
+			set @_jid = SUBSTRING(@_row, 1, @_sep1 - 1);
+			set @_value = SUBSTRING(@_row, @_sep1 + 1, @_sep2 - @_sep1 - 1);
+			set @_subscr_id = NULLIF(SUBSTRING(@_row, @_sep2 + 1, DATALENGTH(@_row) / 2 - @_sep2), '');
+			if @_value = 'none'
+				exec TigPubSubDeleteNodeSubscription @_node_id=@_node_id, @_jid=@_jid;
+			else
+				exec TigPubSubSetNodeSubscription @_node_id=@_node_id, @_jid=@_jid, @_subscr=@_value,
+					@_subscr_id=@_subscr_id;
+			set @_pos = @_next + 1;
+		end
+
+		COMMIT TRANSACTION;
+	END TRY
+	BEGIN CATCH
+		IF @@TRANCOUNT > 0
+			ROLLBACK TRANSACTION;
+		declare @ErrorMessage nvarchar(max), @ErrorSeverity int, @ErrorState int;
+		select @ErrorMessage = ERROR_MESSAGE() + ' Line ' + cast(ERROR_LINE() as nvarchar(5)), @ErrorSeverity = ERROR_SEVERITY(), @ErrorState = ERROR_STATE();
+		raiserror (@ErrorMessage, @ErrorSeverity, @ErrorState);
+	END CATCH
+end
+-- QUERY END:
+GO
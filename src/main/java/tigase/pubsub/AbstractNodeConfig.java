@@ -37,7 +37,149 @@ import tigase.xml.Element;
  * @version 5.0.0, 2010.03.27 at 05:11:05 GMT
  * @author Artur Hefczyc <artur.hefczyc@tigase.org>
  */
-public abstract class AbstractNodeConfig {
+public abstract class AbstractNodeConfig implements Cloneable {
+
+	/**
+	 * Values of configuration parsed from form. Instances are immutable, so
+	 * they are shared between copies of configuration which share the same
+	 * form.
+	 */
+	protected static class ConfigValues {
+
+		private final Boolean allowToViewSubscribers;
+		private final String bodyXslt;
+		private final String bodyXsltEmbedded;
+		private final String[] children;
+		private final String collection;
+		private final CollectionItemsOrdering collectionItemsOrdering;
+		private final boolean collectionSet;
+		private final Boolean deliverPayloads;
+		private final Boolean deliverPresenceBased;
+		private final String[] domains;
+		private final Integer maxItems;
+		private final RuntimeException maxItemsException;
+		private final AccessModel nodeAccessModel;
+		private final String nodeAccessModelStr;
+		private final NodeType nodeType;
+		private final String nodeTypeStr;
+		private final Boolean notifyConfig;
+		private final Boolean persistItems;
+		private final boolean presenceExpired;
+		private final PublisherModel publisherModel;
+		private final String[] rosterGroupsAllowed;
+		private final SendLastPublishedItem sendLastPublishedItem;
+		private final Boolean tigaseNotifyChangeSubscriptionAffiliationState;
+		private final String title;
+
+		ConfigValues(Form form) {
+			this.bodyXslt = form.getAsString("pubsub#body_xslt");
+
+			String[] r = form.getAsStrings("pubsub#embedded_body_xslt");
+			if (r == null) {
+				this.bodyXsltEmbedded = null;
+			} else {
+				StringBuilder sb = new StringBuilder();
+
+				for (String string : r) {
+					sb.append(string);
+				}
+				this.bodyXsltEmbedded = sb.toString();
+			}
+
+			this.children = form.getAsStrings("pubsub#children");
+
+			String d = form.getAsString("pubsub#collection");
+			this.collection = (d == null) ? "" : d;
+			this.collectionSet = form.get(PUBSUB + "collection") != null;
+
+			CollectionItemsOrdering ordering = null;
+			String tmp = form.getAsString(TIGASE + "collection_items_odering");
+			if (tmp != null) {
+				try {
+					ordering = CollectionItemsOrdering.valueOf(tmp);
+				} catch (Throwable ex) {
+					ordering = null;
+				}
+			}
+			this.collectionItemsOrdering = ordering;
+
+			String[] v = form.getAsStrings(PUBSUB + "domains");
+			this.domains = (v == null) ? new String[] {} : v;
+
+			this.nodeAccessModelStr = form.getAsString("pubsub#access_model");
+			this.nodeAccessModel = parse(AccessModel.class, nodeAccessModelStr);
+			this.nodeTypeStr = form.getAsString("pubsub#node_type");
+			this.nodeType = parse(NodeType.class, nodeTypeStr);
+
+			PublisherModel publisherModel = null;
+			tmp = form.getAsString("pubsub#publish_model");
+			if (tmp != null) {
+				try {
+					publisherModel = PublisherModel.valueOf(tmp);
+				} catch (Throwable ex) {
+					publisherModel = null;
+				}
+			}
+			this.publisherModel = publisherModel;
+
+			this.rosterGroupsAllowed = form.getAsStrings("pubsub#roster_groups_allowed");
+
+			SendLastPublishedItem sendLastPublishedItem;
+			String s = form.getAsString(PUBSUB + "send_last_published_item");
+			try {
+				sendLastPublishedItem = s == null ? SendLastPublishedItem.never : SendLastPublishedItem.valueOf(s);
+			} catch (Exception e) {
+				sendLastPublishedItem = SendLastPublishedItem.never;
+			}
+			this.sendLastPublishedItem = sendLastPublishedItem;
+
+			this.title = form.getAsString("pubsub#title");
+			this.allowToViewSubscribers = form.getAsBoolean(TIGASE + "allow_view_subscribers");
+			this.deliverPayloads = form.getAsBoolean("pubsub#deliver_payloads");
+			this.deliverPresenceBased = form.getAsBoolean("pubsub#presence_based_delivery");
+			this.notifyConfig = form.getAsBoolean("pubsub#notify_config");
+
+			Boolean x = form.getAsBoolean(TIGASE + "presence_expired");
+			this.presenceExpired = (x == null) ? false : x.booleanValue();
+
+			this.tigaseNotifyChangeSubscriptionAffiliationState = form.getAsBoolean(PUBSUB + "notify_sub_aff_state");
+			Integer maxItems = null;
+			RuntimeException maxItemsException = null;
+			try {
+				maxItems = form.getAsInteger("pubsub#max_items");
+			} catch (RuntimeException ex) {
+				// getter will throw exception when value is requested
+				maxItemsException = ex;
+			}
+			this.maxItems = maxItems;
+			this.maxItemsException = maxItemsException;
+			this.persistItems = form.getAsBoolean("pubsub#persist_items");
+		}
+
+		private static <E extends Enum<E>> E parse(Class<E> cls, String value) {
+			if (value == null) {
+				return null;
+			}
+			try {
+				return Enum.valueOf(cls, value);
+			} catch (IllegalArgumentException ex) {
+				// getter will throw exception when value is requested
+				return null;
+			}
+		}
+
+		public Integer getMaxItems() {
+			if (maxItemsException != null) {
+				throw maxItemsException;
+			}
+			return maxItems;
+		}
+
+		public Boolean getPersistItems() {
+			return persistItems;
+		}
+
+	}
 
 	/** Field description */
 	public static final String PUBSUB = "pubsub#";
@@ -47,10 +189,19 @@ public abstract class AbstractNodeConfig {
 
 	/**
 	 * List with do-not-write elements
+	 *
+	 * Form is replaced on copy-on-write while it may be read by other thread
+	 * (i.e. serialized by node saver), so it needs to be volatile.
 	 */
-	protected final Form form = new Form("form", null, null);
+	protected volatile Form form = new Form("form", null, null);
 	private final String nodeName;
 
+	// form was returned by getForm() and may be modified directly
+	private volatile boolean formExposed = false;
+	// form is shared with other copy of this configuration, guarded by this
+	private boolean formShared = false;
+	private volatile ConfigValues values;
+
 	/**
 	 * Constructs ...
 	 * 
@@ -81,8 +232,10 @@ public abstract class AbstractNodeConfig {
 	 * 
 	 * @param f
 	 */
-	public void add(Field f) {
+	public synchronized void add(Field f) {
+		ensureOwnForm();
 		form.addField(f);
+		modified();
 	}
 
 	@Override
@@ -125,7 +278,14 @@ public abstract class AbstractNodeConfig {
 	 * @param c
 	 */
 	public void copyFrom(AbstractNodeConfig c) {
-		form.copyValuesFrom(c.form);
+		// form of copy is not modified by other threads
+		final Form source = c.copyOnWrite().form;
+
+		synchronized (this) {
+			ensureOwnForm();
+			form.copyValuesFrom(source);
+			modified();
+		}
 	}
 
 	/**
@@ -134,8 +294,34 @@ public abstract class AbstractNodeConfig {
 	 * 
 	 * @param f
 	 */
-	public void copyFromForm(Form f) {
+	public synchronized void copyFromForm(Form f) {
+		ensureOwnForm();
 		form.copyValuesFrom(f);
+		modified();
+	}
+
+	/**
+	 * Creates copy of configuration which shares form and parsed values with
+	 * this instance until one of instances is modified. It is much cheaper
+	 * than {@link #clone()} if copy is only read.
+	 *
+	 * Method and all methods modifying configuration synchronize on the
+	 * instance, so the form is never modified while it is being shared.
+	 *
+	 * @return copy of configuration
+	 */
+	public synchronized AbstractNodeConfig copyOnWrite() {
+		try {
+			AbstractNodeConfig copy = (AbstractNodeConfig) super.clone();
+
+			this.formShared = true;
+			copy.formShared = true;
+			copy.values = values();
+
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -145,7 +331,7 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public String getBodyXslt() {
-		return form.getAsString("pubsub#body_xslt");
+		return values().bodyXslt;
 	}
 
 	/**
@@ -155,19 +341,7 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public String getBodyXsltEmbedded() {
-		String[] r = form.getAsStrings("pubsub#embedded_body_xslt");
-
-		if (r == null) {
-			return null;
-		}
-
-		StringBuilder sb = new StringBuilder();
-
-		for (String string : r) {
-			sb.append(string);
-		}
-
-		return sb.toString();
+		return values().bodyXsltEmbedded;
 	}
 
 	/**
@@ -177,7 +351,9 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public String[] getChildren() {
-		return form.getAsStrings("pubsub#children");
+		String[] children = values().children;
+
+		return (children == null) ? null : children.clone();
 	}
 
 	/**
@@ -187,24 +363,12 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public String getCollection() {
-		String d = form.getAsString("pubsub#collection");
-
-		return (d == null) ? "" : d;
+		return values().collection;
 	}
 
 
 	public CollectionItemsOrdering getCollectionItemsOrdering() {
-		String tmp = form.getAsString(TIGASE + "collection_items_odering");
-
-		if (tmp == null) {
-			return null;
-		} else {
-			try {
-				return CollectionItemsOrdering.valueOf(tmp);
-			} catch (Throwable ex) {
-				return null;
-			}
-		}
+		return values().collectionItemsOrdering;
 	}
 
 	/**
@@ -214,9 +378,7 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public String[] getDomains() {
-		String[] v = form.getAsStrings(PUBSUB + "domains");
-
-		return (v == null) ? new String[] {} : v;
+		return values().domains.clone();
 	}
 
 	/**
@@ -225,7 +387,11 @@ public abstract class AbstractNodeConfig {
 	 * 
 	 * @return
 	 */
-	public Form getForm() {
+	public synchronized Form getForm() {
+		ensureOwnForm();
+		formExposed = true;
+		values = null;
+
 		return form;
 	}
 
@@ -248,13 +414,13 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public AccessModel getNodeAccessModel() {
-		String tmp = form.getAsString("pubsub#access_model");
+		ConfigValues v = values();
 
-		if (tmp == null) {
-			return null;
-		} else {
-			return AccessModel.valueOf(tmp);
+		if ((v.nodeAccessModel == null) && (v.nodeAccessModelStr != null)) {
+			return AccessModel.valueOf(v.nodeAccessModelStr);
 		}
+
+		return v.nodeAccessModel;
 	}
 
 	/**
@@ -274,27 +440,17 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public NodeType getNodeType() {
-		String tmp = form.getAsString("pubsub#node_type");
+		ConfigValues v = values();
 
-		if (tmp == null) {
-			return null;
-		} else {
-			return NodeType.valueOf(tmp);
+		if ((v.nodeType == null) && (v.nodeTypeStr != null)) {
+			return NodeType.valueOf(v.nodeTypeStr);
 		}
+
+		return v.nodeType;
 	}
 
 	public PublisherModel getPublisherModel() {
-		String tmp = form.getAsString("pubsub#publish_model");
-
-		if (tmp == null) {
-			return null;
-		} else {
-			try {
-				return PublisherModel.valueOf(tmp);
-			} catch (Throwable ex) {
-				return null;
-			}
-		}
+		return values().publisherModel;
 	}
 
 	/**
@@ -304,16 +460,13 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public String[] getRosterGroupsAllowed() {
-		return form.getAsStrings("pubsub#roster_groups_allowed");
+		String[] groups = values().rosterGroupsAllowed;
+
+		return (groups == null) ? null : groups.clone();
 	}
 
 	public SendLastPublishedItem getSendLastPublishedItem() {
-		String s = form.getAsString(PUBSUB + "send_last_published_item");
-		try {
-			return s == null ? SendLastPublishedItem.never : SendLastPublishedItem.valueOf(s);
-		} catch (Exception e) {
-			return SendLastPublishedItem.never;
-		}
+		return values().sendLastPublishedItem;
 	}
 
 	/**
@@ -323,7 +476,7 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public String getTitle() {
-		return form.getAsString("pubsub#title");
+		return values().title;
 	}
 
 	protected void init() {
@@ -378,7 +531,7 @@ public abstract class AbstractNodeConfig {
 	}
 
 	public boolean isAllowToViewSubscribers() {
-		return form.getAsBoolean(TIGASE + "allow_view_subscribers");
+		return values().allowToViewSubscribers;
 	}
 
 	/**
@@ -388,7 +541,7 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public boolean isCollectionSet() {
-		return form.get(PUBSUB + "collection") != null;
+		return values().collectionSet;
 	}
 
 	/**
@@ -398,7 +551,7 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public boolean isDeliver_payloads() {
-		return form.getAsBoolean("pubsub#deliver_payloads");
+		return values().deliverPayloads;
 	}
 
 	/**
@@ -408,7 +561,7 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public boolean isDeliverPresenceBased() {
-		return form.getAsBoolean("pubsub#presence_based_delivery");
+		return values().deliverPresenceBased;
 	}
 
 	/**
@@ -418,7 +571,7 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public boolean isNotify_config() {
-		return form.getAsBoolean("pubsub#notify_config");
+		return values().notifyConfig;
 	}
 
 	/**
@@ -428,9 +581,7 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public boolean isPresenceExpired() {
-		Boolean x = form.getAsBoolean(TIGASE + "presence_expired");
-
-		return (x == null) ? false : x.booleanValue();
+		return values().presenceExpired;
 	}
 
 	/**
@@ -440,7 +591,7 @@ public abstract class AbstractNodeConfig {
 	 * @return
 	 */
 	public boolean isTigaseNotifyChangeSubscriptionAffiliationState() {
-		return form.getAsBoolean(PUBSUB + "notify_sub_aff_state");
+		return values().tigaseNotifyChangeSubscriptionAffiliationState;
 	}
 
 	/**
@@ -475,9 +626,16 @@ public abstract class AbstractNodeConfig {
 	 * Method description
 	 * 
 	 */
-	public void reset() {
-		form.clear();
+	public synchronized void reset() {
+		if (formShared) {
+			form = new Form("form", null, null);
+			formShared = false;
+			formExposed = false;
+		} else {
+			form.clear();
+		}
 		init();
+		modified();
 	}
 
 	/**
@@ -516,8 +674,10 @@ public abstract class AbstractNodeConfig {
 	 * 
 	 * @param nodeType
 	 */
-	public void setNodeType(NodeType nodeType) {
+	public synchronized void setNodeType(NodeType nodeType) {
+		ensureOwnForm();
 		form.get("pubsub#node_type").setValues(new String[] { nodeType.name() });
+		modified();
 	}
 
 	/**
@@ -538,43 +698,90 @@ public abstract class AbstractNodeConfig {
 	 * @param var
 	 * @param data
 	 */
-	public void setValue(String var, Object data) {
-		Field f = form.get(var);
+	public synchronized void setValue(String var, Object data) {
+		ensureOwnForm();
+		try {
+			Field f = form.get(var);
 
-		if (f == null) {
-			return;
-		} else {
-			if (data == null) {
-				f.setValues(new String[] {});
+			if (f == null) {
+				return;
 			} else {
-				if (data instanceof String) {
-					String str = (String) data;
-
-					if ((f.getType() == FieldType.bool) && !"0".equals(str) && !"1".equals(str) && !"false".equals(str)
-							&& !"true".equals(str)) {
-						throw new RuntimeException("Boolean fields allows only '1', '0', 'true' " + "and 'false' values");
-					}
-
-					f.setValues(new String[] { str });
+				if (data == null) {
+					f.setValues(new String[] {});
 				} else {
-					if ((data instanceof Boolean) && (f.getType() == FieldType.bool)) {
-						boolean b = ((Boolean) data).booleanValue();
+					if (data instanceof String) {
+						String str = (String) data;
 
-						f.setValues(new String[] { b ? "1" : "0" });
+						if ((f.getType() == FieldType.bool) && !"0".equals(str) && !"1".equals(str) && !"false".equals(str)
+								&& !"true".equals(str)) {
+							throw new RuntimeException("Boolean fields allows only '1', '0', 'true' " + "and 'false' values");
+						}
+
+						f.setValues(new String[] { str });
 					} else {
-						if ((data instanceof String[])
-								&& ((f.getType() == FieldType.list_multi) || (f.getType() == FieldType.text_multi))) {
-							String[] d = (String[]) data;
+						if ((data instanceof Boolean) && (f.getType() == FieldType.bool)) {
+							boolean b = ((Boolean) data).booleanValue();
 
-							f.setValues(d);
+							f.setValues(new String[] { b ? "1" : "0" });
 						} else {
-							throw new RuntimeException("Cannot match type " + data.getClass().getCanonicalName()
-									+ " to field type " + f.getType().name());
+							if ((data instanceof String[])
+									&& ((f.getType() == FieldType.list_multi) || (f.getType() == FieldType.text_multi))) {
+								String[] d = (String[]) data;
+
+								f.setValues(d);
+							} else {
+								throw new RuntimeException("Cannot match type " + data.getClass().getCanonicalName()
+										+ " to field type " + f.getType().name());
+							}
 						}
 					}
 				}
 			}
+		} finally {
+			modified();
+		}
+	}
+
+	/**
+	 * Returns values parsed from form. Values are parsed once and reused
+	 * until configuration is modified.
+	 *
+	 * @return parsed values
+	 */
+	protected ConfigValues values() {
+		ConfigValues v = values;
+
+		if (v == null) {
+			v = new ConfigValues(form);
+			if (!formExposed) {
+				values = v;
+			}
 		}
+
+		return v;
+	}
+
+	/**
+	 * Drops parsed values. Should be called after each modification of
+	 * form.
+	 */
+	protected void modified() {
+		values = null;
+	}
+
+	// must be called while holding lock of this instance
+	private void ensureOwnForm() {
+		if (!formShared) {
+			return;
+		}
+
+		Form copy = getInstance(nodeName).form;
+
+		copy.copyValuesFrom(form);
+		form = copy;
+		formShared = false;
+		// new form was not returned by getForm() yet
+		formExposed = false;
 	}
 
 	private void setValues(String var, String[] data) {
@@ -30,11 +30,15 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import tigase.component2.PacketWriter;
 import tigase.component2.eventbus.EventBus;
 import tigase.component2.modules.Module;
+import tigase.pubsub.exceptions.PubSubException;
 import tigase.pubsub.repository.IAffiliations;
 import tigase.pubsub.repository.IPubSubRepository;
 import tigase.pubsub.repository.ISubscriptions;
@@ -45,8 +49,11 @@ import tigase.server.Iq;
 import tigase.server.Packet;
 import tigase.stats.StatisticHolderImpl;
 import tigase.util.JIDUtils;
+import tigase.util.TigaseStringprepException;
 import tigase.xml.Element;
+import tigase.xmpp.Authorization;
 import tigase.xmpp.BareJID;
+import tigase.xmpp.StanzaType;
 import tigase.xmpp.impl.roster.RosterAbstract;
 import tigase.xmpp.impl.roster.RosterAbstract.SubscriptionType;
 import tigase.xmpp.impl.roster.RosterElement;
@@ -199,25 +206,43 @@ public abstract class AbstractPubSubModule extends StatisticHolderImpl implement
 	 */
 	public static Collection<BareJID> getActiveSubscribers(final AbstractNodeConfig nodeConfig,
 			final IAffiliations affiliations, final ISubscriptions subscriptions) throws RepositoryException {
-		UsersSubscription[] subscribers = subscriptions.getSubscriptionsForPublish();
+		final Set<BareJID> result = new HashSet<BareJID>();
 
-		if ( logAbstract.isLoggable( Level.FINEST ) ){
-			logAbstract.log( Level.FINEST,
-											 "getActiveSubscribers[1] subscriptions: {0}, subscribers: {1}",
-											 new Object[] { subscriptions, Arrays.asList( subscribers ) } );
-		}
-
-		if (subscribers == null) {
-			return Collections.emptyList();
-		}
+		forEachActiveSubscriber(nodeConfig, affiliations, subscriptions, result::add);
 
-		BareJID[] jids = new BareJID[subscribers.length];
+		return result;
+	}
 
-		for (int i = 0; i < subscribers.length; i++) {
-			jids[i] = subscribers[i].getJid();
+	/**
+	 * Calls consumer for every subscriber of node which has subscription
+	 * <code>subscribed</code> and is not an outcast. Subscribers are visited
+	 * directly from subscriptions storage, so no intermediate arrays or
+	 * collections are created, which matters for nodes with large number of
+	 * subscribers.
+	 * 
+	 * @param nodeConfig
+	 * @param affiliations
+	 * @param subscriptions
+	 * @param consumer
+	 * 
+	 * @throws RepositoryException
+	 */
+	public static void forEachActiveSubscriber(final AbstractNodeConfig nodeConfig, final IAffiliations affiliations,
+			final ISubscriptions subscriptions, final Consumer<BareJID> consumer) throws RepositoryException {
+		if ( logAbstract.isLoggable( Level.FINEST ) ){
+			logAbstract.log( Level.FINEST, "forEachActiveSubscriber subscriptions: {0}", subscriptions );
 		}
 
-		return getActiveSubscribers(nodeConfig, jids, affiliations, subscriptions);
+		subscriptions.forEachSubscriber((jid, subscription) -> {
+			if (subscription != Subscription.subscribed) {
+				return;
+			}
+
+			// /* && affiliation.getAffiliation() != Affiliation.none */
+			if (affiliations.getAffiliation(jid) != Affiliation.outcast) {
+				consumer.accept(jid);
+			}
+		});
 	}
 
 	/**
@@ -287,6 +312,51 @@ public abstract class AbstractPubSubModule extends StatisticHolderImpl implement
 	protected IPubSubRepository getRepository() {
 		return config.getPubSubRepository();
 	}
+
+	/**
+	 * Sends response to packet which processing was completed
+	 * asynchronously: result if processing succeeded or error if it failed.
+	 *
+	 * @param packet
+	 *            processed packet
+	 * @param result
+	 *            result of processing, may be <code>null</code> if there is
+	 *            nothing to send
+	 * @param ex
+	 *            exception thrown during processing or <code>null</code>
+	 */
+	protected void sendResponse(Packet packet, Packet result, Throwable ex) {
+		if (ex == null) {
+			if (result != null) {
+				packetWriter.write(result);
+			}
+			return;
+		}
+		if (ex instanceof CompletionException && ex.getCause() != null) {
+			ex = ex.getCause();
+		}
+		if (packet.getType() == StanzaType.error) {
+			log.log(Level.FINE, "Exception during processing of error packet " + packet, ex);
+			return;
+		}
+
+		PubSubException pex;
+		if (ex instanceof PubSubException) {
+			pex = (PubSubException) ex;
+		} else if (ex instanceof RejectedExecutionException) {
+			// queue of repository thread is full
+			pex = new PubSubException(Authorization.RESOURCE_CONSTRAINT);
+		} else {
+			log.log(Level.WARNING, "Exception during processing of packet " + packet, ex);
+			pex = new PubSubException(Authorization.INTERNAL_SERVER_ERROR, ex.getMessage(),
+					ex instanceof Exception ? (Exception) ex : null);
+		}
+		try {
+			packetWriter.write(Packet.packetInstance(pex.makeElement(packet.getElement())));
+		} catch (TigaseStringprepException e) {
+			log.log(Level.WARNING, "Could not send error response to packet " + packet, e);
+		}
+	}
 	
 	/**
 	 * Method description
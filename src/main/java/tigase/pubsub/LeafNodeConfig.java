@@ -37,8 +37,7 @@ public class LeafNodeConfig extends AbstractNodeConfig {
 	}
 
 	public Integer getMaxItems() {
-		Integer x = form.getAsInteger("pubsub#max_items");
-		return x;
+		return values().getMaxItems();
 	}
 
 	@Override
@@ -47,7 +46,7 @@ public class LeafNodeConfig extends AbstractNodeConfig {
 	}
 
 	public boolean isPersistItem() {
-		Boolean x = form.getAsBoolean("pubsub#persist_items");
+		Boolean x = values().getPersistItems();
 		return x == null ? false : x;
 	}
 
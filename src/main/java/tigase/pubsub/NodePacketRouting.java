@@ -0,0 +1,247 @@
+/*
+ * NodePacketRouting.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub;
+
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+import tigase.xmpp.StanzaType;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calculates hash codes used to select processing queue for packets.
+ *
+ * In <code>node</code> mode hash code is calculated from service JID and
+ * name of node to which packet is addressed, so all packets related to the
+ * same node are processed in order by the same thread. Packets which are
+ * not addressed to any node (ie. presences or disco without node) are
+ * routed using bare JIDs of the sender and the recipient.
+ *
+ * If hot node threshold is set, then number of packets received by each
+ * node is counted and nodes which received more packets in last second
+ * than threshold are marked as hot. Read-only requests (<code>get</code>
+ * stanzas) for hot nodes are spread over all processing queues.
+ */
+public class NodePacketRouting {
+
+	public enum Mode {
+		node,
+		packet
+	}
+
+	private static final Logger log = Logger.getLogger(NodePacketRouting.class.getName());
+
+	private static final String PUBSUB_XMLNS = "http://jabber.org/protocol/pubsub";
+
+	private static final String PUBSUB_OWNER_XMLNS = "http://jabber.org/protocol/pubsub#owner";
+
+	private final AtomicLong spreadPackets = new AtomicLong();
+
+	private volatile ConcurrentHashMap<NodeKey, AtomicInteger> counters = new ConcurrentHashMap<NodeKey, AtomicInteger>();
+
+	private volatile Map<NodeKey, Boolean> hotNodes = new ConcurrentHashMap<NodeKey, Boolean>();
+
+	private volatile int hotNodeThreshold = 0;
+
+	private volatile Mode mode = Mode.node;
+
+	/**
+	 * Extracts name of node to which packet is addressed.
+	 *
+	 * @param packet
+	 *
+	 * @return name of node or <code>null</code> if packet is not addressed
+	 *         to node.
+	 */
+	public static String getNodeName(Packet packet) {
+		final Element elem = packet.getElement();
+		final List<Element> children = elem.getChildren();
+
+		if (children == null) {
+			return null;
+		}
+
+		for (Element child : children) {
+			if ("pubsub".equals(child.getName())) {
+				String xmlns = child.getXMLNS();
+				if (!PUBSUB_XMLNS.equals(xmlns) && !PUBSUB_OWNER_XMLNS.equals(xmlns)) {
+					continue;
+				}
+
+				List<Element> actions = child.getChildren();
+				if (actions == null) {
+					return null;
+				}
+				for (Element action : actions) {
+					String node = action.getAttributeStaticStr("node");
+					if (node != null) {
+						return node;
+					}
+				}
+				return null;
+			} else if ("query".equals(child.getName())) {
+				return child.getAttributeStaticStr("node");
+			}
+		}
+
+		return null;
+	}
+
+	public void everySecond() {
+		if (hotNodeThreshold <= 0) {
+			if (!hotNodes.isEmpty()) {
+				hotNodes = new ConcurrentHashMap<NodeKey, Boolean>();
+			}
+			counters.clear();
+			return;
+		}
+
+		final Map<NodeKey, AtomicInteger> lastCounters = counters;
+		counters = new ConcurrentHashMap<NodeKey, AtomicInteger>();
+
+		final Map<NodeKey, Boolean> hot = new ConcurrentHashMap<NodeKey, Boolean>();
+		for (Map.Entry<NodeKey, AtomicInteger> e : lastCounters.entrySet()) {
+			if (e.getValue().get() >= hotNodeThreshold) {
+				hot.put(e.getKey(), Boolean.TRUE);
+				if (!hotNodes.containsKey(e.getKey()) && log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Node {0} is hot, received {1} packets in last second",
+							new Object[] { e.getKey(), e.getValue().get() });
+				}
+			}
+		}
+		hotNodes = hot;
+	}
+
+	public int getHotNodeThreshold() {
+		return hotNodeThreshold;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "routing/hot nodes", hotNodes.size(), Level.FINE);
+		list.add(compName, "routing/spread packets", spreadPackets.get(), Level.FINE);
+	}
+
+	/**
+	 * Calculates hash code for packet.
+	 *
+	 * @param packet
+	 * @param defaultServiceJid
+	 *            JID of component used if packet has no destination.
+	 *
+	 * @return a value of <code>int</code>
+	 */
+	public int hashCodeForPacket(Packet packet, JID defaultServiceJid) {
+		if (mode == Mode.packet) {
+			return packet.hashCode();
+		}
+
+		final String node = getNodeName(packet);
+		if (node == null) {
+			// packets between the same pair of entities are processed in order,
+			// while notifications sent by service are spread over queues
+			final JID from = packet.getStanzaFrom();
+			final JID to = packet.getStanzaTo();
+			if (from == null || to == null) {
+				return packet.hashCode();
+			}
+			return 31 * from.getBareJID().hashCode() + to.getBareJID().hashCode();
+		}
+
+		final JID to = packet.getStanzaTo();
+		final NodeKey key = new NodeKey(to != null ? to.getBareJID().toString() : String.valueOf(defaultServiceJid),
+				node);
+
+		if (hotNodeThreshold > 0) {
+			AtomicInteger counter = counters.get(key);
+			if (counter == null) {
+				AtomicInteger tmp = new AtomicInteger();
+				counter = counters.putIfAbsent(key, tmp);
+				if (counter == null) {
+					counter = tmp;
+				}
+			}
+			counter.incrementAndGet();
+
+			if (packet.getType() == StanzaType.get && hotNodes.containsKey(key)) {
+				spreadPackets.incrementAndGet();
+				return packet.hashCode();
+			}
+		}
+
+		return key.hashCode();
+	}
+
+	/**
+	 * Sets number of packets per second above which node is considered as
+	 * hot. Value <code>0</code> disables detection of hot nodes.
+	 */
+	public void setHotNodeThreshold(int hotNodeThreshold) {
+		this.hotNodeThreshold = hotNodeThreshold;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	private static class NodeKey {
+
+		private final String node;
+		private final String service;
+
+		NodeKey(String service, String node) {
+			this.service = service;
+			this.node = node;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof NodeKey)) {
+				return false;
+			}
+			NodeKey o = (NodeKey) obj;
+			return service.equals(o.service) && node.equals(o.node);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * service.hashCode() + node.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return node + "@" + service;
+		}
+	}
+
+}
@@ -0,0 +1,331 @@
+/*
+ * NotificationBackpressure.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub;
+
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits number of notifications waiting in outgoing queue of component.
+ *
+ * Depth of outgoing queue and memory usage are sampled periodically (see
+ * {@link #update(int, boolean)}) and every notification sent since last
+ * sample is added to sampled depth. If this estimate reaches budget, then
+ * real depth of the queue is read again from source set by
+ * {@link #setQueueDepthSource(IntSupplier)}, so notifications are not
+ * limited by number sent within sampling period. If depth of the queue
+ * reaches budget or memory usage is high, then notifications are handled
+ * according to configured policy:
+ * <ul>
+ * <li><code>delay</code> - sending thread waits (at most for configured
+ * time) until pressure is gone before sending every batch of
+ * {@link #DELAY_BATCH_SIZE} notifications of single {@link Admission}.
+ * Notifications are never dropped,</li>
+ * <li><code>drop</code> - notification is dropped,</li>
+ * <li><code>shed</code> - notifications of nodes with many subscribers are
+ * dropped, while notifications of small nodes are still sent.</li>
+ * </ul>
+ */
+public class NotificationBackpressure {
+
+	public enum Policy {
+		delay,
+		drop,
+		shed
+	}
+
+	/**
+	 * Number of notifications of single admission sent between checks of
+	 * pressure by <code>delay</code> policy.
+	 */
+	public static final int DELAY_BATCH_SIZE = 100;
+
+	private static final Logger log = Logger.getLogger(NotificationBackpressure.class.getName());
+
+	// minimal interval between reads of depth of overloaded queue
+	private static final long MIN_SAMPLE_INTERVAL = 10;
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong issued = new AtomicLong();
+	private final Object lock = new Object();
+	private final AtomicLong shed = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+
+	private volatile int budget = 10000;
+	private volatile boolean highMemoryUsage = false;
+	private volatile long maxDelay = 1000;
+	private volatile Policy policy = Policy.delay;
+	private volatile IntSupplier queueDepthSource = null;
+	private volatile int sampledDepth = 0;
+	private long sampleTime = 0;
+	private volatile int shedThreshold = 100;
+
+	/**
+	 * Checks if notification may be sent, waiting for relief if
+	 * <code>delay</code> policy is used.
+	 *
+	 * @param recipients
+	 *            number of recipients of notification being sent.
+	 *
+	 * @return <code>true</code> if notification should be sent,
+	 *         <code>false</code> if it should be dropped.
+	 */
+	public boolean acquire(int recipients) {
+		return acquire(recipients, true);
+	}
+
+	/**
+	 * Creates admission for notifications of a single published item (or
+	 * other event), which are sent to passed number of recipients.
+	 */
+	public Admission admission(int recipients) {
+		return new Admission(recipients, true);
+	}
+
+	/**
+	 * Creates admission which never waits for relief, for notifications
+	 * which are sent by threads which should not be blocked (ie. delivery of
+	 * last published items after user became available). With
+	 * <code>delay</code> policy notifications are sent without waiting.
+	 */
+	public Admission nonBlockingAdmission(int recipients) {
+		return new Admission(recipients, false);
+	}
+
+	private boolean acquire(int recipients, boolean mayWait) {
+		if (!isOverloaded()) {
+			issued.incrementAndGet();
+			return true;
+		}
+
+		switch (policy) {
+			case drop:
+				dropped.incrementAndGet();
+				return false;
+			case shed:
+				if (recipients > shedThreshold) {
+					shed.incrementAndGet();
+					return false;
+				}
+				issued.incrementAndGet();
+				return true;
+			default:
+				if (mayWait) {
+					throttled.incrementAndGet();
+					awaitRelief();
+				}
+				issued.incrementAndGet();
+				return true;
+		}
+	}
+
+	public int getBudget() {
+		return budget;
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	public long getShed() {
+		return shed.get();
+	}
+
+	public int getShedThreshold() {
+		return shedThreshold;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "notifications/queue depth", sampledDepth + issued.get(), Level.FINE);
+		list.add(compName, "notifications/throttled", throttled.get(), Level.FINE);
+		list.add(compName, "notifications/dropped", dropped.get(), Level.INFO);
+		list.add(compName, "notifications/shed", shed.get(), Level.INFO);
+	}
+
+	public long getThrottled() {
+		return throttled.get();
+	}
+
+	/**
+	 * Checks if depth of outgoing queue reaches budget or memory usage is
+	 * high.
+	 */
+	public boolean isOverloaded() {
+		if (highMemoryUsage) {
+			return true;
+		}
+		int budget = this.budget;
+		if (budget <= 0 || sampledDepth + issued.get() < budget) {
+			return false;
+		}
+		// estimate reached budget, so we check real depth of the queue
+		return sampleQueueDepth(budget) >= budget;
+	}
+
+	/**
+	 * Sets maximal number of notifications which may be waiting in outgoing
+	 * queue. Value <code>0</code> disables checking of queue depth.
+	 */
+	public void setBudget(int budget) {
+		this.budget = budget;
+	}
+
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	public void setPolicy(Policy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Sets source of current number of packets waiting in outgoing queue,
+	 * which is read when estimated depth reaches budget.
+	 */
+	public void setQueueDepthSource(IntSupplier queueDepthSource) {
+		this.queueDepthSource = queueDepthSource;
+	}
+
+	/**
+	 * Sets number of recipients above which notifications are dropped by
+	 * <code>shed</code> policy.
+	 */
+	public void setShedThreshold(int shedThreshold) {
+		this.shedThreshold = shedThreshold;
+	}
+
+	/**
+	 * Updates state of component. Should be called periodically.
+	 *
+	 * @param queueDepth
+	 *            current number of packets waiting in outgoing queue.
+	 * @param highMemoryUsage
+	 *            <code>true</code> if memory usage is high.
+	 */
+	public void update(int queueDepth, boolean highMemoryUsage) {
+		synchronized (lock) {
+			this.sampledDepth = queueDepth;
+			this.highMemoryUsage = highMemoryUsage;
+			this.issued.set(0);
+			this.sampleTime = System.currentTimeMillis();
+			lock.notifyAll();
+		}
+		if (highMemoryUsage && log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "High memory usage, notifications are throttled");
+		}
+	}
+
+	private void awaitRelief() {
+		final long end = System.currentTimeMillis() + maxDelay;
+		synchronized (lock) {
+			long remaining;
+			while (isOverloaded() && (remaining = end - System.currentTimeMillis()) > 0) {
+				try {
+					// queue is drained without notification, so its depth
+					// needs to be checked again
+					lock.wait(queueDepthSource == null ? remaining : Math.min(remaining, MIN_SAMPLE_INTERVAL));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private int sampleQueueDepth(int budget) {
+		final IntSupplier source = queueDepthSource;
+		synchronized (lock) {
+			long now = System.currentTimeMillis();
+			// if queue was below budget, then only notifications sent since
+			// then could fill it, so it is read again without waiting
+			if (source != null && (sampledDepth < budget || now - sampleTime >= MIN_SAMPLE_INTERVAL)) {
+				sampledDepth = source.getAsInt();
+				issued.set(0);
+				sampleTime = now;
+			}
+			return sampledDepth + (int) issued.get();
+		}
+	}
+
+	/**
+	 * Admission of notifications of a single event. With <code>delay</code>
+	 * policy sending thread waits for relief before every batch of
+	 * {@link #DELAY_BATCH_SIZE} notifications, so large fan-out is sent at
+	 * pace at which outgoing queue is drained. Instances are not thread safe.
+	 */
+	public class Admission {
+
+		private final int recipients;
+		private final boolean mayWait;
+		private int dropped = 0;
+		private int sent = 0;
+
+		private Admission(int recipients, boolean mayWait) {
+			this.recipients = recipients;
+			this.mayWait = mayWait;
+		}
+
+		/**
+		 * Checks if next notification may be sent.
+		 *
+		 * @return <code>true</code> if notification should be sent,
+		 *         <code>false</code> if it should be dropped.
+		 */
+		public boolean acquire() {
+			boolean wait = mayWait && sent % DELAY_BATCH_SIZE == 0;
+			if (NotificationBackpressure.this.acquire(recipients, wait)) {
+				sent++;
+				return true;
+			}
+			dropped++;
+			return false;
+		}
+
+		public int getDropped() {
+			return dropped;
+		}
+
+		/**
+		 * Logs number of dropped notifications, if any. Should be called
+		 * after all notifications were sent.
+		 */
+		public void done(String nodeName) {
+			if (dropped > 0) {
+				log.log(Level.INFO, "Dropped {0} of {1} notifications of node {2} due to backpressure, policy: {3}",
+						new Object[] { dropped, recipients, nodeName, policy });
+			}
+		}
+	}
+
+}
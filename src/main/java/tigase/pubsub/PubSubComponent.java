@@ -101,7 +101,17 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 
 	public static final String DELAYED_ROOT_COLLECTION_LOADING_KEY = "delayed-root-collection-loading";
 
+	private static final String ASYNC_QUEUE_SIZE_KEY = "pubsub-repository-async-queue-size";
+	private static final String ASYNC_THREADS_KEY = "pubsub-repository-async-threads";
 	private static final String MAX_CACHE_SIZE = "pubsub-repository-cache-size";
+	private static final String PACKET_ROUTING_KEY = "pubsub-packet-routing";
+	private static final String HOT_NODE_THRESHOLD_KEY = "pubsub-hot-node-threshold";
+	private static final String RECENT_ITEMS_CACHE_SIZE_KEY = "pubsub-repository-recent-items-cache-size";
+	private static final String USER_INDEX_SIZE_KEY = "pubsub-repository-user-index-size";
+	private static final String WRITE_BEHIND_KEY = "pubsub-repository-write-behind";
+	private static final String WRITE_BEHIND_BATCH_SIZE_KEY = "pubsub-repository-write-behind-batch-size";
+	private static final String WRITE_BEHIND_FLUSH_DELAY_KEY = "pubsub-repository-write-behind-flush-delay";
+	private static final String WRITE_BEHIND_QUEUE_SIZE_KEY = "pubsub-repository-write-behind-queue-size";
 	private static final Pattern PARAMETRIZED_PROPERTY_PATTERN = Pattern.compile("(.+)\\[(.*)\\]|(.+)");
 
 	/**
@@ -112,6 +122,14 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 	 * Field description
 	 */
 	protected static final String PUBSUB_REPO_POOL_SIZE_PROP_KEY = "pubsub-repo-pool-size";
+	/**
+	 * Time in milliseconds for which processing thread waits for DAO from pool
+	 */
+	protected static final String PUBSUB_REPO_POOL_TIMEOUT_PROP_KEY = "pubsub-repo-pool-timeout";
+	/**
+	 * Should DAO instances be handed to waiting threads in order of requests
+	 */
+	protected static final String PUBSUB_REPO_POOL_FAIR_PROP_KEY = "pubsub-repo-pool-fair";
 
 	// ~--- fields
 	// ---------------------------------------------------------------
@@ -159,6 +177,16 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 	private PubSubDAO directPubSubRepository;
 	/** Field description */
 	protected Integer maxRepositoryCacheSize;
+	protected final NodePacketRouting packetRouting = new NodePacketRouting();
+	protected int recentItemsCacheSize = 1;
+	protected int userIndexSize = CachedPubSubRepository.DEF_USER_INDEX_SIZE;
+
+	protected boolean writeBehind = false;
+	protected int writeBehindBatchSize = 100;
+	protected long writeBehindFlushDelay = 1000;
+	protected int writeBehindQueueSize = 10000;
+	protected int asyncQueueSize = 10000;
+	protected int asyncThreads = 0;
 
 	/* modules */
 	protected PendingSubscriptionModule pendingSubscriptionModule;
@@ -202,6 +230,8 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 	@Override
 	protected PubSubConfig createComponentConfigInstance(AbstractComponent<?> abstractComponent) {
 		PubSubConfig result = new PubSubConfig(abstractComponent);
+		// depth of outgoing queue is read again when estimate reaches budget
+		result.getNotificationBackpressure().setQueueDepthSource(this::getOutQueueDepth);
 
 		return result;
 	}
@@ -221,7 +251,11 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 		final Map<String, Object> poolSizes = getProperties(PUBSUB_REPO_POOL_SIZE_PROP_KEY, props);
 		final String default_cls_name = (String) classNames.get(null);
 
-		PubSubDAOPool dao_pool = new PubSubDAOPool();
+		Object poolTimeout = props.get(PUBSUB_REPO_POOL_TIMEOUT_PROP_KEY);
+		Object poolFair = props.get(PUBSUB_REPO_POOL_FAIR_PROP_KEY);
+		PubSubDAOPool dao_pool = new PubSubDAOPool(
+				poolTimeout == null ? PubSubDAOPool.DEF_BORROW_TIMEOUT : ((Number) poolTimeout).longValue(),
+				poolFair != null && (Boolean) poolFair);
 		dao_pool.init(null, null, userRepository);
 
 		for (Entry<String, Object> e : resUris.entrySet()) {
@@ -258,6 +292,8 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 				// as previous value (1) was really not enought
 				dao_pool_size = 10;
 			}
+			// size of database connections pool used by JDBC based DAO
+			repoParams.put(RepositoryFactory.DATA_REPO_POOL_SIZE_PROP_KEY, String.valueOf(dao_pool_size));
 			if (log.isLoggable(Level.FINER)) {
 				log.finer("Creating DAO for domain=" + domain + "; class="
 						+ (repoClass == null ? className : repoClass.getCanonicalName()) + "; uri=" + resUri + "; poolSize="
@@ -292,14 +328,31 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 	// --------------------------------------------------------------
 
 	protected IPubSubRepository createPubSubRepository(PubSubDAO directRepository) {
-		IPubSubRepository wrapper = new PubSubRepositoryWrapper(new CachedPubSubRepository(directRepository,
-				maxRepositoryCacheSize)) {
+		CachedPubSubRepository cachedRepository = new CachedPubSubRepository(directRepository, maxRepositoryCacheSize);
+		cachedRepository.setRecentItemsCacheSize(recentItemsCacheSize);
+		cachedRepository.setUserIndexSize(userIndexSize);
+		if (writeBehind) {
+			cachedRepository.setWriteBehind(writeBehindQueueSize, writeBehindBatchSize, writeBehindFlushDelay);
+		}
+		if (asyncThreads > 0) {
+			cachedRepository.setAsyncExecutor(asyncThreads, asyncQueueSize);
+		}
+		IPubSubRepository wrapper = new PubSubRepositoryWrapper(cachedRepository) {
 			@Override
 			public ISubscriptions getNodeSubscriptions(final BareJID serviceJid, final String nodeName)
 					throws RepositoryException {
 				return new PresenceNodeSubscriptions(serviceJid, nodeName, super.getNodeSubscriptions(serviceJid, nodeName),
 						presenceNotifierModule);
 			}
+
+			@Override
+			public void update(BareJID serviceJid, String nodeName, ISubscriptions subscriptions)
+					throws RepositoryException {
+				if (subscriptions instanceof PresenceNodeSubscriptions) {
+					subscriptions = ((PresenceNodeSubscriptions) subscriptions).getNodeSubscriptions();
+				}
+				super.update(serviceJid, nodeName, subscriptions);
+			}
 		};
 
 		return wrapper;
@@ -325,7 +378,19 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 		} // end of if (params.get(GEN_USER_DB_URI) != null)
 		props.put(PUBSUB_REPO_URL_PROP_KEY, repo_uri);
 		props.put(PUBSUB_REPO_POOL_SIZE_PROP_KEY, 10);
+		props.put(PUBSUB_REPO_POOL_TIMEOUT_PROP_KEY, PubSubDAOPool.DEF_BORROW_TIMEOUT);
+		props.put(PUBSUB_REPO_POOL_FAIR_PROP_KEY, false);
 		props.put(MAX_CACHE_SIZE, "2000");
+		props.put(PACKET_ROUTING_KEY, NodePacketRouting.Mode.node.name());
+		props.put(HOT_NODE_THRESHOLD_KEY, 0);
+		props.put(RECENT_ITEMS_CACHE_SIZE_KEY, 1);
+		props.put(USER_INDEX_SIZE_KEY, CachedPubSubRepository.DEF_USER_INDEX_SIZE);
+		props.put(WRITE_BEHIND_KEY, false);
+		props.put(WRITE_BEHIND_BATCH_SIZE_KEY, 100);
+		props.put(WRITE_BEHIND_FLUSH_DELAY_KEY, 1000L);
+		props.put(WRITE_BEHIND_QUEUE_SIZE_KEY, 10000);
+		props.put(ASYNC_THREADS_KEY, 0);
+		props.put(ASYNC_QUEUE_SIZE_KEY, 10000);
 
 		String[] admins;
 
@@ -348,6 +413,9 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 	@Override
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
+
+		componentConfig.getNotificationBackpressure().getStatistics(getName(), list);
+		packetRouting.getStatistics(getName(), list);
 		
 		if (pubsubRepository instanceof StatisticHolder) {
 			((StatisticHolder) pubsubRepository).getStatistics(getName(), list);
@@ -373,17 +441,35 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 	@Override
 	public void everySecond() {
 		super.everySecond();
+		NotificationBackpressure backpressure = componentConfig.getNotificationBackpressure();
+		// depth of outgoing queue is not needed if queue budget is disabled
+		backpressure.update(backpressure.getBudget() > 0 ? getOutQueueDepth() : 0,
+				componentConfig.isHighMemoryUsage());
+		packetRouting.everySecond();
 		if (pubsubRepository instanceof StatisticHolder) {
 			((StatisticHolder) pubsubRepository).everySecond();
 		}
 	}
 	
+	/**
+	 * Returns number of packets waiting in outgoing queues of component.
+	 *
+	 * @return a value of <code>int</code>
+	 */
+	protected int getOutQueueDepth() {
+		// outgoing queues are not accessible from subclasses, so we read
+		// statistic of queues, but we collect only statistics of INFO level
+		// to skip building of detailed per queue and per thread entries
+		StatisticsList list = new StatisticsList(Level.INFO);
+
+		super.getStatistics(list);
+
+		return (int) list.getValue(getName(), "Total Out queues wait", 0);
+	}
+
 	@Override
 	public int hashCodeForPacket(Packet packet) {
-		int hash = packet.hashCode();
-		
-
-		return hash;
+		return packetRouting.hashCodeForPacket(packet, getComponentId());
 	}
 
 	/**
@@ -394,7 +480,13 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 	 */
 	protected void init() {
 		final PacketWriter writer = getWriter();
+		if (this.xslTransformer != null) {
+			this.eventBus.remove(this.xslTransformer);
+		}
 		this.xslTransformer = new XsltTool();
+		// compiled XSLT loaded from URL is dropped when node configuration changes
+		this.eventBus.addHandler(NodeConfigModule.NodeConfigurationChangedHandler.NodeConfigurationChangedEvent.TYPE,
+				this.xslTransformer);
 		// this.modulesManager.reset();
 		// this.eventBus.reset();
 		if (!isRegistered(CapsModule.class))
@@ -636,6 +728,42 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 				props.put(MAX_CACHE_SIZE, "off");
 			}
 		}
+		if (props.containsKey(PACKET_ROUTING_KEY)) {
+			String mode = (String) props.get(PACKET_ROUTING_KEY);
+			try {
+				packetRouting.setMode(NodePacketRouting.Mode.valueOf(mode));
+			} catch (IllegalArgumentException ex) {
+				log.log(Level.WARNING, "Invalid value of " + PACKET_ROUTING_KEY + ": " + mode + ", using "
+						+ packetRouting.getMode() + " mode");
+			}
+		}
+		if (props.containsKey(HOT_NODE_THRESHOLD_KEY)) {
+			packetRouting.setHotNodeThreshold((Integer) props.get(HOT_NODE_THRESHOLD_KEY));
+		}
+		if (props.containsKey(RECENT_ITEMS_CACHE_SIZE_KEY)) {
+			recentItemsCacheSize = (Integer) props.get(RECENT_ITEMS_CACHE_SIZE_KEY);
+		}
+		if (props.containsKey(USER_INDEX_SIZE_KEY)) {
+			userIndexSize = (Integer) props.get(USER_INDEX_SIZE_KEY);
+		}
+		if (props.containsKey(WRITE_BEHIND_KEY)) {
+			writeBehind = (Boolean) props.get(WRITE_BEHIND_KEY);
+		}
+		if (props.containsKey(WRITE_BEHIND_BATCH_SIZE_KEY)) {
+			writeBehindBatchSize = (Integer) props.get(WRITE_BEHIND_BATCH_SIZE_KEY);
+		}
+		if (props.containsKey(WRITE_BEHIND_FLUSH_DELAY_KEY)) {
+			writeBehindFlushDelay = (Long) props.get(WRITE_BEHIND_FLUSH_DELAY_KEY);
+		}
+		if (props.containsKey(WRITE_BEHIND_QUEUE_SIZE_KEY)) {
+			writeBehindQueueSize = (Integer) props.get(WRITE_BEHIND_QUEUE_SIZE_KEY);
+		}
+		if (props.containsKey(ASYNC_THREADS_KEY)) {
+			asyncThreads = (Integer) props.get(ASYNC_THREADS_KEY);
+		}
+		if (props.containsKey(ASYNC_QUEUE_SIZE_KEY)) {
+			asyncQueueSize = (Integer) props.get(ASYNC_QUEUE_SIZE_KEY);
+		}
 
 		// Is there a shared user repository pool? If so I want to use it:
 		userRepository = (UserRepository) props.get(RepositoryFactory.SHARED_USER_REPO_PROP_KEY);
@@ -24,6 +24,8 @@ package tigase.pubsub;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import tigase.component2.AbstractComponent;
 import tigase.component2.ComponentConfig;
@@ -41,15 +43,25 @@ import tigase.xmpp.JID;
  */
 public class PubSubConfig extends ComponentConfig {
 
+	private static final Logger log = Logger.getLogger(PubSubConfig.class.getName());
+
 	private static final String PUBSUB_HIGH_MEMORY_USAGE_LEVEL_KEY = "pubsub-high-memory-usage-level";
 	private static final String PUBSUB_LOW_MEMORY_DELAY_KEY = "pubsub-low-memory-delay";
+	private static final String PUBSUB_NOTIFICATIONS_BACKPRESSURE_POLICY_KEY = "pubsub-notifications-backpressure-policy";
+	private static final String PUBSUB_NOTIFICATIONS_QUEUE_BUDGET_KEY = "pubsub-notifications-queue-budget";
+	private static final String PUBSUB_NOTIFICATIONS_SHED_THRESHOLD_KEY = "pubsub-notifications-shed-threshold";
 	private static final String PUBSUB_PERSISTENT_PEP_KEY = "persistent-pep";
 	private static final String PUBSUB_PEP_REMOVE_EMPTY_GEOLOC_KEY = "pep-remove-empty-geoloc";
 	private static final String PUBSUB_SEND_LAST_PUBLISHED_ITEM_ON_PRESECE_KEY = "send-last-published-item-on-presence";
+	private static final String PUBSUB_TIME_ORDERED_IDS_KEY = "pubsub-time-ordered-ids";
 	
 	private static final int DEF_PUBSUB_HIGH_MEMORY_USAGE_LEVEL_VAL = 90;
 	private static final long DEF_PUBSUB_LOW_MEMORY_DELAY_VAL = 1000;
 	private static final boolean DEF_PUBSUB_PEP_REMOVE_EMPTY_GEOLOC_VAL = false;
+	private static final String DEF_PUBSUB_NOTIFICATIONS_BACKPRESSURE_POLICY_VAL = NotificationBackpressure.Policy.delay.name();
+	private static final int DEF_PUBSUB_NOTIFICATIONS_QUEUE_BUDGET_VAL = 10000;
+	private static final int DEF_PUBSUB_NOTIFICATIONS_SHED_THRESHOLD_VAL = 100;
+	private static final boolean DEF_PUBSUB_TIME_ORDERED_IDS_VAL = false;
 	
 	protected String[] admins;
 
@@ -57,8 +69,8 @@ public class PubSubConfig extends ComponentConfig {
 
 	protected BareJID serviceBareJID = BareJID.bareJIDInstanceNS("tigase-pubsub");
 
-	private long lowMemoryDelay = DEF_PUBSUB_LOW_MEMORY_DELAY_VAL;
 	private float highMemoryUsageLevel = DEF_PUBSUB_HIGH_MEMORY_USAGE_LEVEL_VAL;
+	private final NotificationBackpressure notificationBackpressure = new NotificationBackpressure();
 	private boolean persistentPep = false;
 	private boolean pepRemoveEmptyGeoloc = false;
 	private boolean sendLastPublishedItemOnPresence = false;
@@ -83,15 +95,15 @@ public class PubSubConfig extends ComponentConfig {
 		props.put(PUBSUB_HIGH_MEMORY_USAGE_LEVEL_KEY, DEF_PUBSUB_HIGH_MEMORY_USAGE_LEVEL_VAL);
 		props.put(PUBSUB_LOW_MEMORY_DELAY_KEY, DEF_PUBSUB_LOW_MEMORY_DELAY_VAL);
 		props.put(PUBSUB_PEP_REMOVE_EMPTY_GEOLOC_KEY, DEF_PUBSUB_PEP_REMOVE_EMPTY_GEOLOC_VAL);
+		props.put(PUBSUB_NOTIFICATIONS_BACKPRESSURE_POLICY_KEY, DEF_PUBSUB_NOTIFICATIONS_BACKPRESSURE_POLICY_VAL);
+		props.put(PUBSUB_NOTIFICATIONS_QUEUE_BUDGET_KEY, DEF_PUBSUB_NOTIFICATIONS_QUEUE_BUDGET_VAL);
+		props.put(PUBSUB_NOTIFICATIONS_SHED_THRESHOLD_KEY, DEF_PUBSUB_NOTIFICATIONS_SHED_THRESHOLD_VAL);
+		props.put(PUBSUB_TIME_ORDERED_IDS_KEY, DEF_PUBSUB_TIME_ORDERED_IDS_VAL);
 		return props;
 	}
 
-	public long getDelayOnLowMemory() {
-		if (isHighMemoryUsage()) {
-			return lowMemoryDelay;
-		}
-		
-		return 0;
+	public NotificationBackpressure getNotificationBackpressure() {
+		return notificationBackpressure;
 	}
 	
 	public IPubSubRepository getPubSubRepository() {
@@ -151,17 +163,35 @@ public class PubSubConfig extends ComponentConfig {
 	@Override
 	public void setProperties(Map<String, Object> props) {
 		if (props.containsKey(PUBSUB_LOW_MEMORY_DELAY_KEY)) {
-			this.lowMemoryDelay = (Long) props.get(PUBSUB_LOW_MEMORY_DELAY_KEY);
+			notificationBackpressure.setMaxDelay((Long) props.get(PUBSUB_LOW_MEMORY_DELAY_KEY));
 		}
 		if (props.containsKey(PUBSUB_HIGH_MEMORY_USAGE_LEVEL_KEY)) {
 			this.highMemoryUsageLevel = ((Integer) props.get(PUBSUB_HIGH_MEMORY_USAGE_LEVEL_KEY)).floatValue();
 		}
+		if (props.containsKey(PUBSUB_NOTIFICATIONS_BACKPRESSURE_POLICY_KEY)) {
+			String policy = (String) props.get(PUBSUB_NOTIFICATIONS_BACKPRESSURE_POLICY_KEY);
+			try {
+				notificationBackpressure.setPolicy(NotificationBackpressure.Policy.valueOf(policy));
+			} catch (IllegalArgumentException ex) {
+				log.log(Level.WARNING, "Invalid value of " + PUBSUB_NOTIFICATIONS_BACKPRESSURE_POLICY_KEY + ": "
+						+ policy + ", using " + notificationBackpressure.getPolicy() + " policy");
+			}
+		}
+		if (props.containsKey(PUBSUB_NOTIFICATIONS_QUEUE_BUDGET_KEY)) {
+			notificationBackpressure.setBudget((Integer) props.get(PUBSUB_NOTIFICATIONS_QUEUE_BUDGET_KEY));
+		}
+		if (props.containsKey(PUBSUB_NOTIFICATIONS_SHED_THRESHOLD_KEY)) {
+			notificationBackpressure.setShedThreshold((Integer) props.get(PUBSUB_NOTIFICATIONS_SHED_THRESHOLD_KEY));
+		}
 		if (props.containsKey(PUBSUB_PERSISTENT_PEP_KEY)) {
 			this.persistentPep = (Boolean) props.get(PUBSUB_PERSISTENT_PEP_KEY);
 		}
 		if (props.containsKey(PUBSUB_PEP_REMOVE_EMPTY_GEOLOC_KEY)) {
 			this.pepRemoveEmptyGeoloc = (Boolean) props.get(PUBSUB_PEP_REMOVE_EMPTY_GEOLOC_KEY);
 		}
+		if (props.containsKey(PUBSUB_TIME_ORDERED_IDS_KEY)) {
+			Utils.setTimeOrderedUIDs((Boolean) props.get(PUBSUB_TIME_ORDERED_IDS_KEY));
+		}
 		if (props.containsKey(PUBSUB_SEND_LAST_PUBLISHED_ITEM_ON_PRESECE_KEY)) {
 			this.sendLastPublishedItemOnPresence = (Boolean) props.get(PUBSUB_SEND_LAST_PUBLISHED_ITEM_ON_PRESECE_KEY);
 		}
@@ -171,7 +201,7 @@ public class PubSubConfig extends ComponentConfig {
 		this.pubSubRepository = pubSubRepository;
 	}
 	
-	private boolean isHighMemoryUsage() {
+	public boolean isHighMemoryUsage() {
 		return TigaseRuntime.getTigaseRuntime().getHeapMemUsage() > highMemoryUsageLevel;
 	}	
 	
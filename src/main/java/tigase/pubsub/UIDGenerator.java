@@ -0,0 +1,104 @@
+/*
+ * UIDGenerator.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe generator of unique identifiers used for items and
+ * subscriptions.
+ *
+ * Every identifier contains value of process wide sequence (so identifiers
+ * generated by single instance never collide) and random part (so
+ * identifiers generated by different instances or after restart do not
+ * collide). Identifiers are encoded with base-36 using fixed width fields.
+ *
+ * If generator is time ordered, then identifier starts with current time,
+ * so identifiers sort in order in which they were generated.
+ */
+public class UIDGenerator {
+
+	private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+	private static final int RANDOM_LENGTH = 13;
+
+	private static final int SEQUENCE_LENGTH = 6;
+
+	private static final long SEQUENCE_MODULO = 36L * 36 * 36 * 36 * 36 * 36;
+
+	private static final int TIME_LENGTH = 9;
+
+	private static final int TIME_ORDERED_RANDOM_LENGTH = 11;
+
+	private final AtomicLong sequence;
+
+	private final boolean timeOrdered;
+
+	public UIDGenerator(boolean timeOrdered) {
+		this.timeOrdered = timeOrdered;
+		// start from random value, so sequences of different instances differ
+		this.sequence = new AtomicLong((new SecureRandom().nextLong() >>> 1) % (SEQUENCE_MODULO / 2));
+	}
+
+	/**
+	 * Encodes value as unsigned number using fixed number of base-36 digits,
+	 * higher digits of value which do not fit are dropped.
+	 */
+	private static void encode(char[] buf, int offset, int length, long value) {
+		int pos = offset + length - 1;
+
+		if (value < 0) {
+			buf[pos--] = DIGITS[(int) Long.remainderUnsigned(value, 36)];
+			value = Long.divideUnsigned(value, 36);
+		}
+		while (pos >= offset) {
+			buf[pos--] = DIGITS[(int) (value % 36)];
+			value /= 36;
+		}
+	}
+
+	public String createUID() {
+		final long seq = sequence.getAndIncrement() % SEQUENCE_MODULO;
+		final long random = ThreadLocalRandom.current().nextLong();
+		final char[] buf;
+
+		if (timeOrdered) {
+			buf = new char[TIME_LENGTH + SEQUENCE_LENGTH + TIME_ORDERED_RANDOM_LENGTH];
+			encode(buf, 0, TIME_LENGTH, System.currentTimeMillis());
+			encode(buf, TIME_LENGTH, SEQUENCE_LENGTH, seq);
+			encode(buf, TIME_LENGTH + SEQUENCE_LENGTH, TIME_ORDERED_RANDOM_LENGTH, random);
+		} else {
+			buf = new char[RANDOM_LENGTH + SEQUENCE_LENGTH];
+			encode(buf, 0, RANDOM_LENGTH, random);
+			encode(buf, RANDOM_LENGTH, SEQUENCE_LENGTH, seq);
+		}
+
+		return new String(buf);
+	}
+
+	public boolean isTimeOrdered() {
+		return timeOrdered;
+	}
+
+}
@@ -21,9 +21,6 @@
  */
 package tigase.pubsub;
 
-import java.math.BigInteger;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.Random;
 import java.util.logging.Logger;
 
@@ -31,6 +28,11 @@ import tigase.xmpp.BareJID;
 
 public class Utils {
 
+	/**
+	 * @deprecated identifiers are created by {@link UIDGenerator}, this
+	 *             generator is not used anymore
+	 */
+	@Deprecated
 	public static class Spi {
 
 		private static final long serialVersionUID = 6772408791281461866L;
@@ -133,7 +135,7 @@ public class Utils {
 		}
 	}
 
-	private static Utils instance;
+	private static volatile UIDGenerator uidGenerator = new UIDGenerator(false);
 
 	protected static Logger log = Logger.getLogger(Utils.class.getName());
 
@@ -162,25 +164,28 @@ public class Utils {
 	}
 
 	public static String createUID() {
-		return createUID(null);
+		return uidGenerator.createUID();
 	}
 
+	/**
+	 * @deprecated identifier does not depend on passed object, use
+	 *             {@link #createUID()}
+	 */
+	@Deprecated
 	public static String createUID(Object jid) {
-		byte[] x = new byte[13];
-
-		Utils utils = instance();
-
-		utils.spi.engineNextBytes(x, 1);
-		if (jid != null)
-			utils.spi.updateSeed(jid.hashCode());
-
-		return (new BigInteger(x)).toString(36);
+		return createUID();
 	}
 
-	private static Utils instance() {
-		if (instance == null)
-			instance = new Utils();
-		return instance;
+	/**
+	 * Sets if identifiers created by {@link #createUID()} should sort in
+	 * order in which they were created.
+	 *
+	 * @param timeOrdered
+	 */
+	public static void setTimeOrderedUIDs(boolean timeOrdered) {
+		if (uidGenerator.isTimeOrdered() != timeOrdered) {
+			uidGenerator = new UIDGenerator(timeOrdered);
+		}
 	}
 
 	public static boolean isAllowedDomain(final BareJID bareJID, final String... domains) {
@@ -205,19 +210,14 @@ public class Utils {
 	}
 
 	public static void main(String[] args) {
-		System.out.println(createUID("null"));
+		System.out.println(createUID());
 	}
 
-	private final Spi spi;
-
+	/**
+	 * @deprecated class contains only static methods
+	 */
+	@Deprecated
 	public Utils() {
-		Random random;
-		try {
-			random = SecureRandom.getInstance("SHA1PRNG");
-		} catch (NoSuchAlgorithmException e) {
-			random = new Random();
-		}
-		this.spi = new Spi(random);
 	}
 
 }
@@ -0,0 +1,233 @@
+/*
+ * CapsFeatures.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.modules;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Calculates features added by change of CAPS of a resource.
+ *
+ * Every feature gets a bit assigned and features of every CAPS node are
+ * kept as a bitset, so difference between features of two CAPS is
+ * calculated by bitwise operations instead of building sets of feature
+ * names for every presence.
+ */
+public class CapsFeatures {
+
+	private static final long[] NO_FEATURES = {};
+
+	/**
+	 * Read-only set of features backed by a bitset.
+	 */
+	private static class FeatureSet extends AbstractSet<String> {
+
+		private final long[] bits;
+		private final String[] names;
+		private final int size;
+
+		private FeatureSet(long[] bits, String[] names) {
+			this.bits = bits;
+			this.names = names;
+			int size = 0;
+			for (long word : bits) {
+				size += Long.bitCount(word);
+			}
+			this.size = size;
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+
+				private int next = nextSetBit(0);
+
+				@Override
+				public boolean hasNext() {
+					return next >= 0;
+				}
+
+				@Override
+				public String next() {
+					if (next < 0) {
+						throw new NoSuchElementException();
+					}
+					String name = names[next];
+					next = nextSetBit(next + 1);
+					return name;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		private int nextSetBit(int from) {
+			int idx = from >>> 6;
+			if (idx >= bits.length) {
+				return -1;
+			}
+			long word = bits[idx] & (-1L << from);
+			while (true) {
+				if (word != 0) {
+					return (idx << 6) + Long.numberOfTrailingZeros(word);
+				}
+				if (++idx == bits.length) {
+					return -1;
+				}
+				word = bits[idx];
+			}
+		}
+
+	}
+
+	private final ConcurrentMap<String,Integer> featureBits = new ConcurrentHashMap<>();
+	private volatile String[] featureNames = new String[64];
+	private final ConcurrentMap<String,long[]> nodeBits = new ConcurrentHashMap<>();
+	private final Function<String,String[]> nodeFeatures;
+
+	/**
+	 * @param nodeFeatures
+	 *            function returning features of CAPS node or
+	 *            <code>null</code> if they are not known yet.
+	 */
+	public CapsFeatures(Function<String,String[]> nodeFeatures) {
+		this.nodeFeatures = nodeFeatures;
+	}
+
+	/**
+	 * Returns features of new CAPS which were not available in old CAPS.
+	 *
+	 * @param newCaps
+	 *            current CAPS of resource
+	 * @param oldCaps
+	 *            previous CAPS of resource or <code>null</code>
+	 *
+	 * @return read-only set of added features.
+	 */
+	public Set<String> getAddedFeatures(String[] newCaps, String[] oldCaps) {
+		if (newCaps == null || newCaps.length == 0 || newCaps == oldCaps) {
+			return Collections.emptySet();
+		}
+		long[] added = getFeatures(newCaps, true);
+		if (added.length == 0) {
+			return Collections.emptySet();
+		}
+		if (oldCaps != null && oldCaps.length > 0) {
+			long[] old = getFeatures(oldCaps, false);
+			boolean empty = true;
+			for (int i = 0; i < added.length; i++) {
+				if (i < old.length) {
+					added[i] &= ~old[i];
+				}
+				empty &= added[i] == 0;
+			}
+			if (empty) {
+				return Collections.emptySet();
+			}
+		}
+		return new FeatureSet(added, featureNames);
+	}
+
+	/**
+	 * Drops cached features of CAPS node after they were retrieved.
+	 */
+	public void nodeFeaturesChanged(String node) {
+		nodeBits.remove(node);
+	}
+
+	private long[] getFeatures(String[] caps, boolean copy) {
+		if (caps.length == 1 && !copy) {
+			return getNodeFeatures(caps[0]);
+		}
+		long[] result = NO_FEATURES;
+		for (String node : caps) {
+			long[] bits = getNodeFeatures(node);
+			if (bits.length > result.length) {
+				bits = bits.clone();
+				for (int i = 0; i < result.length; i++) {
+					bits[i] |= result[i];
+				}
+				result = bits;
+			} else {
+				for (int i = 0; i < bits.length; i++) {
+					result[i] |= bits[i];
+				}
+			}
+		}
+		return result;
+	}
+
+	private long[] getNodeFeatures(String node) {
+		long[] bits = nodeBits.get(node);
+		if (bits != null) {
+			return bits;
+		}
+		String[] features = nodeFeatures.apply(node);
+		if (features == null) {
+			// features will be known after response to disco#info query
+			return NO_FEATURES;
+		}
+		bits = NO_FEATURES;
+		for (String feature : features) {
+			int bit = getFeatureBit(feature);
+			if ((bit >>> 6) >= bits.length) {
+				bits = Arrays.copyOf(bits, (bit >>> 6) + 1);
+			}
+			bits[bit >>> 6] |= 1L << bit;
+		}
+		nodeBits.put(node, bits);
+		return bits;
+	}
+
+	private int getFeatureBit(String feature) {
+		Integer bit = featureBits.get(feature);
+		if (bit != null) {
+			return bit;
+		}
+		synchronized (this) {
+			bit = featureBits.get(feature);
+			if (bit != null) {
+				return bit;
+			}
+			bit = featureBits.size();
+			String[] featureNames = this.featureNames;
+			if (bit >= featureNames.length) {
+				featureNames = Arrays.copyOf(featureNames, featureNames.length * 2);
+			}
+			featureNames[bit] = feature;
+			this.featureNames = featureNames;
+			featureBits.put(feature, bit);
+			return bit;
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+/*
+ * CapsInterner.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.modules;
+
+import java.util.Arrays;
+
+/**
+ * Assigns compact <code>int</code> identifiers to sorted arrays of CAPS
+ * nodes, so presence of every resource may refer to shared instance of its
+ * CAPS by a single number.
+ *
+ * Entries are split into shards, each with its own lock, hash table and pool
+ * of identifiers. Lookup hashes and compares CAPS arrays directly, so
+ * interning already known CAPS does not allocate any objects. Every call to
+ * {@link #intern(String[])} needs to be paired with {@link #release(int)}
+ * when identifier is no longer used. Entries which are not used are kept
+ * until shard reaches its size limit and then they are evicted and their
+ * identifiers are reused.
+ *
+ * Identifier <code>0</code> is reserved for empty CAPS.
+ */
+public class CapsInterner {
+
+	public static final int DEF_MAX_SIZE = 10000;
+
+	public static final int EMPTY = 0;
+
+	private static final String[] EMPTY_CAPS = {};
+
+	private static final int SHARD_BITS = 4;
+
+	private static final int SHARD_MASK = (1 << SHARD_BITS) - 1;
+
+	private static class Entry {
+
+		private final String[] caps;
+		private final int hash;
+		private final int id;
+		private Entry next;
+		private int refs = 1;
+
+		private Entry(String[] caps, int hash, int id) {
+			this.caps = caps;
+			this.hash = hash;
+			this.id = id;
+		}
+
+	}
+
+	private static class Shard {
+
+		private Entry[] buckets = new Entry[16];
+		private volatile Entry[] entries = new Entry[16];
+		private int[] freeIds = new int[16];
+		private int freeIdsCount = 0;
+		private int nextId = 0;
+		private int size = 0;
+		private int unused = 0;
+
+		private int allocateId() {
+			if (freeIdsCount > 0) {
+				return freeIds[--freeIdsCount];
+			}
+			return nextId++;
+		}
+
+		private void add(Entry entry, int localId) {
+			if (size >= buckets.length * 3 / 4) {
+				resize();
+			}
+			int idx = (entry.hash >>> SHARD_BITS) & (buckets.length - 1);
+			entry.next = buckets[idx];
+			buckets[idx] = entry;
+			Entry[] entries = this.entries;
+			if (localId >= entries.length) {
+				entries = Arrays.copyOf(entries, Math.max(entries.length * 2, localId + 1));
+				entries[localId] = entry;
+				this.entries = entries;
+			} else {
+				entries[localId] = entry;
+			}
+			size++;
+		}
+
+		private void evictUnused() {
+			Entry[] entries = this.entries;
+			for (int i = 0; i < buckets.length; i++) {
+				Entry prev = null;
+				for (Entry e = buckets[i]; e != null; e = e.next) {
+					if (e.refs == 0) {
+						if (prev == null) {
+							buckets[i] = e.next;
+						} else {
+							prev.next = e.next;
+						}
+						int localId = e.id >>> SHARD_BITS;
+						entries[localId] = null;
+						if (freeIdsCount == freeIds.length) {
+							freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+						}
+						freeIds[freeIdsCount++] = localId;
+						size--;
+					} else {
+						prev = e;
+					}
+				}
+			}
+			unused = 0;
+		}
+
+		private void resize() {
+			Entry[] buckets = new Entry[this.buckets.length * 2];
+			for (Entry e : this.buckets) {
+				while (e != null) {
+					Entry next = e.next;
+					int idx = (e.hash >>> SHARD_BITS) & (buckets.length - 1);
+					e.next = buckets[idx];
+					buckets[idx] = e;
+					e = next;
+				}
+			}
+			this.buckets = buckets;
+		}
+
+	}
+
+	private static int hash(String[] caps) {
+		int h = Arrays.hashCode(caps);
+		return h ^ (h >>> 16);
+	}
+
+	private final int maxShardSize;
+	private final Shard[] shards = new Shard[1 << SHARD_BITS];
+
+	public CapsInterner() {
+		this(DEF_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize
+	 *            number of entries above which entries which are not used
+	 *            are evicted. Entries which are still used are never
+	 *            evicted.
+	 */
+	public CapsInterner(int maxSize) {
+		this.maxShardSize = Math.max(1, maxSize >> SHARD_BITS);
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard();
+		}
+		// first identifier of first shard is reserved for empty CAPS
+		shards[EMPTY & SHARD_MASK].nextId = 1;
+	}
+
+	/**
+	 * Returns CAPS with identifier.
+	 *
+	 * @param id
+	 *            identifier returned by {@link #intern(String[])} which was
+	 *            not released yet
+	 *
+	 * @return array of CAPS nodes, which should not be modified.
+	 */
+	public String[] get(int id) {
+		if (id == EMPTY) {
+			return EMPTY_CAPS;
+		}
+		if (id < 0) {
+			return null;
+		}
+		Entry[] entries = shards[id & SHARD_MASK].entries;
+		int localId = id >>> SHARD_BITS;
+		Entry entry = localId < entries.length ? entries[localId] : null;
+		return entry == null ? null : entry.caps;
+	}
+
+	/**
+	 * Returns identifier of CAPS and increases number of its uses.
+	 *
+	 * @param caps
+	 *            sorted array of CAPS nodes or <code>null</code>. Array is
+	 *            stored if CAPS were not known yet, so it should not be
+	 *            modified later.
+	 *
+	 * @return identifier of CAPS.
+	 */
+	public int intern(String[] caps) {
+		if (caps == null || caps.length == 0) {
+			return EMPTY;
+		}
+		final int hash = hash(caps);
+		final Shard shard = shards[hash & SHARD_MASK];
+		synchronized (shard) {
+			Entry[] buckets = shard.buckets;
+			for (Entry e = buckets[(hash >>> SHARD_BITS) & (buckets.length - 1)]; e != null; e = e.next) {
+				if (e.hash == hash && Arrays.equals(e.caps, caps)) {
+					if (e.refs++ == 0) {
+						shard.unused--;
+					}
+					return e.id;
+				}
+			}
+			if (shard.size >= maxShardSize && shard.unused > 0) {
+				shard.evictUnused();
+			}
+			int localId = shard.allocateId();
+			Entry entry = new Entry(caps, hash, (localId << SHARD_BITS) | (hash & SHARD_MASK));
+			shard.add(entry, localId);
+			return entry.id;
+		}
+	}
+
+	/**
+	 * Decreases number of uses of CAPS. After last use is released,
+	 * identifier may be assigned to other CAPS.
+	 *
+	 * @param id
+	 *            identifier returned by {@link #intern(String[])}
+	 */
+	public void release(int id) {
+		if (id <= EMPTY) {
+			return;
+		}
+		final Shard shard = shards[id & SHARD_MASK];
+		synchronized (shard) {
+			Entry[] entries = shard.entries;
+			int localId = id >>> SHARD_BITS;
+			Entry entry = localId < entries.length ? entries[localId] : null;
+			if (entry != null && entry.refs > 0 && --entry.refs == 0) {
+				shard.unused++;
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				size += shard.size;
+			}
+		}
+		return size;
+	}
+
+}
@@ -7,6 +7,9 @@
 package tigase.pubsub.modules;
 
 import tigase.component2.PacketWriter;
+import tigase.component2.eventbus.Event;
+import tigase.component2.eventbus.EventHandler;
+import tigase.component2.eventbus.EventType;
 import tigase.component2.exceptions.ComponentException;
 import tigase.criteria.Criteria;
 import tigase.criteria.ElementCriteria;
@@ -17,6 +20,7 @@ import tigase.server.Packet;
 import tigase.util.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.JID;
+import tigase.xmpp.StanzaType;
 import tigase.xmpp.impl.PresenceCapabilitiesManager;
 
 import java.util.ArrayDeque;
@@ -28,6 +32,29 @@ import java.util.Queue;
  * @author andrzej
  */
 public class CapsModule extends AbstractPubSubModule {
+
+	public interface NodeFeaturesHandler extends EventHandler {
+
+		public static class NodeFeaturesEvent extends Event<NodeFeaturesHandler> {
+
+			public static final EventType<NodeFeaturesHandler> TYPE = new EventType<NodeFeaturesHandler>();
+
+			private final String node;
+
+			public NodeFeaturesEvent(String node) {
+				super(TYPE);
+				this.node = node;
+			}
+
+			@Override
+			protected void dispatch(NodeFeaturesHandler handler) {
+				handler.onNodeFeatures(node);
+			}
+
+		}
+
+		void onNodeFeatures(String node);
+	}
 	
 	private static final Criteria CRIT = new Or(
 			ElementCriteria.nameType("iq", "result").add(ElementCriteria.name("query", "http://jabber.org/protocol/disco#info")),
@@ -53,6 +80,13 @@ public class CapsModule extends AbstractPubSubModule {
 	@Override
 	public void process(Packet packet) throws ComponentException, TigaseStringprepException {
 		PresenceCapabilitiesManager.processCapsQueryResponse(packet);
+		if (packet.getType() == StanzaType.result) {
+			Element query = packet.getElement().getChild("query", "http://jabber.org/protocol/disco#info");
+			String node = query == null ? null : query.getAttributeStaticStr("node");
+			if (node != null) {
+				config.getEventBus().fire(new NodeFeaturesHandler.NodeFeaturesEvent(node));
+			}
+		}
 	}
 	
 	/**
@@ -67,7 +101,8 @@ public class CapsModule extends AbstractPubSubModule {
 		if (c != null) {
 			final JID jid = packet.getStanzaFrom();
 			caps = PresenceCapabilitiesManager.processPresence(c);
-			if (caps != null) {
+			// caps usually contain only one node, so they are already sorted
+			if (caps != null && !isSorted(caps)) {
 				Arrays.sort(caps);
 			}
 
@@ -83,5 +118,14 @@ public class CapsModule extends AbstractPubSubModule {
 		}
 		return caps;
 	}
+
+	private static boolean isSorted(String[] caps) {
+		for (int i = 1; i < caps.length; i++) {
+			if (caps[i - 1].compareTo(caps[i]) > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
 	
 }
@@ -0,0 +1,108 @@
+/*
+ * NotificationTemplate.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.modules;
+
+import tigase.server.Message;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Payload of notification which is sent to many recipients.
+ *
+ * Children of notification message (body, AMP rule, event and SHIM headers)
+ * do not depend on recipient, so they are created once and the same
+ * instances are added to message created for each recipient. Because of that
+ * children of packets created by this class must not be modified.
+ */
+class NotificationTemplate {
+
+	public static final String EVENT_XMLNS = "http://jabber.org/protocol/pubsub#event";
+
+	public static final String SHIM_XMLNS = "http://jabber.org/protocol/shim";
+
+	private final List<Element> children;
+
+	NotificationTemplate(Element itemToSend, List<Element> body, Map<String, String> headers) {
+		List<Element> children = new ArrayList<Element>();
+
+		if (body != null) {
+			children.addAll(body);
+		}
+
+		String expireAttr = itemToSend.getAttributeStaticStr(new String[] { "items", "item" }, "expire-at");
+		if (expireAttr != null) {
+			Element amp = new Element("amp");
+			amp.setXMLNS(PublishItemModule.AMP_XMLNS);
+			amp.addChild(new Element("rule", new String[] { "condition", "action", "value" },
+					new String[] { "expire-at", "drop", expireAttr }));
+			children.add(amp);
+		}
+
+		Element event = new Element("event", new String[] { "xmlns" }, new String[] { EVENT_XMLNS });
+		event.addChild(itemToSend);
+		children.add(event);
+
+		if ((headers != null) && (headers.size() > 0)) {
+			Element headElem = new Element("headers", new String[] { "xmlns" }, new String[] { SHIM_XMLNS });
+
+			for (Map.Entry<String, String> entry : headers.entrySet()) {
+				headElem.addChild(new Element("header", entry.getValue(), new String[] { "name" },
+						new String[] { entry.getKey() }));
+			}
+			children.add(headElem);
+		}
+
+		this.children = Collections.unmodifiableList(children);
+	}
+
+	/**
+	 * Creates notification message for single recipient.
+	 *
+	 * @param from
+	 *            sender of notification.
+	 * @param to
+	 *            recipient of notification.
+	 * @param id
+	 *            id of stanza.
+	 *
+	 * @return notification packet sharing children with all other packets
+	 *         created by this template.
+	 */
+	public Packet createPacket(JID from, JID to, String id) {
+		Packet packet = Message.getMessage(from, to, null, null, null, null, id);
+
+		packet.getElement().addChildren(children);
+
+		return packet;
+	}
+
+	List<Element> getChildren() {
+		return children;
+	}
+
+}
@@ -167,7 +167,7 @@ public class PendingSubscriptionModule extends AbstractPubSubModule {
 			}
 
 			Packet msg = Message.getMessage(message.getStanzaTo(), JID.jidInstance(subscriberJid), null, null, null, null,
-					Utils.createUID(subscriberJid));
+					Utils.createUID());
 
 			msg.getElement().addChild(SubscribeNodeModule.makeSubscription(node, subscriberJid, subscription, null));
 
@@ -213,7 +213,7 @@ public class PendingSubscriptionModule extends AbstractPubSubModule {
 			for (UsersAffiliation affiliation : affiliations) {
 				if (affiliation.getAffiliation() == Affiliation.owner) {
 					Packet message = Message.getMessage(fromJid, JID.jidInstance(affiliation.getJid()), null, null, null, null,
-							Utils.createUID(affiliation.getJid()));
+							Utils.createUID());
 
 					message.getElement().addChild(x.getElement());
 					result.add(message);
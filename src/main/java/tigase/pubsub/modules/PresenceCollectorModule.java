@@ -24,16 +24,9 @@ package tigase.pubsub.modules;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import tigase.component2.PacketWriter;
 import tigase.component2.eventbus.Event;
 import tigase.component2.eventbus.EventHandler;
@@ -43,6 +36,7 @@ import tigase.criteria.ElementCriteria;
 import tigase.pubsub.AbstractPubSubModule;
 import tigase.pubsub.PubSubConfig;
 import tigase.pubsub.exceptions.PubSubException;
+import tigase.pubsub.modules.CapsModule.NodeFeaturesHandler;
 import tigase.pubsub.modules.PresenceCollectorModule.BuddyVisibilityHandler.BuddyVisibilityEvent;
 import tigase.pubsub.modules.PresenceCollectorModule.CapsChangeHandler.CapsChangeEvent;
 import tigase.pubsub.modules.PresenceCollectorModule.PresenceChangeHandler.PresenceChangeEvent;
@@ -143,18 +137,39 @@ public class PresenceCollectorModule extends AbstractPubSubModule {
 
 	private static final Criteria CRIT = ElementCriteria.name("presence");
 
-	private static final String[] EMPTY_CAPS = {};
+	private final CapsModule capsModule;
+	// here we are using CapsInterner to share instances of CAPS between
+	// resources and to keep only their identifiers in PresenceTable, every
+	// identifier stored in PresenceTable holds one use of CAPS
+	private final CapsInterner capsInterner = new CapsInterner();
+	private final CapsFeatures capsFeatures = new CapsFeatures(PresenceCapabilitiesManager::getNodeFeatures);
+	private final PresenceFeatureIndex featureIndex = new PresenceFeatureIndex(
+			PresenceCapabilitiesManager::getNodeFeatures);
+	private final PresenceTable presenceTable = new PresenceTable(new PresenceTable.Listener() {
+
+		@Override
+		public void resourceChanged(BareJID serviceJid, JID jid, int oldCapsId, int newCapsId) {
+			featureIndex.update(serviceJid, jid, getCaps(oldCapsId), getCaps(newCapsId));
+			if (newCapsId == PresenceTable.NOT_AVAILABLE) {
+				capsInterner.release(oldCapsId);
+			}
+		}
 
-	private static final ConcurrentMap<String,String[]> CAPS_MAP = new ConcurrentHashMap<String,String[]>();
-	
-//	private final Map<BareJID, Set<String>> resources = new HashMap<BareJID, Set<String>>();
+		@Override
+		public void userRemoved(BareJID serviceJid, BareJID bareJid) {
+			BuddyVisibilityEvent event = new BuddyVisibilityEvent(bareJid, false);
+			config.getEventBus().fire(event);
+		}
+	});
 
-	private final ConcurrentMap<BareJID, ConcurrentMap<BareJID, Map<String,String[]>>> presenceByService = new ConcurrentHashMap<>();
-	private final CapsModule capsModule;
-	
 	public PresenceCollectorModule(PubSubConfig config, PacketWriter packetWriter, CapsModule capsModule) {
 		super(config, packetWriter);
 		this.capsModule = capsModule;
+		// resources are indexed by features of CAPS node when they are known
+		config.getEventBus().addHandler(NodeFeaturesHandler.NodeFeaturesEvent.TYPE,
+				featureIndex::nodeFeaturesChanged);
+		config.getEventBus().addHandler(NodeFeaturesHandler.NodeFeaturesEvent.TYPE,
+				capsFeatures::nodeFeaturesChanged);
 	}
 
 	public void addBuddyVisibilityHandler(BuddyVisibilityHandler handler) {
@@ -176,86 +191,21 @@ public class PresenceCollectorModule extends AbstractPubSubModule {
 			return false;
 		}
 
-		// here we are using CAPS_MAP to cache instances of CAPS to reduce memory footprint
-		if (caps == null || caps.length == 0) {
-			caps = EMPTY_CAPS;
-		}
-		else {
-			StringBuilder sb = new StringBuilder();
-			for (String item : caps) {
-				sb.append(item);
-			}
-			String key = sb.toString();
-			String[] cachedCaps = CAPS_MAP.putIfAbsent(key, caps);
-			if (cachedCaps != null) {
-				caps = cachedCaps;
-			}
-		}
-		
 		boolean added = false;
-		final BareJID bareJid = jid.getBareJID();
-		final String resource = jid.getResource();
-
-		ConcurrentMap<BareJID, Map<String,String[]>> presenceByUser = presenceByService.get(serviceJid);
-		if (presenceByUser == null) {
-			ConcurrentMap<BareJID, Map<String,String[]>> tmp = new ConcurrentHashMap<>();
-			presenceByUser = presenceByService.putIfAbsent(serviceJid, tmp);
-			if (presenceByUser == null) {
-				presenceByUser = tmp;
-			}
-		}
-		
-		if (resource != null) {
-			Map<String,String[]> resources = presenceByUser.get(bareJid);
-
-			if (resources == null) {
-				Map<String,String[]> tmp = new HashMap<>();				
-				resources = presenceByUser.putIfAbsent(bareJid, tmp);
-				if (resources == null)
-					resources = tmp;
-			}
-			
-			String[] oldCaps;
-			synchronized (resources) {
-				oldCaps = resources.put(resource, caps);
-				added = oldCaps == null;
-			}
+
+		if (jid.getResource() != null) {
+			final int capsId = capsInterner.intern(caps);
+			// instance is retrieved while we still hold use of the identifier
+			caps = capsInterner.get(capsId);
+			final int oldCapsId = presenceTable.put(serviceJid, jid, capsId);
+			added = oldCapsId == PresenceTable.NOT_AVAILABLE;
 			log.finest("for service " + serviceJid + " - Contact " + jid + " is collected.");
-			
-			// we are firing CapsChangeEvent only for PEP services
-			if (this.config.isPepPeristent() && this.config.isSendLastPublishedItemOnPresence()
-					&& serviceJid.getLocalpart() != null && oldCaps != caps && caps != null) {
-				// calculating new features and firing event
-				Set<String> newFeatures = new HashSet<String>();
-				for (String node : caps) {
-					// ignore searching for features if same node exists in old caps
-					if (oldCaps != null && Arrays.binarySearch(oldCaps, node) >= 0)
-						continue;
-					
-					String[] features = PresenceCapabilitiesManager.getNodeFeatures(node);
-					if (features != null) {
-						for (String feature : features) {
-							newFeatures.add(feature);
-						}
-					}
-				}
-				if (oldCaps != null) {
-					for (String node : oldCaps) {
-						// ignore searching for features if same node exists in new caps
-						if (Arrays.binarySearch(caps, node) >= 0)
-							continue;
-						String[] features = PresenceCapabilitiesManager.getNodeFeatures(node);
-						if (features != null) {
-							for (String feature : features) {
-								newFeatures.remove(feature);
-							}
-						}
-					}
-				}
-
-				if (!newFeatures.isEmpty()) {
-					this.config.getEventBus().fire(new CapsChangeEvent(serviceJid, jid, caps, oldCaps, newFeatures));
-				}
+
+			try {
+				fireCapsChangeEvent(serviceJid, jid, caps, getCaps(oldCapsId));
+			} finally {
+				// use of replaced CAPS was passed to us by PresenceTable
+				capsInterner.release(oldCapsId);
 			}
 		}
 
@@ -267,6 +217,18 @@ public class PresenceCollectorModule extends AbstractPubSubModule {
 		config.getEventBus().addHandler(PresenceChangeEvent.TYPE, handler);
 	}
 
+	private void fireCapsChangeEvent(BareJID serviceJid, JID jid, String[] caps, String[] oldCaps) {
+		// we are firing CapsChangeEvent only for PEP services
+		if (this.config.isPepPeristent() && this.config.isSendLastPublishedItemOnPresence()
+				&& serviceJid.getLocalpart() != null && oldCaps != caps) {
+			// only features added by new CAPS are passed to handlers
+			Set<String> newFeatures = capsFeatures.getAddedFeatures(caps, oldCaps);
+			if (!newFeatures.isEmpty()) {
+				this.config.getEventBus().fire(new CapsChangeEvent(serviceJid, jid, caps, oldCaps, newFeatures));
+			}
+		}
+	}
+
 	private void firePresenceChangeEvent(Packet packet) {
 		PresenceChangeEvent event = new PresenceChangeEvent(packet);
 		config.getEventBus().fire(event);
@@ -279,18 +241,12 @@ public class PresenceCollectorModule extends AbstractPubSubModule {
 	 * @return
 	 */
 	public List<JID> getAllAvailableJids(final BareJID serviceJid) {
-		ArrayList<JID> result = new ArrayList<JID>();
-
-		ConcurrentMap<BareJID,Map<String,String[]>> presenceByUser = presenceByService.get(serviceJid);
-		if (presenceByUser != null) {
-			for (Entry<BareJID, Map<String,String[]>> entry : presenceByUser.entrySet()) {
-				for (String reource : entry.getValue().keySet()) {
-					JID jid = JID.jidInstanceNS(entry.getKey(), reource);
-					if (isAvailableLocally(jid))
-						result.add(jid);
-				}
-			}			
-		}
+		final ArrayList<JID> result = new ArrayList<JID>();
+
+		presenceTable.forEach(serviceJid, jid -> {
+			if (isAvailableLocally(jid))
+				result.add(jid);
+		});
 	
 		return result;
 	}
@@ -303,20 +259,9 @@ public class PresenceCollectorModule extends AbstractPubSubModule {
 	 * @return
 	 */
 	public List<JID> getAllAvailableResources(final BareJID serviceJid, final BareJID bareJid) {
-		final List<JID> result = new ArrayList<JID>();
-		ConcurrentMap<BareJID,Map<String,String[]>> presenceByUser = presenceByService.get(serviceJid);
-		if (presenceByUser == null) {
-			return result;
-		}
-		
-		final Map<String,String[]> jid_resources = presenceByUser.get(bareJid);
-
-		if (jid_resources != null) {
-			for (String reource : jid_resources.keySet()) {
-				JID jid = JID.jidInstanceNS(bareJid, reource);
-				if (isAvailableLocally(jid))
-					result.add(jid);
-			}
+		final List<JID> result = presenceTable.getResources(serviceJid, bareJid);
+		if (!result.isEmpty()) {
+			result.removeIf(jid -> !isAvailableLocally(jid));
 		}
 
 		return result;
@@ -333,30 +278,14 @@ public class PresenceCollectorModule extends AbstractPubSubModule {
 	 */
 	public List<JID> getAllAvailableJidsWithFeature(final BareJID serviceJid, final String feature) {
 		final List<JID> result = new ArrayList<>();
-		ConcurrentMap<BareJID,Map<String,String[]>> presenceByUser = presenceByService.get(serviceJid);
-		if (presenceByUser == null) {
-			return result;
-		}
-			
-		Set<String> nodesWithFeature = PresenceCapabilitiesManager.getNodesWithFeature(feature);
-		for (Map.Entry<BareJID,Map<String,String[]>> pe : presenceByUser.entrySet()) {
-			Map<String,String[]> jid_resources = pe.getValue();
-			if (jid_resources != null) {
-				synchronized (jid_resources) {
-					for (Map.Entry<String, String[]> e : jid_resources.entrySet()) {
-						String[] caps = e.getValue();
-						boolean match = false;
-						for (String node : caps) {
-							match |= nodesWithFeature.contains(node);
-						}
-						if (match) {
-							JID jid = JID.jidInstanceNS(pe.getKey(), e.getKey());
-							if (isAvailableLocally(jid))
-								result.add(jid);
-						}
-					}
-				}
-			}	
+
+		// only resources which announced feature are checked
+		for (JID jid : featureIndex.getJidsWithFeature(serviceJid, feature)) {
+			if (!presenceTable.contains(serviceJid, jid)) {
+				continue;
+			}
+			if (isAvailableLocally(jid))
+				result.add(jid);
 		}
 
 		return result;
@@ -396,13 +325,7 @@ public class PresenceCollectorModule extends AbstractPubSubModule {
 	 * @return
 	 */
 	public boolean isJidAvailable(final BareJID serviceJid, final BareJID bareJid) {
-		ConcurrentMap<BareJID,Map<String,String[]>> presenceByUser = presenceByService.get(serviceJid);
-		if (presenceByUser == null) {
-			return false;
-		}		
-		final Map<String,String[]> resources = presenceByUser.get(bareJid);
-
-		return (resources != null) && (resources.size() > 0);
+		return presenceTable.isAvailable(serviceJid, bareJid);
 	}
 
 	private Packet preparePresence(final Packet presence, StanzaType type) {
@@ -505,33 +428,17 @@ public class PresenceCollectorModule extends AbstractPubSubModule {
 			return false;
 		}
 
-		final BareJID bareJid = jid.getBareJID();
-		final String resource = jid.getResource();
 		boolean removed = false;
 
-		ConcurrentMap<BareJID,Map<String,String[]>> presenceByUser = presenceByService.get(serviceJid);
-		if (presenceByUser == null)
-			return false;
-		
 		// onlineUsers.remove(jid);
-		if (resource == null) {
-			presenceByUser.remove(bareJid);
-			BuddyVisibilityEvent event = new BuddyVisibilityEvent(bareJid, false);
-			config.getEventBus().fire(event);
-		} else {
-			Map<String,String[]> resources = presenceByUser.get(bareJid);
-
-			if (resources != null) {
-				synchronized (resources) {
-					removed = resources.remove(resource) != null;
-					log.finest("for service " + serviceJid + " - Contact " + jid + " is removed from collection.");
-					if (resources.isEmpty()) {
-						presenceByUser.remove(bareJid);
-						BuddyVisibilityEvent event = new BuddyVisibilityEvent(bareJid, false);
-						config.getEventBus().fire(event);
-					}
-				}
+		if (jid.getResource() == null) {
+			if (!presenceTable.removeAll(serviceJid, jid.getBareJID())) {
+				BuddyVisibilityEvent event = new BuddyVisibilityEvent(jid.getBareJID(), false);
+				config.getEventBus().fire(event);
 			}
+		} else {
+			removed = presenceTable.remove(serviceJid, jid) != PresenceTable.NOT_AVAILABLE;
+			log.finest("for service " + serviceJid + " - Contact " + jid + " is removed from collection.");
 		}
 
 		return removed;
@@ -540,4 +447,8 @@ public class PresenceCollectorModule extends AbstractPubSubModule {
 	public void removePresenceChangeHandler(PresenceChangeHandler handler) {
 		config.getEventBus().remove(PresenceChangeEvent.TYPE, handler);
 	}
+
+	private String[] getCaps(int capsId) {
+		return capsId == PresenceTable.NOT_AVAILABLE ? null : capsInterner.get(capsId);
+	}
 }
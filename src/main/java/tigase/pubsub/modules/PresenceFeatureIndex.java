@@ -0,0 +1,207 @@
+/*
+ * PresenceFeatureIndex.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.modules;
+
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Index of available resources by <code>+notify</code> features announced
+ * in their CAPS.
+ *
+ * Index is updated incrementally when resource changes its CAPS (or goes
+ * offline) and when features of CAPS node are retrieved, so looking for
+ * resources interested in notifications of a node does not require
+ * iteration over all available resources of the service.
+ */
+public class PresenceFeatureIndex {
+
+	private static final String NOTIFY_SUFFIX = "+notify";
+
+	private static class ServiceIndex {
+
+		private final ConcurrentMap<String,Set<JID>> byCapsNode = new ConcurrentHashMap<>();
+		private final ConcurrentMap<String,Set<JID>> byFeature = new ConcurrentHashMap<>();
+
+	}
+
+	private static void add(ConcurrentMap<String,Set<JID>> index, String key, JID jid) {
+		index.compute(key, (k, jids) -> {
+			if (jids == null) {
+				jids = ConcurrentHashMap.newKeySet();
+			}
+			jids.add(jid);
+			return jids;
+		});
+	}
+
+	private static void remove(ConcurrentMap<String,Set<JID>> index, String key, JID jid) {
+		index.computeIfPresent(key, (k, jids) -> {
+			jids.remove(jid);
+			return jids.isEmpty() ? null : jids;
+		});
+	}
+
+	private final Function<String,String[]> nodeFeatures;
+	private final ConcurrentMap<BareJID,ServiceIndex> services = new ConcurrentHashMap<>();
+
+	/**
+	 * @param nodeFeatures
+	 *            function returning features of CAPS node or
+	 *            <code>null</code> if they are not known yet.
+	 */
+	public PresenceFeatureIndex(Function<String,String[]> nodeFeatures) {
+		this.nodeFeatures = nodeFeatures;
+	}
+
+	/**
+	 * Returns resources which announced feature. Returned set is live view of
+	 * the index, so it should not be modified.
+	 */
+	public Set<JID> getJidsWithFeature(BareJID serviceJid, String feature) {
+		ServiceIndex index = services.get(serviceJid);
+		if (index == null) {
+			return Collections.emptySet();
+		}
+		Set<JID> jids = index.byFeature.get(feature);
+		return jids == null ? Collections.<JID>emptySet() : jids;
+	}
+
+	/**
+	 * Updates index after features of CAPS node were retrieved.
+	 */
+	public void nodeFeaturesChanged(String node) {
+		String[] features = nodeFeatures.apply(node);
+		if (features == null) {
+			return;
+		}
+		for (ServiceIndex index : services.values()) {
+			Set<JID> jids = index.byCapsNode.get(node);
+			if (jids == null) {
+				continue;
+			}
+			for (JID jid : jids) {
+				for (String feature : features) {
+					if (feature.endsWith(NOTIFY_SUFFIX)) {
+						add(index.byFeature, feature, jid);
+					}
+				}
+				if (!jids.contains(jid)) {
+					// resource changed CAPS or went offline in the meantime
+					for (String feature : features) {
+						remove(index.byFeature, feature, jid);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates index after resource changed its CAPS. Calls for the same
+	 * resource need to be serialized by the caller.
+	 *
+	 * @param serviceJid
+	 * @param jid
+	 *            full JID of resource
+	 * @param oldCaps
+	 *            previous CAPS of resource or <code>null</code>
+	 * @param newCaps
+	 *            current CAPS of resource or <code>null</code> if resource
+	 *            is not available any more
+	 */
+	public void update(BareJID serviceJid, JID jid, String[] oldCaps, String[] newCaps) {
+		boolean hasOld = oldCaps != null && oldCaps.length > 0;
+		boolean hasNew = newCaps != null && newCaps.length > 0;
+		if (!hasOld && !hasNew) {
+			return;
+		}
+
+		ServiceIndex index = services.get(serviceJid);
+		if (index == null) {
+			if (!hasNew) {
+				return;
+			}
+			ServiceIndex tmp = new ServiceIndex();
+			index = services.putIfAbsent(serviceJid, tmp);
+			if (index == null) {
+				index = tmp;
+			}
+		}
+
+		Set<String> features = new HashSet<String>();
+		if (hasNew) {
+			for (String node : newCaps) {
+				add(index.byCapsNode, node, jid);
+				collectFeatures(node, features);
+			}
+			for (String feature : features) {
+				add(index.byFeature, feature, jid);
+			}
+		}
+		if (hasOld) {
+			for (String node : oldCaps) {
+				if (hasNew && contains(newCaps, node)) {
+					continue;
+				}
+				remove(index.byCapsNode, node, jid);
+				String[] nodeFeatures = this.nodeFeatures.apply(node);
+				if (nodeFeatures == null) {
+					continue;
+				}
+				for (String feature : nodeFeatures) {
+					if (feature.endsWith(NOTIFY_SUFFIX) && !features.contains(feature)) {
+						remove(index.byFeature, feature, jid);
+					}
+				}
+			}
+		}
+	}
+
+	private void collectFeatures(String node, Set<String> result) {
+		String[] features = nodeFeatures.apply(node);
+		if (features == null) {
+			return;
+		}
+		for (String feature : features) {
+			if (feature.endsWith(NOTIFY_SUFFIX)) {
+				result.add(feature);
+			}
+		}
+	}
+
+	private static boolean contains(String[] caps, String node) {
+		for (String c : caps) {
+			if (c.equals(node)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
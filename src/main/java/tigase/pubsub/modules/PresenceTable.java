@@ -0,0 +1,279 @@
+/*
+ * PresenceTable.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.modules;
+
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Compact storage of available resources of users and identifiers of their
+ * CAPS (see {@link CapsInterner}).
+ *
+ * Resources of a user are kept in two arrays: one with JID instances of
+ * resources, which are returned to callers without creating new instances,
+ * and one with identifiers of CAPS. As most users have only one or two
+ * resources, arrays are scanned linearly.
+ */
+public class PresenceTable {
+
+	/**
+	 * Listener called when presence of resource is changed. It is called
+	 * while presence of user is locked, so calls for the same user are
+	 * serialized.
+	 */
+	public interface Listener {
+
+		void resourceChanged(BareJID serviceJid, JID jid, int oldCapsId, int newCapsId);
+
+		void userRemoved(BareJID serviceJid, BareJID bareJid);
+
+	}
+
+	public static final int NOT_AVAILABLE = -1;
+
+	private static class Resources {
+
+		private int[] caps = new int[1];
+		private JID[] jids = new JID[1];
+		private boolean removed = false;
+		private int size = 0;
+
+		private int indexOf(String resource) {
+			for (int i = 0; i < size; i++) {
+				if (jids[i].getResource().equals(resource)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+	}
+
+	private final Listener listener;
+	private final ConcurrentMap<BareJID,ConcurrentMap<BareJID,Resources>> presenceByService = new ConcurrentHashMap<>();
+
+	public PresenceTable(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Checks if resource is available.
+	 */
+	public boolean contains(BareJID serviceJid, JID jid) {
+		Resources resources = findResources(serviceJid, jid.getBareJID());
+		if (resources == null) {
+			return false;
+		}
+		synchronized (resources) {
+			return resources.indexOf(jid.getResource()) >= 0;
+		}
+	}
+
+	/**
+	 * Passes every available resource of service to consumer.
+	 */
+	public void forEach(BareJID serviceJid, Consumer<JID> consumer) {
+		ConcurrentMap<BareJID,Resources> presenceByUser = presenceByService.get(serviceJid);
+		if (presenceByUser == null) {
+			return;
+		}
+		for (Resources resources : presenceByUser.values()) {
+			JID[] jids;
+			int size;
+			synchronized (resources) {
+				jids = resources.jids;
+				size = resources.size;
+			}
+			for (int i = 0; i < size; i++) {
+				consumer.accept(jids[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns available resources of user.
+	 */
+	public List<JID> getResources(BareJID serviceJid, BareJID bareJid) {
+		Resources resources = findResources(serviceJid, bareJid);
+		if (resources == null) {
+			return Collections.emptyList();
+		}
+		synchronized (resources) {
+			return new ArrayList<JID>(Arrays.asList(resources.jids).subList(0, resources.size));
+		}
+	}
+
+	/**
+	 * Checks if user has any available resource.
+	 */
+	public boolean isAvailable(BareJID serviceJid, BareJID bareJid) {
+		Resources resources = findResources(serviceJid, bareJid);
+		if (resources == null) {
+			return false;
+		}
+		synchronized (resources) {
+			return resources.size > 0;
+		}
+	}
+
+	/**
+	 * Stores resource as available with CAPS.
+	 *
+	 * @return identifier of previous CAPS of resource or
+	 *         {@link #NOT_AVAILABLE} if resource was not available.
+	 */
+	public int put(BareJID serviceJid, JID jid, int capsId) {
+		ConcurrentMap<BareJID,Resources> presenceByUser = presenceByService.get(serviceJid);
+		if (presenceByUser == null) {
+			ConcurrentMap<BareJID,Resources> tmp = new ConcurrentHashMap<>();
+			presenceByUser = presenceByService.putIfAbsent(serviceJid, tmp);
+			if (presenceByUser == null) {
+				presenceByUser = tmp;
+			}
+		}
+
+		final BareJID bareJid = jid.getBareJID();
+		while (true) {
+			Resources resources = presenceByUser.get(bareJid);
+			if (resources == null) {
+				Resources tmp = new Resources();
+				resources = presenceByUser.putIfAbsent(bareJid, tmp);
+				if (resources == null) {
+					resources = tmp;
+				}
+			}
+			synchronized (resources) {
+				if (resources.removed) {
+					// last resource was removed in the meantime
+					continue;
+				}
+				int idx = resources.indexOf(jid.getResource());
+				int oldCapsId = NOT_AVAILABLE;
+				if (idx >= 0) {
+					oldCapsId = resources.caps[idx];
+					resources.caps[idx] = capsId;
+				} else {
+					idx = resources.size;
+					if (idx == resources.jids.length) {
+						resources.jids = Arrays.copyOf(resources.jids, idx * 2);
+						resources.caps = Arrays.copyOf(resources.caps, idx * 2);
+					}
+					resources.jids[idx] = jid;
+					resources.caps[idx] = capsId;
+					resources.size++;
+				}
+				if (oldCapsId != capsId) {
+					listener.resourceChanged(serviceJid, resources.jids[idx], oldCapsId, capsId);
+				}
+				return oldCapsId;
+			}
+		}
+	}
+
+	/**
+	 * Removes available resource.
+	 *
+	 * @return identifier of CAPS of resource or {@link #NOT_AVAILABLE} if
+	 *         resource was not available.
+	 */
+	public int remove(BareJID serviceJid, JID jid) {
+		ConcurrentMap<BareJID,Resources> presenceByUser = presenceByService.get(serviceJid);
+		if (presenceByUser == null) {
+			return NOT_AVAILABLE;
+		}
+		Resources resources = presenceByUser.get(jid.getBareJID());
+		if (resources == null) {
+			return NOT_AVAILABLE;
+		}
+		synchronized (resources) {
+			int idx = resources.indexOf(jid.getResource());
+			if (idx < 0) {
+				return NOT_AVAILABLE;
+			}
+			JID removedJid = resources.jids[idx];
+			int capsId = resources.caps[idx];
+			int last = resources.size - 1;
+			// arrays may be used by readers outside of the lock, so they are
+			// copied instead of being modified in place
+			JID[] jids = resources.jids.clone();
+			int[] caps = resources.caps.clone();
+			jids[idx] = jids[last];
+			caps[idx] = caps[last];
+			jids[last] = null;
+			resources.jids = jids;
+			resources.caps = caps;
+			resources.size = last;
+			listener.resourceChanged(serviceJid, removedJid, capsId, NOT_AVAILABLE);
+			if (last == 0) {
+				resources.removed = true;
+				presenceByUser.remove(jid.getBareJID(), resources);
+				listener.userRemoved(serviceJid, jid.getBareJID());
+			}
+			return capsId;
+		}
+	}
+
+	/**
+	 * Removes all available resources of user.
+	 *
+	 * @return <code>true</code> if user had any available resource.
+	 */
+	public boolean removeAll(BareJID serviceJid, BareJID bareJid) {
+		ConcurrentMap<BareJID,Resources> presenceByUser = presenceByService.get(serviceJid);
+		if (presenceByUser == null) {
+			return false;
+		}
+		Resources resources = presenceByUser.get(bareJid);
+		if (resources == null) {
+			return false;
+		}
+		synchronized (resources) {
+			if (resources.removed) {
+				return false;
+			}
+			for (int i = 0; i < resources.size; i++) {
+				listener.resourceChanged(serviceJid, resources.jids[i], resources.caps[i], NOT_AVAILABLE);
+			}
+			resources.jids = new JID[1];
+			resources.caps = new int[1];
+			resources.size = 0;
+			resources.removed = true;
+			presenceByUser.remove(bareJid, resources);
+			listener.userRemoved(serviceJid, bareJid);
+			return true;
+		}
+	}
+
+	private Resources findResources(BareJID serviceJid, BareJID bareJid) {
+		ConcurrentMap<BareJID,Resources> presenceByUser = presenceByService.get(serviceJid);
+		return presenceByUser == null ? null : presenceByUser.get(bareJid);
+	}
+
+}
@@ -38,7 +38,6 @@ import tigase.pubsub.modules.PresenceCollectorModule.PresenceChangeHandler.Prese
 import tigase.pubsub.repository.*;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
-import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.util.DateTimeFormatter;
 import tigase.xml.Element;
@@ -135,22 +134,34 @@ public class PublishItemModule extends AbstractPubSubModule {
 			// if we have new features we need to check if there are nodes for
 			// which
 			// we need to send notifications due to +notify feature
+			final List<String> nodesNames = new ArrayList<String>();
 			for (String feature : newFeatures) {
 				if (!feature.endsWith("+notify"))
 					continue;
-				String nodeName = feature.substring(0, feature.length() - "+notify".length());
+				nodesNames.add(feature.substring(0, feature.length() - "+notify".length()));
+			}
+			if (nodesNames.isEmpty())
+				return;
 
-				try {
-					AbstractNodeConfig nodeConfig = config.getPubSubRepository().getNodeConfig(serviceJid, nodeName);
+			// tasks of the same user are executed in order by the same
+			// repository thread
+			getRepository().executeUserAsync(serviceJid, buddyJid.getBareJID(), () -> {
+				List<AbstractNodeConfig> nodesConfigs = new ArrayList<AbstractNodeConfig>();
+				for (String nodeName : nodesNames) {
+					AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(serviceJid, nodeName);
 					if (nodeConfig != null
 							&& nodeConfig.getSendLastPublishedItem() == SendLastPublishedItem.on_sub_and_presence) {
-						publishLastItem(serviceJid, nodeConfig, buddyJid);
+						nodesConfigs.add(nodeConfig);
 					}
-				} catch (RepositoryException ex) {
+				}
+				publishLastItems(serviceJid, nodesConfigs, buddyJid);
+				return null;
+			}).whenComplete((result, ex) -> {
+				if (ex != null) {
 					log.log(Level.WARNING,
-							"Exception while sending last published item on on_sub_and_presence with CAPS filtering");
+							"Exception while sending last published item on on_sub_and_presence with CAPS filtering", ex);
 				}
-			}
+			});
 		}
 
 	};
@@ -177,25 +188,33 @@ public class PublishItemModule extends AbstractPubSubModule {
 			if (!config.isSendLastPublishedItemOnPresence())
 				return;
 			if (packet.getType() == null || packet.getType() == StanzaType.available) {
-				BareJID serviceJid = packet.getStanzaTo().getBareJID();
-				JID userJid = packet.getStanzaFrom();
-				try {
+				final BareJID serviceJid = packet.getStanzaTo().getBareJID();
+				final JID userJid = packet.getStanzaFrom();
+				// tasks of the same user are executed in order by the same
+				// repository thread, so presence processing is not blocked
+				getRepository().executeUserAsync(serviceJid, userJid.getBareJID(), () -> {
 					// sending last published items for subscribed nodes
-					Map<String, UsersSubscription> subscrs = config.getPubSubRepository().getUserSubscriptions(serviceJid,
+					Map<String, UsersSubscription> subscrs = getRepository().getUserSubscriptions(serviceJid,
 							userJid.getBareJID());
 					log.log(Level.FINEST, "Sending last published items for subscribed nodes: {0}", subscrs);
+					List<AbstractNodeConfig> nodesConfigs = new ArrayList<AbstractNodeConfig>();
 					for (Map.Entry<String, UsersSubscription> e : subscrs.entrySet()) {
 						if (e.getValue().getSubscription() != Subscription.subscribed)
 							continue;
 						String nodeName = e.getKey();
-						AbstractNodeConfig nodeConfig = config.getPubSubRepository().getNodeConfig(serviceJid, nodeName);
-						if (nodeConfig.getSendLastPublishedItem() != SendLastPublishedItem.on_sub_and_presence)
+						AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(serviceJid, nodeName);
+						if (nodeConfig == null
+								|| nodeConfig.getSendLastPublishedItem() != SendLastPublishedItem.on_sub_and_presence)
 							continue;
-						publishLastItem(serviceJid, nodeConfig, userJid);
+						nodesConfigs.add(nodeConfig);
 					}
-				} catch (RepositoryException ex) {
-					Logger.getLogger(PublishItemModule.class.getName()).log(Level.SEVERE, null, ex);
-				}
+					publishLastItems(serviceJid, nodesConfigs, userJid);
+					return null;
+				}).whenComplete((result, ex) -> {
+					if (ex != null) {
+						Logger.getLogger(PublishItemModule.class.getName()).log(Level.SEVERE, null, ex);
+					}
+				});
 
 			}
 		}
@@ -276,6 +295,7 @@ public class PublishItemModule extends AbstractPubSubModule {
 			ISubscriptions nodeaSubscriptions = repo.getNodeSubscriptions(toJid, nodeName);
 			nodeaSubscriptions.addSubscriberJid(toJid, Subscription.subscribed);
 			repo.update(toJid, nodeName, nodeaAffiliations);
+			repo.update(toJid, nodeName, nodeaSubscriptions);
 			repo.addToRootCollection(toJid, nodeName);
 			log.log(Level.FINEST, "Created new PEP node: {0}, conf: {1}, aff: {2}, subs: {3} ",
 														new Object[] {nodeName, nodeConfig, nodeaAffiliations, nodeaSubscriptions});
@@ -491,81 +511,83 @@ public class PublishItemModule extends AbstractPubSubModule {
 		final Element publish = pubSub.getChild("publish");
 		final String nodeName = publish.getAttributeStaticStr("node");
 
-		try {
+		// node is loaded, roster is read and item is stored by repository
+		// thread of the node, so processing thread is not blocked while
+		// waiting for the database
+		getRepository().executeAsync(toJid, nodeName, () -> {
 			if (isPEPNodeName(nodeName)) {
 				pepProcess(packet, pubSub, publish);
-				return;
+			} else {
+				publishItems(packet, toJid, nodeName, element, publish);
 			}
+			return null;
+		}).whenComplete((result, ex) -> sendResponse(packet, null, ex));
+	}
 
-			AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(toJid, nodeName);
+	private void publishItems(final Packet packet, final BareJID toJid, final String nodeName, final Element element,
+			final Element publish) throws PubSubException, RepositoryException {
+		AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(toJid, nodeName);
 
-			if (nodeConfig == null) {
-				if (packet.getStanzaTo().getLocalpart() == null || !config.isPepPeristent()) {
-					throw new PubSubException(element, Authorization.ITEM_NOT_FOUND);
-				} else {
-					// this is PubSub service for particular user - we should autocreate node
-					nodeConfig = createPepNode(toJid, nodeName, packet.getStanzaFrom().getBareJID());
-				}
+		if (nodeConfig == null) {
+			if (packet.getStanzaTo().getLocalpart() == null || !config.isPepPeristent()) {
+				throw new PubSubException(element, Authorization.ITEM_NOT_FOUND);
 			} else {
-				if (nodeConfig.getNodeType() == NodeType.collection) {
-					throw new PubSubException(Authorization.FEATURE_NOT_IMPLEMENTED, new PubSubErrorCondition("unsupported",
-							"publish"));
-				}
-			}			
-			
-			IAffiliations nodeAffiliations = getRepository().getNodeAffiliations(toJid, nodeName);
-			final UsersAffiliation senderAffiliation = nodeAffiliations.getSubscriberAffiliation(packet.getStanzaFrom().getBareJID());
-			final ISubscriptions nodeSubscriptions = getRepository().getNodeSubscriptions(toJid, nodeName);
-
-			// XXX #125
-			final PublisherModel publisherModel = nodeConfig.getPublisherModel();
-
-			if (!senderAffiliation.getAffiliation().isPublishItem()) {
-				if ((publisherModel == PublisherModel.publishers)
-						|| ((publisherModel == PublisherModel.subscribers) && (nodeSubscriptions.getSubscription(packet.getStanzaFrom().getBareJID()) != Subscription.subscribed))) {
-					throw new PubSubException(Authorization.FORBIDDEN);
-				}
+				// this is PubSub service for particular user - we should autocreate node
+				nodeConfig = createPepNode(toJid, nodeName, packet.getStanzaFrom().getBareJID());
+			}
+		} else {
+			if (nodeConfig.getNodeType() == NodeType.collection) {
+				throw new PubSubException(Authorization.FEATURE_NOT_IMPLEMENTED, new PubSubErrorCondition("unsupported",
+						"publish"));
 			}
+		}			
+		
+		IAffiliations nodeAffiliations = getRepository().getNodeAffiliations(toJid, nodeName);
+		final UsersAffiliation senderAffiliation = nodeAffiliations.getSubscriberAffiliation(packet.getStanzaFrom().getBareJID());
+		final ISubscriptions nodeSubscriptions = getRepository().getNodeSubscriptions(toJid, nodeName);
+
+		// XXX #125
+		final PublisherModel publisherModel = nodeConfig.getPublisherModel();
+
+		if (!senderAffiliation.getAffiliation().isPublishItem()) {
+			if ((publisherModel == PublisherModel.publishers)
+					|| ((publisherModel == PublisherModel.subscribers) && (nodeSubscriptions.getSubscription(packet.getStanzaFrom().getBareJID()) != Subscription.subscribed))) {
+				throw new PubSubException(Authorization.FORBIDDEN);
+			}
+		}
 
-			LeafNodeConfig leafNodeConfig = (LeafNodeConfig) nodeConfig;
-			List<Element> itemsToSend = makeItemsToSend(publish);
-			final Packet resultIq = packet.okResult((Element) null, 0);
+		LeafNodeConfig leafNodeConfig = (LeafNodeConfig) nodeConfig;
+		List<Element> itemsToSend = makeItemsToSend(publish);
+		final Packet resultIq = packet.okResult((Element) null, 0);
 
-			if (leafNodeConfig.isPersistItem()) {
+		if (leafNodeConfig.isPersistItem()) {
 
-				// checking ID
-				Element resPubsub = new Element("pubsub", new String[] { "xmlns" },
-						new String[] { "http://jabber.org/protocol/pubsub" });
+			// checking ID
+			Element resPubsub = new Element("pubsub", new String[] { "xmlns" },
+					new String[] { "http://jabber.org/protocol/pubsub" });
 
-				resultIq.getElement().addChild(resPubsub);
+			resultIq.getElement().addChild(resPubsub);
 
-				Element resPublish = new Element("publish", new String[] { "node" }, new String[] { nodeName });
+			Element resPublish = new Element("publish", new String[] { "node" }, new String[] { nodeName });
 
-				resPubsub.addChild(resPublish);
-				for (Element item : itemsToSend) {
-					String id = item.getAttributeStaticStr("id");
+			resPubsub.addChild(resPublish);
+			for (Element item : itemsToSend) {
+				String id = item.getAttributeStaticStr("id");
 
-					if (id == null) {
-						id = Utils.createUID();
+				if (id == null) {
+					id = Utils.createUID();
 
-						// throw new PubSubException(Authorization.BAD_REQUEST,
-						// PubSubErrorCondition.ITEM_REQUIRED);
-						item.setAttribute("id", id);
-					}
-					resPublish.addChild(new Element("item", new String[] { "id" }, new String[] { id }));
+					// throw new PubSubException(Authorization.BAD_REQUEST,
+					// PubSubErrorCondition.ITEM_REQUIRED);
+					item.setAttribute("id", id);
 				}
+				resPublish.addChild(new Element("item", new String[] { "id" }, new String[] { id }));
 			}
-			packetWriter.write(resultIq);
-
-			doPublishItems(toJid, nodeName, leafNodeConfig, nodeAffiliations, nodeSubscriptions,
-					element.getAttributeStaticStr("from"), itemsToSend);
-		} catch (PubSubException e1) {
-			throw e1;
-		} catch (Exception e) {
-			e.printStackTrace();
-
-			throw new RuntimeException(e);
 		}
+		packetWriter.write(resultIq);
+
+		doPublishItems(toJid, nodeName, leafNodeConfig, nodeAffiliations, nodeSubscriptions,
+				element.getAttributeStaticStr("from"), itemsToSend);
 	}
 
 	public void publish(BareJID serviceJid, String publisher, String nodeName, Element item) throws RepositoryException {
@@ -579,21 +601,87 @@ public class PublishItemModule extends AbstractPubSubModule {
 
 	public void publishLastItem(BareJID serviceJid, AbstractNodeConfig nodeConfig, JID destinationJID)
 			throws RepositoryException {
-		IItems nodeItems = this.getRepository().getNodeItems(serviceJid, nodeConfig.getNodeName());
-		String[] ids = nodeItems.getItemsIds();
+		// most recently published item, usually served from cache of recent
+		// items, is retrieved by repository thread as it is triggered by
+		// presence and we should not block presence processing
+		getRepository().queryItemsAsync(serviceJid, nodeConfig.getNodeName(), CollectionItemsOrdering.byUpdateDate,
+				null, null, null, 0, 1).whenComplete((lastItems, ex) -> {
+			if (ex != null) {
+				log.log(Level.WARNING, "Could not retrieve last published item of node " + nodeConfig.getNodeName()
+						+ " of " + serviceJid, ex);
+				return;
+			}
+			if (!lastItems.isEmpty()) {
+				Element payload = lastItems.get(0).getItem();
 
-			if (ids != null && ids.length > 0) {
-			String lastID = ids[ids.length - 1];
-			Element payload = nodeItems.getItem(lastID);
+				Element items = new Element("items");
+				items.addAttribute("node", nodeConfig.getNodeName());
+				items.addChild(payload);
+
+				sendNotifications(new JID[] { destinationJID }, items, JID.jidInstance(serviceJid), nodeConfig,
+						nodeConfig.getNodeName(), null);
+			}
+		});
+	}
 
+	/**
+	 * Sends last published items of many nodes to a single recipient, ie.
+	 * after recipient became available. Items of all nodes are retrieved by
+	 * single repository call and notifications are written as one batch.
+	 *
+	 * @param serviceJid
+	 * @param nodesConfigs
+	 * @param destinationJID
+	 *
+	 * @throws RepositoryException
+	 */
+	public void publishLastItems(BareJID serviceJid, List<AbstractNodeConfig> nodesConfigs, JID destinationJID)
+			throws RepositoryException {
+		if (nodesConfigs.isEmpty()) {
+			return;
+		}
+		Map<String, AbstractNodeConfig> configs = new LinkedHashMap<String, AbstractNodeConfig>();
+		for (AbstractNodeConfig nodeConfig : nodesConfigs) {
+			configs.put(nodeConfig.getNodeName(), nodeConfig);
+		}
+		Map<String, IItems.Item> lastItems = getRepository().getLastItems(serviceJid, configs.keySet());
+		if (lastItems.isEmpty()) {
+			return;
+		}
+
+		final JID jidFrom = JID.jidInstance(serviceJid);
+		// repository thread delivering items to a single user should not wait
+		// for relief, so items are sent right away (or dropped, if drop or
+		// shed policy is used) if we are overloaded
+		final NotificationBackpressure.Admission admission = config.getNotificationBackpressure().nonBlockingAdmission(
+				lastItems.size());
+		final List<Packet> notifications = new ArrayList<Packet>(lastItems.size());
+		for (AbstractNodeConfig nodeConfig : configs.values()) {
+			IItems.Item lastItem = lastItems.get(nodeConfig.getNodeName());
+			if (lastItem == null) {
+				continue;
+			}
 			Element items = new Element("items");
 			items.addAttribute("node", nodeConfig.getNodeName());
-			items.addChild(payload);
+			items.addChild(lastItem.getItem());
 
-			sendNotifications(new JID[] { destinationJID }, items, JID.jidInstance(serviceJid), nodeConfig,
-					nodeConfig.getNodeName(), null);
+			Packet packet = createNotification(createNotificationTemplate(items, nodeConfig, null), admission,
+					jidFrom, destinationJID, nodeConfig.getNodeName());
+			if (packet != null) {
+				notifications.add(packet);
+			}
+		}
+		if (admission.getDropped() > 0) {
+			log.log(Level.INFO, "Dropped {0} of {1} last published items for {2} due to backpressure",
+					new Object[] { admission.getDropped(), lastItems.size(), destinationJID });
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Sending {0} last published items of nodes {1} to {2}",
+					new Object[] { notifications.size(), lastItems.keySet(), destinationJID });
+		}
+		if (!notifications.isEmpty()) {
+			packetWriter.write(notifications);
 		}
-
 	}
 
 	/**
@@ -638,10 +726,26 @@ public class PublishItemModule extends AbstractPubSubModule {
 			ISubscriptions nodesSubscriptions) throws RepositoryException {
 		beforePrepareNotification(nodeConfig, nodesSubscriptions);
 
-		HashSet<JID> tmp = new HashSet<JID>();
-		for (BareJID j : getActiveSubscribers(nodeConfig, nodeAffiliations, nodesSubscriptions)) {
-			tmp.add(JID.jidInstance(j));
+		if (!nodeConfig.isPresenceExpired() && !nodeConfig.isDeliverPresenceBased()) {
+			// recipients do not depend on presence, so we may stream
+			// notifications directly from subscriptions without copying them
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Sending notifications[1] item: {0}, node: {1}, conf: {2}, aff: {3}, subs: {4}",
+						new Object[] { itemToSend, publisherNodeName, nodeConfig, nodeAffiliations, nodesSubscriptions });
+			}
+
+			final NotificationTemplate template = createNotificationTemplate(itemToSend, nodeConfig, headers);
+			final NotificationBackpressure.Admission admission = config.getNotificationBackpressure().admission(
+					nodesSubscriptions.getSubscriptionsCount());
+
+			forEachActiveSubscriber(nodeConfig, nodeAffiliations, nodesSubscriptions,
+					jid -> sendNotification(template, admission, jidFrom, JID.jidInstance(jid), publisherNodeName));
+			admission.done(publisherNodeName);
+			return;
 		}
+
+		final HashSet<JID> tmp = new HashSet<JID>();
+		forEachActiveSubscriber(nodeConfig, nodeAffiliations, nodesSubscriptions, jid -> tmp.add(JID.jidInstance(jid)));
 		boolean updateSubscriptions = false;
 
 		log.log( Level.FINEST,
@@ -740,11 +844,25 @@ public class PublishItemModule extends AbstractPubSubModule {
 	 */
 	public void sendNotifications(final JID[] subscribers, final Element itemToSend, final JID jidFrom,
 			AbstractNodeConfig nodeConfig, final String publisherNodeName, final Map<String, String> headers) {
-		List<Element> body = null;
-
 		log.log(Level.FINEST, "Sending notifications[2] item: {0}, node: {1}, conf: {2}, subs: {3} ",
 													new Object[] {itemToSend, publisherNodeName, nodeConfig, Arrays.asList( subscribers )  });
 
+		// payload is the same for every subscriber
+		final NotificationTemplate template = createNotificationTemplate(itemToSend, nodeConfig, headers);
+
+		final NotificationBackpressure.Admission admission = config.getNotificationBackpressure().admission(
+				subscribers.length);
+
+		for (JID jid : subscribers) {
+			sendNotification(template, admission, jidFrom, jid, publisherNodeName);
+		}
+		admission.done(publisherNodeName);
+	}
+
+	private NotificationTemplate createNotificationTemplate(final Element itemToSend, final AbstractNodeConfig nodeConfig,
+			final Map<String, String> headers) {
+		List<Element> body = null;
+
 		if ((this.xslTransformer != null) && (nodeConfig != null)) {
 			try {
 				body = this.xslTransformer.transform(itemToSend, nodeConfig);
@@ -753,62 +871,40 @@ public class PublishItemModule extends AbstractPubSubModule {
 				log.log(Level.WARNING, "Problem with generating BODY", e);
 			}
 		}
-		for (JID jid : subscribers) {
-
-			// in case of low memory we should slow down creation of response to
-			// prevent OOM on high traffic node
-			// maybe we should drop some notifications if we can not get enough
-			// memory for n-th time?
-			long lowMemoryDelay;
-			while ((lowMemoryDelay = config.getDelayOnLowMemory()) != 0) {
-				try {
-					System.gc();
-					Thread.sleep(lowMemoryDelay);
-				} catch (Exception e) {
-				}
-			}
 
-			Packet packet = Message.getMessage(jidFrom, jid, null, null, null, null, String.valueOf(++this.idCounter));
-			Element message = packet.getElement();
+		return new NotificationTemplate(itemToSend, body, headers);
+	}
 
-			if (body != null) {
-				message.addChildren(body);
-			}
+	private void sendNotification(final NotificationTemplate template, final NotificationBackpressure.Admission admission,
+			final JID jidFrom, final JID jid, final String publisherNodeName) {
+		Packet packet = createNotification(template, admission, jidFrom, jid, publisherNodeName);
+		if (packet == null) {
+			return;
+		}
 
-			Element event = new Element("event", new String[] { "xmlns" },
-					new String[] { "http://jabber.org/protocol/pubsub#event" });
-
-			event.addChild(itemToSend);
-			String expireAttr = itemToSend.getAttributeStaticStr( new String[] {"items","item"}, "expire-at" );
-			if (expireAttr != null ) {
-				Element amp = new Element("amp");
-				amp.setXMLNS( AMP_XMLNS );
-				amp.addChild( new Element("rule",
-						new String[] {"condition", "action", "value"},
-						new String[] {"expire-at", "drop", expireAttr }));
-				message.addChild( amp );
-			}
-			message.addChild(event);
-			if ((headers != null) && (headers.size() > 0)) {
-				Element headElem = new Element("headers", new String[] { "xmlns" },
-						new String[] { "http://jabber.org/protocol/shim" });
+		// we are adding notifications to outgoing queue instead temporary
+		// list
+		// of notifications to send, so before creating next packets other
+		// threads
+		// will be able to process first notifications and deliver them
+		packetWriter.write(packet);
+	}
 
-				for (Entry<String, String> entry : headers.entrySet()) {
-					Element h = new Element("header", entry.getValue(), new String[] { "name" },
-							new String[] { entry.getKey() });
+	private Packet createNotification(final NotificationTemplate template, final NotificationBackpressure.Admission admission,
+			final JID jidFrom, final JID jid, final String publisherNodeName) {
 
-					headElem.addChild(h);
-				}
-				message.addChild(headElem);
+		// in case of low memory or full outgoing queue we should slow down
+		// creation of notifications (or drop them) to prevent OOM on high
+		// traffic node
+		if (!admission.acquire()) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Notification for {0} from node {1} dropped due to backpressure",
+						new Object[] { jid, publisherNodeName });
 			}
-
-			// we are adding notifications to outgoing queue instead temporary
-			// list
-			// of notifications to send, so before creating next packets other
-			// threads
-			// will be able to process first notifications and deliver them
-			packetWriter.write(packet);
+			return null;
 		}
+
+		return template.createPacket(jidFrom, jid, String.valueOf(++this.idCounter));
 	}
 
 	/**
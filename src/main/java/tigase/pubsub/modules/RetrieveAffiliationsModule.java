@@ -30,7 +30,6 @@ import tigase.pubsub.AbstractPubSubModule;
 import tigase.pubsub.Affiliation;
 import tigase.pubsub.PubSubConfig;
 import tigase.pubsub.exceptions.PubSubException;
-import tigase.pubsub.repository.IPubSubDAO;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.server.Packet;
 import tigase.xml.Element;
@@ -106,8 +105,7 @@ public class RetrieveAffiliationsModule extends AbstractPubSubModule {
 
 			pubsubResult.addChild(affiliationsResult);
 
-			IPubSubDAO directRepo = this.getRepository().getPubSubDAO();
-			Map<String, UsersAffiliation> userAffiliations = directRepo.getUserAffiliations(serviceJid, senderBareJid);
+			Map<String, UsersAffiliation> userAffiliations = this.getRepository().getUserAffiliations(serviceJid, senderBareJid);
 			for (Map.Entry<String, UsersAffiliation> entry : userAffiliations.entrySet()) {
 				Affiliation affiliation = entry.getValue().getAffiliation();
 				Element a = new Element("affiliation", new String[]{"node", "affiliation"}, new String[]{
@@ -149,7 +149,7 @@ public class RetrieveItemsModule extends AbstractPubSubModule {
 		for (Element i : il) {
 			final String id = i.getAttributeStaticStr("id");
 
-			if (!"item".equals(i.getName()) || (id == null)) {
+			if (!"item".equals(i.getName()) || (id == null) || hasControlChars(id)) {
 				throw new PubSubException(Authorization.BAD_REQUEST);
 			}
 			result.add(id);
@@ -158,6 +158,20 @@ public class RetrieveItemsModule extends AbstractPubSubModule {
 		return result;
 	}
 
+	/**
+	 * Control characters are not allowed in XML, so they are not a part of
+	 * any valid item id. Repository may use them as separators.
+	 */
+	private static boolean hasControlChars(String id) {
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -191,260 +205,270 @@ public class RetrieveItemsModule extends AbstractPubSubModule {
 	 */
 	@Override
 	public void process(final Packet packet) throws PubSubException {
-		try {
-			final BareJID toJid = packet.getStanzaTo().getBareJID();
-			final Element pubsub = packet.getElement().getChild("pubsub", "http://jabber.org/protocol/pubsub");
-			final Element items = pubsub.getChild("items");
-			final String nodeName = items.getAttributeStaticStr("node");
-			final JID senderJid = packet.getStanzaFrom();
-
-			if (nodeName == null) {
-				throw new PubSubException(Authorization.BAD_REQUEST, PubSubErrorCondition.NODEID_REQUIRED);
-			}
-
-			// XXX CHECK RIGHTS AUTH ETC
-			AbstractNodeConfig nodeConfig = this.getRepository().getNodeConfig(toJid, nodeName);
-			checkPermission(senderJid, toJid, nodeName, nodeConfig);
-
-			if (nodeConfig instanceof CollectionNodeConfig) {
-				List<IItems.ItemMeta> itemsMeta = new ArrayList<IItems.ItemMeta>();
-				String[] childNodes = nodeConfig.getChildren();
-				Map<String, IItems> nodeItemsCache = new HashMap<String, IItems>();
-				if (childNodes != null) {
-					for (String childNodeName : childNodes) {
-						AbstractNodeConfig childNode = getRepository().getNodeConfig(toJid, childNodeName);
-						if (childNode == null || childNode.getNodeType() != NodeType.leaf)
-							continue;
-
-						LeafNodeConfig leafChildNode = (LeafNodeConfig) childNode;
-						if (!leafChildNode.isPersistItem())
-							continue;
-
-						try {
-							checkPermission(senderJid, toJid, childNodeName, childNode);
-							IItems childNodeItems = getRepository().getNodeItems(toJid, childNodeName);
-							nodeItemsCache.put(childNodeName, childNodeItems);
-							itemsMeta.addAll(childNodeItems.getItemsMeta());
-						} catch (PubSubException ex) {
-							// here we ignode PubSubExceptions as they are
-							// permission exceptions for subnodes
-						}
-					}
-				}
-
-				CollectionItemsOrdering collectionItemsOrdering = nodeConfig.getCollectionItemsOrdering();
-
-				if ( collectionItemsOrdering != null ){
-					Collections.sort( itemsMeta, collectionItemsOrdering.getComparator() );
-				} else {
-					Collections.sort( itemsMeta, CollectionItemsOrdering.byUpdateDate.getComparator() );
-				}
-
-				final Element rpubsub = new Element("pubsub", new String[] { "xmlns" },
-						new String[] { "http://jabber.org/protocol/pubsub" });
-				final Packet iq = packet.okResult(rpubsub, 0);
-
-				Integer maxItems = asInteger(items.getAttributeStaticStr("max_items"));
-				Integer offset = 0;
-
-				final Element rsmGet = pubsub.getChild("set", "http://jabber.org/protocol/rsm");
-				if (rsmGet != null) {
-					Element m = rsmGet.getChild("max");
-					if (m != null) {
-						maxItems = asInteger(m.getCData());
-					}
-					m = rsmGet.getChild("index");
-					if (m != null) {
-						offset = asInteger(m.getCData());
-					}
-				}
+		final BareJID toJid = packet.getStanzaTo().getBareJID();
+		final Element pubsub = packet.getElement().getChild("pubsub", "http://jabber.org/protocol/pubsub");
+		final Element items = pubsub.getChild("items");
+		final String nodeName = items.getAttributeStaticStr("node");
 
-				Map<String, List<Element>> nodeItemsElMap = new HashMap<String, List<Element>>();
-				int idx = offset;
-				int count = 0;
-				String lastId = null;
-				while (itemsMeta.size() > idx && (maxItems == null || count < maxItems)) {
-					IItems.ItemMeta itemMeta = itemsMeta.get(idx);
-					String node = itemMeta.getNode();
-					List<Element> nodeItemsElems = nodeItemsElMap.get(node);
-					if (nodeItemsElems == null) {
-						// nodeItemsEl = new Element("items", new String[] {
-						// "node" }, new String[] { node });
-						nodeItemsElems = new ArrayList<Element>();
-						nodeItemsElMap.put(node, nodeItemsElems);
-					}
-
-					IItems nodeItems = nodeItemsCache.get(node);
-					Element item = nodeItems.getItem(itemMeta.getId());
-					lastId = itemMeta.getId();
-					nodeItemsElems.add(item);
-
-					idx++;
-					count++;
-				}
-
-				nodeItemsCache.clear();
-
-				for (Map.Entry<String, List<Element>> entry : nodeItemsElMap.entrySet()) {
-					Element itemsEl = new Element("items", new String[] { "node" }, new String[] { entry.getKey() });
-
-					List<Element> itemsElems = entry.getValue();
-					Collections.reverse(itemsElems);
-					itemsEl.addChildren(itemsElems);
-
-					rpubsub.addChild(itemsEl);
-				}
-
-				if (nodeItemsElMap.size() > 0) {
-					final Element rsmResponse = new Element("set", new String[] { "xmlns" },
-							new String[] { "http://jabber.org/protocol/rsm" });
+		if (nodeName == null) {
+			throw new PubSubException(Authorization.BAD_REQUEST, PubSubErrorCondition.NODEID_REQUIRED);
+		}
 
-					rsmResponse.addChild(new Element("first", itemsMeta.get(offset).getId(), new String[] { "index" },
-							new String[] { String.valueOf(offset) }));
-					rsmResponse.addChild(new Element("count", "" + itemsMeta.size()));
-					if (lastId != null)
-						rsmResponse.addChild(new Element("last", lastId));
+		// items are retrieved by repository thread of the node, so processing
+		// thread is not blocked while waiting for the database
+		getRepository().executeAsync(toJid, nodeName, () -> retrieveItems(packet, toJid, pubsub, items, nodeName))
+				.whenComplete((result, ex) -> sendResponse(packet, result, ex));
+	}
 
-					rpubsub.addChild(rsmResponse);
-				} else {
-					rpubsub.addChild(new Element("items", new String[] { "node" }, new String[] { nodeName }));
-				}
+	private Packet retrieveItems(final Packet packet, final BareJID toJid, final Element pubsub, final Element items,
+			final String nodeName) throws PubSubException, RepositoryException {
+		final JID senderJid = packet.getStanzaFrom();
 
-				packetWriter.write(iq);
-				return;
-			} else if ((nodeConfig instanceof LeafNodeConfig) && !((LeafNodeConfig) nodeConfig).isPersistItem()) {
-				throw new PubSubException(Authorization.FEATURE_NOT_IMPLEMENTED, new PubSubErrorCondition("unsupported",
-						"persistent-items"));
-			}
+		// XXX CHECK RIGHTS AUTH ETC
+		AbstractNodeConfig nodeConfig = this.getRepository().getNodeConfig(toJid, nodeName);
+		checkPermission(senderJid, toJid, nodeName, nodeConfig);
 
-			List<String> requestedId = extractItemsIds(items);
-			boolean requestedExactItems = requestedId != null;
+		if (nodeConfig instanceof CollectionNodeConfig) {
 			final Element rpubsub = new Element("pubsub", new String[] { "xmlns" },
 					new String[] { "http://jabber.org/protocol/pubsub" });
-			final Element ritems = new Element("items", new String[] { "node" }, new String[] { nodeName });
 			final Packet iq = packet.okResult(rpubsub, 0);
-			iq.setXMLNS( Packet.CLIENT_XMLNS );
-
-			rpubsub.addChild(ritems);
 
 			Integer maxItems = asInteger(items.getAttributeStaticStr("max_items"));
 			Integer offset = 0;
-			Calendar dtAfter = null;
-			String afterId = null;
-			String beforeId = null;
 
 			final Element rsmGet = pubsub.getChild("set", "http://jabber.org/protocol/rsm");
 			if (rsmGet != null) {
 				Element m = rsmGet.getChild("max");
-				if (m != null)
+				if (m != null) {
 					maxItems = asInteger(m.getCData());
+				}
 				m = rsmGet.getChild("index");
-				if (m != null)
+				if (m != null) {
 					offset = asInteger(m.getCData());
-				m = rsmGet.getChild("before");
-				if (m != null)
-					beforeId = m.getCData();
-				m = rsmGet.getChild("adter");
-				if (m != null)
-					afterId = m.getCData();
-				m = rsmGet.getChild("dt_after", "http://tigase.org/pubsub");
-				if (m != null)
-					dtAfter = dtf.parseDateTime(m.getCData());
+				}
 			}
 
-			IItems nodeItems = this.getRepository().getNodeItems( toJid, nodeName );
+			CollectionItemsOrdering collectionItemsOrdering = nodeConfig.getCollectionItemsOrdering();
+			if ( collectionItemsOrdering == null ){
+				collectionItemsOrdering = CollectionItemsOrdering.byUpdateDate;
+			}
 
-			List<IItems.ItemMeta> itemsMeta = new ArrayList<IItems.ItemMeta>();
-			itemsMeta.addAll( nodeItems.getItemsMeta() );
+			// each child node may provide at most offset + max items to
+			// the requested page, so there is no need to load more
+			Integer childNodeLimit = maxItems == null ? null : offset + maxItems;
+			List<IItems.Item> collectionItems = new ArrayList<IItems.Item>();
+			int itemsCount = 0;
+			String[] childNodes = nodeConfig.getChildren();
+			if (childNodes != null) {
+				for (String childNodeName : childNodes) {
+					AbstractNodeConfig childNode = getRepository().getNodeConfig(toJid, childNodeName);
+					if (childNode == null || childNode.getNodeType() != NodeType.leaf)
+						continue;
 
-			CollectionItemsOrdering collectionItemsOrdering = nodeConfig.getCollectionItemsOrdering();
+					LeafNodeConfig leafChildNode = (LeafNodeConfig) childNode;
+					if (!leafChildNode.isPersistItem())
+						continue;
 
-			if ( collectionItemsOrdering != null ){
-				Collections.sort( itemsMeta, collectionItemsOrdering.getComparator() );
-			} else {
-				Collections.sort( itemsMeta, CollectionItemsOrdering.byUpdateDate.getComparator() );
+					try {
+						checkPermission(senderJid, toJid, childNodeName, childNode);
+						IItems childNodeItems = getRepository().getNodeItems(toJid, childNodeName);
+						itemsCount += childNodeItems.getItemsCount();
+						collectionItems.addAll(childNodeItems.queryItems(collectionItemsOrdering, null, null, null, 0,
+								childNodeLimit));
+					} catch (PubSubException ex) {
+						// here we ignode PubSubExceptions as they are
+						// permission exceptions for subnodes
+					}
+				}
 			}
 
-			if (requestedId == null) {
-				requestedId = new ArrayList<>(itemsMeta.size());
-				for ( IItems.ItemMeta item : itemsMeta) {
-					requestedId.add( item.getId());
+			Collections.sort( collectionItems, collectionItemsOrdering.getComparator() );
+
+			Map<String, List<Element>> nodeItemsElMap = new HashMap<String, List<Element>>();
+			int idx = offset;
+			int count = 0;
+			String lastId = null;
+			while (collectionItems.size() > idx && (maxItems == null || count < maxItems)) {
+				IItems.Item item = collectionItems.get(idx);
+				String node = item.getNode();
+				List<Element> nodeItemsElems = nodeItemsElMap.get(node);
+				if (nodeItemsElems == null) {
+					nodeItemsElems = new ArrayList<Element>();
+					nodeItemsElMap.put(node, nodeItemsElems);
 				}
+
+				lastId = item.getId();
+				nodeItemsElems.add(item.getItem());
+
+				idx++;
+				count++;
 			}
 
-			final Element rsmResponse = new Element("set", new String[] { "xmlns" },
-					new String[] { "http://jabber.org/protocol/rsm" });
+			for (Map.Entry<String, List<Element>> entry : nodeItemsElMap.entrySet()) {
+				Element itemsEl = new Element("items", new String[] { "node" }, new String[] { entry.getKey() });
 
-			if (requestedId != null) {
-				if (maxItems == null)
-					maxItems = requestedId.size();
+				List<Element> itemsElems = entry.getValue();
+				Collections.reverse(itemsElems);
+				itemsEl.addChildren(itemsElems);
 
-				List<Element> ritemsList = new ArrayList<Element>();
+				rpubsub.addChild(itemsEl);
+			}
 
-				rsmResponse.addChild(new Element("count", "" + requestedId.size()));
+			if (nodeItemsElMap.size() > 0) {
+				final Element rsmResponse = new Element("set", new String[] { "xmlns" },
+						new String[] { "http://jabber.org/protocol/rsm" });
 
-				String lastId = null;
-				int c = 0;
-				boolean allow = false;
-				for (int i = 0; i < requestedId.size(); i++) {
-					if (i + offset >= requestedId.size())
-						continue;
+				rsmResponse.addChild(new Element("first", collectionItems.get(offset).getId(), new String[] { "index" },
+						new String[] { String.valueOf(offset) }));
+				rsmResponse.addChild(new Element("count", "" + itemsCount));
+				if (lastId != null)
+					rsmResponse.addChild(new Element("last", lastId));
 
-					if (c >= maxItems)
-						break;
-					String id = requestedId.get(i + offset);
+				rpubsub.addChild(rsmResponse);
+			} else {
+				rpubsub.addChild(new Element("items", new String[] { "node" }, new String[] { nodeName }));
+			}
 
-					Date cd = null;
-					if ( collectionItemsOrdering == CollectionItemsOrdering.byCreationDate ){
-						cd = nodeItems.getItemCreationDate( id );
-					} else if ( collectionItemsOrdering == CollectionItemsOrdering.byUpdateDate ){
-						cd = nodeItems.getItemUpdateDate( id );
-					}
+			return iq;
+		} else if ((nodeConfig instanceof LeafNodeConfig) && !((LeafNodeConfig) nodeConfig).isPersistItem()) {
+			throw new PubSubException(Authorization.FEATURE_NOT_IMPLEMENTED, new PubSubErrorCondition("unsupported",
+					"persistent-items"));
+		}
 
-					if (dtAfter != null &&  cd !=null && !cd.after(dtAfter.getTime()))
-						continue;
+		List<String> requestedId = extractItemsIds(items);
+		boolean requestedExactItems = requestedId != null;
+		final Element rpubsub = new Element("pubsub", new String[] { "xmlns" },
+				new String[] { "http://jabber.org/protocol/pubsub" });
+		final Element ritems = new Element("items", new String[] { "node" }, new String[] { nodeName });
+		final Packet iq = packet.okResult(rpubsub, 0);
+		iq.setXMLNS( Packet.CLIENT_XMLNS );
+
+		rpubsub.addChild(ritems);
+
+		Integer maxItems = asInteger(items.getAttributeStaticStr("max_items"));
+		Integer offset = 0;
+		Calendar dtAfter = null;
+		String afterId = null;
+		String beforeId = null;
+
+		final Element rsmGet = pubsub.getChild("set", "http://jabber.org/protocol/rsm");
+		if (rsmGet != null) {
+			Element m = rsmGet.getChild("max");
+			if (m != null)
+				maxItems = asInteger(m.getCData());
+			m = rsmGet.getChild("index");
+			if (m != null)
+				offset = asInteger(m.getCData());
+			m = rsmGet.getChild("before");
+			if (m != null)
+				beforeId = m.getCData();
+			m = rsmGet.getChild("adter");
+			if (m != null)
+				afterId = m.getCData();
+			m = rsmGet.getChild("dt_after", "http://tigase.org/pubsub");
+			if (m != null)
+				dtAfter = dtf.parseDateTime(m.getCData());
+		}
 
-					if (afterId != null && !allow && afterId.equals(id)) {
-						allow = true;
-						continue;
-					} else if (afterId != null && !allow)
-						continue;
+		IItems nodeItems = this.getRepository().getNodeItems( toJid, nodeName );
 
-					if (beforeId != null && beforeId.equals(id))
-						break;
+		CollectionItemsOrdering collectionItemsOrdering = nodeConfig.getCollectionItemsOrdering();
+		if ( collectionItemsOrdering == null ){
+			collectionItemsOrdering = CollectionItemsOrdering.byUpdateDate;
+		}
 
-					Element item = nodeItems.getItem(id);
-					if (item != null) {
-						if (c == 0) {
-							rsmResponse.addChild(new Element("first", id, new String[]{"index"}, new String[]{""
-								+ (i + offset)}));
-						}
+		final Element rsmResponse = new Element("set", new String[] { "xmlns" },
+				new String[] { "http://jabber.org/protocol/rsm" });
 
-						lastId = id;
-						ritemsList.add(item);
-						++c;
-					}
+		List<Element> ritemsList = new ArrayList<Element>();
+		String lastId = null;
+		int itemsCount;
+
+		if (requestedExactItems) {
+			itemsCount = requestedId.size();
+			if (maxItems == null)
+				maxItems = itemsCount;
+
+			rsmResponse.addChild(new Element("count", "" + itemsCount));
+
+			Map<String, IItems.Item> requestedItems = new HashMap<String, IItems.Item>();
+			for (IItems.Item item : nodeItems.getItems(requestedId)) {
+				requestedItems.put(item.getId(), item);
+			}
+
+			int c = 0;
+			boolean allow = false;
+			for (int i = 0; i + offset < requestedId.size(); i++) {
+				if (c >= maxItems)
+					break;
+				String id = requestedId.get(i + offset);
+				IItems.Item item = requestedItems.get(id);
+
+				Date cd = null;
+				if ( item != null ){
+					cd = collectionItemsOrdering == CollectionItemsOrdering.byCreationDate
+							? item.getCreationDate()
+							: item.getItemUpdateDate();
 				}
-				if (lastId != null)
-					rsmResponse.addChild(new Element("last", lastId));
 
-				Collections.reverse(ritemsList);
-				ritems.addChildren(ritemsList);
+				if (dtAfter != null &&  cd !=null && !cd.after(dtAfter.getTime()))
+					continue;
 
-				if (!(ritemsList.isEmpty() && requestedExactItems)) {
-					if (maxItems != requestedId.size())
-						rpubsub.addChild(rsmResponse);
+				if (afterId != null && !allow && afterId.equals(id)) {
+					allow = true;
+					continue;
+				} else if (afterId != null && !allow)
+					continue;
+
+				if (beforeId != null && beforeId.equals(id))
+					break;
+
+				if (item != null) {
+					if (c == 0) {
+						rsmResponse.addChild(new Element("first", id, new String[]{"index"}, new String[]{""
+							+ (i + offset)}));
+					}
+
+					lastId = id;
+					ritemsList.add(item.getItem());
+					++c;
+				}
+			}
+		} else {
+			itemsCount = nodeItems.getItemsCount();
+			if (maxItems == null)
+				maxItems = itemsCount;
+
+			rsmResponse.addChild(new Element("count", "" + itemsCount));
+
+			// filtering, sorting and paging is done by repository
+			List<IItems.Item> page = nodeItems.queryItems(collectionItemsOrdering,
+					dtAfter == null ? null : dtAfter.getTime(), afterId, beforeId, offset, maxItems);
+			for (IItems.Item item : page) {
+				if (lastId == null) {
+					int index = afterId == null
+							? offset
+							: nodeItems.getItemPosition(collectionItemsOrdering, item.getId());
+					rsmResponse.addChild(new Element("first", item.getId(), new String[]{"index"}, new String[]{""
+						+ index}));
 				}
 
+				lastId = item.getId();
+				ritemsList.add(item.getItem());
 			}
+		}
 
-			packetWriter.write(iq);
-		} catch (PubSubException e1) {
-			throw e1;
-		} catch (Exception e) {
-			e.printStackTrace();
+		if (lastId != null)
+			rsmResponse.addChild(new Element("last", lastId));
 
-			throw new RuntimeException(e);
+		Collections.reverse(ritemsList);
+		ritems.addChildren(ritemsList);
+
+		if (!(ritemsList.isEmpty() && requestedExactItems)) {
+			if (maxItems != itemsCount)
+				rpubsub.addChild(rsmResponse);
 		}
+
+		return iq;
 	}
 }
\ No newline at end of file
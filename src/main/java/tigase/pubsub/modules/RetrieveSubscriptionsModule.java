@@ -31,7 +31,6 @@ import tigase.pubsub.AbstractPubSubModule;
 import tigase.pubsub.PubSubConfig;
 import tigase.pubsub.Subscription;
 import tigase.pubsub.exceptions.PubSubException;
-import tigase.pubsub.repository.IPubSubDAO;
 import tigase.pubsub.repository.ISubscriptions;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 
@@ -116,8 +115,7 @@ public class RetrieveSubscriptionsModule extends AbstractPubSubModule {
 
 			pubsubResult.addChild(subscriptionsResult);
 			if (nodeName == null) {
-				IPubSubDAO directRepo = this.getRepository().getPubSubDAO();
-				Map<String, UsersSubscription> usersSubscriptions = directRepo.getUserSubscriptions(serviceJid, senderBareJid);
+				Map<String, UsersSubscription> usersSubscriptions = this.getRepository().getUserSubscriptions(serviceJid, senderBareJid);
 				for (Map.Entry<String, UsersSubscription> entry : usersSubscriptions.entrySet()) {
 					UsersSubscription subscription = entry.getValue();
 					Element a = new Element("subscription", new String[] { "node", "jid", "subscription" },
@@ -1,64 +1,556 @@
 package tigase.pubsub.modules;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.NamespaceSupport;
+
 import tigase.pubsub.AbstractNodeConfig;
-import tigase.xml.DomBuilderHandler;
+import tigase.pubsub.modules.NodeConfigModule.NodeConfigurationChangedHandler;
+import tigase.server.Packet;
 import tigase.xml.Element;
-import tigase.xml.SimpleParser;
-import tigase.xml.SingletonFactory;
+import tigase.xml.XMLUtils;
+
+/**
+ * Generates body of notifications using XSL transformation configured for
+ * node.
+ *
+ * Compiled transformations are cached, so XSLT is parsed (and downloaded if
+ * it is configured as URL) only once. Least recently used transformations
+ * are dropped if cache is full. Transformations loaded from URLs are cached
+ * per node and dropped when configuration of the node changes, so changed
+ * XSLT may be loaded again by reconfiguring node. XSLT is downloaded without
+ * holding any lock, so slow server delays only notifications of nodes which
+ * use it. Items are passed to transformation and
+ * results are read back as SAX events, without serialization to string.
+ * Items with mixed content are serialized, as order of text and child
+ * elements is not available without it.
+ */
+public class XsltTool implements NodeConfigurationChangedHandler {
+
+	private static final int MAX_CACHE_SIZE = 1000;
+
+	private static final int URL_TIMEOUT = 10 * 1000;
+
+	private static final String EMBEDDED_KEY_PREFIX = "xslt:";
+
+	private static final Logger log = Logger.getLogger(XsltTool.class.getName());
+
+	// access ordered, guarded by itself
+	private final Map<Object, Templates> templatesCache = new LinkedHashMap<Object, Templates>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, Templates> eldest) {
+			return size() > MAX_CACHE_SIZE;
+		}
+	};
 
-public class XsltTool {
+	// incremented when cached transformations are dropped, so transformation
+	// loaded before node was reconfigured is not cached
+	private final AtomicLong cacheVersion = new AtomicLong();
 
-	private final SimpleParser parser = SingletonFactory.getParserInstance();
+	private final TransformerFactory tFactory = TransformerFactory.newInstance();
 
-	private TransformerFactory tFactory = TransformerFactory.newInstance();
+	@Override
+	public void onConfigurationChanged(Packet packet, String nodeName) {
+		synchronized (templatesCache) {
+			cacheVersion.incrementAndGet();
+			Iterator<Object> it = templatesCache.keySet().iterator();
+
+			while (it.hasNext()) {
+				Object key = it.next();
+				if (key instanceof UrlKey && ((UrlKey) key).nodeName.equals(nodeName)) {
+					it.remove();
+				}
+			}
+		}
+	}
 
 	public List<Element> transform(final Element item, AbstractNodeConfig nodeConfig) throws TransformerException, IOException {
-		Source xsltSource;
 		final String bodyXsltUrl = nodeConfig.getBodyXslt();
 		final String bodyXsltEmbedded = nodeConfig.getBodyXsltEmbedded();
+		Templates templates;
+
 		if (bodyXsltEmbedded != null && bodyXsltEmbedded.length() > 1) {
-			Reader reader = new StringReader(bodyXsltEmbedded);
-			xsltSource = new StreamSource(reader);
+			templates = getTemplates(EMBEDDED_KEY_PREFIX + bodyXsltEmbedded, bodyXsltEmbedded, null);
 		} else if (bodyXsltUrl != null && bodyXsltUrl.length() > 1) {
-			URL x = new URL(bodyXsltUrl);
-			xsltSource = new StreamSource(x.openStream());
+			templates = getTemplates(new UrlKey(nodeConfig.getNodeName(), bodyXsltUrl), null, bodyXsltUrl);
 		} else {
 			return null;
 		}
-		return transform(item, xsltSource);
+		return transform(item, templates);
+	}
+
+	protected List<Element> transform(final Element item, Templates templates) throws TransformerException {
+		Transformer transformer = templates.newTransformer();
+		ElementBuilderHandler handler = new ElementBuilderHandler();
+
+		Source source = hasMixedContent(item)
+				? new StreamSource(new StringReader(item.toString()))
+				: new SAXSource(new ElementXMLReader(item), new InputSource());
+
+		transformer.transform(source, new SAXResult(handler));
+
+		return handler.getElements();
+	}
+
+	/**
+	 * Checks if element or any of its descendants contains both text and
+	 * child elements. Whitespace only text is ignored.
+	 */
+	private static boolean hasMixedContent(Element elem) {
+		List<Element> children = elem.getChildren();
+
+		if (children == null || children.isEmpty()) {
+			return false;
+		}
+
+		String cdata = elem.getCData();
+
+		if (cdata != null && cdata.trim().length() > 0) {
+			return true;
+		}
+		for (Element child : children) {
+			if (hasMixedContent(child)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	protected Templates getTemplates(Object key, String xslt, String url) throws TransformerException {
+		final long version;
+		Templates templates;
+
+		synchronized (templatesCache) {
+			version = cacheVersion.get();
+			templates = templatesCache.get(key);
+		}
+
+		if (templates == null) {
+			Source source;
+
+			if (xslt != null) {
+				Reader reader = new StringReader(xslt);
+				source = new StreamSource(reader);
+			} else {
+				source = new StreamSource(new ByteArrayInputStream(download(url)), url);
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Compiling XSLT for key {0}", key);
+			}
+
+			// TransformerFactory is not thread safe
+			synchronized (tFactory) {
+				templates = tFactory.newTemplates(source);
+			}
+
+			synchronized (templatesCache) {
+				if (version == cacheVersion.get()) {
+					templatesCache.put(key, templates);
+				}
+			}
+		}
+
+		return templates;
+	}
+
+	private static byte[] download(String url) throws TransformerException {
+		try {
+			URLConnection connection = new URL(url).openConnection();
+			connection.setConnectTimeout(URL_TIMEOUT);
+			connection.setReadTimeout(URL_TIMEOUT);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			InputStream in = connection.getInputStream();
+			try {
+				byte[] buf = new byte[4096];
+				int read;
+				while ((read = in.read(buf)) != -1) {
+					out.write(buf, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new TransformerException("Could not load XSLT from " + url, e);
+		}
+	}
+
+	/**
+	 * Key of transformation loaded from URL configured for node.
+	 */
+	static class UrlKey {
+
+		private final String nodeName;
+
+		private final String url;
+
+		UrlKey(String nodeName, String url) {
+			this.nodeName = nodeName;
+			this.url = url;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof UrlKey)) {
+				return false;
+			}
+			UrlKey other = (UrlKey) obj;
+			return nodeName.equals(other.nodeName) && url.equals(other.url);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * nodeName.hashCode() + url.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return "url:" + nodeName + ":" + url;
+		}
 	}
 
-	private List<Element> transform(final Element item, Source xslt) throws TransformerException {
-		Transformer transformer = tFactory.newTransformer(xslt);
-		Reader reader = new StringReader(item.toString());
+	/**
+	 * Builds elements from SAX events. Text is added as CData to element in
+	 * which it occurs, in document order with child elements. Whitespace only
+	 * text next to child elements is dropped, as it is only formatting of
+	 * transformation output.
+	 */
+	private static class ElementBuilderHandler implements ContentHandler {
+
+		private final List<Element> elements = new ArrayList<Element>();
+
+		private final Deque<OpenElement> stack = new ArrayDeque<OpenElement>();
 
-		StringWriter writer = new StringWriter();
-		transformer.transform(new StreamSource(reader), new StreamResult(writer));
-		char[] data = writer.toString().toCharArray();
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			OpenElement current = stack.peek();
+
+			if (current != null) {
+				current.text.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endDocument() throws SAXException {
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			OpenElement current = stack.pop();
+
+			current.flushText(false);
+			if (stack.isEmpty()) {
+				elements.add(current.elem);
+			} else {
+				stack.peek().elem.addChild(current.elem);
+			}
+		}
+
+		@Override
+		public void endPrefixMapping(String prefix) throws SAXException {
+		}
+
+		public List<Element> getElements() {
+			return elements;
+		}
+
+		@Override
+		public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+		}
+
+		@Override
+		public void processingInstruction(String target, String data) throws SAXException {
+		}
+
+		@Override
+		public void setDocumentLocator(Locator locator) {
+		}
+
+		@Override
+		public void skippedEntity(String name) throws SAXException {
+		}
+
+		@Override
+		public void startDocument() throws SAXException {
+		}
 
-		DomBuilderHandler domHandler = new DomBuilderHandler();
-		parser.parse(domHandler, data, 0, data.length);
-		Queue<Element> q = domHandler.getParsedElements();
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+			String name = (localName != null && localName.length() > 0) ? localName : qName;
+			Element elem = new Element(name);
+
+			for (int i = 0; i < atts.getLength(); i++) {
+				String attName = atts.getQName(i);
+
+				if (attName.startsWith("xmlns")) {
+					continue;
+				}
+				elem.setAttribute(attName, XMLUtils.escape(atts.getValue(i)));
+			}
+
+			OpenElement parent = stack.peek();
+			String parentXmlns = null;
+
+			if (parent != null) {
+				parent.flushText(true);
+				parent.hasChildren = true;
+				parentXmlns = parent.elem.getXMLNS();
+			}
+
+			if (uri != null && uri.length() > 0 && !uri.equals(parentXmlns)) {
+				elem.setXMLNS(uri);
+			}
+
+			stack.push(new OpenElement(elem));
+		}
+
+		@Override
+		public void startPrefixMapping(String prefix, String uri) throws SAXException {
+		}
+
+	}
+
+	/**
+	 * Element being built with text collected since its last child element.
+	 */
+	private static class OpenElement {
+
+		private final Element elem;
+
+		private boolean hasChildren = false;
+
+		private final StringBuilder text = new StringBuilder();
+
+		OpenElement(Element elem) {
+			this.elem = elem;
+		}
+
+		void flushText(boolean beforeChild) {
+			if (text.length() == 0) {
+				return;
+			}
+
+			String value = text.toString();
+
+			text.setLength(0);
+			if ((beforeChild || hasChildren) && value.trim().length() == 0) {
+				return;
+			}
+			elem.addCData(XMLUtils.escape(value));
+		}
+
+	}
+
+	/**
+	 * Emits SAX events for element, so it may be used as input of
+	 * transformation.
+	 */
+	private static class ElementXMLReader implements XMLReader {
+
+		private static final String NAMESPACES_FEATURE = "http://xml.org/sax/features/namespaces";
+
+		private static final String NAMESPACE_PREFIXES_FEATURE = "http://xml.org/sax/features/namespace-prefixes";
+
+		private ContentHandler contentHandler;
+
+		private DTDHandler dtdHandler;
+
+		private EntityResolver entityResolver;
+
+		private ErrorHandler errorHandler;
+
+		private final Map<String, Boolean> features = new HashMap<String, Boolean>();
+
+		private final Element item;
+
+		private final NamespaceSupport namespaces = new NamespaceSupport();
+
+		private final Map<String, Object> properties = new HashMap<String, Object>();
+
+		ElementXMLReader(Element item) {
+			this.item = item;
+			features.put(NAMESPACES_FEATURE, true);
+			features.put(NAMESPACE_PREFIXES_FEATURE, false);
+		}
+
+		@Override
+		public ContentHandler getContentHandler() {
+			return contentHandler;
+		}
+
+		@Override
+		public DTDHandler getDTDHandler() {
+			return dtdHandler;
+		}
+
+		@Override
+		public EntityResolver getEntityResolver() {
+			return entityResolver;
+		}
+
+		@Override
+		public ErrorHandler getErrorHandler() {
+			return errorHandler;
+		}
+
+		@Override
+		public boolean getFeature(String name) {
+			Boolean value = features.get(name);
+
+			return value != null && value;
+		}
+
+		@Override
+		public Object getProperty(String name) {
+			return properties.get(name);
+		}
+
+		@Override
+		public void parse(InputSource input) throws IOException, SAXException {
+			if (contentHandler == null) {
+				return;
+			}
+			namespaces.reset();
+			contentHandler.startDocument();
+			emit(item);
+			contentHandler.endDocument();
+		}
+
+		@Override
+		public void parse(String systemId) throws IOException, SAXException {
+			parse(new InputSource(systemId));
+		}
+
+		@Override
+		public void setContentHandler(ContentHandler handler) {
+			this.contentHandler = handler;
+		}
+
+		@Override
+		public void setDTDHandler(DTDHandler handler) {
+			this.dtdHandler = handler;
+		}
+
+		@Override
+		public void setEntityResolver(EntityResolver resolver) {
+			this.entityResolver = resolver;
+		}
+
+		@Override
+		public void setErrorHandler(ErrorHandler handler) {
+			this.errorHandler = handler;
+		}
+
+		@Override
+		public void setFeature(String name, boolean value) {
+			features.put(name, value);
+		}
+
+		@Override
+		public void setProperty(String name, Object value) {
+			properties.put(name, value);
+		}
+
+		private void emit(Element elem) throws SAXException {
+			namespaces.pushContext();
+
+			List<String> prefixes = new ArrayList<String>();
+			AttributesImpl atts = new AttributesImpl();
+			Map<String, String> attributes = elem.getAttributes();
+
+			if (attributes != null) {
+				for (Map.Entry<String, String> e : attributes.entrySet()) {
+					String name = e.getKey();
+					String value = XMLUtils.unescape(e.getValue());
+
+					if (name.equals("xmlns")) {
+						namespaces.declarePrefix("", value);
+						prefixes.add("");
+					} else if (name.startsWith("xmlns:")) {
+						String prefix = name.substring(6);
+						namespaces.declarePrefix(prefix, value);
+						prefixes.add(prefix);
+					} else {
+						atts.addAttribute("", name, name, "CDATA", value);
+					}
+				}
+			}
+
+			for (String prefix : prefixes) {
+				contentHandler.startPrefixMapping(prefix, namespaces.getURI(prefix));
+			}
+
+			String qName = elem.getName();
+			String[] parts = namespaces.processName(qName, new String[3], false);
+			String uri = (parts == null || parts[0] == null) ? "" : parts[0];
+			String localName = (parts == null) ? qName : parts[1];
+
+			contentHandler.startElement(uri, localName, qName, atts);
+
+			String cdata = elem.getCData();
+			if (cdata != null && cdata.length() > 0) {
+				char[] text = XMLUtils.unescape(cdata).toCharArray();
+				contentHandler.characters(text, 0, text.length);
+			}
+
+			List<Element> children = elem.getChildren();
+			if (children != null) {
+				for (Element child : children) {
+					emit(child);
+				}
+			}
+
+			contentHandler.endElement(uri, localName, qName);
+
+			for (String prefix : prefixes) {
+				contentHandler.endPrefixMapping(prefix);
+			}
+			namespaces.popContext();
+		}
 
-		ArrayList<Element> result = new ArrayList<Element>();
-		result.addAll(q);
-		return result;
 	}
 
 }
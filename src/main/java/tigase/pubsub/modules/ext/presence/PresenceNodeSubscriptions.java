@@ -2,7 +2,10 @@ package tigase.pubsub.modules.ext.presence;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
 
 import tigase.pubsub.Subscription;
 import tigase.pubsub.repository.ISubscriptions;
@@ -37,6 +40,14 @@ public class PresenceNodeSubscriptions implements ISubscriptions {
 		subscriptions.changeSubscription(jid, subscription);
 	}
 
+	/**
+	 * Returns wrapped subscriptions of node, which should be passed to
+	 * repository when changes needs to be saved.
+	 */
+	public ISubscriptions getNodeSubscriptions() {
+		return subscriptions;
+	}
+
 	@Override
 	public Subscription getSubscription(BareJID jid) {
 		Subscription s = subscriptions.getSubscription(jid);
@@ -97,6 +108,39 @@ public class PresenceNodeSubscriptions implements ISubscriptions {
 		return getSubscriptions();
 	}
 	
+	/**
+	 * Calls visitor for every subscriber of node and for every available
+	 * occupant of node which is not subscribed to it.
+	 */
+	@Override
+	public void forEachSubscriber(final BiConsumer<BareJID, Subscription> visitor) {
+		subscriptions.forEachSubscriber((jid, subscription) -> visitor.accept(jid,
+				subscription == Subscription.none ? getSubscription(jid) : subscription));
+
+		Collection<JID> occupants = extension.getNodeOccupants(serviceJID, nodeName);
+		if (occupants.isEmpty()) {
+			return;
+		}
+
+		final Set<BareJID> visited = new HashSet<BareJID>();
+		for (JID jid : occupants) {
+			final BareJID bareJid = jid.getBareJID();
+			if (visited.contains(bareJid) || subscriptions.getSubscription(bareJid) != Subscription.none) {
+				continue;
+			}
+			Packet pr = extension.getPresence(serviceJID, nodeName, jid);
+			if (pr.getType() == null || pr.getType() == StanzaType.available) {
+				visited.add(bareJid);
+				visitor.accept(bareJid, Subscription.subscribed);
+			}
+		}
+	}
+
+	@Override
+	public int getSubscriptionsCount() {
+		return subscriptions.getSubscriptionsCount() + extension.getNodeOccupantsCount(serviceJID, nodeName);
+	}
+
 	@Override
 	public boolean isChanged() {
 		return subscriptions.isChanged();
@@ -269,6 +269,14 @@ public class PresencePerNodeExtension {
 		return Collections.unmodifiableCollection(occs);
 	}
 
+	public int getNodeOccupantsCount(BareJID serviceJID, String nodeName) {
+		Map<String, Set<JID>> services = occupants.get(serviceJID);
+		if (services == null)
+			return 0;
+		Set<JID> occs = services.get(nodeName);
+		return occs == null ? 0 : occs.size();
+	}
+
 	public Collection<String> getNodes(BareJID serviceJID, JID occupantJID) {
 		Map<String, Map<BareJID, Map<String, Packet>>> resources = this.presences.get(occupantJID.getBareJID());
 		if (resources == null)
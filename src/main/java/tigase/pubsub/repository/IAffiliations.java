@@ -14,6 +14,15 @@ public interface IAffiliations {
 
 	public abstract UsersAffiliation getSubscriberAffiliation(BareJID jid);
 
+	/**
+	 * Returns affiliation of JID, {@link Affiliation#none} if there is no
+	 * affiliation. Unlike {@link #getSubscriberAffiliation(BareJID)} it does not
+	 * need to create any object.
+	 */
+	public default Affiliation getAffiliation(BareJID jid) {
+		return getSubscriberAffiliation(jid).getAffiliation();
+	}
+
 	public boolean isChanged();
 
 	public abstract String serialize();
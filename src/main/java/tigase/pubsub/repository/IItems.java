@@ -3,6 +3,7 @@ package tigase.pubsub.repository;
 import java.util.Date;
 import java.util.List;
 
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.xml.Element;
 
 public interface IItems {
@@ -43,6 +44,19 @@ public interface IItems {
 			return updateDate;
 		}
 	}
+
+	public static class Item extends ItemMeta {
+		private final Element item;
+
+		public Item(String node, String id, Date creationDate, Date updateDate, Element item) {
+			super(node, id, creationDate, updateDate);
+			this.item = item;
+		}
+
+		public Element getItem() {
+			return item;
+		}
+	}
 	
 	public abstract void deleteItem(String id) throws RepositoryException;
 
@@ -50,6 +64,17 @@ public interface IItems {
 
 	public abstract Date getItemCreationDate(String id) throws RepositoryException;
 
+	/**
+	 * Retrieves items with passed ids (including dates of creation and last
+	 * update) using single request to repository. Items which do not exist
+	 * are omitted, remaining items are returned in order of passed ids.
+	 *
+	 * @param ids list of ids of items to retrieve
+	 * @return list of found items
+	 * @throws RepositoryException
+	 */
+	public abstract List<Item> getItems(List<String> ids) throws RepositoryException;
+
 	public abstract String[] getItemsIds() throws RepositoryException;
 	
 	public abstract String[] getItemsIdsSince(Date since) throws RepositoryException;
@@ -58,6 +83,39 @@ public interface IItems {
 	
 	public abstract Date getItemUpdateDate(String id) throws RepositoryException;
 
+	/**
+	 * Returns position of item in list of items of node sorted using passed
+	 * ordering (number of items preceding this item).
+	 *
+	 * @param ordering ordering of items
+	 * @param id id of item
+	 * @return position of item
+	 * @throws RepositoryException
+	 */
+	public abstract int getItemPosition(CollectionItemsOrdering ordering, String id) throws RepositoryException;
+
+	public abstract int getItemsCount() throws RepositoryException;
+
+	/**
+	 * Retrieves page of items sorted (newest first) using passed ordering.
+	 * Paging is done by repository, so only items from requested page are
+	 * loaded.
+	 *
+	 * @param ordering ordering of items
+	 * @param since if not <code>null</code> only items created (or updated,
+	 *              depending on ordering) after this date are returned
+	 * @param afterId if not <code>null</code> only items placed after item
+	 *                with this id are returned
+	 * @param beforeId if not <code>null</code> only items placed before item
+	 *                 with this id are returned
+	 * @param offset number of matching items to skip
+	 * @param limit maximal number of returned items or <code>null</code>
+	 * @return page of items
+	 * @throws RepositoryException
+	 */
+	public abstract List<Item> queryItems(CollectionItemsOrdering ordering, Date since, String afterId, String beforeId,
+			int offset, Integer limit) throws RepositoryException;
+
 	public abstract void writeItem(long timeInMilis, String id, String publisher, Element item) throws RepositoryException;
 
 }
@@ -22,12 +22,14 @@
 
 package tigase.pubsub.repository;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import tigase.db.Repository;
 import tigase.db.UserRepository;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.NodeType;
 import tigase.pubsub.Subscription;
 import tigase.pubsub.repository.IAffiliations;
@@ -124,8 +126,83 @@ public interface IPubSubDAO<T> extends Repository {
 	public abstract Date getItemCreationDate(BareJID serviceJid, T nodeId, final String id)
 			throws RepositoryException;
 
+	/**
+	 * Retrieves items with passed ids from node using single request to
+	 * database. Items which do not exist are omitted, remaining items are
+	 * returned in order of passed ids.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param nodeName
+	 * @param ids
+	 *
+	 * @return
+	 *
+	 * @throws RepositoryException
+	 */
+	List<IItems.Item> getItems(BareJID serviceJid, T nodeId, String nodeName, List<String> ids)
+			throws RepositoryException;
+
 	String[] getItemsIds(BareJID serviceJid, T nodeId) throws RepositoryException;
 
+	/**
+	 * Retrieves newest items (sorted by update date, newest first) of many
+	 * nodes using single request to database.
+	 *
+	 * @param serviceJid
+	 * @param nodes
+	 *            map of ids of nodes to names of nodes
+	 * @param limit
+	 *            maximal number of items retrieved for every node
+	 *
+	 * @return map of ids of nodes to lists of their items, containing entry
+	 *         for every requested node
+	 *
+	 * @throws RepositoryException
+	 */
+	Map<T, List<IItems.Item>> getNodesRecentItems(BareJID serviceJid, Map<T, String> nodes, int limit)
+			throws RepositoryException;
+
+	int getItemsCount(BareJID serviceJid, T nodeId) throws RepositoryException;
+
+	/**
+	 * Returns number of items of node which are placed before item with passed
+	 * id when items are sorted using passed ordering.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param ordering
+	 * @param id
+	 *
+	 * @return
+	 *
+	 * @throws RepositoryException
+	 */
+	int getItemPosition(BareJID serviceJid, T nodeId, CollectionItemsOrdering ordering, String id)
+			throws RepositoryException;
+
+	/**
+	 * Retrieves page of items of node sorted (newest first) using passed
+	 * ordering. Filtering and paging is done by database, so only items from
+	 * requested page are loaded.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param nodeName
+	 * @param ordering
+	 * @param since
+	 * @param afterId
+	 * @param beforeId
+	 * @param offset
+	 * @param limit
+	 *
+	 * @return
+	 *
+	 * @throws RepositoryException
+	 */
+	List<IItems.Item> queryItems(BareJID serviceJid, T nodeId, String nodeName, CollectionItemsOrdering ordering,
+			Date since, String afterId, String beforeId, int offset, Integer limit) throws RepositoryException;
+
 	String[] getItemsIdsSince(BareJID serviceJid, T nodeId, Date since) throws RepositoryException;
 
 	List<IItems.ItemMeta> getItemsMeta(BareJID serviceJid, T nodeId, String nodeName)
@@ -255,6 +332,24 @@ public interface IPubSubDAO<T> extends Repository {
 	public void updateNodeAffiliation(BareJID serviceJid, T nodeId, String nodeName, UsersAffiliation userAffiliation) throws RepositoryException;
 
 	public void updateNodeSubscription(BareJID serviceJid, T nodeId, String nodeName, UsersSubscription userSubscription) throws RepositoryException;
+
+	/**
+	 * Writes changed affiliations and subscriptions of node at once.
+	 * Subscriptions with state <code>none</code> are removed. Changes should be
+	 * written in a single transaction with as few round-trips to database as
+	 * possible.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param nodeName
+	 * @param affiliations
+	 * @param subscriptions
+	 *
+	 * @throws RepositoryException
+	 */
+	public void updateNodeAffiliationsAndSubscriptions(BareJID serviceJid, T nodeId, String nodeName,
+			Collection<UsersAffiliation> affiliations, Collection<UsersSubscription> subscriptions)
+			throws RepositoryException;
 	
 	/**
 	 * Method description
@@ -1,8 +1,15 @@
 package tigase.pubsub.repository;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.NodeType;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.impl.roster.RosterElement;
@@ -67,6 +74,42 @@ public interface IPubSubRepository {
 	 */
 	public abstract void forgetConfiguration(BareJID serviceJid, String nodeName) throws RepositoryException;
 
+	/**
+	 * Executes task accessing repository data of node asynchronously, so
+	 * calling thread is not blocked while waiting for the database. Tasks for
+	 * the same node are executed in order of submission.
+	 *
+	 * Default implementation executes task immediately in calling thread.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 * @param task
+	 *
+	 * @return future completed with result of the task
+	 */
+	public default <R> CompletableFuture<R> executeAsync(BareJID serviceJid, String nodeName,
+			RepositoryExecutor.Task<R> task) {
+		return RepositoryExecutor.executeNow(task);
+	}
+
+	/**
+	 * Executes task related to user rather than to a single node (ie.
+	 * delivery of items after user became available) asynchronously. Tasks of
+	 * the same user are executed in order of submission.
+	 *
+	 * Default implementation executes task immediately in calling thread.
+	 *
+	 * @param serviceJid
+	 * @param userJid
+	 * @param task
+	 *
+	 * @return future completed with result of the task
+	 */
+	public default <R> CompletableFuture<R> executeUserAsync(BareJID serviceJid, BareJID userJid,
+			RepositoryExecutor.Task<R> task) {
+		return RepositoryExecutor.executeNow(task);
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -131,6 +174,39 @@ public interface IPubSubRepository {
 	 */
 	public IItems getNodeItems(BareJID serviceJid, String nodeName) throws RepositoryException;
 
+	/**
+	 * Retrieves most recently published item of every passed node.
+	 * 
+	 * Default implementation queries items of every node separately.
+	 * 
+	 * @param serviceJid
+	 * @param nodesNames
+	 * 
+	 * @return map of names of nodes to their last published items, nodes
+	 *         without items are omitted
+	 * 
+	 * @throws RepositoryException
+	 */
+	public default Map<String, IItems.Item> getLastItems(BareJID serviceJid, Collection<String> nodesNames)
+			throws RepositoryException {
+		Map<String, IItems.Item> result = new HashMap<String, IItems.Item>();
+		for (String nodeName : nodesNames) {
+			IItems nodeItems = getNodeItems(serviceJid, nodeName);
+			List<IItems.Item> items = nodeItems == null ? null
+					: nodeItems.queryItems(CollectionItemsOrdering.byUpdateDate, null, null, null, 0, 1);
+			if (items != null && !items.isEmpty()) {
+				result.put(nodeName, items.get(0));
+			}
+		}
+		return result;
+	}
+
+	public default CompletableFuture<List<IItems.Item>> queryItemsAsync(BareJID serviceJid, String nodeName,
+			CollectionItemsOrdering order, Date since, String afterId, String beforeId, int offset, Integer limit) {
+		return executeAsync(serviceJid, nodeName, () -> getNodeItems(serviceJid, nodeName).queryItems(order, since,
+				afterId, beforeId, offset, limit));
+	}
+
 	public INodeMeta getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException;
 
 	/**
@@ -175,6 +251,8 @@ public interface IPubSubRepository {
 	 */
 	public abstract Map<BareJID,RosterElement> getUserRoster(BareJID owner) throws RepositoryException;
 
+	public abstract Map<String,UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID userJid) throws RepositoryException;
+
 	public abstract Map<String,UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID userJid) throws RepositoryException;
 	
 	/**
@@ -1,6 +1,7 @@
 package tigase.pubsub.repository;
 
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 import tigase.pubsub.Subscription;
 import tigase.pubsub.repository.stateless.UsersSubscription;
@@ -20,6 +21,25 @@ public interface ISubscriptions {
 	
 	public abstract UsersSubscription[] getSubscriptionsForPublish();
 
+	/**
+	 * Calls visitor with JID and subscription of every subscriber returned by
+	 * {@link #getSubscriptionsForPublish()}, but without creating intermediate
+	 * collections, if implementation allows it.
+	 */
+	public default void forEachSubscriber(BiConsumer<BareJID, Subscription> visitor) {
+		for (UsersSubscription s : getSubscriptionsForPublish()) {
+			visitor.accept(s.getJid(), s.getSubscription());
+		}
+	}
+
+	/**
+	 * Returns number of subscribers, which may be used as an estimate of
+	 * number of recipients of notifications.
+	 */
+	public default int getSubscriptionsCount() {
+		return getSubscriptionsForPublish().length;
+	}
+
 	public boolean isChanged();
 
 	public abstract String serialize(Map<BareJID, UsersSubscription> fragment);
@@ -40,11 +40,19 @@ public abstract class NodeAffiliations implements IAffiliations {
 		return a;
 	}
 
-	protected final ConcurrentMap<BareJID, UsersAffiliation> affs = new ConcurrentHashMap<BareJID, UsersAffiliation>(16, 0.9f, 8);
+	protected final ConcurrentMap<BareJID, UsersAffiliation> affs;
 
 	private boolean changed = false;
 
 	protected NodeAffiliations() {
+		this(new ConcurrentHashMap<BareJID, UsersAffiliation>(16, 0.9f, 8));
+	}
+
+	/**
+	 * Creates instance sharing map of affiliations with other instances.
+	 */
+	protected NodeAffiliations(ConcurrentMap<BareJID, UsersAffiliation> affs) {
+		this.affs = affs;
 	}
 
 	@Override
@@ -105,6 +113,12 @@ public abstract class NodeAffiliations implements IAffiliations {
 		return a;
 	}
 
+	@Override
+	public Affiliation getAffiliation(BareJID bareJid) {
+		final UsersAffiliation a = this.affs.get(bareJid);
+		return a == null ? Affiliation.none : a.getAffiliation();
+	}
+
 	public Map<BareJID, UsersAffiliation> getAffiliationsMap() {
 		return affs;
 	}
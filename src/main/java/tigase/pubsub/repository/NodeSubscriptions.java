@@ -3,8 +3,7 @@ package tigase.pubsub.repository;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
 
 import tigase.pubsub.Subscription;
 import tigase.pubsub.Utils;
@@ -48,9 +47,25 @@ public abstract class NodeSubscriptions implements ISubscriptions {
 
 //	protected final FragmentedMap<BareJID, UsersSubscription> subs = new FragmentedMap<BareJID, UsersSubscription>(
 //			MAX_FRAGMENT_SIZE);
-	protected final ConcurrentMap<BareJID, UsersSubscription> subs = new ConcurrentHashMap<BareJID, UsersSubscription>();
+	protected final SubscriptionStore subs;
 
 	protected NodeSubscriptions() {
+		this(new SubscriptionStore());
+	}
+
+	/**
+	 * Creates instance containing copy of subscriptions of other instance.
+	 */
+	protected NodeSubscriptions(NodeSubscriptions nodeSubscriptions) {
+		this();
+		subs.putAll(nodeSubscriptions.subs);
+	}
+
+	/**
+	 * Creates instance sharing subscriptions storage with other instances.
+	 */
+	protected NodeSubscriptions(SubscriptionStore subs) {
+		this.subs = subs;
 	}
 
 	/**
@@ -64,10 +79,8 @@ public abstract class NodeSubscriptions implements ISubscriptions {
 	 */
 	@Override
 	public String addSubscriberJid(final BareJID bareJid, final Subscription subscription) {
-		final String subid = Utils.createUID(bareJid);
-		UsersSubscription s = new UsersSubscription(bareJid, subid, subscription);
-
-		subs.put(bareJid, s);
+		final String subid = Utils.createUID();
+		subs.put(bareJid, subid, subscription);
 
 		changed = true;
 
@@ -87,6 +100,7 @@ public abstract class NodeSubscriptions implements ISubscriptions {
 
 		if (s != null) {
 			s.setSubscription(subscription);
+			subs.put(s);
 			changed = true;
 		}
 	}
@@ -146,13 +160,11 @@ public abstract class NodeSubscriptions implements ISubscriptions {
 	 */
 	@Override
 	public UsersSubscription[] getSubscriptions() {
-		synchronized (this.subs) {
-			final UsersSubscription[] toArray = this.subs.values().toArray( new UsersSubscription[] {} );
-			if ( log.isLoggable( Level.FINEST ) ){
-				log.log( Level.FINEST, "getSubscriptions: {0}, toArray:{1}", new Object[] { subs, Arrays.toString( toArray ) } );
-			}
-			return toArray;
+		final UsersSubscription[] toArray = this.subs.toArray();
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getSubscriptions: {0}, toArray:{1}", new Object[] { subs, Arrays.toString( toArray ) } );
 		}
+		return toArray;
 	}
 
 	@Override
@@ -169,19 +181,29 @@ public abstract class NodeSubscriptions implements ISubscriptions {
 	}	
 	
 	/**
-	 * Method description
-	 * 
-	 * 
-	 * @return
+	 * Calls visitor for every subscriber of node with its subscription.
+	 */
+	@Override
+	public void forEachSubscriber(BiConsumer<BareJID, Subscription> visitor) {
+		subs.forEach(visitor);
+	}
+
+	@Override
+	public int getSubscriptionsCount() {
+		return subs.size();
+	}
+
+	/**
+	 * Returns not modifiable map view of subscriptions.
 	 */
 	public Map<BareJID, UsersSubscription> getSubscriptionsMap() {
-		return subs;
+		return subs.asMap();
 	}
 
 	public void init(Queue<UsersSubscription> data) {
 		UsersSubscription s = null;
 		while ((s = data.poll()) != null) {
-			subs.put(s.getJid(), s);
+			subs.put(s);
 		}
 	}
 	
@@ -227,9 +249,7 @@ public abstract class NodeSubscriptions implements ISubscriptions {
 			}
 
 			if (c == 3) {				
-				UsersSubscription b = new UsersSubscription(jid, subid, Subscription.valueOf(state));
-
-				subs.put(jid, b);
+				subs.put(jid, subid, Subscription.valueOf(state));
 				jid = null;
 				subid = null;
 				state = null;
@@ -251,10 +271,7 @@ public abstract class NodeSubscriptions implements ISubscriptions {
 
 				this.changed = true;
 				subs.clear();
-
-				for (UsersSubscription a : ns.subs.values()) {
-					subs.put(a.getJid(), a);
-				}
+				subs.putAll(ns.subs);
 			} else {
 				throw new RuntimeException("!!!!!!!!!!!!!!!!!!!" + nodeSubscriptions.getClass());
 			}
@@ -5,7 +5,12 @@
 package tigase.pubsub.repository;
 
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.logging.Logger;
@@ -13,9 +18,13 @@ import tigase.db.DBInitException;
 import tigase.db.UserRepository;
 import tigase.form.Form;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.CollectionNodeConfig;
 import tigase.pubsub.LeafNodeConfig;
 import tigase.pubsub.NodeType;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
 import tigase.xml.SimpleParser;
@@ -83,6 +92,129 @@ public abstract class PubSubDAO<T> implements IPubSubDAO<T> {
 		}
 	}
 	
+	/**
+	 * Default implementation retrieving items one by one, should be
+	 * overridden by implementations which are able to retrieve many items
+	 * at once.
+	 */
+	@Override
+	public List<IItems.Item> getItems(BareJID serviceJid, T nodeId, String nodeName, List<String> ids)
+			throws RepositoryException {
+		List<IItems.Item> result = new ArrayList<IItems.Item>(ids.size());
+		for (String id : ids) {
+			Element item = getItem(serviceJid, nodeId, id);
+			if (item != null) {
+				result.add(new IItems.Item(nodeName, id, getItemCreationDate(serviceJid, nodeId, id),
+						getItemUpdateDate(serviceJid, nodeId, id), item));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Default implementation querying items of every node separately, should
+	 * be overridden by implementations which are able to retrieve items of
+	 * many nodes at once.
+	 */
+	@Override
+	public Map<T, List<IItems.Item>> getNodesRecentItems(BareJID serviceJid, Map<T, String> nodes, int limit)
+			throws RepositoryException {
+		Map<T, List<IItems.Item>> result = new HashMap<T, List<IItems.Item>>();
+		for (Map.Entry<T, String> e : nodes.entrySet()) {
+			result.put(e.getKey(), queryItems(serviceJid, e.getKey(), e.getValue(), CollectionItemsOrdering.byUpdateDate,
+					null, null, null, 0, limit));
+		}
+		return result;
+	}
+
+	/**
+	 * Default implementation loading metadata of all items of node and
+	 * sorting them in memory, should be overridden by implementations which
+	 * are able to do this in database.
+	 */
+	@Override
+	public int getItemPosition(BareJID serviceJid, T nodeId, CollectionItemsOrdering ordering, String id)
+			throws RepositoryException {
+		List<IItems.ItemMeta> itemsMeta = getSortedItemsMeta(serviceJid, nodeId, null, ordering);
+		for (int i = 0; i < itemsMeta.size(); i++) {
+			if (itemsMeta.get(i).getId().equals(id)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public int getItemsCount(BareJID serviceJid, T nodeId) throws RepositoryException {
+		String[] ids = getItemsIds(serviceJid, nodeId);
+		return ids == null ? 0 : ids.length;
+	}
+
+	/**
+	 * Default implementation writing changes one by one, should be overridden
+	 * by implementations which are able to write many changes at once.
+	 */
+	@Override
+	public void updateNodeAffiliationsAndSubscriptions(BareJID serviceJid, T nodeId, String nodeName,
+			Collection<UsersAffiliation> affiliations, Collection<UsersSubscription> subscriptions)
+			throws RepositoryException {
+		for (UsersAffiliation affiliation : affiliations) {
+			updateNodeAffiliation(serviceJid, nodeId, nodeName, affiliation);
+		}
+		for (UsersSubscription subscription : subscriptions) {
+			if (subscription.getSubscription() == Subscription.none) {
+				removeNodeSubscription(serviceJid, nodeId, subscription.getJid());
+			} else {
+				updateNodeSubscription(serviceJid, nodeId, nodeName, subscription);
+			}
+		}
+	}
+
+	/**
+	 * Default implementation loading metadata of all items of node and
+	 * sorting them in memory, should be overridden by implementations which
+	 * are able to do this in database.
+	 */
+	@Override
+	public List<IItems.Item> queryItems(BareJID serviceJid, T nodeId, String nodeName, CollectionItemsOrdering ordering,
+			Date since, String afterId, String beforeId, int offset, Integer limit) throws RepositoryException {
+		List<IItems.ItemMeta> itemsMeta = getSortedItemsMeta(serviceJid, nodeId, nodeName, ordering);
+		List<String> ids = new ArrayList<String>();
+		boolean allow = afterId == null;
+		int skipped = 0;
+		for (IItems.ItemMeta itemMeta : itemsMeta) {
+			if (limit != null && ids.size() >= limit) {
+				break;
+			}
+			if (!allow) {
+				allow = itemMeta.getId().equals(afterId);
+				continue;
+			}
+			if (beforeId != null && beforeId.equals(itemMeta.getId())) {
+				break;
+			}
+			Date date = ordering == CollectionItemsOrdering.byCreationDate
+					? itemMeta.getCreationDate()
+					: itemMeta.getItemUpdateDate();
+			if (since != null && date != null && !date.after(since)) {
+				continue;
+			}
+			if (skipped < offset) {
+				skipped++;
+				continue;
+			}
+			ids.add(itemMeta.getId());
+		}
+		return getItems(serviceJid, nodeId, nodeName, ids);
+	}
+
+	private List<IItems.ItemMeta> getSortedItemsMeta(BareJID serviceJid, T nodeId, String nodeName,
+			CollectionItemsOrdering ordering) throws RepositoryException {
+		List<IItems.ItemMeta> itemsMeta = new ArrayList<IItems.ItemMeta>(getItemsMeta(serviceJid, nodeId, nodeName));
+		Collections.sort(itemsMeta, ordering.getComparator());
+		return itemsMeta;
+	}
+
 	/**
 	 * Method description
 	 *
@@ -25,6 +25,7 @@ package tigase.pubsub.repository;
 import tigase.db.DBInitException;
 import tigase.db.DataRepository;
 import tigase.db.Repository;
+import tigase.db.RepositoryFactory;
 
 import tigase.pubsub.repository.stateless.NodeMeta;
 import tigase.server.XMPPServer;
@@ -34,13 +35,13 @@ import tigase.xmpp.BareJID;
 
 import tigase.pubsub.AbstractNodeConfig;
 import tigase.pubsub.Affiliation;
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.NodeType;
 import tigase.pubsub.Subscription;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xml.Element;
 
-import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -51,6 +52,7 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -62,52 +64,51 @@ import static tigase.db.DataRepository.dbTypes.*;
 @Repository.Meta( supportedUris = { "jdbc:[^:]+:.*" } )
 public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
+	private static final String CREATE_NODE_QUERY = "{ call TigPubSubCreateNode(?, ?, ?, ?, ?, ?) }";
+	private static final String DELETE_ALL_NODES_QUERY = "{ call TigPubSubDeleteAllNodes(?) }";
+	private static final String DELETE_ITEM_QUERY = "{ call TigPubSubDeleteItem(?, ?) }";
+	private static final String DELETE_NODE_SUBSCRIPTION_QUERY = "{ call TigPubSubDeleteNodeSubscription(?, ?) }";
+	private static final String GET_ALL_NODES_QUERY = "{ call TigPubSubGetAllNodes(?) }";
+	private static final String GET_CHILD_NODES_QUERY = "{ call TigPubSubGetChildNodes(?,?) }";
+	private static final String GET_ITEM_QUERY = "{ call TigPubSubGetItem(?, ?) }";
+	private static final String GET_ITEMS_QUERY = "{ call TigPubSubGetItems(?, ?) }";
+	private static final String GET_ITEM_POSITION_QUERY = "{ call TigPubSubGetItemPosition(?, ?, ?) }";
+	private static final String GET_NODE_AFFILIATIONS_QUERY = "{ call TigPubSubGetNodeAffiliations(?) }";
+	private static final String GET_NODE_CONFIGURATION_QUERY = "{ call TigPubSubGetNodeConfiguration(?) }";
+	private static final String GET_NODE_ID_QUERY = "{ call TigPubSubGetNodeId(?, ?) }";
+	private static final String GET_NODE_ITEMS_IDS_QUERY = "{ call TigPubSubGetNodeItemsIds(?) }";
+	private static final String GET_NODE_ITEMS_COUNT_QUERY = "{ call TigPubSubGetNodeItemsCount(?) }";
+	private static final String GET_NODE_ITEMS_IDS_SINCE_QUERY = "{ call TigPubSubGetNodeItemsIdsSince(?,?) }";
+	private static final String GET_NODE_ITEMS_META_QUERY = "{ call TigPubSubGetNodeItemsMeta(?) }";
+	private static final String GET_NODE_META_QUERY = "{ call TigPubSubGetNodeMeta(?, ?) }";
+	private static final String GET_NODES_RECENT_ITEMS_QUERY = "{ call TigPubSubGetNodesRecentItems(?, ?) }";
+	private static final String GET_NODE_SUBSCRIPTIONS_QUERY = "{ call TigPubSubGetNodeSubscriptions(?) }";
+	private static final String GET_ROOT_NODES_QUERY = "{ call TigPubSubGetRootNodes(?) }";
+	private static final String GET_USER_AFFILIATIONS_QUERY = "{ call TigPubSubGetUserAffiliations(?, ?) }";
+	private static final String GET_USER_SUBSCRIPTIONS_QUERY = "{ call TigPubSubGetUserSubscriptions(?, ?) }";
+	private static final String QUERY_ITEMS_QUERY = "{ call TigPubSubQueryItems(?, ?, ?, ?, ?, ?, ?) }";
+	private static final String REMOVE_NODE_QUERY = "{ call TigPubSubRemoveNode(?) }";
+	private static final String REMOVE_SERVICE_QUERY = "{ call TigPubSubRemoveService(?) }";
+	private static final String SET_NODE_AFFILIATION_QUERY = "{ call TigPubSubSetNodeAffiliation(?, ?, ?) }";
+	private static final String SET_NODE_CONFIGURATION_QUERY = "{ call TigPubSubSetNodeConfiguration(?, ?, ?) }";
+	private static final String SET_NODE_SUBSCRIPTION_QUERY = "{ call TigPubSubSetNodeSubscription(?, ?, ?, ?) }";
+	private static final String UPDATE_NODE_AFFILIATIONS_AND_SUBSCRIPTIONS_QUERY = "{ call TigPubSubUpdateNodeAffiliationsAndSubscriptions(?, ?, ?) }";
+	private static final String WRITE_ITEM_QUERY = "{ call TigPubSubWriteItem(?, ?, ?, ?) }";
+
+	private static final int GET_ITEMS_BATCH_SIZE = 100;
+	private static final char ITEMS_IDS_SEPARATOR = '\u0001';
+	private static final char ROWS_SEPARATOR = '\u0001';
+	private static final char FIELDS_SEPARATOR = '\u0002';
+	// size of varchar parameters of Derby procedures
+	private static final int DERBY_MAX_PARAM_LENGTH = 32672;
+
 	/**
-	 * Database active connection.
-	 */
-	protected Connection conn = null;
-	/**
-	 * Prepared statement for testing whether database connection is still
-	 * working. If not connection to database is recreated.
-	 */
-	private PreparedStatement conn_valid_st = null;
-	/**
-	 * Connection validation helper.
-	 */
-	private long connectionValidateInterval = 1000 * 60;
-	private CallableStatement create_node_sp = null;
-	/**
-	 * Database connection string.
+	 * Data repository (pool of database connections) used by this DAO.
+	 * Prepared statements are kept per connection and each call uses
+	 * statement of the connection selected for the service jid.
 	 */
+	protected DataRepository data_repo = null;
 	private DataRepository.dbTypes database = null;
-	private String db_conn = null;	
-	private CallableStatement delete_all_nodes_sp = null;
-	private CallableStatement delete_item_sp = null;
-	private CallableStatement delete_node_subscriptions_sp = null;
-	private CallableStatement get_all_nodes_sp = null;
-	private CallableStatement get_child_nodes_sp = null;
-	private CallableStatement get_item_sp = null;
-	private CallableStatement get_node_affiliations_sp = null;
-	private CallableStatement get_node_configuration_sp = null;
-	private CallableStatement get_node_id_sp = null;
-	private CallableStatement get_node_items_ids_since_sp = null;
-	private CallableStatement get_node_items_ids_sp = null;
-	private CallableStatement get_node_items_meta_sp = null;
-	private CallableStatement get_node_meta_sp = null;
-	private CallableStatement get_node_subscriptions_sp = null;
-	private CallableStatement get_root_nodes_sp = null;
-	private CallableStatement get_user_affiliations_sp = null;
-	private CallableStatement get_user_subscriptions_sp = null;
-	/**
-	 * Connection validation helper.
-	 */
-	private long lastConnectionValidated = 0;
-	private CallableStatement remove_node_sp = null;
-	private CallableStatement remove_service_sp = null;
-	private CallableStatement set_node_affiliations_sp = null;
-	private CallableStatement set_node_configuration_sp = null;
-	private CallableStatement set_node_subscriptions_sp = null;
-	private CallableStatement write_item_sp = null;
 
 	private boolean schemaOk = false;
 	
@@ -122,38 +123,6 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		return;
 	}
 
-	/**
-	 * <code>checkConnection</code> method checks database connection before any
-	 * query. For some database servers (or JDBC drivers) it happens the
-	 * connection is dropped if not in use for a long time or after certain
-	 * timeout passes. This method allows us to detect the problem and
-	 * reinitialize database connection.
-	 * 
-	 * @return a <code>boolean</code> value if the database connection is
-	 *         working.
-	 * @exception SQLException
-	 *                if an error occurs on database query.
-	 */
-	private boolean checkConnection() throws SQLException {
-		try {
-			ResultSet rs = null;
-			synchronized ( conn_valid_st ) {
-				try {
-					long tmp = System.currentTimeMillis();
-					if ((tmp - lastConnectionValidated) >= connectionValidateInterval) {
-						rs = conn_valid_st.executeQuery();
-						lastConnectionValidated = tmp;
-					} // end of if ()
-				} finally {
-					release( null, rs );
-				}
-			}
-		} catch ( Exception e ) {
-			initRepo();
-		} // end of try-catch
-		return true;
-	}
-
 	@Override
 	public Long createNode( BareJID serviceJid, String nodeName, BareJID ownerJid, AbstractNodeConfig nodeConfig,
 													NodeType nodeType, Long collectionId ) throws RepositoryException {
@@ -166,8 +135,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				serializedNodeConfig = nodeConfig.getFormElement().toString();
 			}
 
-			checkConnection();
-			synchronized ( create_node_sp ) {
+			PreparedStatement create_node_sp = data_repo.getPreparedStatement(serviceJid, CREATE_NODE_QUERY);
+			synchronized (create_node_sp) {
 				try {
 					create_node_sp.setString(1, serviceJid.toString());
 					create_node_sp.setString(2, nodeName);
@@ -180,21 +149,19 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 						create_node_sp.setLong(6, collectionId);
 					}
 
-					if (db_conn != null) {
-						switch (this.database) {
-							case sqlserver:
-							case jtds:
-								create_node_sp.executeUpdate();
-								return getNodeId(serviceJid, nodeName);
+					switch (this.database) {
+						case sqlserver:
+						case jtds:
+							create_node_sp.executeUpdate();
+							return getNodeId(serviceJid, nodeName);
 
-							default:
-								rs = create_node_sp.executeQuery();
-								break;
-						}
+						default:
+							rs = create_node_sp.executeQuery();
+							break;
+					}
 
-						if ( rs.next() ){
-							nodeId = rs.getLong( 1 );
-						}
+					if ( rs.next() ){
+						nodeId = rs.getLong( 1 );
 					}
 				} finally {
 					release(null, rs);
@@ -217,8 +184,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 							 new Object[] { serviceJid, nodeId, id } );
 		}
 		try {
-			checkConnection();
-			synchronized ( delete_item_sp ) {
+			PreparedStatement delete_item_sp = data_repo.getPreparedStatement(serviceJid, DELETE_ITEM_QUERY);
+			synchronized (delete_item_sp) {
 				delete_item_sp.setLong( 1, nodeId );
 				delete_item_sp.setString( 2, id );
 				delete_item_sp.execute();
@@ -235,8 +202,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 							 new Object[] { serviceJid, nodeId } );
 		}
 		try {
-			checkConnection();
-			synchronized ( remove_node_sp ) {
+			PreparedStatement remove_node_sp = data_repo.getPreparedStatement(serviceJid, REMOVE_NODE_QUERY);
+			synchronized (remove_node_sp) {
 				remove_node_sp.setLong( 1, nodeId );
 				remove_node_sp.execute();
 			}
@@ -247,16 +214,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 	@Override
 	public void destroy() {
-		try {
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "closing JDBC connection: {0} - {1}", new Object[] {conn.getClass().getCanonicalName(), conn});
-			}			
-			if ( !conn.isClosed() ) {
-				conn.close();
-			}
-		} catch ( SQLException e ) {
-			log.log( Level.WARNING, "Problem closing jdbc connection: " + db_conn, e );
-		}
+		// data repository is shared and its connections are managed by
+		// RepositoryFactory, so we are not closing them here
+		data_repo = null;
 		super.destroy();
 	}
 
@@ -268,7 +228,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
+			PreparedStatement get_all_nodes_sp = data_repo.getPreparedStatement(serviceJid, GET_ALL_NODES_QUERY);
 			synchronized (get_all_nodes_sp) {
 				try {
 					get_all_nodes_sp.setString(1, serviceJid.toString());
@@ -294,8 +254,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized ( get_item_sp ) {
+			PreparedStatement get_item_sp = data_repo.getPreparedStatement(serviceJid, GET_ITEM_QUERY);
+			synchronized (get_item_sp) {
 				try {
 					get_item_sp.setLong(1, nodeId);
 					get_item_sp.setString(2, id);
@@ -329,6 +289,223 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		return itemDataToElement( data.toCharArray() );
 	}
 
+	@Override
+	public List<IItems.Item> getItems( BareJID serviceJid, Long nodeId, String nodeName, List<String> ids )
+			throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getting items: serviceJid: {0}, nodeId: {1}, ids: {2}",
+							 new Object[] { serviceJid, nodeId, ids } );
+		}
+		Map<String, IItems.Item> found = new HashMap<String, IItems.Item>();
+		for ( int from = 0; from < ids.size(); from += GET_ITEMS_BATCH_SIZE ) {
+			StringBuilder sb = new StringBuilder();
+			for ( String id : ids.subList( from, Math.min( ids.size(), from + GET_ITEMS_BATCH_SIZE ) ) ) {
+				// separator is not allowed in XML so it will not be a part of any valid id
+				if ( id.indexOf( ITEMS_IDS_SEPARATOR ) >= 0 ) {
+					throw new RepositoryException( "Invalid item id: " + id );
+				}
+				if ( sb.length() > 0 ) {
+					sb.append( ITEMS_IDS_SEPARATOR );
+				}
+				sb.append( id );
+			}
+			if ( sb.length() == 0 ) {
+				continue;
+			}
+			try {
+				ResultSet rs = null;
+				PreparedStatement get_items_sp = data_repo.getPreparedStatement(serviceJid, GET_ITEMS_QUERY);
+				synchronized (get_items_sp) {
+					try {
+						get_items_sp.setLong(1, nodeId);
+						get_items_sp.setString(2, sb.toString());
+						rs = get_items_sp.executeQuery();
+						while (rs.next()) {
+							String id = rs.getString(1);
+							String data = rs.getString(2);
+							if (data == null) {
+								continue;
+							}
+							found.put(id, new IItems.Item(nodeName, id, rs.getTimestamp(4), rs.getTimestamp(5),
+									itemDataToElement(data.toCharArray())));
+						}
+					} finally {
+						release(null, rs);
+					}
+				}
+			} catch ( SQLException e ) {
+				throw new RepositoryException( "Items reading error", e );
+			} // end of catch
+		}
+
+		List<IItems.Item> results = new ArrayList<IItems.Item>(found.size());
+		for ( String id : ids ) {
+			IItems.Item item = found.remove( id );
+			if ( item != null ) {
+				results.add( item );
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public Map<Long, List<IItems.Item>> getNodesRecentItems( BareJID serviceJid, Map<Long, String> nodes, int limit )
+			throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getting recent items of nodes: serviceJid: {0}, nodes: {1}, limit: {2}",
+							 new Object[] { serviceJid, nodes, limit } );
+		}
+		Map<Long, List<IItems.Item>> result = new HashMap<Long, List<IItems.Item>>();
+		List<Long> nodesIds = new ArrayList<Long>( nodes.keySet() );
+		for ( Long nodeId : nodesIds ) {
+			result.put( nodeId, new ArrayList<IItems.Item>() );
+		}
+		for ( int from = 0; from < nodesIds.size(); from += GET_ITEMS_BATCH_SIZE ) {
+			StringBuilder sb = new StringBuilder();
+			for ( Long nodeId : nodesIds.subList( from, Math.min( nodesIds.size(), from + GET_ITEMS_BATCH_SIZE ) ) ) {
+				if ( sb.length() > 0 ) {
+					sb.append( ',' );
+				}
+				sb.append( nodeId );
+			}
+			try {
+				ResultSet rs = null;
+				PreparedStatement get_nodes_recent_items_sp = data_repo.getPreparedStatement(serviceJid, GET_NODES_RECENT_ITEMS_QUERY);
+				synchronized (get_nodes_recent_items_sp) {
+					try {
+						get_nodes_recent_items_sp.setString(1, sb.toString());
+						get_nodes_recent_items_sp.setInt(2, limit);
+						rs = get_nodes_recent_items_sp.executeQuery();
+						// items of every node are returned newest first
+						while (rs.next()) {
+							long nodeId = rs.getLong(1);
+							String data = rs.getString(3);
+							List<IItems.Item> items = result.get(nodeId);
+							if (data == null || items == null) {
+								continue;
+							}
+							items.add(new IItems.Item(nodes.get(nodeId), rs.getString(2), rs.getTimestamp(5),
+									rs.getTimestamp(6), itemDataToElement(data.toCharArray())));
+						}
+					} finally {
+						release(null, rs);
+					}
+				}
+			} catch ( SQLException e ) {
+				throw new RepositoryException( "Recent items of nodes reading error", e );
+			} // end of catch
+		}
+		return result;
+	}
+
+	@Override
+	public List<IItems.Item> queryItems( BareJID serviceJid, Long nodeId, String nodeName, CollectionItemsOrdering ordering,
+			Date since, String afterId, String beforeId, int offset, Integer limit ) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "querying items: serviceJid: {0}, nodeId: {1}, ordering: {2}, since: {3}, after: {4}, "
+							 + "before: {5}, offset: {6}, limit: {7}",
+							 new Object[] { serviceJid, nodeId, ordering, since, afterId, beforeId, offset, limit } );
+		}
+		try {
+			ResultSet rs = null;
+			PreparedStatement query_items_sp = data_repo.getPreparedStatement(serviceJid, QUERY_ITEMS_QUERY);
+			synchronized (query_items_sp) {
+				try {
+					query_items_sp.setLong(1, nodeId);
+					query_items_sp.setInt(2, orderingToInt(ordering));
+					if (since == null) {
+						query_items_sp.setNull(3, java.sql.Types.TIMESTAMP);
+					} else {
+						query_items_sp.setTimestamp(3, new Timestamp(since.getTime()));
+					}
+					if (afterId == null) {
+						query_items_sp.setNull(4, java.sql.Types.VARCHAR);
+					} else {
+						query_items_sp.setString(4, afterId);
+					}
+					if (beforeId == null) {
+						query_items_sp.setNull(5, java.sql.Types.VARCHAR);
+					} else {
+						query_items_sp.setString(5, beforeId);
+					}
+					query_items_sp.setInt(6, offset);
+					query_items_sp.setInt(7, limit == null ? Integer.MAX_VALUE : limit);
+					rs = query_items_sp.executeQuery();
+					List<IItems.Item> results = new ArrayList<IItems.Item>();
+					while (rs.next()) {
+						String data = rs.getString(2);
+						if (data == null) {
+							continue;
+						}
+						results.add(new IItems.Item(nodeName, rs.getString(1), rs.getTimestamp(4), rs.getTimestamp(5),
+								itemDataToElement(data.toCharArray())));
+					}
+					return results;
+				} finally {
+					release(null, rs);
+				}
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Items page reading error", e );
+		} // end of catch
+	}
+
+	@Override
+	public int getItemPosition( BareJID serviceJid, Long nodeId, CollectionItemsOrdering ordering, String id )
+			throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getting item position: serviceJid: {0}, nodeId: {1}, ordering: {2}, id: {3}",
+							 new Object[] { serviceJid, nodeId, ordering, id } );
+		}
+		try {
+			ResultSet rs = null;
+			PreparedStatement get_item_position_sp = data_repo.getPreparedStatement(serviceJid, GET_ITEM_POSITION_QUERY);
+			synchronized (get_item_position_sp) {
+				try {
+					get_item_position_sp.setLong(1, nodeId);
+					get_item_position_sp.setInt(2, orderingToInt(ordering));
+					get_item_position_sp.setString(3, id);
+					rs = get_item_position_sp.executeQuery();
+					return rs.next() ? rs.getInt(1) : 0;
+				} finally {
+					release(null, rs);
+				}
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Item position reading error", e );
+		} // end of catch
+	}
+
+	@Override
+	public int getItemsCount( BareJID serviceJid, Long nodeId ) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getting items count: serviceJid: {0}, nodeId: {1}",
+							 new Object[] { serviceJid, nodeId } );
+		}
+		try {
+			ResultSet rs = null;
+			PreparedStatement get_node_items_count_sp = data_repo.getPreparedStatement(serviceJid, GET_NODE_ITEMS_COUNT_QUERY);
+			synchronized (get_node_items_count_sp) {
+				try {
+					get_node_items_count_sp.setLong(1, nodeId);
+					rs = get_node_items_count_sp.executeQuery();
+					return rs.next() ? rs.getInt(1) : 0;
+				} finally {
+					release(null, rs);
+				}
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Items count reading error", e );
+		} // end of catch
+	}
+
+	/**
+	 * Converts ordering to value of parameter of stored procedures.
+	 */
+	private static int orderingToInt( CollectionItemsOrdering ordering ) {
+		return ordering == CollectionItemsOrdering.byCreationDate ? 0 : 1;
+	}
+
 	@Override
 	public Date getItemCreationDate( final BareJID serviceJid, final Long nodeId, final String id )
 			throws RepositoryException {
@@ -349,8 +526,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		if ( null != nodeId ){
 			try {
 				ResultSet rs = null;
-				checkConnection();
-				synchronized ( get_node_items_ids_sp ) {
+				PreparedStatement get_node_items_ids_sp = data_repo.getPreparedStatement(serviceJid, GET_NODE_ITEMS_IDS_QUERY);
+				synchronized (get_node_items_ids_sp) {
 					try {
 						get_node_items_ids_sp.setLong(1, nodeId);
 						rs = get_node_items_ids_sp.executeQuery();
@@ -380,7 +557,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		try {
 			ResultSet rs = null;
 			Timestamp sinceTs = new Timestamp(since.getTime());
-			checkConnection();
+			PreparedStatement get_node_items_ids_since_sp = data_repo.getPreparedStatement(serviceJid, GET_NODE_ITEMS_IDS_SINCE_QUERY);
 			synchronized (get_node_items_ids_since_sp) {
 				try {
 					get_node_items_ids_since_sp.setLong(1, nodeId);
@@ -409,8 +586,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized ( get_node_items_meta_sp ) {
+			PreparedStatement get_node_items_meta_sp = data_repo.getPreparedStatement(serviceJid, GET_NODE_ITEMS_META_QUERY);
+			synchronized (get_node_items_meta_sp) {
 				try {
 					get_node_items_meta_sp.setLong(1, nodeId);
 					rs = get_node_items_meta_sp.executeQuery();
@@ -444,7 +621,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
+			PreparedStatement get_node_id_sp = data_repo.getPreparedStatement(serviceJid, GET_NODE_ID_QUERY);
 			synchronized (get_node_id_sp) {
 				try {
 					get_node_id_sp.setString(1, serviceJid.toString());
@@ -476,7 +653,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
+			PreparedStatement get_node_meta_sp = data_repo.getPreparedStatement(serviceJid, GET_NODE_META_QUERY);
 			synchronized (get_node_meta_sp) {
 				try {
 					get_node_meta_sp.setString(1, serviceJid.toString());
@@ -491,8 +668,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 
 						if ( log.isLoggable( Level.FINEST ) ){
-							log.log( Level.FINEST, "Getting Node ID: serviceJid: {0}, nodeName: {1}, nodeId: {2}, get_node_id_sp: {3}",
-									new Object[] { serviceJid, nodeName, nodeId, get_node_id_sp } );
+							log.log( Level.FINEST, "Getting Node ID: serviceJid: {0}, nodeName: {1}, nodeId: {2}, get_node_meta_sp: {3}",
+									new Object[] { serviceJid, nodeName, nodeId, get_node_meta_sp } );
 						}
 						return nodeMeta;
 					}
@@ -514,7 +691,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
+			PreparedStatement get_node_affiliations_sp = data_repo.getPreparedStatement(serviceJid, GET_NODE_AFFILIATIONS_QUERY);
 			synchronized (get_node_affiliations_sp) {
 				try {
 					get_node_affiliations_sp.setLong(1, nodeId);
@@ -548,8 +725,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
 			if (nodeName == null) {
+				PreparedStatement get_root_nodes_sp = data_repo.getPreparedStatement(serviceJid, GET_ROOT_NODES_QUERY);
 				synchronized (get_root_nodes_sp) {
 					try {
 						get_root_nodes_sp.setString(1, serviceJid.toString());
@@ -564,6 +741,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 					}
 				}
 			} else {
+				PreparedStatement get_child_nodes_sp = data_repo.getPreparedStatement(serviceJid, GET_CHILD_NODES_QUERY);
 				synchronized (get_child_nodes_sp) {
 					try {
 						get_child_nodes_sp.setString(1, serviceJid.toString());
@@ -593,8 +771,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		try {
 			ResultSet rs = null;
 			final NodeSubscriptions ns = NodeSubscriptions.create();
-			checkConnection();
-			synchronized ( get_node_subscriptions_sp ) {
+			PreparedStatement get_node_subscriptions_sp = data_repo.getPreparedStatement(serviceJid, GET_NODE_SUBSCRIPTIONS_QUERY);
+			synchronized (get_node_subscriptions_sp) {
 				try {
 					get_node_subscriptions_sp.setLong(1, nodeId);
 					rs = get_node_subscriptions_sp.executeQuery();
@@ -617,7 +795,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 	}
 
 	public String getResourceUri() {
-		return db_conn;
+		return data_repo.getResourceUri();
 	}
 
 	@Override
@@ -632,7 +810,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
+			PreparedStatement get_item_sp = data_repo.getPreparedStatement(serviceJid, GET_ITEM_QUERY);
 			synchronized (get_item_sp) {
 				try {
 					get_item_sp.setLong(1, nodeId);
@@ -660,6 +838,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		try {
 			ResultSet rs = null;
 			Map<String, UsersAffiliation> result = new HashMap<String, UsersAffiliation>();
+			PreparedStatement get_user_affiliations_sp = data_repo.getPreparedStatement(serviceJid, GET_USER_AFFILIATIONS_QUERY);
 			synchronized (get_user_affiliations_sp) {
 				try {
 					get_user_affiliations_sp.setString(1, serviceJid.toString());
@@ -689,6 +868,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		try {
 			ResultSet rs = null;
 			Map<String, UsersSubscription> result = new HashMap<String, UsersSubscription>();
+			PreparedStatement get_user_subscriptions_sp = data_repo.getPreparedStatement(serviceJid, GET_USER_SUBSCRIPTIONS_QUERY);
 			synchronized (get_user_subscriptions_sp) {
 				try {
 					get_user_subscriptions_sp.setString(1, serviceJid.toString());
@@ -715,11 +895,12 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 			return;
 		
 		try {
-			CallableStatement testCall = conn.prepareCall("{ call TigPubSubGetNodeMeta(?,?) }");
-			testCall.setString(1, "tigase-pubsub");
-			testCall.setString(2, "tigase-pubsub");
-			testCall.execute();
-			testCall.close();
+			PreparedStatement testCall = data_repo.getPreparedStatement(null, GET_NODE_META_QUERY);
+			synchronized (testCall) {
+				testCall.setString(1, "tigase-pubsub");
+				testCall.setString(2, "tigase-pubsub");
+				testCall.execute();
+			}
 			schemaOk = true;
 		} catch (Exception ex) {
 			String[] msg = {
@@ -728,7 +909,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				"  ERROR! Terminating the server process.",
 				"  PubSub Component is not compatible with",
 				"  database schema which exists in",
-				"  " + db_conn,
+				"  " + data_repo.getResourceUri(),
 				"  This component uses newer schema. To continue",
 				"  use of currently deployed schema, please use",
 				"  older version of PubSub Component.",
@@ -754,177 +935,57 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 	@Override
 	public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
-		this.db_conn = resource_uri;
-
-		if (db_conn.startsWith("jdbc:postgresql")) {
-			database = DataRepository.dbTypes.postgresql;
-		} else if (db_conn.startsWith("jdbc:mysql")) {
-			database = DataRepository.dbTypes.mysql;
-		} else if (db_conn.startsWith("jdbc:derby")) {
-			database = DataRepository.dbTypes.derby;
-		} else if (db_conn.startsWith("jdbc:jtds:sqlserver")) {
-			database = DataRepository.dbTypes.jtds;
-		} else if (db_conn.startsWith("jdbc:sqlserver")) {
-			database = DataRepository.dbTypes.sqlserver;
-		}	
-		
 		try {
-			initRepo();
-		} catch ( SQLException e ) {
-			conn = null;
-			throw new DBInitException( "Problem initializing jdbc connection: " + db_conn, e );
+			data_repo = RepositoryFactory.getDataRepository(null, resource_uri, params);
+			database = data_repo.getDatabaseType();
+
+			initPreparedStatements();
+			checkSchema();
+		} catch (Exception e) {
+			data_repo = null;
+			throw new DBInitException( "Problem initializing jdbc connection: " + resource_uri, e );
 		}		
 	}
 
-	
 	/**
-	 * <code>initPreparedStatements</code> method initializes internal database
-	 * connection variables such as prepared statements.
+	 * <code>initPreparedStatements</code> method registers queries used by
+	 * this DAO in data repository, which prepares them for every connection.
 	 * 
 	 * @exception SQLException
 	 *                if an error occurs on database query.
 	 */
 	private void initPreparedStatements() throws SQLException {
-		String query;
-		switch ( database ) {
-			case derby:
-				query = "VALUES 1";
-				break;
-			default:
-				query = "select 1";
-				break;
-		}
-		conn_valid_st = conn.prepareStatement( query );
-
-		query = "{ call TigPubSubCreateNode(?, ?, ?, ?, ?, ?) }";
-				create_node_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubRemoveNode(?) }";
-		remove_node_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubRemoveService(?) }";
-		remove_service_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeId(?, ?) }";
-		get_node_id_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeMeta(?, ?) }";
-		get_node_meta_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetItem(?, ?) }";
-		get_item_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubWriteItem(?, ?, ?, ?) }";
-		write_item_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubDeleteItem(?, ?) }";
-		delete_item_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeItemsIds(?) }";
-		get_node_items_ids_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeItemsIdsSince(?,?) }";
-		get_node_items_ids_since_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeItemsMeta(?) }";
-		get_node_items_meta_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubGetAllNodes(?) }";
-		get_all_nodes_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubGetRootNodes(?) }";
-		get_root_nodes_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubGetChildNodes(?,?) }";
-		get_child_nodes_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubDeleteAllNodes(?) }";
-		delete_all_nodes_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubSetNodeConfiguration(?, ?, ?) }";
-		set_node_configuration_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubSetNodeAffiliation(?, ?, ?) }";
-		set_node_affiliations_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeConfiguration(?) }";
-		get_node_configuration_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeAffiliations(?) }";
-		get_node_affiliations_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeSubscriptions(?) }";
-		get_node_subscriptions_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubSetNodeSubscription(?, ?, ?, ?) }";
-		set_node_subscriptions_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubDeleteNodeSubscription(?, ?) }";
-		delete_node_subscriptions_sp = conn.prepareCall( query );
-				
-		query = "{ call TigPubSubGetUserAffiliations(?, ?) }";
-		get_user_affiliations_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubGetUserSubscriptions(?, ?) }";
-		get_user_subscriptions_sp = conn.prepareCall( query );
-	}
-
-	/**
-	 * <code>initRepo</code> method initializes database connection and data
-	 * repository.
-	 * 
-	 * @exception SQLException
-	 *                if an error occurs on database query.
-	 */
-	private void initRepo() throws SQLException {
-		synchronized ( db_conn ) {
-			if (conn != null) {
-				try {
-					if (!conn.isClosed()) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "closing JDBC connection: {0}", conn);
-						}
-						conn.close();
-					}
-				} catch (Exception ex) {
-					log.log(Level.WARNING, "Exception occured while closing old DB connection for reinitialization", ex);
-				}
-			}
-			String driverClass = null;
-			switch (database) {
-				case postgresql:
-					driverClass = "org.postgresql.Driver";
-					break;
-				case mysql:
-					driverClass = "com.mysql.jdbc.Driver";
-					break;
-				case derby:
-					driverClass = "org.apache.derby.jdbc.EmbeddedDriver";
-					break;
-				case jtds:
-					driverClass = "net.sourceforge.jtds.jdbc.Driver";
-					break;
-				case sqlserver:
-					driverClass = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-					break;
-				default:
-					driverClass = "net.sf.log4jdbc.sql.jdbcapi.DriverSpy";
-					break;
-			}
-			
-			try {
-				Class.forName( driverClass, true, this.getClass().getClassLoader() );
-			} catch ( ClassNotFoundException ex ) {
-				log.log( Level.SEVERE, null, ex );
-			}		
-			
-			conn = DriverManager.getConnection( db_conn );
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "establishing JDBC connection: {0} for {1}", new Object[]{conn, db_conn});
-			}
-			checkSchema();			
-			initPreparedStatements();
-		}
+		data_repo.initPreparedStatement(CREATE_NODE_QUERY, CREATE_NODE_QUERY);
+		data_repo.initPreparedStatement(REMOVE_NODE_QUERY, REMOVE_NODE_QUERY);
+		data_repo.initPreparedStatement(REMOVE_SERVICE_QUERY, REMOVE_SERVICE_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_ID_QUERY, GET_NODE_ID_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_META_QUERY, GET_NODE_META_QUERY);
+		data_repo.initPreparedStatement(GET_ITEM_QUERY, GET_ITEM_QUERY);
+		data_repo.initPreparedStatement(GET_ITEMS_QUERY, GET_ITEMS_QUERY);
+		data_repo.initPreparedStatement(QUERY_ITEMS_QUERY, QUERY_ITEMS_QUERY);
+		data_repo.initPreparedStatement(GET_NODES_RECENT_ITEMS_QUERY, GET_NODES_RECENT_ITEMS_QUERY);
+		data_repo.initPreparedStatement(GET_ITEM_POSITION_QUERY, GET_ITEM_POSITION_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_ITEMS_COUNT_QUERY, GET_NODE_ITEMS_COUNT_QUERY);
+		data_repo.initPreparedStatement(WRITE_ITEM_QUERY, WRITE_ITEM_QUERY);
+		data_repo.initPreparedStatement(DELETE_ITEM_QUERY, DELETE_ITEM_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_ITEMS_IDS_QUERY, GET_NODE_ITEMS_IDS_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_ITEMS_IDS_SINCE_QUERY, GET_NODE_ITEMS_IDS_SINCE_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_ITEMS_META_QUERY, GET_NODE_ITEMS_META_QUERY);
+		data_repo.initPreparedStatement(GET_ALL_NODES_QUERY, GET_ALL_NODES_QUERY);
+		data_repo.initPreparedStatement(GET_ROOT_NODES_QUERY, GET_ROOT_NODES_QUERY);
+		data_repo.initPreparedStatement(GET_CHILD_NODES_QUERY, GET_CHILD_NODES_QUERY);
+		data_repo.initPreparedStatement(DELETE_ALL_NODES_QUERY, DELETE_ALL_NODES_QUERY);
+		data_repo.initPreparedStatement(SET_NODE_CONFIGURATION_QUERY, SET_NODE_CONFIGURATION_QUERY);
+		data_repo.initPreparedStatement(SET_NODE_AFFILIATION_QUERY, SET_NODE_AFFILIATION_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_CONFIGURATION_QUERY, GET_NODE_CONFIGURATION_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_AFFILIATIONS_QUERY, GET_NODE_AFFILIATIONS_QUERY);
+		data_repo.initPreparedStatement(GET_NODE_SUBSCRIPTIONS_QUERY, GET_NODE_SUBSCRIPTIONS_QUERY);
+		data_repo.initPreparedStatement(SET_NODE_SUBSCRIPTION_QUERY, SET_NODE_SUBSCRIPTION_QUERY);
+		data_repo.initPreparedStatement(DELETE_NODE_SUBSCRIPTION_QUERY, DELETE_NODE_SUBSCRIPTION_QUERY);
+		data_repo.initPreparedStatement(UPDATE_NODE_AFFILIATIONS_AND_SUBSCRIPTIONS_QUERY,
+				UPDATE_NODE_AFFILIATIONS_AND_SUBSCRIPTIONS_QUERY);
+		data_repo.initPreparedStatement(GET_USER_AFFILIATIONS_QUERY, GET_USER_AFFILIATIONS_QUERY);
+		data_repo.initPreparedStatement(GET_USER_SUBSCRIPTIONS_QUERY, GET_USER_SUBSCRIPTIONS_QUERY);
 	}
 
 	protected String readNodeConfigFormData( final BareJID serviceJid, final long nodeId ) throws RepositoryException {
@@ -934,7 +995,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
+			PreparedStatement get_node_configuration_sp = data_repo.getPreparedStatement(serviceJid, GET_NODE_CONFIGURATION_QUERY);
 			synchronized (get_node_configuration_sp) {
 				try {
 					get_node_configuration_sp.setLong(1, nodeId);
@@ -971,8 +1032,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 	public void removeAllFromRootCollection( BareJID serviceJid ) throws RepositoryException {
 		// TODO check it
 		try {
-			checkConnection();
-			synchronized ( delete_all_nodes_sp ) {
+			PreparedStatement delete_all_nodes_sp = data_repo.getPreparedStatement(serviceJid, DELETE_ALL_NODES_QUERY);
+			synchronized (delete_all_nodes_sp) {
 				delete_all_nodes_sp.setString( 1, serviceJid.toString() );
 				delete_all_nodes_sp.execute();
 			}
@@ -990,8 +1051,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 	@Override
 	public void removeNodeSubscription( BareJID serviceJid, Long nodeId, BareJID jid ) throws RepositoryException {
 		try {
-			checkConnection();
-			synchronized ( delete_node_subscriptions_sp ) {
+			PreparedStatement delete_node_subscriptions_sp = data_repo.getPreparedStatement(serviceJid, DELETE_NODE_SUBSCRIPTION_QUERY);
+			synchronized (delete_node_subscriptions_sp) {
 				delete_node_subscriptions_sp.setLong( 1, nodeId );
 				delete_node_subscriptions_sp.setString( 2, jid.toString() );
 				delete_node_subscriptions_sp.execute();
@@ -1004,8 +1065,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 	@Override
 	public void removeService( BareJID serviceJid ) throws RepositoryException {
 		try {
-			checkConnection();
-			synchronized ( remove_service_sp ) {
+			PreparedStatement remove_service_sp = data_repo.getPreparedStatement(serviceJid, REMOVE_SERVICE_QUERY);
+			synchronized (remove_service_sp) {
 				remove_service_sp.setString( 1, serviceJid.toString() );
 				remove_service_sp.execute();
 			}
@@ -1022,7 +1083,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 		try {
 			ResultSet rs = null;
-			checkConnection();
+			PreparedStatement set_node_affiliations_sp = data_repo.getPreparedStatement(serviceJid, SET_NODE_AFFILIATION_QUERY);
 			synchronized (set_node_affiliations_sp) {
 				try {
 					set_node_affiliations_sp.setLong(1, nodeId);
@@ -1056,13 +1117,103 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 	}
 
+	/**
+	 * Writes all changes with a single call of a stored procedure, which
+	 * applies them within one transaction, so changing many rows takes one
+	 * round-trip instead of one per row on every database. Falls back to
+	 * writing changes one by one if there is only single change. Parameters
+	 * of Derby procedures are limited in size, so on Derby changes are split
+	 * into as many calls (and transactions) as needed; Derby is embedded, so
+	 * those calls do not go over network.
+	 */
+	@Override
+	public void updateNodeAffiliationsAndSubscriptions(BareJID serviceJid, Long nodeId, String nodeName,
+			Collection<UsersAffiliation> affiliations, Collection<UsersSubscription> subscriptions)
+			throws RepositoryException {
+		if (affiliations.size() + subscriptions.size() < 2) {
+			super.updateNodeAffiliationsAndSubscriptions(serviceJid, nodeId, nodeName, affiliations, subscriptions);
+			return;
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Updating node affiliations and subscriptions: " + nodeName + " / " + affiliations.size()
+					+ " affiliations / " + subscriptions.size() + " subscriptions");
+		}
+
+		final int maxLength = database == derby ? DERBY_MAX_PARAM_LENGTH : Integer.MAX_VALUE;
+		final StringBuilder affs = new StringBuilder();
+		final StringBuilder subs = new StringBuilder();
+		try {
+			PreparedStatement update_sp = data_repo.getPreparedStatement(serviceJid,
+					UPDATE_NODE_AFFILIATIONS_AND_SUBSCRIPTIONS_QUERY);
+			synchronized (update_sp) {
+				for (UsersAffiliation affiliation : affiliations) {
+					String row = encodeRow(affiliation.getJid().toString(), affiliation.getAffiliation().name());
+					if (affs.length() > 0 && affs.length() + 1 + row.length() > maxLength) {
+						executeUpdate(update_sp, nodeId, affs, subs);
+					}
+					appendRow(affs, row);
+				}
+				for (UsersSubscription subscription : subscriptions) {
+					String subid = subscription.getSubscription() == Subscription.none || subscription.getSubid() == null
+							? ""
+							: subscription.getSubid();
+					String row = encodeRow(subscription.getJid().toString(), subscription.getSubscription().name(),
+							subid);
+					if (subs.length() > 0 && subs.length() + 1 + row.length() > maxLength) {
+						executeUpdate(update_sp, nodeId, affs, subs);
+					}
+					appendRow(subs, row);
+				}
+				executeUpdate(update_sp, nodeId, affs, subs);
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Node subscribers writing error", e );
+		}
+	}
+
+	private static String encodeRow(String... fields) throws RepositoryException {
+		StringBuilder sb = new StringBuilder();
+		for (String field : fields) {
+			// separators are not allowed in XML so they will not be a part of
+			// any valid jid or subscription id
+			if (field.indexOf(ROWS_SEPARATOR) >= 0 || field.indexOf(FIELDS_SEPARATOR) >= 0) {
+				throw new RepositoryException("Invalid value: " + field);
+			}
+			if (sb.length() > 0) {
+				sb.append(FIELDS_SEPARATOR);
+			}
+			sb.append(field);
+		}
+		return sb.toString();
+	}
+
+	private static void appendRow(StringBuilder sb, String row) {
+		if (sb.length() > 0) {
+			sb.append(ROWS_SEPARATOR);
+		}
+		sb.append(row);
+	}
+
+	private static void executeUpdate(PreparedStatement update_sp, Long nodeId, StringBuilder affs,
+			StringBuilder subs) throws SQLException {
+		if (affs.length() == 0 && subs.length() == 0) {
+			return;
+		}
+		update_sp.setLong(1, nodeId);
+		update_sp.setString(2, affs.length() == 0 ? null : affs.toString());
+		update_sp.setString(3, subs.length() == 0 ? null : subs.toString());
+		update_sp.execute();
+		affs.setLength(0);
+		subs.setLength(0);
+	}
+
 	@Override
 	public void updateNodeConfig(final BareJID serviceJid, final Long nodeId, final String serializedData,
 			final Long collectionId)
 			throws RepositoryException {
 		try {
 			ResultSet rs = null;
-			checkConnection();
+			PreparedStatement set_node_configuration_sp = data_repo.getPreparedStatement(serviceJid, SET_NODE_CONFIGURATION_QUERY);
 			synchronized (set_node_configuration_sp) {
 				try {
 					set_node_configuration_sp.setLong(1, nodeId);
@@ -1105,8 +1256,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized ( set_node_subscriptions_sp ) {
+			PreparedStatement set_node_subscriptions_sp = data_repo.getPreparedStatement(serviceJid, SET_NODE_SUBSCRIPTION_QUERY);
+			synchronized (set_node_subscriptions_sp) {
 				try {
 					set_node_subscriptions_sp.setLong(1, nodeId);
 					set_node_subscriptions_sp.setString(2, subscription.getJid().toString());
@@ -1144,22 +1295,20 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 												 final String publisher, final Element item ) throws RepositoryException {
 		try {
 			ResultSet rs = null;
-			checkConnection();
+			PreparedStatement write_item_sp = data_repo.getPreparedStatement(serviceJid, WRITE_ITEM_QUERY);
 			synchronized (write_item_sp) {
 				try {
 					write_item_sp.setLong(1, nodeId);
 					write_item_sp.setString(2, id);
 					write_item_sp.setString(3, publisher);
 					write_item_sp.setString(4, item.toString());
-					if (db_conn != null) {
 //					if ( db_conn.contains( "mysql" ) ){
 //						rs = write_item_sp.executeQuery();
 //					}
 //					if ( db_conn.contains( "sqlserver" ) ){
 //						write_item_sp.executeUpdate();
 //					}
-						write_item_sp.execute();
-					}
+					write_item_sp.execute();
 				} finally {
 					release(null, rs);
 				}
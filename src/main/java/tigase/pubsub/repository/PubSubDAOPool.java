@@ -23,111 +23,115 @@
 package tigase.pubsub.repository;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import tigase.db.DBInitException;
 
-import tigase.db.TigaseDBException;
-import tigase.db.UserRepository;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.NodeType;
-import tigase.pubsub.PubSubConfig;
 import tigase.pubsub.repository.NodeAffiliations;
 import tigase.pubsub.repository.NodeSubscriptions;
 import tigase.pubsub.repository.RepositoryException;
-import tigase.pubsub.repository.stateless.NodeMeta;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.BareJID;
 
-public class PubSubDAOPool<T> extends PubSubDAO<T> {
+public class PubSubDAOPool<T> extends PubSubDAO<T> implements StatisticHolder {
 
 	private static final Logger log = Logger.getLogger(PubSubDAOPool.class.getName());
 
-	private final Map<BareJID, LinkedBlockingQueue<IPubSubDAO>> pools = new HashMap<BareJID, LinkedBlockingQueue<IPubSubDAO>>();
+	/** Default time in milliseconds for which caller waits for DAO */
+	public static final long DEF_BORROW_TIMEOUT = 10 * 1000;
+
+	private final ConcurrentHashMap<BareJID, Pool> pools = new ConcurrentHashMap<BareJID, Pool>();
+	private volatile Pool defaultPool = null;
+
+	private final long borrowTimeout;
+	private final boolean fair;
+
+	private final ConcurrentHashMap<String, TimeHistogram> waitTimes = new ConcurrentHashMap<String, TimeHistogram>();
+	private final ConcurrentHashMap<String, TimeHistogram> holdTimes = new ConcurrentHashMap<String, TimeHistogram>();
 
 	/**
 	 * Variable destroyed is set to true to ensure that all JDBC connections will be closed
 	 * and even if some of them were taken for execution in moment of pool being destroyed.
 	 */
-	private boolean destroyed = false;
+	private volatile boolean destroyed = false;
 
 	public PubSubDAOPool() {
+		this(DEF_BORROW_TIMEOUT, false);
+	}
+
+	/**
+	 * Creates pool of DAO instances.
+	 *
+	 * @param borrowTimeout time in milliseconds for which caller waits for
+	 *                      DAO before {@link RepositoryException} is thrown
+	 * @param fair          if <code>true</code> DAO instances are handed to
+	 *                      waiting callers in order of their requests
+	 */
+	public PubSubDAOPool(long borrowTimeout, boolean fair) {
+		this.borrowTimeout = borrowTimeout;
+		this.fair = fair;
 	}
 
 	public void addDao(BareJID domain, IPubSubDAO dao) {
-		LinkedBlockingQueue<IPubSubDAO> ee = pools.get(domain);
-		if (ee == null) {
-			ee = new LinkedBlockingQueue<IPubSubDAO>();
-			pools.put(domain, ee);
+		Pool pool;
+		if (domain == null) {
+			synchronized (this) {
+				if (defaultPool == null) {
+					defaultPool = new Pool(fair);
+				}
+				pool = defaultPool;
+			}
+		} else {
+			pool = pools.computeIfAbsent(domain, key -> new Pool(fair));
 		}
-		ee.offer(dao);
+		pool.add(dao);
 	}
 
 	@Override
 	public void addToRootCollection(BareJID serviceJid, String nodeName) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.addToRootCollection(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
+		execute("addToRootCollection", serviceJid, dao -> {
+			dao.addToRootCollection(serviceJid, nodeName);
+			return null;
+		});
 	}
 
 	@Override
 	public T createNode(BareJID serviceJid, String nodeName, BareJID ownerJid, AbstractNodeConfig nodeConfig,
 			NodeType nodeType, T collectionId) throws RepositoryException {
-		IPubSubDAO<T> dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.createNode(serviceJid, nodeName, ownerJid, nodeConfig, nodeType, collectionId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-			return null;
-		}
+		return execute("createNode", serviceJid,
+				dao -> dao.createNode(serviceJid, nodeName, ownerJid, nodeConfig, nodeType, collectionId));
 	}
 
 	@Override
 	public void deleteItem(BareJID serviceJid, T nodeId, String id) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.deleteItem(serviceJid, nodeId, id);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
+		execute("deleteItem", serviceJid, dao -> {
+			dao.deleteItem(serviceJid, nodeId, id);
+			return null;
+		});
 	}
 
 	@Override
 	public void deleteNode(BareJID serviceJid, T nodeId) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.deleteNode(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
+		execute("deleteNode", serviceJid, dao -> {
+			dao.deleteNode(serviceJid, nodeId);
+			return null;
+		});
 	}
 
 	@Override
@@ -136,273 +140,147 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 			log.log(Level.FINEST, "destroying IPubSubDAOPool {0}", this);
 		}
 		destroyed = true;
-		Set<BareJID> keys = new HashSet<BareJID>(pools.keySet());
-		for (BareJID serviceJid : keys) {
-			List<IPubSubDAO> list = new ArrayList<IPubSubDAO>(pools.get(serviceJid));
-			for (IPubSubDAO dao : list) {
-				try {
-					dao.destroy();
-				} finally {
-				}
+		List<Pool> list = new ArrayList<Pool>(pools.values());
+		if (defaultPool != null) {
+			list.add(defaultPool);
+		}
+		for (Pool pool : list) {
+			IPubSubDAO dao;
+			while ((dao = pool.daos.poll()) != null) {
+				dao.destroy();
 			}
 		}
 	}
 
 	@Override
 	public String[] getAllNodesList(BareJID serviceJid) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getAllNodesList(serviceJid);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getAllNodesList", serviceJid, dao -> dao.getAllNodesList(serviceJid));
 	}
 
 	@Override
 	public Element getItem(BareJID serviceJid, T nodeId, String id) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItem(serviceJid, nodeId, id);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getItem", serviceJid, dao -> dao.getItem(serviceJid, nodeId, id));
 	}
 
 	@Override
 	public Date getItemCreationDate(BareJID serviceJid, final T nodeId, final String id) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItemCreationDate(serviceJid, nodeId, id);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getItemCreationDate", serviceJid, dao -> dao.getItemCreationDate(serviceJid, nodeId, id));
+	}
+
+	@Override
+	public List<IItems.Item> getItems(BareJID serviceJid, T nodeId, String nodeName, List<String> ids)
+			throws RepositoryException {
+		return execute("getItems", serviceJid, dao -> dao.getItems(serviceJid, nodeId, nodeName, ids));
+	}
+
+	@Override
+	public int getItemPosition(BareJID serviceJid, T nodeId, CollectionItemsOrdering ordering, String id)
+			throws RepositoryException {
+		return execute("getItemPosition", serviceJid, dao -> dao.getItemPosition(serviceJid, nodeId, ordering, id));
+	}
+
+	@Override
+	public int getItemsCount(BareJID serviceJid, T nodeId) throws RepositoryException {
+		return execute("getItemsCount", serviceJid, dao -> dao.getItemsCount(serviceJid, nodeId));
 	}
 
 	@Override
 	public String[] getItemsIds(BareJID serviceJid, T nodeId) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItemsIds(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getItemsIds", serviceJid, dao -> dao.getItemsIds(serviceJid, nodeId));
+	}
+
+	@Override
+	public Map<T, List<IItems.Item>> getNodesRecentItems(BareJID serviceJid, Map<T, String> nodes, int limit)
+			throws RepositoryException {
+		return execute("getNodesRecentItems", serviceJid, dao -> dao.getNodesRecentItems(serviceJid, nodes, limit));
 	}
 
 	@Override
 	public String[] getItemsIdsSince(BareJID serviceJid, T nodeId, Date since) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItemsIdsSince(serviceJid, nodeId, since);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getItemsIdsSince", serviceJid, dao -> dao.getItemsIdsSince(serviceJid, nodeId, since));
 	}
 
 	@Override
 	public List<IItems.ItemMeta> getItemsMeta(BareJID serviceJid, T nodeId, String nodeName) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItemsMeta(serviceJid, nodeId, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getItemsMeta", serviceJid, dao -> dao.getItemsMeta(serviceJid, nodeId, nodeName));
+	}
+
+	@Override
+	public List<IItems.Item> queryItems(BareJID serviceJid, T nodeId, String nodeName, CollectionItemsOrdering ordering,
+			Date since, String afterId, String beforeId, int offset, Integer limit) throws RepositoryException {
+		return execute("queryItems", serviceJid,
+				dao -> dao.queryItems(serviceJid, nodeId, nodeName, ordering, since, afterId, beforeId, offset, limit));
 	}
 
 	@Override
 	public Date getItemUpdateDate(BareJID serviceJid, T nodeId, String id) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItemUpdateDate(serviceJid, nodeId, id);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getItemUpdateDate", serviceJid, dao -> dao.getItemUpdateDate(serviceJid, nodeId, id));
 	}
 
 	@Override
 	public NodeAffiliations getNodeAffiliations(BareJID serviceJid, T nodeId) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodeAffiliations(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getNodeAffiliations", serviceJid, dao -> dao.getNodeAffiliations(serviceJid, nodeId));
 	}
 
 	@Override
 	public String getNodeConfig(BareJID serviceJid, T nodeId) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodeConfig(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-			return null;
-		}
+		return execute("getNodeConfig", serviceJid, dao -> dao.getNodeConfig(serviceJid, nodeId));
 	}
 
 	@Override
 	public T getNodeId(BareJID serviceJid, String nodeName) throws RepositoryException {
-		IPubSubDAO<T> dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodeId(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-			return null;
-		}
+		return execute("getNodeId", serviceJid, dao -> dao.getNodeId(serviceJid, nodeName));
 	}
 
 	@Override
 	public INodeMeta<T> getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException {
-		IPubSubDAO<T> dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodeMeta(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-			return null;
-		}
+		return execute("getNodeMeta", serviceJid, dao -> dao.getNodeMeta(serviceJid, nodeName));
 	}
 
 	@Override
 	public String[] getNodesList(BareJID serviceJid, String nodeName) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodesList(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getNodesList", serviceJid, dao -> dao.getNodesList(serviceJid, nodeName));
 	}
 
 	@Override
 	public NodeSubscriptions getNodeSubscriptions(BareJID serviceJid, T nodeId) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodeSubscriptions(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getNodeSubscriptions", serviceJid, dao -> dao.getNodeSubscriptions(serviceJid, nodeId));
 	}
 
 	protected String getPoolDetails(BareJID serviceJid) {
 		String result = "";
 
-		LinkedBlockingQueue<IPubSubDAO> ee;
-		if (pools.containsKey(serviceJid)) {
+		Pool pool = pools.get(serviceJid);
+		if (pool != null) {
 			result += serviceJid + " pool ";
-			ee = this.pools.get(serviceJid);
 		} else {
 			result += "default pool ";
-			ee = this.pools.get(null);
+			pool = defaultPool;
 		}
 
-		result += "has " + ee.size() + " element(s).";
+		if (pool == null) {
+			result += "does not exist.";
+		} else {
+			result += "has " + pool.daos.size() + " of " + pool.size + " element(s) available, "
+					+ pool.semaphore.getQueueLength() + " caller(s) waiting.";
+		}
 
 		return result;
 	}
 
 	@Override
 	public String[] getChildNodes(BareJID serviceJid, String nodeName) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getChildNodes(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getChildNodes", serviceJid, dao -> dao.getChildNodes(serviceJid, nodeName));
 	}
 
 	@Override
 	public Map<String, UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID jid) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getUserAffiliations(serviceJid, jid);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getUserAffiliations", serviceJid, dao -> dao.getUserAffiliations(serviceJid, jid));
 	}
 
 	@Override
 	public Map<String, UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID jid) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getUserSubscriptions(serviceJid, jid);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
-		return null;
+		return execute("getUserSubscriptions", serviceJid, dao -> dao.getUserSubscriptions(serviceJid, jid));
 	}
 
 	/**
@@ -418,74 +296,53 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 			dao.destroy();
 			return;
 		}
-		LinkedBlockingQueue<IPubSubDAO> ee = this.pools.containsKey(serviceJid) ? this.pools.get(serviceJid)
-				: this.pools.get(null);
-		ee.offer(dao);
-	}
-
-/*	//@Override
-	protected String readNodeConfigFormData(BareJID serviceJid, final long nodeId) throws TigaseDBException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.readNodeConfigFormData(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		Pool pool = getPool(serviceJid);
+		if (pool != null) {
+			pool.release(dao);
 		}
-		return null;
-	}*/
+	}
 
 	@Override
 	public void removeAllFromRootCollection(BareJID serviceJid) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.removeAllFromRootCollection(serviceJid);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
+		execute("removeAllFromRootCollection", serviceJid, dao -> {
+			dao.removeAllFromRootCollection(serviceJid);
+			return null;
+		});
 	}
 
 	@Override
 	public void removeFromRootCollection(BareJID serviceJid, T nodeId) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.removeFromRootCollection(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
+		execute("removeFromRootCollection", serviceJid, dao -> {
+			dao.removeFromRootCollection(serviceJid, nodeId);
+			return null;
+		});
 	}
 
 	@Override
 	public void removeNodeSubscription(BareJID serviceJid, T nodeId, BareJID jid) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.removeNodeSubscription(serviceJid, nodeId, jid);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
+		execute("removeNodeSubscription", serviceJid, dao -> {
+			dao.removeNodeSubscription(serviceJid, nodeId, jid);
+			return null;
+		});
 	}
 
+	/**
+	 * Takes DAO from the pool for the service jid (or from default pool),
+	 * waiting for it at most configured borrow timeout.
+	 *
+	 * @param serviceJid
+	 *
+	 * @return DAO instance or <code>null</code> if none was available in time
+	 */
 	public IPubSubDAO takeDao(BareJID serviceJid) {
+		Pool pool = getPool(serviceJid);
+		if (pool == null) {
+			return null;
+		}
 		try {
-			LinkedBlockingQueue<IPubSubDAO> ee = this.pools.containsKey(serviceJid) ? this.pools.get(serviceJid)
-					: this.pools.get(null);
-			return ee.take();
+			return pool.take(borrowTimeout);
 		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
 			log.log(Level.WARNING, "Couldn't obtain PubSub DAO from the pool", ex);
 		}
 		return null;
@@ -493,74 +350,194 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 
 	@Override
 	public void updateNodeAffiliation(BareJID serviceJid, T nodeId, String nodeName, UsersAffiliation affiliation) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.updateNodeAffiliation(serviceJid, nodeId, nodeName, affiliation);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
+		execute("updateNodeAffiliation", serviceJid, dao -> {
+			dao.updateNodeAffiliation(serviceJid, nodeId, nodeName, affiliation);
+			return null;
+		});
 	}
 
 	@Override
 	public void updateNodeConfig(final BareJID serviceJid, final T nodeId, final String serializedData, final T collectionId)
 			throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.updateNodeConfig(serviceJid, nodeId, serializedData, collectionId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
+		execute("updateNodeConfig", serviceJid, dao -> {
+			dao.updateNodeConfig(serviceJid, nodeId, serializedData, collectionId);
+			return null;
+		});
 	}
 
 	@Override
 	public void updateNodeSubscription(BareJID serviceJid, T nodeId, String nodeName, UsersSubscription subscription)
 			throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.updateNodeSubscription(serviceJid, nodeId, nodeName, subscription);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
+		execute("updateNodeSubscription", serviceJid, dao -> {
+			dao.updateNodeSubscription(serviceJid, nodeId, nodeName, subscription);
+			return null;
+		});
+	}
+
+	@Override
+	public void updateNodeAffiliationsAndSubscriptions(BareJID serviceJid, T nodeId, String nodeName,
+			Collection<UsersAffiliation> affiliations, Collection<UsersSubscription> subscriptions)
+			throws RepositoryException {
+		execute("updateNodeAffiliationsAndSubscriptions", serviceJid, dao -> {
+			dao.updateNodeAffiliationsAndSubscriptions(serviceJid, nodeId, nodeName, affiliations, subscriptions);
+			return null;
+		});
 	}
 
 	@Override
 	public void writeItem(final BareJID serviceJid, T nodeId, long timeInMilis, final String id,
 			final String publisher, final Element item) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}
+		execute("writeItem", serviceJid, dao -> {
+			dao.writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item);
+			return null;
+		});
 	}
 
 	@Override
 	public void removeService(BareJID serviceJid) throws RepositoryException {
-		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.removeService(serviceJid);
-			} finally {
-				offerDao(serviceJid, dao);
+		execute("removeService", serviceJid, dao -> {
+			dao.removeService(serviceJid);
+			return null;
+		});
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		for (Map.Entry<String, TimeHistogram> e : waitTimes.entrySet()) {
+			e.getValue().getStatistics(compName, "dao-pool/" + e.getKey() + "/wait", list);
+		}
+		for (Map.Entry<String, TimeHistogram> e : holdTimes.entrySet()) {
+			e.getValue().getStatistics(compName, "dao-pool/" + e.getKey() + "/hold", list);
+		}
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
+	}
+
+	@Override
+	public void everyHour() {
+	}
+
+	@Override
+	public void everyMinute() {
+	}
+
+	@Override
+	public void everySecond() {
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+	}
+
+	/**
+	 * Borrows DAO for the service jid, executes call and returns DAO to the
+	 * pool. Time spent waiting for DAO and time for which DAO was held is
+	 * recorded per called method.
+	 */
+	protected <R> R execute(String method, BareJID serviceJid, DaoCall<T, R> call) throws RepositoryException {
+		long start = System.nanoTime();
+		IPubSubDAO<T> dao = takeDao(serviceJid);
+		long borrowed = System.nanoTime();
+		getHistogram(waitTimes, method).record(borrowed - start);
+		if (dao == null) {
+			String details = getPoolDetails(serviceJid);
+			log.warning("dao is NULL, pool empty? - " + details);
+			throw new RepositoryException("No PubSub DAO available for " + method + " in " + borrowTimeout
+					+ "ms - " + details);
+		}
+		try {
+			return call.call(dao);
+		} finally {
+			offerDao(serviceJid, dao);
+			getHistogram(holdTimes, method).record(System.nanoTime() - borrowed);
+		}
+	}
+
+	private Pool getPool(BareJID serviceJid) {
+		Pool pool = serviceJid == null ? null : pools.get(serviceJid);
+		return pool != null ? pool : defaultPool;
+	}
+
+	private static TimeHistogram getHistogram(ConcurrentHashMap<String, TimeHistogram> histograms, String method) {
+		TimeHistogram histogram = histograms.get(method);
+		if (histogram == null) {
+			histogram = histograms.computeIfAbsent(method, key -> new TimeHistogram());
+		}
+		return histogram;
+	}
+
+	protected interface DaoCall<T, R> {
+
+		R call(IPubSubDAO<T> dao) throws RepositoryException;
+
+	}
+
+	/**
+	 * Pool of DAO instances for single domain. Available instances are kept in
+	 * a non-blocking queue, while semaphore (optionally fair) limits the number
+	 * of callers which may take instance from the queue.
+	 */
+	private static class Pool {
+
+		private final ConcurrentLinkedQueue<IPubSubDAO> daos = new ConcurrentLinkedQueue<IPubSubDAO>();
+		private final Semaphore semaphore;
+		private volatile int size = 0;
+
+		private Pool(boolean fair) {
+			this.semaphore = new Semaphore(0, fair);
+		}
+
+		private synchronized void add(IPubSubDAO dao) {
+			size++;
+			release(dao);
+		}
+
+		private void release(IPubSubDAO dao) {
+			daos.offer(dao);
+			semaphore.release();
+		}
+
+		private IPubSubDAO take(long timeout) throws InterruptedException {
+			if (!semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				return null;
 			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}	}
+			return daos.poll();
+		}
+	}
+
+	/**
+	 * Histogram of durations with fixed, logarithmic buckets.
+	 */
+	private static class TimeHistogram {
+
+		private static final long[] BUCKETS_MS = {1, 5, 10, 50, 100, 500, 1000};
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS_MS.length + 1);
+		private final AtomicLongArray totals = new AtomicLongArray(2);
+
+		private void record(long nanos) {
+			long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+			int idx = 0;
+			while (idx < BUCKETS_MS.length && ms >= BUCKETS_MS[idx]) {
+				idx++;
+			}
+			counts.incrementAndGet(idx);
+			totals.incrementAndGet(0);
+			totals.addAndGet(1, nanos);
+		}
+
+		private void getStatistics(String compName, String prefix, StatisticsList list) {
+			long count = totals.get(0);
+			list.add(compName, prefix + " count", count, Level.FINER);
+			list.add(compName, prefix + " average [ms]", count == 0 ? 0 : ((float) totals.get(1)) / count / 1000000,
+					Level.FINER);
+			for (int i = 0; i < counts.length(); i++) {
+				String bucket = i < BUCKETS_MS.length ? ("<" + BUCKETS_MS[i] + "ms") : (">=" + BUCKETS_MS[BUCKETS_MS.length - 1] + "ms");
+				list.add(compName, prefix + " " + bucket, counts.get(i), Level.FINEST);
+			}
+		}
+	}
 
 }
@@ -2,13 +2,16 @@ package tigase.pubsub.repository;
 
 import tigase.pubsub.AbstractNodeConfig;
 import tigase.pubsub.NodeType;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.stats.StatisticHolder;
 import tigase.stats.StatisticsList;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.impl.roster.RosterElement;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class PubSubRepositoryWrapper implements IPubSubRepository, StatisticHolder {
 
@@ -39,11 +42,29 @@ public class PubSubRepositoryWrapper implements IPubSubRepository, StatisticHold
 		repo.destroy();
 	}
 
+	@Override
+	public <R> CompletableFuture<R> executeAsync(BareJID serviceJid, String nodeName,
+			RepositoryExecutor.Task<R> task) {
+		return repo.executeAsync(serviceJid, nodeName, task);
+	}
+
+	@Override
+	public <R> CompletableFuture<R> executeUserAsync(BareJID serviceJid, BareJID userJid,
+			RepositoryExecutor.Task<R> task) {
+		return repo.executeUserAsync(serviceJid, userJid, task);
+	}
+
 	@Override
 	public void forgetConfiguration(BareJID serviceJid, String nodeName) throws RepositoryException {
 		repo.forgetConfiguration(serviceJid, nodeName);
 	}
 
+	@Override
+	public Map<String, IItems.Item> getLastItems(BareJID serviceJid, Collection<String> nodesNames)
+			throws RepositoryException {
+		return repo.getLastItems(serviceJid, nodesNames);
+	}
+
 	@Override
 	public String[] getBuddyGroups(BareJID owner, BareJID buddy) throws RepositoryException {
 		return repo.getBuddyGroups(owner, buddy);
@@ -94,6 +115,11 @@ public class PubSubRepositoryWrapper implements IPubSubRepository, StatisticHold
 		return repo.getUserRoster(owner);
 	}
 
+	@Override
+	public Map<String,UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID userJid) throws RepositoryException {
+		return repo.getUserAffiliations(serviceJid, userJid);
+	}
+
 	@Override
 	public Map<String,UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID userJid) throws RepositoryException {
 		return repo.getUserSubscriptions(serviceJid, userJid);
@@ -0,0 +1,215 @@
+/*
+ * RepositoryExecutor.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository;
+
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded executor for tasks accessing the database.
+ *
+ * Tasks are executed by a fixed number of lanes, each processed by a single
+ * thread. Tasks with the same key (ie. the same node) are always executed by
+ * the same lane, so they are executed in the order in which they were
+ * submitted. If queue of a lane is full, then task is rejected, so
+ * submitting thread (ie. packet processing thread) is never blocked. Tasks
+ * submitted by a thread of this executor are executed immediately by this
+ * thread.
+ */
+public class RepositoryExecutor {
+
+	/**
+	 * Task executed by {@link RepositoryExecutor}.
+	 */
+	@FunctionalInterface
+	public interface Task<R> {
+
+		R call() throws Exception;
+
+	}
+
+	private static final Logger log = Logger.getLogger(RepositoryExecutor.class.getName());
+
+	/**
+	 * Executes task immediately in the calling thread.
+	 *
+	 * @return future completed with result of the task or exceptionally with
+	 *         exception thrown by the task.
+	 */
+	public static <R> CompletableFuture<R> executeNow(Task<R> task) {
+		CompletableFuture<R> future = new CompletableFuture<R>();
+		try {
+			future.complete(task.call());
+		} catch (Exception ex) {
+			future.completeExceptionally(ex);
+		}
+		return future;
+	}
+
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final Lane[] lanes;
+
+	/**
+	 * Creates executor and starts its threads.
+	 *
+	 * @param threads
+	 *            number of lanes (threads) executing tasks
+	 * @param queueSize
+	 *            maximal number of tasks waiting for execution, shared
+	 *            equally between lanes
+	 */
+	public RepositoryExecutor(int threads, int queueSize) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be greater than 0");
+		}
+		this.lanes = new Lane[threads];
+		int laneQueueSize = Math.max(1, queueSize / threads);
+		for (int i = 0; i < threads; i++) {
+			lanes[i] = new Lane("pubsub-repository-" + i, laneQueueSize);
+			lanes[i].start();
+		}
+	}
+
+	/**
+	 * Submits task for execution.
+	 *
+	 * @param key
+	 *            object identifying data accessed by the task (ie. node),
+	 *            tasks with equal keys are executed in order of submission.
+	 * @param task
+	 *            task to execute.
+	 *
+	 * @return future completed with result of the task, exceptionally with
+	 *         exception thrown by the task or with
+	 *         {@link RejectedExecutionException} if queue of the lane is
+	 *         full.
+	 */
+	public <R> CompletableFuture<R> submit(Object key, Task<R> task) {
+		Thread current = Thread.currentThread();
+		if (current instanceof Lane && ((Lane) current).getExecutor() == this) {
+			return executeNow(task);
+		}
+
+		CompletableFuture<R> future = new CompletableFuture<R>();
+		Runnable runnable = () -> {
+			try {
+				future.complete(task.call());
+			} catch (Exception ex) {
+				future.completeExceptionally(ex);
+			}
+		};
+
+		Lane lane = lanes[(key == null ? 0 : key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+		if (lane.stopped) {
+			// executor was stopped, so we are executing task by ourselves
+			runnable.run();
+			return future;
+		}
+		if (!lane.queue.offer(runnable)) {
+			rejected.incrementAndGet();
+			future.completeExceptionally(new RejectedExecutionException("Queue of " + lane.getName() + " is full"));
+			return future;
+		}
+		if (lane.stopped && lane.queue.remove(runnable)) {
+			// executor was stopped in the meantime and task will not be
+			// executed by the lane
+			runnable.run();
+		}
+		return future;
+	}
+
+	/**
+	 * Stops threads of executor after all submitted tasks are executed.
+	 */
+	public void shutdown() {
+		for (Lane lane : lanes) {
+			lane.stopped = true;
+		}
+		for (Lane lane : lanes) {
+			try {
+				lane.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	public void getStatistics(String name, StatisticsList stats) {
+		int waiting = 0;
+		for (Lane lane : lanes) {
+			waiting += lane.queue.size();
+		}
+		stats.add(name, "Repository tasks waiting", waiting, Level.FINE);
+		stats.add(name, "Repository tasks executed", executed.get(), Level.FINE);
+		stats.add(name, "Repository tasks rejected", rejected.get(), Level.FINE);
+	}
+
+	private class Lane extends Thread {
+
+		private final BlockingQueue<Runnable> queue;
+		private volatile boolean stopped = false;
+
+		private Lane(String name, int queueSize) {
+			super(name);
+			this.queue = new ArrayBlockingQueue<Runnable>(queueSize);
+			setDaemon(true);
+		}
+
+		private RepositoryExecutor getExecutor() {
+			return RepositoryExecutor.this;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Runnable task;
+				try {
+					task = queue.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					continue;
+				}
+				if (task == null) {
+					if (stopped) {
+						return;
+					}
+					continue;
+				}
+				try {
+					task.run();
+				} catch (Throwable ex) {
+					log.log(Level.WARNING, "Exception during execution of repository task", ex);
+				}
+				executed.incrementAndGet();
+			}
+		}
+	}
+}
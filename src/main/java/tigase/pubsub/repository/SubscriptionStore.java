@@ -0,0 +1,463 @@
+/*
+ * SubscriptionStore.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository;
+
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.BareJID;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Compact store of subscriptions of a single node.
+ *
+ * Instead of a map entry and {@link UsersSubscription} object for every
+ * subscriber, subscriptions are kept in an open addressing hash table made of
+ * parallel arrays: reference to the JID, state of subscription stored as a
+ * byte and subscription id packed into two longs. Ids of up to 24 characters
+ * from range <code>[0-9a-z]</code> (as generated by
+ * {@link tigase.pubsub.UIDGenerator}) are packed, other ids are kept as
+ * strings in a separate map. {@link UsersSubscription} objects are created
+ * only when they are requested.
+ *
+ * Modifications are synchronized, reads do not lock. Slots of removed
+ * subscriptions are not reused until the table is rebuilt, so a reader never
+ * sees data of one subscriber under JID of another one. Iteration is weakly
+ * consistent.
+ */
+public class SubscriptionStore {
+
+	private static final int CHARS_PER_LONG = 12;
+
+	private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+	private static final int MAX_PACKED_LENGTH = 2 * CHARS_PER_LONG;
+
+	private static final int MIN_CAPACITY = 8;
+
+	private static final Object REMOVED = new Object();
+
+	private static final Subscription[] SUBSCRIPTIONS = Subscription.values();
+
+	private volatile int size = 0;
+
+	private volatile Table table = new Table(MIN_CAPACITY);
+
+	// subscription ids which could not be packed
+	private volatile Map<BareJID,String> unpackedSubids;
+
+	private static int packedLength(String subid) {
+		if (subid == null || subid.isEmpty() || subid.length() > MAX_PACKED_LENGTH) {
+			return 0;
+		}
+		for (int i = 0; i < subid.length(); i++) {
+			char c = subid.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'z')) {
+				return 0;
+			}
+		}
+		return subid.length();
+	}
+
+	private static long pack(String subid, int from, int to) {
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			value = value * 36 + Character.digit(subid.charAt(i), 36);
+		}
+		return value;
+	}
+
+	private static void unpack(char[] buf, int from, int to, long value) {
+		for (int i = to - 1; i >= from; i--) {
+			buf[i] = DIGITS[(int) (value % 36)];
+			value /= 36;
+		}
+	}
+
+	private static int spread(int h) {
+		h ^= (h >>> 16);
+		return h * 0x9E3779B9;
+	}
+
+	/**
+	 * Returns map view of this store. View is not modifiable and every call
+	 * of <code>get()</code> creates new {@link UsersSubscription}.
+	 */
+	public Map<BareJID,UsersSubscription> asMap() {
+		return new MapView();
+	}
+
+	public synchronized void clear() {
+		table = new Table(MIN_CAPACITY);
+		unpackedSubids = null;
+		size = 0;
+	}
+
+	public boolean contains(BareJID jid) {
+		Table t = table;
+		return t.find(jid) >= 0;
+	}
+
+	/**
+	 * Calls action for every subscription without creating any objects.
+	 */
+	public void forEach(BiConsumer<BareJID,Subscription> action) {
+		Table t = table;
+		for (int i = 0; i < t.jids.length(); i++) {
+			Object o = t.jids.get(i);
+			if (o instanceof BareJID) {
+				action.accept((BareJID) o, SUBSCRIPTIONS[t.states[i]]);
+			}
+		}
+	}
+
+	public UsersSubscription get(BareJID jid) {
+		Table t = table;
+		int i = t.find(jid);
+		return i < 0 ? null : t.create(i);
+	}
+
+	public Subscription getSubscription(BareJID jid) {
+		Table t = table;
+		int i = t.find(jid);
+		return i < 0 ? null : SUBSCRIPTIONS[t.states[i]];
+	}
+
+	public void put(UsersSubscription subscription) {
+		put(subscription.getJid(), subscription.getSubid(), subscription.getSubscription());
+	}
+
+	public synchronized void put(BareJID jid, String subid, Subscription subscription) {
+		Table t = table;
+		int i = t.find(jid);
+		if (i >= 0) {
+			if (equals(subid, t.getSubid(i))) {
+				t.states[i] = (byte) subscription.ordinal();
+				// publishes new state to readers
+				t.jids.set(i, jid);
+				return;
+			}
+			// slot is not modified in place, so readers never see partially changed id
+			t.jids.set(i, REMOVED);
+			--size;
+		}
+		if (t.used + 1 > t.jids.length() * 3 / 4) {
+			t = rebuild(size + 1);
+		}
+		int packedLength = packedLength(subid);
+		Map<BareJID,String> unpacked = unpackedSubids;
+		if (packedLength == 0 && subid != null) {
+			if (unpacked == null) {
+				unpacked = new ConcurrentHashMap<>();
+				unpackedSubids = unpacked;
+			}
+			unpacked.put(jid, subid);
+		} else if (unpacked != null) {
+			unpacked.remove(jid);
+		}
+		t.insert(jid, subid, packedLength, subscription);
+		++size;
+	}
+
+	public synchronized void putAll(SubscriptionStore other) {
+		Table t = other.table;
+		for (int i = 0; i < t.jids.length(); i++) {
+			Object o = t.jids.get(i);
+			if (o instanceof BareJID) {
+				put((BareJID) o, t.getSubid(i), SUBSCRIPTIONS[t.states[i]]);
+			}
+		}
+	}
+
+	public synchronized void remove(BareJID jid) {
+		Table t = table;
+		int i = t.find(jid);
+		if (i >= 0) {
+			t.jids.set(i, REMOVED);
+			--size;
+			Map<BareJID,String> unpacked = unpackedSubids;
+			if (unpacked != null) {
+				unpacked.remove(jid);
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public UsersSubscription[] toArray() {
+		Table t = table;
+		UsersSubscription[] result = new UsersSubscription[size()];
+		int count = 0;
+		for (int i = 0; i < t.jids.length(); i++) {
+			if (t.jids.get(i) instanceof BareJID) {
+				if (count == result.length) {
+					result = Arrays.copyOf(result, count * 2 + 1);
+				}
+				result[count++] = t.create(i);
+			}
+		}
+		return count == result.length ? result : Arrays.copyOf(result, count);
+	}
+
+	@Override
+	public String toString() {
+		return asMap().toString();
+	}
+
+	private static boolean equals(String s1, String s2) {
+		return s1 == null ? s2 == null : s1.equals(s2);
+	}
+
+	private Table rebuild(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		Table old = table;
+		Table t = new Table(capacity);
+		for (int i = 0; i < old.jids.length(); i++) {
+			Object o = old.jids.get(i);
+			if (o instanceof BareJID) {
+				t.copy(old, i);
+			}
+		}
+		table = t;
+		return t;
+	}
+
+	private final class Table {
+
+		private final AtomicReferenceArray<Object> jids;
+		private final int mask;
+		private final long[] subidHigh;
+		private final byte[] subidLengths;
+		private final long[] subidLow;
+		private final byte[] states;
+		private int used = 0;
+
+		private Table(int capacity) {
+			jids = new AtomicReferenceArray<>(capacity);
+			mask = capacity - 1;
+			states = new byte[capacity];
+			subidLengths = new byte[capacity];
+			subidHigh = new long[capacity];
+			subidLow = new long[capacity];
+		}
+
+		private void copy(Table from, int i) {
+			BareJID jid = (BareJID) from.jids.get(i);
+			int slot = freeSlot(jid);
+			states[slot] = from.states[i];
+			subidLengths[slot] = from.subidLengths[i];
+			subidHigh[slot] = from.subidHigh[i];
+			subidLow[slot] = from.subidLow[i];
+			jids.set(slot, jid);
+			++used;
+		}
+
+		private UsersSubscription create(int i) {
+			Object jid = jids.get(i);
+			return new UsersSubscription((BareJID) jid, getSubid(i), SUBSCRIPTIONS[states[i]]);
+		}
+
+		private int find(BareJID jid) {
+			int i = spread(jid.hashCode()) & mask;
+			Object o;
+			while ((o = jids.get(i)) != null) {
+				if (o == jid || (o != REMOVED && o.equals(jid))) {
+					return i;
+				}
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		private int freeSlot(BareJID jid) {
+			int i = spread(jid.hashCode()) & mask;
+			while (jids.get(i) != null) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		private String getSubid(int i) {
+			int length = subidLengths[i];
+			if (length == 0) {
+				Map<BareJID,String> unpacked = unpackedSubids;
+				Object jid = jids.get(i);
+				return (unpacked == null || !(jid instanceof BareJID)) ? null : unpacked.get(jid);
+			}
+			char[] buf = new char[length];
+			int highLength = Math.min(length, CHARS_PER_LONG);
+			unpack(buf, 0, highLength, subidHigh[i]);
+			unpack(buf, highLength, length, subidLow[i]);
+			return new String(buf);
+		}
+
+		private void insert(BareJID jid, String subid, int packedLength, Subscription subscription) {
+			int slot = freeSlot(jid);
+			int highLength = Math.min(packedLength, CHARS_PER_LONG);
+			states[slot] = (byte) subscription.ordinal();
+			subidLengths[slot] = (byte) packedLength;
+			subidHigh[slot] = packedLength == 0 ? 0 : pack(subid, 0, highLength);
+			subidLow[slot] = packedLength == 0 ? 0 : pack(subid, highLength, packedLength);
+			// setting JID publishes slot to readers
+			jids.set(slot, jid);
+			++used;
+		}
+	}
+
+	private final class MapView extends AbstractMap<BareJID,UsersSubscription> {
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof BareJID && contains((BareJID) key);
+		}
+
+		@Override
+		public Set<Entry<BareJID,UsersSubscription>> entrySet() {
+			return new AbstractSet<Entry<BareJID,UsersSubscription>>() {
+				@Override
+				public Iterator<Entry<BareJID,UsersSubscription>> iterator() {
+					return new EntryIterator(table);
+				}
+
+				@Override
+				public int size() {
+					return SubscriptionStore.this.size();
+				}
+			};
+		}
+
+		@Override
+		public UsersSubscription get(Object key) {
+			return key instanceof BareJID ? SubscriptionStore.this.get((BareJID) key) : null;
+		}
+
+		@Override
+		public Set<BareJID> keySet() {
+			return new AbstractSet<BareJID>() {
+				@Override
+				public boolean contains(Object o) {
+					return containsKey(o);
+				}
+
+				@Override
+				public Iterator<BareJID> iterator() {
+					Iterator<Entry<BareJID,UsersSubscription>> it = new EntryIterator(table);
+					return new Iterator<BareJID>() {
+						@Override
+						public boolean hasNext() {
+							return it.hasNext();
+						}
+
+						@Override
+						public BareJID next() {
+							return it.next().getKey();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return SubscriptionStore.this.size();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return SubscriptionStore.this.size();
+		}
+	}
+
+	private final class EntryIterator implements Iterator<Map.Entry<BareJID,UsersSubscription>> {
+
+		private final Table t;
+		private int next = -1;
+		private BareJID nextJid;
+
+		private EntryIterator(Table t) {
+			this.t = t;
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextJid != null;
+		}
+
+		@Override
+		public Map.Entry<BareJID,UsersSubscription> next() {
+			if (nextJid == null) {
+				throw new NoSuchElementException();
+			}
+			final int i = next;
+			final BareJID jid = nextJid;
+			advance();
+			// value is created only if it is requested
+			return new Map.Entry<BareJID,UsersSubscription>() {
+				@Override
+				public BareJID getKey() {
+					return jid;
+				}
+
+				@Override
+				public UsersSubscription getValue() {
+					return new UsersSubscription(jid, t.getSubid(i), SUBSCRIPTIONS[t.states[i]]);
+				}
+
+				@Override
+				public UsersSubscription setValue(UsersSubscription value) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public String toString() {
+					return jid + "=" + getValue();
+				}
+			};
+		}
+
+		private void advance() {
+			nextJid = null;
+			while (++next < t.jids.length()) {
+				Object o = t.jids.get(next);
+				if (o instanceof BareJID) {
+					nextJid = (BareJID) o;
+					return;
+				}
+			}
+		}
+	}
+}
@@ -25,7 +25,6 @@ import tigase.pubsub.*;
 import tigase.pubsub.repository.*;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
-import tigase.stats.Counter;
 import tigase.stats.StatisticHolder;
 import tigase.stats.StatisticHolderImpl;
 import tigase.stats.StatisticsList;
@@ -33,7 +32,12 @@ import tigase.xmpp.BareJID;
 import tigase.xmpp.impl.roster.RosterElement;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,16 +50,33 @@ import java.util.logging.Logger;
  */
 public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHolder {
 
+	/** Default maximal number of lists of subscriptions or affiliations of users kept in memory */
+	public static final int DEF_USER_INDEX_SIZE = 10000;
+
 	private class NodeSaver {
 
 		public void save(Node<T> node) throws RepositoryException {
-			save(node, 0);
+			save(node, null, null);
+		}
+
+		/**
+		 * Saves changes of node configuration together with changes from
+		 * passed change sets, which may be <code>null</code>, and merges them
+		 * into node.
+		 */
+		public void save(Node<T> node, NodeAffiliations affiliations, NodeSubscriptions subscriptions)
+				throws RepositoryException {
+			save(node, affiliations, subscriptions, 0);
+		}
+
+		public void stop() {
 		}
 
-		public void save(Node<T> node, int iteration) throws RepositoryException {
+		public void save(Node<T> node, NodeAffiliations affiliations, NodeSubscriptions subscriptions, int iteration)
+				throws RepositoryException {
 			long start = System.currentTimeMillis();
 
-			++repo_writes;
+			repo_writes.incrementAndGet();
 
 			// Prevent node modifications while it is being written to DB
 			// From 3.0.0 this should not be needed as we keep changes to the node per thread
@@ -66,7 +87,8 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 					}
 
 					if ( log.isLoggable( Level.FINEST ) ){
-						log.log( Level.FINEST, "Saving node: {0}", new Object[] { node } );
+						log.log( Level.FINEST, "Saving node: {0}, affiliations: {1}, subscriptions: {2}",
+								new Object[] { node, affiliations, subscriptions } );
 					}
 
 					if (node.configNeedsWriting()) {
@@ -84,36 +106,23 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 						node.configSaved();
 					}
 
-					if (node.affiliationsNeedsWriting()) {
-						Map<BareJID,UsersAffiliation> changedAffiliations = node.getNodeAffiliations().getChanged();
-						for (Map.Entry<BareJID,UsersAffiliation> entry : changedAffiliations.entrySet()) {
-							dao.updateNodeAffiliation(node.getServiceJid(), node.getNodeId(), node.getName(), entry.getValue());
+					boolean affiliationsChanged = affiliations != null && affiliations.isChanged();
+					boolean subscriptionsChanged = subscriptions != null && subscriptions.isChanged();
+					if (affiliationsChanged || subscriptionsChanged) {
+						Collection<UsersAffiliation> changedAffiliations = affiliationsChanged
+								? affiliations.getChanged().values()
+								: Collections.<UsersAffiliation>emptyList();
+						Collection<UsersSubscription> changedSubscriptions = subscriptionsChanged
+								? subscriptions.getChanged().values()
+								: Collections.<UsersSubscription>emptyList();
+						dao.updateNodeAffiliationsAndSubscriptions(node.getServiceJid(), node.getNodeId(), node.getName(),
+								changedAffiliations, changedSubscriptions);
+						if (affiliationsChanged) {
+							node.affiliationsMerge(affiliations);
 						}
-						node.affiliationsSaved();
-					}
-
-					if (node.subscriptionsNeedsWriting()) {
-//						for (Integer deletedIndex : fm.getRemovedFragmentIndexes()) {
-//							dao.removeSubscriptions(node.getServiceJid(), node.getName(), deletedIndex);
-//						}
-//
-//						for (Integer changedIndex : fm.getChangedFragmentIndexes()) {
-//							Map<BareJID, UsersSubscription> ft = fm.getFragment(changedIndex);
-//
-//							dao.updateSubscriptions(node.getServiceJid(), node.getName(), changedIndex,
-//									node.getNodeSubscriptions().serialize(ft));
-//						}
-						Map<BareJID,UsersSubscription> changedSubscriptions = node.getNodeSubscriptions().getChanged();
-						for (Map.Entry<BareJID,UsersSubscription> entry : changedSubscriptions.entrySet()) {
-							UsersSubscription subscription = entry.getValue();
-							if (subscription.getSubscription() == Subscription.none) {
-								dao.removeNodeSubscription(node.getServiceJid(), node.getNodeId(), subscription.getJid());
-							}
-							else {
-								dao.updateNodeSubscription(node.getServiceJid(), node.getNodeId(), node.getName(), subscription);
-							}
+						if (subscriptionsChanged) {
+							node.subscriptionsMerge(subscriptions);
 						}
-						node.subscriptionsSaved();
 					}
 				} catch (Exception e) {
 					log.log(Level.WARNING, "Problem saving pubsub data: ", e);
@@ -122,93 +131,437 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 					// this exception to higher layer to return proper error response
 					//
 					// should we do the same for configuration?
-					node.resetChanges();
+					resetChanges(affiliations, subscriptions);
 					throw new RepositoryException("Problem saving pubsub data", e);
 				}
 
-				// If the node still needs writing to the database put
-				// it back to the collection
-				if (node.needsWriting()) {
+				// If configuration of the node was changed in the meantime
+				// we need to write it again
+				if (node.configNeedsWriting()) {
 					if (iteration >= 10) {
 						String msg = "Was not able to save data for node " + node.getName()
 								+ " on " + iteration + " iteration"
-								+ ", config saved = " + (!node.configNeedsWriting())
-								+ ", affiliations saved = " + (!node.affiliationsNeedsWriting())
-								+ ", subscriptions saved = " + (!node.subscriptionsNeedsWriting());
+								+ ", config saved = " + (!node.configNeedsWriting());
 						log.log(Level.WARNING, msg);
 						throw new RepositoryException("Problem saving pubsub data");
 					}
-					save(node, iteration++);
+					save(node, null, null, iteration + 1);
 				}
 //			}
 
+			nodes.nodeWritten();
+
 			long end = System.currentTimeMillis();
 
-			writingTime += (end - start);
+			writingTime.addAndGet(end - start);
 		}
 	}
 
-	private class SizedCache extends LinkedHashMap<String, Node> implements StatisticHolder {
-		private static final long serialVersionUID = 1L;
+	/**
+	 * Changes of a node captured on the processing thread, waiting to be
+	 * written to the database by {@link WriteBehindNodeSaver}.
+	 */
+	private class PendingChanges {
+
+		private final Node<T> node;
+		private String config;
+		private T collectionId;
+		private int failedAttempts = 0;
+		private long firstFailureTime = 0;
+		private final Map<BareJID,UsersAffiliation> affiliations = new LinkedHashMap<>();
+		private final Map<BareJID,UsersSubscription> subscriptions = new LinkedHashMap<>();
+
+		private PendingChanges(Node<T> node) {
+			this.node = node;
+		}
 
-		private int maxCacheSize = 1000;
+		/**
+		 * Copies changes from change sets and merges them into node, so they
+		 * are visible for other threads before they are written to the
+		 * database.
+		 */
+		private void capture(NodeAffiliations nodeAffiliations, NodeSubscriptions nodeSubscriptions)
+				throws RepositoryException {
+			if (node.configNeedsWriting()) {
+				String collection = node.getNodeConfig().getCollection();
+				collectionId = null;
+				if (collection != null && !collection.equals("")) {
+					collectionId = dao.getNodeId(node.getServiceJid(), collection);
+					if (collectionId == null) {
+						throw new RepositoryException("Parent collection does not exists yet!");
+					}
+				}
+				config = node.getNodeConfig().getFormElement().toString();
+				node.configSaved();
+			}
+			if (nodeAffiliations != null && nodeAffiliations.isChanged()) {
+				for (UsersAffiliation a : nodeAffiliations.getChanged().values()) {
+					affiliations.put(a.getJid(), new UsersAffiliation(a.getJid(), a.getAffiliation()));
+				}
+				node.affiliationsMerge(nodeAffiliations);
+			}
+			if (nodeSubscriptions != null && nodeSubscriptions.isChanged()) {
+				for (UsersSubscription s : nodeSubscriptions.getChanged().values()) {
+					subscriptions.put(s.getJid(), new UsersSubscription(s.getJid(), s.getSubid(), s.getSubscription()));
+				}
+				node.subscriptionsMerge(nodeSubscriptions);
+			}
+		}
 
-		private Counter requestsCounter = new Counter("cache/requests", Level.FINEST);
-		private Counter hitsCounter = new Counter("cache/hits", Level.FINEST);
+		private int size() {
+			return (config == null ? 0 : 1) + affiliations.size() + subscriptions.size();
+		}
 
-		public SizedCache(int maxSize) {
-			super(maxSize, 0.1f, true);
-			maxCacheSize = maxSize;
+		/**
+		 * Merges newer changes into this one, so only the latest change for
+		 * each JID is written to the database.
+		 */
+		private void merge(PendingChanges newer) {
+			if (newer.config != null) {
+				config = newer.config;
+				collectionId = newer.collectionId;
+			}
+			affiliations.putAll(newer.affiliations);
+			subscriptions.putAll(newer.subscriptions);
 		}
 
-		@Override
-		public Node get(Object key) {
-			Node val = super.get(key);
-			requestsCounter.inc();
-			if (val != null)
-				hitsCounter.inc();
-			return val;
+		private void write() throws RepositoryException {
+			if (node.isDeleted()) {
+				return;
+			}
+			if (config != null) {
+				dao.updateNodeConfig(node.getServiceJid(), node.getNodeId(), config, collectionId);
+			}
+			if (!affiliations.isEmpty() || !subscriptions.isEmpty()) {
+				dao.updateNodeAffiliationsAndSubscriptions(node.getServiceJid(), node.getNodeId(), node.getName(),
+						affiliations.values(), subscriptions.values());
+			}
 		}
+	}
 
-		@Override
-		public void getStatistics(String compName, StatisticsList list) {
-			requestsCounter.getStatistics(compName, list);
-			hitsCounter.getStatistics(compName, list);
-			list.add(compName, "cache/hit-miss ratio per minute", (requestsCounter.getPerMinute() == 0) ? 0 : ((float) hitsCounter.getPerMinute())/requestsCounter.getPerMinute(), Level.FINE);
-			list.add(compName, "cache/hit-miss ratio per second", (requestsCounter.getPerSecond() == 0) ? 0 : ((float) hitsCounter.getPerSecond())/requestsCounter.getPerSecond(), Level.FINE);
+	/**
+	 * Node saver which does not write changes on the processing thread but
+	 * queues them and writes them from a separate thread when number of queued
+	 * changes reaches batch size or when oldest change waits longer than flush
+	 * delay. Repeated changes for the same JID in the same node are coalesced.
+	 * If queue of nodes waiting for write is full, caller is blocked for up to
+	 * flush delay and after that changes are written by the calling thread.
+	 * Changes which failed to be written are queued again and node is kept in
+	 * the cache until they are written. After a failed write next writes are
+	 * delayed, with delay doubled after each failure. Changes which could not
+	 * be written for {@link #MAX_RETRY_TIME} are dropped and node is removed
+	 * from the cache, so it will be loaded again with state stored in the
+	 * database.
+	 */
+	private class WriteBehindNodeSaver extends NodeSaver implements Runnable {
+
+		private static final long RETRY_DELAY = 500;
+		private static final long MAX_RETRY_DELAY = 30 * 1000;
+		private static final long MAX_RETRY_TIME = 5 * 60 * 1000;
+		private static final long STOP_TIMEOUT = 10 * 1000;
+
+		private final int batchSize;
+		private final long flushDelay;
+		private final int queueSize;
+
+		// changes are written in order in which nodes were changed
+		private final LinkedHashMap<Node<T>,PendingChanges> pending = new LinkedHashMap<>();
+		private int pendingChangesCount = 0;
+		private long oldestChangeTime = 0;
+		private boolean stopped = false;
+		private boolean terminated = false;
+		// backoff after failed writes
+		private long retryDelay = 0;
+		private long retryNotBefore = 0;
+
+		// ensures that changes are written in order if caller had to write them
+		private final ReentrantLock flushLock = new ReentrantLock();
+		private final Thread thread;
+
+		private WriteBehindNodeSaver(int queueSize, int batchSize, long flushDelay) {
+			this.queueSize = queueSize;
+			this.batchSize = batchSize;
+			this.flushDelay = flushDelay;
+			this.thread = new Thread(this, "pubsub-write-behind");
+			this.thread.setDaemon(true);
+			this.thread.start();
 		}
 
 		@Override
-		protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
-			return (size() > maxCacheSize) && !eldest.getValue().needsWriting();
+		public void save(Node<T> node, NodeAffiliations affiliations, NodeSubscriptions subscriptions)
+				throws RepositoryException {
+			if (node.isDeleted()) {
+				return;
+			}
+
+			PendingChanges changes = new PendingChanges(node);
+			try {
+				changes.capture(affiliations, subscriptions);
+			} catch (RepositoryException e) {
+				resetChanges(affiliations, subscriptions);
+				throw e;
+			}
+			if (changes.size() == 0) {
+				return;
+			}
+
+			boolean queued = false;
+			synchronized (pending) {
+				PendingChanges existing = pending.get(node);
+				if (existing == null) {
+					long waitUntil = System.currentTimeMillis() + flushDelay;
+					long remaining;
+					while (!stopped && pending.size() >= queueSize
+							&& (remaining = waitUntil - System.currentTimeMillis()) > 0) {
+						writeBehindBlocked.incrementAndGet();
+						pending.notifyAll();
+						try {
+							pending.wait(remaining);
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+					existing = pending.get(node);
+				}
+				if (existing != null) {
+					existing.merge(changes);
+					queued = true;
+				} else if (!stopped && pending.size() < queueSize) {
+					if (pending.isEmpty()) {
+						oldestChangeTime = System.currentTimeMillis();
+						// writer thread waits for first change to start
+						// counting flush delay
+						pending.notifyAll();
+					}
+					node.setWritePending(true);
+					pending.put(node, changes);
+					queued = true;
+				}
+				if (queued) {
+					pendingChangesCount += changes.size();
+					if (pendingChangesCount >= batchSize) {
+						pending.notifyAll();
+					}
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "Node {0} added to write-behind queue, queued nodes: {1}",
+								new Object[]{node.getName(), pending.size()});
+					}
+					return;
+				}
+			}
+
+			// queue is still full, so we need to write changes on our own
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Write-behind queue is full, saving node {0} by processing thread", node.getName());
+			}
+			flushLock.lock();
+			try {
+				List<PendingChanges> failed = write(Collections.singletonList(changes));
+				if (!failed.isEmpty()) {
+					synchronized (pending) {
+						requeue(changes);
+					}
+				}
+			} finally {
+				flushLock.unlock();
+			}
 		}
 
 		@Override
-		public void statisticExecutedIn(long executionTime) {
-			throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+		public void run() {
+			while (true) {
+				synchronized (pending) {
+					try {
+						while (!stopped) {
+							if (pending.isEmpty()) {
+								pending.wait();
+								continue;
+							}
+							long now = System.currentTimeMillis();
+							long remaining = pendingChangesCount >= batchSize
+									? 0
+									: flushDelay - (now - oldestChangeTime);
+							// after failed write we wait even if batch is full
+							remaining = Math.max(remaining, retryNotBefore - now);
+							if (remaining <= 0) {
+								break;
+							}
+							pending.wait(remaining);
+						}
+					} catch (InterruptedException ex) {
+						// we will flush pending changes and check if we should stop
+					}
+					if (stopped) {
+						// changes left are written by stop()
+						return;
+					}
+				}
+				flush();
+			}
 		}
 
 		@Override
-		public void everyHour() {
-			requestsCounter.everyHour();
-			hitsCounter.everyHour();
+		public void stop() {
+			synchronized (pending) {
+				stopped = true;
+				pending.notifyAll();
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			// write anything left, retrying failed writes for a limited time
+			final long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+			while (true) {
+				flush();
+				long wait;
+				synchronized (pending) {
+					long now = System.currentTimeMillis();
+					if (pending.isEmpty() || now >= deadline) {
+						List<PendingChanges> left = new ArrayList<>(pending.values());
+						pending.clear();
+						pendingChangesCount = 0;
+						terminated = true;
+						for (PendingChanges changes : left) {
+							drop(changes, "on shutdown");
+						}
+						return;
+					}
+					wait = Math.min(retryNotBefore, deadline) - now;
+				}
+				if (wait > 0) {
+					try {
+						Thread.sleep(wait);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
 		}
 
-		@Override
-		public void everyMinute() {
-			requestsCounter.everyMinute();
-			hitsCounter.everyMinute();
+		private int getQueueSize() {
+			synchronized (pending) {
+				return pending.size();
+			}
 		}
 
-		@Override
-		public void everySecond() {
-			requestsCounter.everySecond();
-			hitsCounter.everySecond();
+		private void flush() {
+			flushLock.lock();
+			try {
+				List<PendingChanges> batch;
+				synchronized (pending) {
+					batch = new ArrayList<>(pending.values());
+					pending.clear();
+					pendingChangesCount = 0;
+					pending.notifyAll();
+				}
+				if (batch.isEmpty()) {
+					return;
+				}
+				List<PendingChanges> failed = write(batch);
+				synchronized (pending) {
+					if (failed.isEmpty()) {
+						retryDelay = 0;
+						retryNotBefore = 0;
+					} else {
+						retryDelay = retryDelay == 0 ? RETRY_DELAY : Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+						retryNotBefore = System.currentTimeMillis() + retryDelay;
+					}
+					for (PendingChanges changes : failed) {
+						requeue(changes);
+					}
+					for (PendingChanges changes : batch) {
+						if (!pending.containsKey(changes.node)) {
+							changes.node.setWritePending(false);
+							nodes.nodeWritten();
+						}
+					}
+				}
+			} finally {
+				flushLock.unlock();
+			}
 		}
 
-		@Override
-		public void setStatisticsPrefix(String prefix) {
-			throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+		/**
+		 * Queues changes which failed to be written again, before any newer
+		 * changes of the same node. Needs to be called while holding lock of
+		 * pending changes.
+		 */
+		private void requeue(PendingChanges changes) {
+			final long now = System.currentTimeMillis();
+			changes.failedAttempts++;
+			if (changes.firstFailureTime == 0) {
+				changes.firstFailureTime = now;
+			}
+			if (terminated) {
+				drop(changes, "after shutdown");
+				return;
+			}
+			if (now - changes.firstFailureTime >= MAX_RETRY_TIME) {
+				drop(changes, "after " + (now - changes.firstFailureTime) + "ms");
+				return;
+			}
+			PendingChanges newer = pending.remove(changes.node);
+			if (newer != null) {
+				pendingChangesCount -= newer.size();
+				changes.merge(newer);
+			}
+			if (pending.isEmpty()) {
+				oldestChangeTime = System.currentTimeMillis();
+				pending.notifyAll();
+			}
+			changes.node.setWritePending(true);
+			pending.put(changes.node, changes);
+			pendingChangesCount += changes.size();
+		}
+
+		/**
+		 * Drops changes which could not be written. Needs to be called while
+		 * holding lock of pending changes.
+		 */
+		private void drop(PendingChanges changes, String reason) {
+			writeBehindDropped.incrementAndGet();
+			log.log(Level.SEVERE, "Dropping changes of node " + changes.node.getName() + " of "
+					+ changes.node.getServiceJid() + " " + reason + ", failed attempts: " + changes.failedAttempts
+					+ ", affiliations: " + changes.affiliations.values() + ", subscriptions: "
+					+ changes.subscriptions.values() + ", config changed: " + (changes.config != null));
+			if (!pending.containsKey(changes.node)) {
+				changes.node.setWritePending(false);
+			}
+			// cached state of node contains changes which are not stored
+			nodes.remove(createKey(changes.node.getServiceJid(), changes.node.getName()));
+		}
+
+		/**
+		 * Writes changes to the database.
+		 *
+		 * @return changes which failed to be written
+		 */
+		private List<PendingChanges> write(List<PendingChanges> batch) {
+			long start = System.currentTimeMillis();
+			List<PendingChanges> failed = Collections.emptyList();
+			for (PendingChanges changes : batch) {
+				repo_writes.incrementAndGet();
+				try {
+					changes.write();
+				} catch (Exception e) {
+					writeBehindFailures.incrementAndGet();
+					log.log(Level.WARNING, "Problem saving pubsub data of node " + changes.node.getName()
+							+ ", attempt " + (changes.failedAttempts + 1) + ": ", e);
+					if (failed.isEmpty()) {
+						failed = new ArrayList<>();
+					}
+					failed.add(changes);
+				}
+			}
+			writingTime.addAndGet(System.currentTimeMillis() - start);
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Written changes of {0} nodes in {1}ms",
+						new Object[]{batch.size(), System.currentTimeMillis() - start});
+			}
+			return failed;
 		}
 	}
 
@@ -219,31 +572,41 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 	private final Integer maxCacheSize;
 	// private final Object mutex = new Object();
 	// this
-	private final StatisticHolder cacheStats;
-	protected final Map<String, Node> nodes;
-	private long nodes_added = 0;
+	protected final NodeCache<String> nodes;
+	private final ConcurrentHashMap<String,FutureTask<Node>> loadingNodes = new ConcurrentHashMap<>();
+	private final AtomicLong coalescedLoads = new AtomicLong();
+	private final AtomicLong nodes_added = new AtomicLong();
 
-	private long repo_writes = 0;
+	private final AtomicLong repo_writes = new AtomicLong();
 
 	private final ConcurrentHashMap<BareJID,RootCollectionSet> rootCollection = new ConcurrentHashMap<>();
-	private NodeSaver nodeSaver;
+	private final UserNodesIndex userNodesIndex = new UserNodesIndex(DEF_USER_INDEX_SIZE);
+	private volatile NodeSaver nodeSaver;
+	private volatile RepositoryExecutor executor = null;
 
 	// private final Object writeThreadMutex = new Object();
 
-	private long updateSubscriptionsCalled = 0;
+	private final AtomicLong updateSubscriptionsCalled = new AtomicLong();
+
+	private final AtomicLong writingTime = new AtomicLong();
+
+	private final AtomicLong writeBehindBlocked = new AtomicLong();
 
-	private long writingTime = 0;
+	private final AtomicLong writeBehindFailures = new AtomicLong();
+
+	private final AtomicLong writeBehindDropped = new AtomicLong();
 
 	private final Map<String,StatisticHolder> stats;
 
 	private boolean delayedRootCollectionLoading = false;
 
+	private int recentItemsCacheSize = 0;
+
 	public CachedPubSubRepository(final PubSubDAO dao, final Integer maxCacheSize) {
 		this.dao = dao;
 		this.maxCacheSize = maxCacheSize;
-		final SizedCache cache = new SizedCache(this.maxCacheSize);
-		cacheStats = cache;
-		nodes = Collections.synchronizedMap(cache);
+		nodes = new NodeCache<>(this.maxCacheSize);
+		nodes.setRemovalListener(userNodesIndex::nodeRemoved);
 
 		// Runtime.getRuntime().addShutdownHook(makeLazyWriteThread(true));
 		log.config("Initializing Cached Repository with cache size = " + ((maxCacheSize == null) ? "OFF" : maxCacheSize));
@@ -264,17 +627,16 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 			stats.add(name, "Cached nodes", this.nodes.size(), Level.FINEST);
 		}
 
+		final long updateSubscriptionsCalled = this.updateSubscriptionsCalled.get();
+		final long repo_writes = this.repo_writes.get();
+		final long nodes_added = this.nodes_added.get();
+		final long writingTime = this.writingTime.get();
+
 		long subscriptionsCount = 0;
 		long affiliationsCount = 0;
 
 		// synchronized (mutex) {
-		Map<String, Node> tmp = null;
-
-		synchronized (nodes) {
-			tmp = new LinkedHashMap<String, Node>(nodes);
-		}
-
-		for (Node nd : tmp.values()) {
+		for (Node nd : nodes.values()) {
 			subscriptionsCount += nd.getNodeSubscriptions().getSubscriptionsMap().size();
 			affiliationsCount += nd.getNodeAffiliations().getAffiliationsMap().size();
 		}
@@ -305,12 +667,28 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 			stats.add(name, "Repository writes", repo_writes, Level.FINEST);
 		}
 
+		long coalescedLoads = this.coalescedLoads.get();
+		if (coalescedLoads > 0) {
+			stats.add(name, "Coalesced node loads", coalescedLoads, Level.FINE);
+		} else {
+			stats.add(name, "Coalesced node loads", coalescedLoads, Level.FINEST);
+		}
+
 		if (nodes_added > 0) {
 			stats.add(name, "Added new nodes", nodes_added, Level.INFO);
 		} else {
 			stats.add(name, "Added new nodes", nodes_added, Level.FINEST);
 		}
 
+		if (nodeSaver instanceof WriteBehindNodeSaver) {
+			stats.add(name, "Write-behind queued nodes", ((WriteBehindNodeSaver) nodeSaver).getQueueSize(), Level.FINE);
+			final long writeBehindFailures = this.writeBehindFailures.get();
+			final long writeBehindDropped = this.writeBehindDropped.get();
+			stats.add(name, "Write-behind blocked saves", writeBehindBlocked.get(), Level.FINE);
+			stats.add(name, "Write-behind failed writes", writeBehindFailures, writeBehindFailures > 0 ? Level.INFO : Level.FINEST);
+			stats.add(name, "Write-behind dropped changes", writeBehindDropped, writeBehindDropped > 0 ? Level.INFO : Level.FINEST);
+		}
+
 		if (nodes_added > 0) {
 			stats.add(name, "Total writing time", Utils.longToTime(writingTime), Level.INFO);
 		} else {
@@ -325,11 +703,20 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 			}
 		}
 
-		cacheStats.getStatistics(name, stats);
+		nodes.getStatistics(name, stats);
+		userNodesIndex.getStatistics(name, stats);
+		RepositoryExecutor executor = this.executor;
+		if (executor != null) {
+			executor.getStatistics(name, stats);
+		}
 
 		for (StatisticHolder holder : this.stats.values()) {
 			holder.getStatistics(name, stats);
 		}
+
+		if (dao instanceof StatisticHolder) {
+			((StatisticHolder) dao).getStatistics(name, stats);
+		}
 	}
 
 	@Override
@@ -338,7 +725,7 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 	@Override
 	public void everyHour() {
-		cacheStats.everyHour();
+		nodes.everyHour();
 
 		for (StatisticHolder holder : stats.values()) {
 			holder.everyHour();
@@ -347,7 +734,7 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 	@Override
 	public void everyMinute() {
-		cacheStats.everyMinute();
+		nodes.everyMinute();
 
 		for (StatisticHolder holder : stats.values()) {
 			holder.everyMinute();
@@ -356,7 +743,7 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 	@Override
 	public void everySecond() {
-		cacheStats.everySecond();
+		nodes.everySecond();
 
 		for (StatisticHolder holder : stats.values()) {
 			holder.everySecond();
@@ -419,6 +806,7 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		NodeAffiliations nodeAffiliations = tigase.pubsub.repository.NodeAffiliations.create((Queue<UsersAffiliation>) null);
 		NodeSubscriptions nodeSubscriptions = wrapNodeSubscriptions ( tigase.pubsub.repository.NodeSubscriptions.create() );
 		Node node = new Node(nodeId, serviceJid, nodeConfig, nodeAffiliations, nodeSubscriptions, ownerJid, new Date());
+		node.setUserNodesIndex(userNodesIndex);
 
 		String key = createKey(serviceJid, nodeName);
 		this.nodes.put(key, node);
@@ -430,8 +818,8 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 							 new Object[] { serviceJid, nodeName, nodeAffiliations, nodeSubscriptions, node } );
 		}
 
-		++nodes_added;
-		writingTime += (end - start);
+		nodes_added.incrementAndGet();
+		writingTime.addAndGet(end - start);
 	}
 
 	protected NodeSubscriptions wrapNodeSubscriptions(tigase.pubsub.repository.NodeSubscriptions nodeSubscriptions) {
@@ -456,6 +844,7 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		}
 
 		this.nodes.remove(key);
+		this.userNodesIndex.nodeDeleted(serviceJid, nodeName, node);
 	}
 
 	@Override
@@ -463,16 +852,47 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 		// No resources have been allocated by the init, but some resources
 		// have been allocated in the contructor....
+		RepositoryExecutor executor = this.executor;
+		if (executor != null) {
+			// changes made by pending tasks need to be saved
+			executor.shutdown();
+		}
+		nodeSaver.stop();
+	}
+
+	@Override
+	public <R> CompletableFuture<R> executeAsync(BareJID serviceJid, String nodeName,
+			RepositoryExecutor.Task<R> task) {
+		RepositoryExecutor executor = this.executor;
+		if (executor == null) {
+			return RepositoryExecutor.executeNow(task);
+		}
+		return executor.submit(createKey(serviceJid, nodeName), task);
+	}
+
+	@Override
+	public <R> CompletableFuture<R> executeUserAsync(BareJID serviceJid, BareJID userJid,
+			RepositoryExecutor.Task<R> task) {
+		RepositoryExecutor executor = this.executor;
+		if (executor == null) {
+			return RepositoryExecutor.executeNow(task);
+		}
+		// keys of nodes always contain '/', which is not allowed in bare JID,
+		// so tasks of users never share key with tasks of nodes
+		return executor.submit(serviceJid.toString() + "|" + userJid.toString(), task);
 	}
 
 	@Override
 	public void forgetConfiguration(BareJID serviceJid, String nodeName) throws RepositoryException {
 		String key = createKey(serviceJid, nodeName);
 		this.nodes.remove(key);
+		// node was modified outside of this cache, so lists of users may
+		// not contain its subscriptions and affiliations
+		this.userNodesIndex.serviceChanged(serviceJid);
 	}
 
 	public Collection<Node> getAllNodes() {
-		return Collections.unmodifiableCollection(nodes.values());
+		return nodes.values();
 	}
 
 	@Override
@@ -495,36 +915,73 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		}
 
 		if (node == null) {
-			INodeMeta<T> nodeMeta = this.dao.getNodeMeta(serviceJid, nodeName);
-			if (nodeMeta == null) {
-				if ( log.isLoggable( Level.FINEST ) ){
-					log.log( Level.FINEST, "Getting node[1] -- nodeId null! serviceJid: {0}, nodeName: {1}, nodeId: {2}",
-							 new Object[] { serviceJid, nodeName, null } );
+			// only first thread loads node from database, other threads wait
+			// for the same task, so there is only one instance of Node per key
+			FutureTask<Node> task = new FutureTask<>(() -> {
+				Node<T> loaded = this.nodes.get(key);
+				if (loaded == null) {
+					loaded = loadNode(serviceJid, nodeName, key);
+				}
+				return loaded;
+			});
+			FutureTask<Node> existing = this.loadingNodes.putIfAbsent(key, task);
+			if (existing == null) {
+				try {
+					task.run();
+				} finally {
+					this.loadingNodes.remove(key, task);
 				}
-				return null;
+			} else {
+				coalescedLoads.incrementAndGet();
+				task = existing;
 			}
-			AbstractNodeConfig nodeConfig = nodeMeta.getNodeConfig();
 
-			if (nodeConfig == null) {
-				if ( log.isLoggable( Level.FINEST ) ){
-					log.log( Level.FINEST, "Getting node[2] -- config null! serviceJid: {0}, nodeName: {1}, cfgData: {2}",
-							 new Object[] { serviceJid, nodeName, null } );
+			try {
+				node = task.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RepositoryException("Interrupted while waiting for node " + key + " to be loaded", ex);
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof RepositoryException) {
+					throw (RepositoryException) ex.getCause();
 				}
-				return null;
+				throw new RepositoryException("Problem loading node " + key, ex.getCause());
 			}
+		}
+		return node;
+	}
 
-			NodeAffiliations nodeAffiliations = new NodeAffiliations(this.dao.getNodeAffiliations(serviceJid, nodeMeta.getNodeId()));
-			NodeSubscriptions nodeSubscriptions = wrapNodeSubscriptions(this.dao.getNodeSubscriptions(serviceJid, nodeMeta.getNodeId()));
-
-			node = new Node(nodeMeta.getNodeId(), serviceJid, nodeConfig, nodeAffiliations, nodeSubscriptions, nodeMeta.getCreator(), nodeMeta.getCreationTime());
-
-			this.nodes.put(key, node);
+	private Node loadNode(BareJID serviceJid, String nodeName, String key) throws RepositoryException {
+		INodeMeta<T> nodeMeta = this.dao.getNodeMeta(serviceJid, nodeName);
+		if (nodeMeta == null) {
+			if ( log.isLoggable( Level.FINEST ) ){
+				log.log( Level.FINEST, "Getting node[1] -- nodeId null! serviceJid: {0}, nodeName: {1}, nodeId: {2}",
+						 new Object[] { serviceJid, nodeName, null } );
+			}
+			return null;
+		}
+		AbstractNodeConfig nodeConfig = nodeMeta.getNodeConfig();
 
+		if (nodeConfig == null) {
 			if ( log.isLoggable( Level.FINEST ) ){
-				log.log( Level.FINEST, "Getting node[2], serviceJid: {0}, nodeName: {1}, key: {2}, node: {3}, nodeAffiliations {4}, nodeSubscriptions: {5}",
-						 new Object[] { serviceJid, nodeName, key, node, nodeAffiliations, nodeSubscriptions } );
+				log.log( Level.FINEST, "Getting node[2] -- config null! serviceJid: {0}, nodeName: {1}, cfgData: {2}",
+						 new Object[] { serviceJid, nodeName, null } );
 			}
+			return null;
+		}
+
+		NodeAffiliations nodeAffiliations = new NodeAffiliations(this.dao.getNodeAffiliations(serviceJid, nodeMeta.getNodeId()));
+		NodeSubscriptions nodeSubscriptions = wrapNodeSubscriptions(this.dao.getNodeSubscriptions(serviceJid, nodeMeta.getNodeId()));
 
+		Node node = new Node(nodeMeta.getNodeId(), serviceJid, nodeConfig, nodeAffiliations, nodeSubscriptions, nodeMeta.getCreator(), nodeMeta.getCreationTime());
+		node.setUserNodesIndex(userNodesIndex);
+
+		this.userNodesIndex.nodeCached(node);
+		this.nodes.put(key, node);
+
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "Getting node[2], serviceJid: {0}, nodeName: {1}, key: {2}, node: {3}, nodeAffiliations {4}, nodeSubscriptions: {5}",
+					 new Object[] { serviceJid, nodeName, key, node, nodeAffiliations, nodeSubscriptions } );
 		}
 		return node;
 	}
@@ -533,7 +990,8 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 	public IAffiliations getNodeAffiliations(BareJID serviceJid, String nodeName) throws RepositoryException {
 		Node node = getNode(serviceJid, nodeName);
 
-		return (node == null) ? null : node.getNodeAffiliations();
+		// every operation gets its own change set which is merged by update()
+		return (node == null) ? null : node.getNodeAffiliations().createChangeSet();
 	}
 
 	@Override
@@ -544,13 +1002,7 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 			log.log( Level.FINEST, "Getting node config, serviceJid: {0}, nodeName: {1}, node: {2}",
 							 new Object[] { serviceJid, nodeName, node } );
 		}
-		try {
-			return (node == null) ? null : node.getNodeConfig().clone();
-		} catch (CloneNotSupportedException e) {
-			e.printStackTrace();
-
-			return null;
-		}
+		return (node == null) ? null : node.getNodeConfigCopy();
 	}
 
 	@Override
@@ -558,6 +1010,72 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		return getNode(serviceJid, nodeName);
 	}
 
+	@Override
+	public Map<String, IItems.Item> getLastItems(BareJID serviceJid, Collection<String> nodesNames)
+			throws RepositoryException {
+		Map<String, IItems.Item> result = new HashMap<String, IItems.Item>();
+		Map<T, String> toLoad = new HashMap<T, String>();
+		Map<T, RecentItems> loading = new HashMap<T, RecentItems>();
+		Map<T, Long> versions = new HashMap<T, Long>();
+		for (String nodeName : nodesNames) {
+			Node<T> node = getNode(serviceJid, nodeName);
+			if (node == null) {
+				continue;
+			}
+			if (recentItemsCacheSize > 0) {
+				RecentItems recentItems = node.getRecentItems(recentItemsCacheSize);
+				List<IItems.Item> items = recentItems.getItems(0, 1);
+				if (items != null) {
+					if (!items.isEmpty()) {
+						result.put(nodeName, items.get(0));
+					}
+					continue;
+				}
+				long version = recentItems.startLoading();
+				if (version >= 0) {
+					loading.put(node.getNodeId(), recentItems);
+					versions.put(node.getNodeId(), version);
+				}
+			}
+			toLoad.put(node.getNodeId(), nodeName);
+		}
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "Getting last items, serviceJid: {0}, nodes: {1}, from cache: {2}, to load: {3}",
+							 new Object[] { serviceJid, nodesNames, result.keySet(), toLoad.values() } );
+		}
+		if (toLoad.isEmpty()) {
+			return result;
+		}
+
+		Map<T, List<IItems.Item>> loaded = null;
+		try {
+			// one more item is loaded to know if all items of node fit in cache
+			loaded = this.dao.getNodesRecentItems(serviceJid, toLoad,
+					recentItemsCacheSize > 0 ? recentItemsCacheSize + 1 : 1);
+			if (loaded == null) {
+				loaded = Collections.emptyMap();
+			}
+		} finally {
+			for (Map.Entry<T, RecentItems> e : loading.entrySet()) {
+				List<IItems.Item> items = null;
+				if (loaded != null) {
+					// node without entry has no items
+					items = loaded.get(e.getKey());
+					if (items == null) {
+						items = Collections.emptyList();
+					}
+				}
+				e.getValue().loaded(versions.get(e.getKey()), items);
+			}
+		}
+		for (Map.Entry<T, List<IItems.Item>> e : loaded.entrySet()) {
+			if (e.getValue() != null && !e.getValue().isEmpty()) {
+				result.put(toLoad.get(e.getKey()), e.getValue().get(0));
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public IItems getNodeItems(BareJID serviceJid, String nodeName) throws RepositoryException {
 		String key = createKey(serviceJid, nodeName);
@@ -570,7 +1088,10 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		}
 		long end = System.currentTimeMillis();
 		this.stats.get("getNodeItems").statisticExecutedIn(end-start);
-		return new Items(nodeId, serviceJid, nodeName, this.dao);
+		RecentItems recentItems = (node != null && recentItemsCacheSize > 0)
+				? node.getRecentItems(recentItemsCacheSize)
+				: null;
+		return new Items(nodeId, serviceJid, nodeName, this.dao, recentItems);
 	}
 
 	@Override
@@ -582,7 +1103,8 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 							 new Object[] { serviceJid, nodeName, node, node.getNodeConfig() } );
 		}
 
-		return (node == null) ? null : node.getNodeSubscriptions();
+		// every operation gets its own change set which is merged by update()
+		return (node == null) ? null : node.getNodeSubscriptions().createChangeSet();
 	}
 
 	@Override
@@ -639,9 +1161,77 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		return this.dao.getUserRoster(owner);
 	}
 
+	@Override
+	public Map<String,UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID userJid) throws RepositoryException {
+		Map<String,UsersAffiliation> result = userNodesIndex.getAffiliations(serviceJid, userJid);
+		if (result != null) {
+			return result;
+		}
+
+		Map<String,UsersAffiliation> affiliations = new HashMap<>();
+		try {
+			Map<String,UsersAffiliation> loaded = this.dao.getUserAffiliations(serviceJid, userJid);
+			if (loaded != null) {
+				affiliations.putAll(loaded);
+			}
+		} catch (RepositoryException ex) {
+			userNodesIndex.loadFailed(serviceJid, userJid);
+			throw ex;
+		}
+		// cached nodes may contain changes which are not written to database yet
+		for (Node node : getCachedNodes(serviceJid, userJid, affiliations.keySet())) {
+			UsersAffiliation affiliation = node.getNodeAffiliations().getAffiliationsMap().get(userJid);
+			if (affiliation == null) {
+				affiliations.remove(node.getName());
+			} else {
+				affiliations.put(node.getName(), affiliation);
+			}
+		}
+		return userNodesIndex.affiliationsLoaded(serviceJid, userJid, affiliations);
+	}
+
 	@Override
 	public Map<String,UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID userJid) throws RepositoryException {
-		return this.dao.getUserSubscriptions(serviceJid, userJid);
+		Map<String,UsersSubscription> result = userNodesIndex.getSubscriptions(serviceJid, userJid);
+		if (result != null) {
+			return result;
+		}
+
+		Map<String,UsersSubscription> subscriptions = new HashMap<>();
+		try {
+			Map<String,UsersSubscription> loaded = this.dao.getUserSubscriptions(serviceJid, userJid);
+			if (loaded != null) {
+				subscriptions.putAll(loaded);
+			}
+		} catch (RepositoryException ex) {
+			userNodesIndex.loadFailed(serviceJid, userJid);
+			throw ex;
+		}
+		// cached nodes may contain changes which are not written to database yet
+		for (Node node : getCachedNodes(serviceJid, userJid, subscriptions.keySet())) {
+			UsersSubscription subscription = node.getNodeSubscriptions().getSubscriptionsMap().get(userJid);
+			if (subscription == null) {
+				subscriptions.remove(node.getName());
+			} else {
+				subscriptions.put(node.getName(), subscription);
+			}
+		}
+		return userNodesIndex.subscriptionsLoaded(serviceJid, userJid, subscriptions);
+	}
+
+	/**
+	 * Returns cached nodes of service which are listed or in which user is
+	 * subscribed or affiliated.
+	 */
+	private Collection<Node> getCachedNodes(BareJID serviceJid, BareJID userJid, Collection<String> nodeNames) {
+		Set<Node> result = new HashSet<>(userNodesIndex.getCachedNodes(userJid, serviceJid));
+		for (String nodeName : nodeNames) {
+			Node node = nodes.peek(createKey(serviceJid, nodeName));
+			if (node != null) {
+				result.add(node);
+			}
+		}
+		return result;
 	}
 
 	@Override
@@ -665,6 +1255,61 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		this.nodes.remove( key );
 	}
 
+	/**
+	 * Sets number of most recently published items kept in memory for each
+	 * cached node, <code>0</code> disables caching of items.
+	 *
+	 * @param recentItemsCacheSize number of cached items per node
+	 */
+	public void setRecentItemsCacheSize(int recentItemsCacheSize) {
+		this.recentItemsCacheSize = recentItemsCacheSize;
+	}
+
+	/**
+	 * Sets maximal number of lists of subscriptions or affiliations of users
+	 * kept in memory, <code>0</code> disables keeping them.
+	 *
+	 * @param userIndexSize maximal number of lists
+	 */
+	public void setUserIndexSize(int userIndexSize) {
+		this.userNodesIndex.setMaxSize(userIndexSize);
+	}
+
+	/**
+	 * Enables write-behind mode in which changes of nodes are written to the
+	 * database by a separate thread instead of the processing thread.
+	 *
+	 * @param queueSize maximal number of nodes waiting to be written
+	 * @param batchSize number of queued changes which triggers write
+	 * @param flushDelay maximal time in milliseconds for which change may wait
+	 */
+	public void setWriteBehind(int queueSize, int batchSize, long flushDelay) {
+		NodeSaver oldNodeSaver = nodeSaver;
+		nodeSaver = new WriteBehindNodeSaver(queueSize, batchSize, flushDelay);
+		oldNodeSaver.stop();
+		log.config("Write-behind enabled with queue size = " + queueSize + ", batch size = " + batchSize
+				+ ", flush delay = " + flushDelay + "ms");
+	}
+
+	/**
+	 * Enables asynchronous mode in which tasks passed to
+	 * {@link #executeAsync(BareJID, String, RepositoryExecutor.Task)} are
+	 * executed by a bounded pool of database threads instead of the
+	 * processing thread.
+	 *
+	 * @param threads number of database threads
+	 * @param queueSize maximal number of tasks waiting for execution
+	 */
+	public void setAsyncExecutor(int threads, int queueSize) {
+		RepositoryExecutor oldExecutor = executor;
+		executor = new RepositoryExecutor(threads, queueSize);
+		if (oldExecutor != null) {
+			oldExecutor.shutdown();
+		}
+		log.config("Asynchronous repository access enabled with " + threads + " threads, queue size = "
+				+ queueSize);
+	}
+
 	@Override
 	public void setDelayedRootCollectionLoading(boolean delayedRootCollectionLoading) {
 		this.delayedRootCollectionLoading = delayedRootCollectionLoading;
@@ -687,41 +1332,40 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 	@Override
 	public void update(BareJID serviceJid, String nodeName, IAffiliations nodeAffiliations) throws RepositoryException {
-		if (nodeAffiliations instanceof NodeAffiliations) {
-			Node node = getNode(serviceJid, nodeName);
-
-			if ( log.isLoggable( Level.FINEST ) ){
-				log.log( Level.FINEST, "Updating node affiliations, serviceJid: {0}, nodeName: {1}, node: {2}, nodeAffiliations: {3}",
-								 new Object[] { serviceJid, nodeName, node, nodeAffiliations } );
-			}
-
-			if (node != null) {
-				if (node.getNodeAffiliations() != nodeAffiliations) {
-					throw new RuntimeException("INCORRECT");
-				}
+		if (!(nodeAffiliations instanceof NodeAffiliations)) {
+			throw new RuntimeException("Wrong class");
+		}
+		Node node = getNode(serviceJid, nodeName);
 
-				// node.setNodeAffiliationsChangeTimestamp();
-				// synchronized (mutex) {
-				log.finest("Node '" + nodeName + "' added to lazy write queue (affiliations), node: " + node);
-				nodeSaver.save(node);
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "Updating node affiliations, serviceJid: {0}, nodeName: {1}, node: {2}, nodeAffiliations: {3}",
+							 new Object[] { serviceJid, nodeName, node, nodeAffiliations } );
+		}
 
-				// }
-			}
-		} else {
-			throw new RuntimeException("Wrong class");
+		// nothing to write or merge if change set is empty
+		if (node != null && nodeAffiliations.isChanged()) {
+			// node.setNodeAffiliationsChangeTimestamp();
+			// synchronized (mutex) {
+			log.finest("Node '" + nodeName + "' added to lazy write queue (affiliations), node: " + node);
+			nodeSaver.save(node, (NodeAffiliations) nodeAffiliations, null);
+			// }
 		}
 	}
 
 	@Override
 	public void update(BareJID serviceJid, String nodeName, ISubscriptions nodeSubscriptions) throws RepositoryException {
-		++updateSubscriptionsCalled;
+		if (!(nodeSubscriptions instanceof NodeSubscriptions)) {
+			throw new RuntimeException("Wrong class");
+		}
+		updateSubscriptionsCalled.incrementAndGet();
 		Node node = getNode(serviceJid, nodeName);
 
-		if ( node != null ){
+		// nothing to write or merge if change set is empty
+		if (node != null && nodeSubscriptions.isChanged()) {
 			// node.setNodeSubscriptionsChangeTimestamp();
 			// synchronized (mutex) {
 			log.finest("Node '" + nodeName + "' added to lazy write queue (subscriptions)");
-			nodeSaver.save(node);
+			nodeSaver.save(node, null, (NodeSubscriptions) nodeSubscriptions);
 			// }
 		}
 	}
@@ -735,15 +1379,23 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 	protected void userRemoved(BareJID userJid) {
 		// clearing in memory caches
 		rootCollection.remove(userJid);
-		Iterator<Node> nodesIter = this.nodes.values().iterator();
-		while (nodesIter.hasNext()) {
-			Node node = nodesIter.next();
-			NodeSubscriptions nodeSubscriptions = node.getNodeSubscriptions();
+		for (Node node : userNodesIndex.getCachedNodes(userJid, null)) {
+			NodeSubscriptions nodeSubscriptions = node.getNodeSubscriptions().createChangeSet();
 			nodeSubscriptions.changeSubscription(userJid, Subscription.none);
-			nodeSubscriptions.merge();
-			NodeAffiliations nodeAffiliations = node.getNodeAffiliations();
+			node.subscriptionsMerge(nodeSubscriptions);
+			NodeAffiliations nodeAffiliations = node.getNodeAffiliations().createChangeSet();
 			nodeAffiliations.changeAffiliation(userJid, Affiliation.none);
-			nodeAffiliations.merge();
+			node.affiliationsMerge(nodeAffiliations);
+		}
+		userNodesIndex.userRemoved(userJid);
+	}
+
+	private static void resetChanges(NodeAffiliations affiliations, NodeSubscriptions subscriptions) {
+		if (affiliations != null) {
+			affiliations.resetChangedFlag();
+		}
+		if (subscriptions != null) {
+			subscriptions.resetChangedFlag();
 		}
 	}
 
@@ -3,6 +3,7 @@ package tigase.pubsub.repository.cached;
 import java.util.Date;
 import java.util.List;
 
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.repository.IItems;
 import tigase.pubsub.repository.IPubSubDAO;
 import tigase.pubsub.repository.RepositoryException;
@@ -25,7 +26,14 @@ class Items<T> implements IItems {
 
 	private final BareJID serviceJid;
 
+	// may be null if recent items of this node are not cached
+	private final RecentItems recentItems;
+
 	public Items(T nodeId, BareJID serviceJid, String nodeName, IPubSubDAO dao) {
+		this(nodeId, serviceJid, nodeName, dao, null);
+	}
+
+	public Items(T nodeId, BareJID serviceJid, String nodeName, IPubSubDAO dao, RecentItems recentItems) {
 		if ( log.isLoggable( Level.FINEST ) ){
 			log.log( Level.FINEST, "Constructing Items, serviceJid: {0}, nodeName: {1}, nodeId: {2}, dao: {3}",
 							 new Object[] { serviceJid, nodeName, nodeId, dao } );
@@ -34,6 +42,7 @@ class Items<T> implements IItems {
 		this.dao = dao;
 		this.nodeName = nodeName;
 		this.serviceJid = serviceJid;
+		this.recentItems = recentItems;
 	}
 
 	@Override
@@ -42,7 +51,15 @@ class Items<T> implements IItems {
 			log.log( Level.FINEST, "Deleting item, serviceJid: {0}, id: {1}, nodeId: {2}, dao: {3}",
 							 new Object[] { serviceJid, id, nodeId, dao } );
 		}
-		this.dao.deleteItem(serviceJid, nodeId, id);
+		try {
+			this.dao.deleteItem(serviceJid, nodeId, id);
+		} catch (RepositoryException ex) {
+			invalidateRecentItems();
+			throw ex;
+		}
+		if (recentItems != null) {
+			recentItems.itemDeleted(id);
+		}
 	}
 
 	@Override
@@ -51,6 +68,10 @@ class Items<T> implements IItems {
 			log.log( Level.FINEST, "getItem, serviceJid: {0}, id: {1}, nodeId: {2}, dao: {3}",
 						 new Object[] { serviceJid, id, nodeId, dao } );
 		}
+		IItems.Item item = recentItems != null ? recentItems.getItem(id) : null;
+		if (item != null) {
+			return item.getItem().clone();
+		}
 		return this.dao.getItem(serviceJid, nodeId, id);
 	}
 
@@ -60,15 +81,58 @@ class Items<T> implements IItems {
 			log.log( Level.FINEST, "getItemCreationDate, serviceJid: {0}, id: {1}, nodeId: {2}, dao: {3}",
 						 new Object[] { serviceJid, id, nodeId, dao } );
 		}
+		IItems.Item item = recentItems != null ? recentItems.getItem(id) : null;
+		if (item != null && item.getCreationDate() != null) {
+			return item.getCreationDate();
+		}
 		return this.dao.getItemCreationDate(serviceJid, nodeId, id);
 	}
 
+	@Override
+	public List<IItems.Item> getItems(List<String> ids) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getItems, serviceJid: {0}, ids: {1}, nodeId: {2}, dao: {3}",
+						 new Object[] { serviceJid, ids, nodeId, dao } );
+		}
+		List<IItems.Item> items = recentItems != null ? recentItems.getItems(ids) : null;
+		if (items != null) {
+			return items;
+		}
+		return this.dao.getItems(serviceJid, nodeId, nodeName, ids);
+	}
+
+	@Override
+	public int getItemPosition(CollectionItemsOrdering ordering, String id) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getItemPosition, serviceJid: {0}, id: {1}, nodeId: {2}, ordering: {3}",
+						 new Object[] { serviceJid, id, nodeId, ordering } );
+		}
+		return this.dao.getItemPosition(serviceJid, nodeId, ordering, id);
+	}
+
+	@Override
+	public int getItemsCount() throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getItemsCount, serviceJid: {0}, nodeId: {1}, dao: {2}",
+						 new Object[] { serviceJid, nodeId, dao } );
+		}
+		Integer count = recentItems != null ? recentItems.getItemsCount() : null;
+		if (count != null) {
+			return count;
+		}
+		return this.dao.getItemsCount(serviceJid, nodeId);
+	}
+
 	@Override
 	public String[] getItemsIds() throws RepositoryException {
 		if ( log.isLoggable( Level.FINEST ) ){
 			log.log( Level.FINEST, "getItemsIds, serviceJid: {0}, nodeId: {1}, dao: {2}",
 						 new Object[] { serviceJid, nodeId, dao } );
 		}
+		String[] ids = recentItems != null ? recentItems.getItemsIds() : null;
+		if (ids != null) {
+			return ids;
+		}
 		return this.dao.getItemsIds(serviceJid, nodeId);
 	}
 
@@ -96,16 +160,77 @@ class Items<T> implements IItems {
 			log.log( Level.FINEST, "getItemsIdsSince, serviceJid: {0}, nodeId: {1}, dao: {2}, id: {3}",
 						 new Object[] { serviceJid, nodeId, dao, id } );
 		}
+		IItems.Item item = recentItems != null ? recentItems.getItem(id) : null;
+		if (item != null) {
+			return item.getItemUpdateDate();
+		}
 		return this.dao.getItemUpdateDate(serviceJid, nodeId, id);
 	}
 
+	@Override
+	public List<IItems.Item> queryItems(CollectionItemsOrdering ordering, Date since, String afterId, String beforeId,
+			int offset, Integer limit) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "queryItems, serviceJid: {0}, nodeId: {1}, ordering: {2}, since: {3}, after: {4}, "
+						+ "before: {5}, offset: {6}, limit: {7}",
+						 new Object[] { serviceJid, nodeId, ordering, since, afterId, beforeId, offset, limit } );
+		}
+		// only newest items may be served from cache
+		if (recentItems != null && ordering == CollectionItemsOrdering.byUpdateDate && since == null
+				&& afterId == null && beforeId == null) {
+			List<IItems.Item> items = getRecentItems(offset, limit);
+			if (items != null) {
+				return items;
+			}
+		}
+		return this.dao.queryItems(serviceJid, nodeId, nodeName, ordering, since, afterId, beforeId, offset, limit);
+	}
+
 	@Override
 	public void writeItem(long timeInMilis, String id, String publisher, Element item) throws RepositoryException {
 		if ( log.isLoggable( Level.FINEST ) ){
 			log.log( Level.FINEST, "writeItem, serviceJid: {0}, nodeId: {1}, dao: {2}, id: {3}, publisher: {4}, item: {5}",
 						 new Object[] { serviceJid, nodeId, dao, id, publisher, item } );
 		}
-		this.dao.writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item);
+		try {
+			this.dao.writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item);
+		} catch (RepositoryException ex) {
+			invalidateRecentItems();
+			throw ex;
+		}
+		if (recentItems != null) {
+			recentItems.itemWritten(nodeName, id, timeInMilis, item);
+		}
+	}
+
+	/**
+	 * We do not know if failed change was applied in repository, so cached
+	 * items need to be loaded again.
+	 */
+	private void invalidateRecentItems() {
+		if (recentItems != null) {
+			recentItems.invalidate();
+		}
+	}
+
+	private List<IItems.Item> getRecentItems(int offset, Integer limit) throws RepositoryException {
+		List<IItems.Item> items = recentItems.getItems(offset, limit);
+		if (items != null) {
+			return items;
+		}
+		long version = recentItems.startLoading();
+		if (version < 0) {
+			return null;
+		}
+		List<IItems.Item> loaded = null;
+		try {
+			// one more item is loaded to know if all items of node fit in cache
+			loaded = this.dao.queryItems(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byUpdateDate, null, null,
+					null, 0, recentItems.getMaxSize() + 1);
+		} finally {
+			recentItems.loaded(version, loaded);
+		}
+		return recentItems.getItems(offset, limit);
 	}
 
 }
@@ -24,8 +24,11 @@ package tigase.pubsub.repository.cached;
 import tigase.pubsub.AbstractNodeConfig;
 
 import tigase.pubsub.repository.INodeMeta;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xmpp.BareJID;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -40,6 +43,8 @@ public class Node<T> implements INodeMeta<T> {
 	private final BareJID creator;
 
 	private boolean deleted = false;
+	private volatile boolean writePending = false;
+	private RecentItems recentItems;
 	private String name;
 	private T nodeId;
 
@@ -54,6 +59,8 @@ public class Node<T> implements INodeMeta<T> {
 	private BareJID serviceJid;
 	//private boolean subNeedsWriting = false;
 
+	private UserNodesIndex userNodesIndex;
+
 	// private Long nodeSubscriptionsChangeTimestamp;
 
 	public Node(T nodeId, BareJID serviceJid, AbstractNodeConfig nodeConfig, NodeAffiliations nodeAffiliations,
@@ -78,17 +85,23 @@ public class Node<T> implements INodeMeta<T> {
 		return nodeId;
 	}
 
-	public void affiliationsMerge() {
-		nodeAffiliations.merge();
-	}
-
-	public boolean affiliationsNeedsWriting() {
-		return nodeAffiliations.isChanged();
-	}
-
-	public void affiliationsSaved() {
-	//	affNeedsWriting = false;
-		affiliationsMerge();
+	/**
+	 * Merges changes from change set into affiliations of this node and clears
+	 * the change set.
+	 *
+	 * @param changes change set created for this node
+	 */
+	public void affiliationsMerge(NodeAffiliations changes) {
+		if (!changes.isChanged()) {
+			return;
+		}
+		// change set drops its map on reset, so values may be used without copying
+		Collection<UsersAffiliation> changed = changes.getChanged().values();
+		changes.resetChangedFlag();
+		nodeAffiliations.merge(changed);
+		if (userNodesIndex != null) {
+			userNodesIndex.affiliationsChanged(this, changed);
+		}
 	}
 
 	public void configCopyFrom(AbstractNodeConfig nodeConfig) {
@@ -130,6 +143,16 @@ public class Node<T> implements INodeMeta<T> {
 		return nodeConfig;
 	}
 
+	/**
+	 * Returns copy of node configuration which may be modified by caller.
+	 * Form of configuration is copied only when copy is modified.
+	 */
+	public AbstractNodeConfig getNodeConfigCopy() {
+		synchronized (this) {
+			return nodeConfig.copyOnWrite();
+		}
+	}
+
 	// public Long getNodeConfigChangeTimestamp() {
 	// return nodeConfigChangeTimestamp;
 	// }
@@ -146,20 +169,73 @@ public class Node<T> implements INodeMeta<T> {
 		return deleted;
 	}
 
+	/**
+	 * Returns <code>true</code> if changes of this node were accepted by
+	 * write-behind saver but are not stored in database yet.
+	 *
+	 * @return
+	 */
+	public boolean isWritePending() {
+		return writePending;
+	}
+
 	public boolean needsWriting() {
-		return affiliationsNeedsWriting() || subscriptionsNeedsWriting() || conNeedsWriting;
+		// changes are kept in change sets, but node instance may still be
+		// modified directly
+		return conNeedsWriting || nodeAffiliations.isChanged() || nodeSubscriptions.isChanged();
 	}
 
 	public void setDeleted(boolean deleted) {
 		this.deleted = deleted;
 	}
 
+	public void setWritePending(boolean writePending) {
+		this.writePending = writePending;
+	}
+
+	/**
+	 * Sets index which should be updated when changes of subscriptions or
+	 * affiliations of this node are merged.
+	 */
+	void setUserNodesIndex(UserNodesIndex userNodesIndex) {
+		this.userNodesIndex = userNodesIndex;
+	}
+
+	/**
+	 * Returns cache of recently published items of this node, creating it if
+	 * needed.
+	 *
+	 * @param maxSize maximal number of cached items
+	 * @return cache of recent items
+	 */
+	synchronized RecentItems getRecentItems(int maxSize) {
+		if (recentItems == null) {
+			recentItems = new RecentItems(maxSize);
+		}
+		return recentItems;
+	}
+
 	// public Long getNodeSubscriptionsChangeTimestamp() {
 	// return nodeSubscriptionsChangeTimestamp;
 	// }
 
-	public void subscriptionsMerge() {
-		nodeSubscriptions.merge();
+	/**
+	 * Merges changes from change set into subscriptions of this node and clears
+	 * the change set.
+	 *
+	 * @param changes change set created for this node
+	 */
+	public void subscriptionsMerge(NodeSubscriptions changes) {
+		if (!changes.isChanged()) {
+			return;
+		}
+		// change set drops its map on reset, so values may be used without copying
+		Collection<UsersSubscription> changed = changes.getChanged().values();
+		changes.resetChangedFlag();
+		nodeSubscriptions.merge(changed);
+		if (userNodesIndex != null) {
+			userNodesIndex.subscriptionsChanged(this, changed);
+		}
 	}
 
 	// public void resetNodeAffiliationsChangeTimestamp() {
@@ -174,15 +250,6 @@ public class Node<T> implements INodeMeta<T> {
 	// this.nodeSubscriptionsChangeTimestamp = null;
 	// }
 
-	public boolean subscriptionsNeedsWriting() {
-		return nodeSubscriptions.isChanged();
-	}
-
-	public void subscriptionsSaved() {
-		//subNeedsWriting = false;
-		this.subscriptionsMerge();
-	}
-
 	// public void setNodeAffiliationsChangeTimestamp() {
 	// if (nodeAffiliationsChangeTimestamp == null)
 	// nodeAffiliationsChangeTimestamp = System.currentTimeMillis();
@@ -198,11 +265,6 @@ public class Node<T> implements INodeMeta<T> {
 	// nodeSubscriptionsChangeTimestamp = System.currentTimeMillis();
 	// }
 
-	public void resetChanges() {
-		nodeAffiliations.resetChangedFlag();
-		nodeSubscriptions.resetChangedFlag();
-	}
-
 	@Override
 	public String toString() {
 		return "Node{" + "creationTime=" + creationTime + ", deleted=" + deleted + ", name=" + name + ", nodeId=" + nodeId
@@ -1,18 +1,26 @@
 package tigase.pubsub.repository.cached;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import tigase.pubsub.Affiliation;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.xmpp.BareJID;
 
+/**
+ * Affiliations of cached node. Instance kept by {@link Node} contains
+ * committed affiliations, while every operation should work on its own change
+ * set created by {@link #createChangeSet()}. Committed affiliations are never
+ * modified in place, so change set may return them without copying.
+ */
 public class NodeAffiliations extends tigase.pubsub.repository.NodeAffiliations {
 
-	protected final ThreadLocal<Map<BareJID, UsersAffiliation>> changedAffs = new ThreadLocal<Map<BareJID, UsersAffiliation>>();
+	private Map<BareJID, UsersAffiliation> changedAffs;
 
 	public NodeAffiliations() {
 	}
@@ -21,6 +29,10 @@ public class NodeAffiliations extends tigase.pubsub.repository.NodeAffiliations
 		affs.putAll(nodeAffiliations.getAffiliationsMap());
 	}
 
+	private NodeAffiliations(ConcurrentMap<BareJID, UsersAffiliation> affs) {
+		super(affs);
+	}
+
 	@Override
 	public void addAffiliation(BareJID bareJid, Affiliation affiliation) {
 		UsersAffiliation a = new UsersAffiliation(bareJid, affiliation);
@@ -30,13 +42,8 @@ public class NodeAffiliations extends tigase.pubsub.repository.NodeAffiliations
 	@Override
 	public void changeAffiliation(BareJID bareJid, Affiliation affiliation) {
 		UsersAffiliation a = this.get(bareJid);
-		Map<BareJID, UsersAffiliation> changedAffs = changedAffs();
-		if (a != null) {
-			a.setAffiliation(affiliation);
-			changedAffs.put(bareJid, a);
-		} else if (affiliation != Affiliation.none) {
-			a = new UsersAffiliation(bareJid, affiliation);
-			changedAffs.put(bareJid, a);
+		if (a == null ? affiliation != Affiliation.none : a.getAffiliation() != affiliation) {
+			changedAffs().put(bareJid, new UsersAffiliation(bareJid, affiliation));
 		}
 	}
 
@@ -46,41 +53,54 @@ public class NodeAffiliations extends tigase.pubsub.repository.NodeAffiliations
 		for (UsersAffiliation a : this.affs.values()) {
 			clone.affs.put(a.getJid(), a.clone());
 		}
-		Map<BareJID, UsersAffiliation> changedAffs = changedAffs();
-		Map<BareJID, UsersAffiliation> cloneChangedAffs = clone.changedAffs();
-		for (UsersAffiliation a : changedAffs.values()) {
-			cloneChangedAffs.put(a.getJid(), a.clone());
+		if (changedAffs != null) {
+			Map<BareJID, UsersAffiliation> cloneChangedAffs = clone.changedAffs();
+			for (UsersAffiliation a : changedAffs.values()) {
+				cloneChangedAffs.put(a.getJid(), a.clone());
+			}
 		}
 		return clone;
 	}
 
+	/**
+	 * Creates new empty change set reading affiliations committed to this
+	 * instance.
+	 * 
+	 * @return
+	 */
+	public NodeAffiliations createChangeSet() {
+		return new NodeAffiliations(this.affs);
+	}
+
 	@Override
 	protected UsersAffiliation get(BareJID bareJid) {
-		Map<BareJID, UsersAffiliation> changedAffs = changedAffs();
-		UsersAffiliation us = changedAffs.get(bareJid);
-		if (us == null) {
-			us = affs.get(bareJid);
-			if (us != null)
-				try {
-					return us.clone();
-				} catch (Exception e) {
-					e.printStackTrace();
-					return null;
-				}
+		if (changedAffs != null) {
+			UsersAffiliation us = changedAffs.get(bareJid);
+			if (us != null) {
+				return us;
+			}
 		}
-		return us;
+		return affs.get(bareJid);
+	}
+
+	@Override
+	public Affiliation getAffiliation(BareJID bareJid) {
+		UsersAffiliation a = get(bareJid);
+		return a == null ? Affiliation.none : a.getAffiliation();
 	}
 
 	@Override
 	public UsersAffiliation[] getAffiliations() {
-		final Set<UsersAffiliation> result = new HashSet<UsersAffiliation>();
-		result.addAll(this.affs.values());
-		result.addAll(this.changedAffs().values());
-		return result.toArray(new UsersAffiliation[] {});
+		if (changedAffs == null || changedAffs.isEmpty()) {
+			return this.affs.values().toArray(new UsersAffiliation[] {});
+		}
+		final Map<BareJID, UsersAffiliation> result = new LinkedHashMap<BareJID, UsersAffiliation>(this.affs);
+		result.putAll(changedAffs);
+		return result.values().toArray(new UsersAffiliation[result.size()]);
 	}
 
 	public Map<BareJID,UsersAffiliation> getChanged() {
-		return changedAffs();
+		return changedAffs == null ? Collections.<BareJID,UsersAffiliation>emptyMap() : changedAffs;
 	}
 	
 	public void init(Queue<UsersAffiliation> data) {
@@ -92,35 +112,43 @@ public class NodeAffiliations extends tigase.pubsub.repository.NodeAffiliations
 	
 	@Override
 	public boolean isChanged() {
-		return changedAffs().size() > 0;
+		return changedAffs != null && !changedAffs.isEmpty();
 	}
 
+	/**
+	 * Merges changes of this instance into committed affiliations.
+	 */
 	public void merge() {
-		Map<BareJID, UsersAffiliation> changedAffs = changedAffs();
-		for (Map.Entry<BareJID, UsersAffiliation> entry : changedAffs.entrySet()) {
-			if (entry.getValue().getAffiliation() == Affiliation.none) {
-				affs.remove(entry.getKey());
+		if (changedAffs != null) {
+			merge(changedAffs.values());
+			changedAffs = null;
+		}
+	}
+
+	/**
+	 * Merges changes from change set into committed affiliations.
+	 * 
+	 * @param changes
+	 */
+	public void merge(Collection<UsersAffiliation> changes) {
+		for (UsersAffiliation a : changes) {
+			if (a.getAffiliation() == Affiliation.none) {
+				affs.remove(a.getJid());
 			} else {
-				affs.put(entry.getKey(), entry.getValue());
+				affs.put(a.getJid(), a);
 			}
 		}
-		changedAffs.clear();
-
 	}
 
 	@Override
 	public void resetChangedFlag() {
-		changedAffs().clear();
+		changedAffs = null;
 	}
 
 	private Map<BareJID, UsersAffiliation> changedAffs() {
-		Map<BareJID, UsersAffiliation> changedAffs = this.changedAffs.get();
-		
 		if (changedAffs == null) {
 			changedAffs = new HashMap<BareJID, UsersAffiliation>();
-			this.changedAffs.set(changedAffs);
 		}
-		
 		return changedAffs;
 	}	
 }
@@ -0,0 +1,281 @@
+/*
+ * NodeCache.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.stats.Counter;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Concurrent, size bounded cache of nodes.
+ *
+ * Reads are lock-free: every entry only records the time of last access and
+ * the order is restored when the cache needs to be trimmed. Trimming is done
+ * by a single thread at a time (other threads do not wait for it) and removes
+ * a batch of least recently used nodes, skipping nodes which still have
+ * changes waiting to be written to the database (also by write-behind saver).
+ *
+ * @param <K> type of cache key
+ */
+class NodeCache<K> implements StatisticHolder {
+
+	private static final Logger log = Logger.getLogger(NodeCache.class.getName());
+
+	private final ConcurrentHashMap<K, Entry> map;
+	private final Integer maxCacheSize;
+	private final int evictionBatchSize;
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private volatile Consumer<Node> removalListener;
+
+	private final Counter requestsCounter = new Counter("cache/requests", Level.FINEST);
+	private final Counter hitsCounter = new Counter("cache/hits", Level.FINEST);
+	private long evictions = 0;
+	private final AtomicLong writesCompleted = new AtomicLong();
+	// state of last eviction pass which found nothing to evict, guarded by
+	// evictionLock
+	private long writesAtFailedPass = -1;
+	private int sizeAtFailedPass = 0;
+
+	/**
+	 * Creates cache instance.
+	 *
+	 * @param maxCacheSize maximal number of cached nodes or <code>null</code>
+	 *                     if cache should not be limited
+	 */
+	public NodeCache(Integer maxCacheSize) {
+		this.maxCacheSize = maxCacheSize;
+		this.evictionBatchSize = maxCacheSize == null ? 0 : Math.max(1, maxCacheSize / 20);
+		this.map = new ConcurrentHashMap<>(maxCacheSize == null ? 16 : Math.max(16, maxCacheSize));
+	}
+
+	public Node get(K key) {
+		requestsCounter.inc();
+		Entry entry = map.get(key);
+		if (entry == null) {
+			return null;
+		}
+		hitsCounter.inc();
+		entry.touch();
+		return entry.node;
+	}
+
+	/**
+	 * Returns cached node without marking it as accessed.
+	 *
+	 * @param key key of node
+	 * @return cached node or <code>null</code>
+	 */
+	public Node peek(K key) {
+		Entry entry = map.get(key);
+		return entry == null ? null : entry.node;
+	}
+
+	public Node put(K key, Node node) {
+		Entry old = map.put(key, new Entry(node));
+		if (old == null) {
+			evictIfNeeded();
+		} else if (old.node != node) {
+			nodeRemoved(old.node);
+		}
+		return old == null ? null : old.node;
+	}
+
+	public Node remove(K key) {
+		Entry old = map.remove(key);
+		if (old != null) {
+			nodeRemoved(old.node);
+		}
+		return old == null ? null : old.node;
+	}
+
+	/**
+	 * Notifies cache that changes of a node were written to the database, so
+	 * nodes which could not be evicted before may be evictable now.
+	 */
+	public void nodeWritten() {
+		writesCompleted.incrementAndGet();
+	}
+
+	/**
+	 * Sets listener notified about every node removed from the cache,
+	 * including evicted nodes.
+	 *
+	 * @param removalListener listener or <code>null</code>
+	 */
+	public void setRemovalListener(Consumer<Node> removalListener) {
+		this.removalListener = removalListener;
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * Returns snapshot of cached nodes taken when method was called. Returned
+	 * collection is not modifiable and does not reflect later changes of the
+	 * cache, so it may be safely iterated while cache is modified by other
+	 * threads.
+	 *
+	 * @return copy of collection of cached nodes
+	 */
+	public Collection<Node> values() {
+		List<Node> result = new ArrayList<>(map.size());
+		for (Entry entry : map.values()) {
+			result.add(entry.node);
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	protected void evictIfNeeded() {
+		if (maxCacheSize == null || map.size() <= maxCacheSize) {
+			return;
+		}
+		// only one thread is trimming cache, other threads will not wait
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			int toRemove = map.size() - maxCacheSize + evictionBatchSize;
+			if (toRemove <= evictionBatchSize) {
+				return;
+			}
+			// if all nodes were waiting to be written during last pass, then
+			// there is no point in sorting them again until some of them are
+			// written or enough new nodes are added
+			final long writes = writesCompleted.get();
+			if (writes == writesAtFailedPass && map.size() < sizeAtFailedPass + evictionBatchSize) {
+				return;
+			}
+
+			List<Map.Entry<K, Entry>> candidates = new ArrayList<>(map.size());
+			for (Map.Entry<K, Entry> e : map.entrySet()) {
+				if (isEvictable(e.getValue().node)) {
+					candidates.add(e);
+				}
+			}
+			candidates.sort((e1, e2) -> Long.compare(e1.getValue().lastAccess, e2.getValue().lastAccess));
+
+			int removed = 0;
+			for (Map.Entry<K, Entry> e : candidates) {
+				if (removed >= toRemove) {
+					break;
+				}
+				Entry entry = e.getValue();
+				// node could be modified after we collected candidates
+				if (!isEvictable(entry.node)) {
+					continue;
+				}
+				if (map.remove(e.getKey(), entry)) {
+					nodeRemoved(entry.node);
+					removed++;
+				}
+			}
+
+			evictions += removed;
+			if (removed == 0) {
+				writesAtFailedPass = writes;
+				sizeAtFailedPass = map.size();
+			} else {
+				writesAtFailedPass = -1;
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Evicted {0} nodes from cache, cache size = {1}",
+						new Object[]{removed, map.size()});
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private void nodeRemoved(Node node) {
+		Consumer<Node> listener = removalListener;
+		if (listener != null) {
+			listener.accept(node);
+		}
+	}
+
+	private static boolean isEvictable(Node node) {
+		return !node.needsWriting() && !node.isWritePending();
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		requestsCounter.getStatistics(compName, list);
+		hitsCounter.getStatistics(compName, list);
+		list.add(compName, "cache/evictions", evictions, Level.FINEST);
+		list.add(compName, "cache/hit-miss ratio per minute", (requestsCounter.getPerMinute() == 0) ? 0 : ((float) hitsCounter.getPerMinute())/requestsCounter.getPerMinute(), Level.FINE);
+		list.add(compName, "cache/hit-miss ratio per second", (requestsCounter.getPerSecond() == 0) ? 0 : ((float) hitsCounter.getPerSecond())/requestsCounter.getPerSecond(), Level.FINE);
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
+	}
+
+	@Override
+	public void everyHour() {
+		requestsCounter.everyHour();
+		hitsCounter.everyHour();
+	}
+
+	@Override
+	public void everyMinute() {
+		requestsCounter.everyMinute();
+		hitsCounter.everyMinute();
+	}
+
+	@Override
+	public void everySecond() {
+		requestsCounter.everySecond();
+		hitsCounter.everySecond();
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+	}
+
+	private static class Entry {
+
+		private final Node node;
+		private volatile long lastAccess;
+
+		Entry(Node node) {
+			this.node = node;
+			this.lastAccess = System.nanoTime();
+		}
+
+		void touch() {
+			lastAccess = System.nanoTime();
+		}
+	}
+}
@@ -1,18 +1,28 @@
 package tigase.pubsub.repository.cached;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.function.BiConsumer;
 
 import tigase.pubsub.Subscription;
 import tigase.pubsub.Utils;
+import tigase.pubsub.repository.SubscriptionStore;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xmpp.BareJID;
 
+/**
+ * Subscriptions of cached node. Instance kept by {@link Node} contains
+ * committed subscriptions, while every operation should work on its own
+ * change set created by {@link #createChangeSet()}. Change set reads
+ * committed subscriptions directly and keeps changes until they are merged by
+ * repository, so it should be used only by single thread.
+ */
 public class NodeSubscriptions extends tigase.pubsub.repository.NodeSubscriptions {
 
-	protected final ThreadLocal<Map<BareJID, UsersSubscription>> changedSubs = new ThreadLocal<Map<BareJID, UsersSubscription>>();
+	private Map<BareJID, UsersSubscription> changedSubs;
 
 	public NodeSubscriptions() {
 	}
@@ -24,7 +34,11 @@ public class NodeSubscriptions extends tigase.pubsub.repository.NodeSubscription
 	 * @param nodeSubscriptions
 	 */
 	public NodeSubscriptions(tigase.pubsub.repository.NodeSubscriptions nodeSubscriptions) {
-		subs.putAll(nodeSubscriptions.getSubscriptionsMap());
+		super(nodeSubscriptions);
+	}
+
+	private NodeSubscriptions(SubscriptionStore subs) {
+		super(subs);
 	}
 
 	/**
@@ -38,7 +52,7 @@ public class NodeSubscriptions extends tigase.pubsub.repository.NodeSubscription
 	 */
 	@Override
 	public String addSubscriberJid(BareJID bareJid, Subscription subscription) {
-		final String subid = Utils.createUID(bareJid);
+		final String subid = Utils.createUID();
 		UsersSubscription s = new UsersSubscription(bareJid, subid, subscription);
 
 		changedSubs().put(bareJid, s);
@@ -55,36 +69,77 @@ public class NodeSubscriptions extends tigase.pubsub.repository.NodeSubscription
 	 */
 	@Override
 	public void changeSubscription(BareJID bareJid, Subscription subscription) {
-		UsersSubscription s = subs.get(bareJid);
+		// instance is either owned by this change set or a new one created by store
+		UsersSubscription s = get(bareJid);
 
-		if (s != null) {
+		if (s != null && s.getSubscription() != subscription) {
 			s.setSubscription(subscription);
 
 			changedSubs().put(s.getJid(), s);
 		}
 	}
 
+	/**
+	 * Creates new empty change set reading subscriptions committed to this
+	 * instance.
+	 * 
+	 * @return
+	 */
+	public NodeSubscriptions createChangeSet() {
+		return new NodeSubscriptions(this.subs);
+	}
+
+	/**
+	 * Calls visitor for every subscriber of node with its subscription,
+	 * taking changes made within this change set into account.
+	 */
 	@Override
-	protected UsersSubscription get(final BareJID bareJid) {
-		UsersSubscription us = null;
+	public void forEachSubscriber(final BiConsumer<BareJID, Subscription> visitor) {
+		final Map<BareJID, UsersSubscription> changedSubs = this.changedSubs;
 
-		us = changedSubs().get(bareJid);
+		if (changedSubs == null || changedSubs.isEmpty()) {
+			this.subs.forEach(visitor);
+			return;
+		}
 
-		if (us == null) {
-			us = subs.get(bareJid);
+		this.subs.forEach((jid, subscription) -> {
+			if (!changedSubs.containsKey(jid)) {
+				visitor.accept(jid, subscription);
+			}
+		});
+		for (UsersSubscription s : changedSubs.values()) {
+			visitor.accept(s.getJid(), s.getSubscription());
+		}
+	}
 
+	@Override
+	protected UsersSubscription get(final BareJID bareJid) {
+		if (changedSubs != null) {
+			UsersSubscription us = changedSubs.get(bareJid);
 			if (us != null) {
-				try {
-					return us.clone();
-				} catch (Exception e) {
-					e.printStackTrace();
+				return us;
+			}
+		}
 
-					return null;
-				}
+		// store always returns new instance
+		return subs.get(bareJid);
+	}
+
+	public Map<BareJID,UsersSubscription> getChanged() {
+		return changedSubs == null ? Collections.<BareJID,UsersSubscription>emptyMap() : changedSubs;
+	}
+
+	@Override
+	public Subscription getSubscription(BareJID bareJid) {
+		if (changedSubs != null) {
+			UsersSubscription us = changedSubs.get(bareJid);
+			if (us != null) {
+				return us.getSubscription();
 			}
 		}
 
-		return us;
+		Subscription s = subs.getSubscription(bareJid);
+		return s == null ? Subscription.none : s;
 	}
 
 	/**
@@ -95,13 +150,17 @@ public class NodeSubscriptions extends tigase.pubsub.repository.NodeSubscription
 	 */
 	@Override
 	public UsersSubscription[] getSubscriptions() {
-		final Set<UsersSubscription> result = new HashSet<UsersSubscription>();
+		final Map<BareJID, UsersSubscription> changedSubs = this.changedSubs;
+
+		if (changedSubs == null || changedSubs.isEmpty()) {
+			return this.subs.toArray();
+		}
 
-		result.addAll(this.subs.values());
+		final Map<BareJID, UsersSubscription> result = new LinkedHashMap<BareJID, UsersSubscription>(this.subs.asMap());
 
-		result.addAll(this.changedSubs().values());
+		result.putAll(changedSubs);
 
-		return result.toArray(new UsersSubscription[] {});
+		return result.values().toArray(new UsersSubscription[result.size()]);
 	}
 
 	/**
@@ -112,44 +171,46 @@ public class NodeSubscriptions extends tigase.pubsub.repository.NodeSubscription
 	 */
 	@Override
 	public boolean isChanged() {
-		return this.changedSubs().size() > 0;
+		return changedSubs != null && !changedSubs.isEmpty();
 	}
 
 	/**
-	 * Method description
-	 * 
+	 * Merges changes of this instance into committed subscriptions.
 	 */
 	public void merge() {
-		Map<BareJID, UsersSubscription> changedSubs = changedSubs();
-		for (Map.Entry<BareJID, UsersSubscription> entry : changedSubs.entrySet()) {
-			if (entry.getValue().getSubscription() == Subscription.none) {
-				subs.remove(entry.getKey());
+		if (changedSubs != null) {
+			merge(changedSubs.values());
+			changedSubs = null;
+		}
+	}
+
+	/**
+	 * Merges changes from change set into committed subscriptions.
+	 * 
+	 * @param changes
+	 */
+	public void merge(Collection<UsersSubscription> changes) {
+		for (UsersSubscription s : changes) {
+			if (s.getSubscription() == Subscription.none) {
+				subs.remove(s.getJid());
 			} else {
-				subs.put(entry.getKey(), entry.getValue());
+				subs.put(s);
 			}
 		}
-		//subs.putAll(changedSubs);
-		changedSubs.clear();
 	}
 
-	public Map<BareJID,UsersSubscription> getChanged() {
-		return changedSubs();
-	}
-	
 	/**
 	 * Method description
 	 * 
 	 */
 	@Override
 	public void resetChangedFlag() {
-		changedSubs().clear();
+		changedSubs = null;
 	}
 	
 	private Map<BareJID, UsersSubscription> changedSubs() {
-		Map<BareJID, UsersSubscription> changedSubs = this.changedSubs.get();
 		if (changedSubs == null) {
 			changedSubs = new HashMap<BareJID, UsersSubscription>();
-			this.changedSubs.set(changedSubs);
 		}
 		return changedSubs;
 	}
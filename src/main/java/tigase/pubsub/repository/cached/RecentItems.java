@@ -0,0 +1,257 @@
+/*
+ * RecentItems.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.repository.IItems;
+import tigase.xml.Element;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Cache of most recently published (updated) items of a single node.
+ *
+ * Cache always contains exactly the newest items of the node (sorted by time
+ * of last update, newest first), so it is able to answer requests for first
+ * items of this list. If node has no more items than fit in the cache, then
+ * cache is marked as complete and is able to answer about all items of node.
+ *
+ * Items are loaded from repository on first use and later updated when items
+ * are written or deleted. If items were modified while they were loaded from
+ * repository, then loaded items are dropped and will be loaded again later.
+ */
+class RecentItems {
+
+	private final int maxSize;
+
+	// newest items first, null if not loaded
+	private LinkedList<IItems.Item> items = null;
+	private boolean complete = false;
+	private boolean loading = false;
+	private long version = 0;
+
+	RecentItems(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Marks cache as being loaded.
+	 *
+	 * @return version of cache which needs to be passed to
+	 *         {@link #loaded(long, List)} or <code>-1</code> if cache is
+	 *         already loaded or loaded by other thread
+	 */
+	public synchronized long startLoading() {
+		if (items != null || loading) {
+			return -1;
+		}
+		loading = true;
+		return version;
+	}
+
+	/**
+	 * Sets items loaded from repository.
+	 *
+	 * @param version version returned by {@link #startLoading()}
+	 * @param loadedItems newest items of node (at most <code>maxSize + 1</code>
+	 *                    items sorted by update time, newest first) or
+	 *                    <code>null</code> if loading failed
+	 */
+	public synchronized void loaded(long version, List<IItems.Item> loadedItems) {
+		loading = false;
+		if (loadedItems == null || this.version != version) {
+			return;
+		}
+		items = new LinkedList<IItems.Item>();
+		for (IItems.Item item : loadedItems) {
+			if (items.size() >= maxSize) {
+				break;
+			}
+			items.add(copy(item));
+		}
+		complete = loadedItems.size() <= maxSize;
+	}
+
+	/**
+	 * Returns page of newest items.
+	 *
+	 * @return list of items or <code>null</code> if cache is not able to
+	 *         answer
+	 */
+	public synchronized List<IItems.Item> getItems(int offset, Integer limit) {
+		if (items == null) {
+			return null;
+		}
+		if (limit == null) {
+			if (!complete) {
+				return null;
+			}
+			limit = items.size();
+		}
+		if (!complete && offset + limit > items.size()) {
+			return null;
+		}
+		List<IItems.Item> result = new ArrayList<IItems.Item>(Math.min(limit, items.size()));
+		int idx = 0;
+		for (IItems.Item item : items) {
+			if (idx >= offset + limit) {
+				break;
+			}
+			if (idx >= offset) {
+				result.add(copy(item));
+			}
+			idx++;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns items with passed ids in order of ids.
+	 *
+	 * @return list of items or <code>null</code> if some of items may exist
+	 *         but are not cached
+	 */
+	public synchronized List<IItems.Item> getItems(List<String> ids) {
+		if (items == null) {
+			return null;
+		}
+		List<IItems.Item> result = new ArrayList<IItems.Item>(ids.size());
+		for (String id : ids) {
+			IItems.Item item = find(id);
+			if (item == null) {
+				if (complete) {
+					continue;
+				}
+				return null;
+			}
+			if (item.getCreationDate() == null) {
+				return null;
+			}
+			result.add(copy(item));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns cached item (without copying payload!) or <code>null</code>.
+	 */
+	public synchronized IItems.Item getItem(String id) {
+		return items == null ? null : find(id);
+	}
+
+	/**
+	 * Returns ids of all items of node, oldest first.
+	 *
+	 * @return array of ids or <code>null</code> if cache does not contain all
+	 *         items of node
+	 */
+	public synchronized String[] getItemsIds() {
+		if (items == null || !complete) {
+			return null;
+		}
+		String[] ids = new String[items.size()];
+		int idx = ids.length;
+		for (IItems.Item item : items) {
+			ids[--idx] = item.getId();
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns number of items of node or <code>null</code> if it is not
+	 * known.
+	 */
+	public synchronized Integer getItemsCount() {
+		if (items == null || !complete) {
+			return null;
+		}
+		return items.size();
+	}
+
+	public synchronized void itemWritten(String nodeName, String id, long timeInMilis, Element item) {
+		version++;
+		if (items == null) {
+			return;
+		}
+		IItems.Item old = remove(id);
+		Date date = new Date(timeInMilis);
+		// if item was not cached and cache is not complete we do not know
+		// when item was created as it may be republished
+		Date creationDate = old != null ? old.getCreationDate() : (complete ? date : null);
+		items.addFirst(new IItems.Item(nodeName, id, creationDate, date, item.clone()));
+		if (items.size() > maxSize) {
+			items.removeLast();
+			complete = false;
+		}
+	}
+
+	public synchronized void itemDeleted(String id) {
+		version++;
+		if (items == null) {
+			return;
+		}
+		// remaining items are still newest items of node
+		remove(id);
+		if (items.isEmpty() && !complete) {
+			items = null;
+		}
+	}
+
+	public synchronized void invalidate() {
+		version++;
+		items = null;
+		complete = false;
+	}
+
+	private IItems.Item find(String id) {
+		for (IItems.Item item : items) {
+			if (item.getId().equals(id)) {
+				return item;
+			}
+		}
+		return null;
+	}
+
+	private IItems.Item remove(String id) {
+		Iterator<IItems.Item> it = items.iterator();
+		while (it.hasNext()) {
+			IItems.Item item = it.next();
+			if (item.getId().equals(id)) {
+				it.remove();
+				return item;
+			}
+		}
+		return null;
+	}
+
+	private static IItems.Item copy(IItems.Item item) {
+		return new IItems.Item(item.getNode(), item.getId(), item.getCreationDate(), item.getItemUpdateDate(),
+				item.getItem().clone());
+	}
+}
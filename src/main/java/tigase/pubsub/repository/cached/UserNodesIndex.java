@@ -0,0 +1,570 @@
+/*
+ * UserNodesIndex.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.BareJID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of nodes in which users are subscribed or affiliated.
+ *
+ * For every user it keeps cached nodes which contain subscription or
+ * affiliation of this user, so operations concerning single user do not need
+ * to check every cached node. Nodes with more subscribers and affiliates than
+ * {@link #MAX_INDEXED_NODE_SIZE} are not indexed per user, as it would
+ * require adding every user of such node whenever it is loaded; instead they
+ * are kept in a separate set and checked for each user.
+ *
+ * It also keeps subscriptions and affiliations of the user in each service.
+ * They are loaded from the database on first use and later updated whenever
+ * changes of a cached node are merged, so there is no need to query database
+ * again. Number of loaded services is limited; when the limit is exceeded
+ * some of them are dropped and loaded again when needed. Changes written to
+ * the database without passing through the cache (ie. by other cluster node)
+ * are not merged, so loaded lists are also reloaded after
+ * {@link #DEF_MAX_AGE} and dropped when configuration of a node of service is
+ * forgotten.
+ *
+ * All modifications of data of a single user are done atomically by
+ * {@link ConcurrentHashMap#compute(Object, java.util.function.BiFunction)}.
+ */
+class UserNodesIndex {
+
+	private static final Logger log = Logger.getLogger(UserNodesIndex.class.getName());
+
+	private static final Function<ServiceEntry,View<UsersSubscription>> SUBSCRIPTIONS = se -> se.subscriptions;
+	private static final Function<ServiceEntry,View<UsersAffiliation>> AFFILIATIONS = se -> se.affiliations;
+	private static final UnaryOperator<UsersSubscription> SUBSCRIPTION_COPY = s -> new UsersSubscription(s.getJid(),
+			s.getSubid(), s.getSubscription());
+	private static final UnaryOperator<UsersAffiliation> AFFILIATION_COPY = a -> new UsersAffiliation(a.getJid(),
+			a.getAffiliation());
+
+	static final int MAX_INDEXED_NODE_SIZE = 1000;
+
+	static final long DEF_MAX_AGE = 5 * 60 * 1000;
+
+	private final ConcurrentHashMap<BareJID,UserEntry> users = new ConcurrentHashMap<>();
+	// users which have loaded data of service, by service jid
+	private final ConcurrentHashMap<BareJID,Set<BareJID>> serviceUsers = new ConcurrentHashMap<>();
+	private final Set<Node> largeNodes = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger loadedViews = new AtomicInteger(0);
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private volatile int maxSize;
+	private volatile long maxAge = DEF_MAX_AGE;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Creates index.
+	 *
+	 * @param maxSize maximal number of loaded lists of subscriptions or
+	 *                affiliations, <code>0</code> disables keeping them
+	 */
+	UserNodesIndex(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		evictIfNeeded();
+	}
+
+	/**
+	 * Sets time in milliseconds after which loaded list is loaded again from
+	 * the database.
+	 */
+	void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Adds subscribers and affiliates of node which was put to the cache.
+	 */
+	void nodeCached(Node node) {
+		Map<BareJID,UsersSubscription> subscriptions = node.getNodeSubscriptions().getSubscriptionsMap();
+		Map<BareJID,UsersAffiliation> affiliations = node.getNodeAffiliations().getAffiliationsMap();
+		if (subscriptions.size() + affiliations.size() > MAX_INDEXED_NODE_SIZE) {
+			largeNodes.add(node);
+			return;
+		}
+		// adding node is idempotent, so users both subscribed and affiliated
+		// may be processed twice instead of copying jids to a set
+		for (BareJID jid : subscriptions.keySet()) {
+			addCachedNode(jid, node);
+		}
+		for (BareJID jid : affiliations.keySet()) {
+			addCachedNode(jid, node);
+		}
+	}
+
+	/**
+	 * Removes node which was removed from the cache.
+	 */
+	void nodeRemoved(Node node) {
+		if (largeNodes.remove(node)) {
+			return;
+		}
+		for (BareJID jid : node.getNodeSubscriptions().getSubscriptionsMap().keySet()) {
+			removeCachedNode(jid, node);
+		}
+		for (BareJID jid : node.getNodeAffiliations().getAffiliationsMap().keySet()) {
+			removeCachedNode(jid, node);
+		}
+	}
+
+	/**
+	 * Removes node which was deleted from subscriptions and affiliations of
+	 * all users. If node is not cached, then all users need to be checked.
+	 *
+	 * @param node deleted node if it was cached or <code>null</code>
+	 */
+	void nodeDeleted(BareJID serviceJid, String nodeName, Node node) {
+		Collection<BareJID> jids;
+		if (node != null && !largeNodes.remove(node)) {
+			Set<BareJID> nodeJids = new HashSet<>(node.getNodeSubscriptions().getSubscriptionsMap().keySet());
+			nodeJids.addAll(node.getNodeAffiliations().getAffiliationsMap().keySet());
+			jids = nodeJids;
+		} else {
+			Set<BareJID> serviceJids = serviceUsers.get(serviceJid);
+			jids = serviceJids == null ? Collections.<BareJID>emptySet() : serviceJids;
+		}
+		for (BareJID jid : jids) {
+			users.computeIfPresent(jid, (k, entry) -> {
+				if (node != null) {
+					entry.cachedNodes.remove(node);
+				}
+				ServiceEntry se = entry.services.get(serviceJid);
+				if (se != null) {
+					se.subscriptions.update(nodeName, null);
+					se.affiliations.update(nodeName, null);
+				}
+				return entry.isEmpty() ? null : entry;
+			});
+		}
+	}
+
+	/**
+	 * Drops subscriptions and affiliations of all users loaded for service,
+	 * as they may have been modified without passing through the cache.
+	 * Lists which are being loaded are dropped as well, so data read before
+	 * this call will not be stored.
+	 */
+	void serviceChanged(BareJID serviceJid) {
+		Set<BareJID> jids = serviceUsers.remove(serviceJid);
+		if (jids == null) {
+			return;
+		}
+		for (BareJID jid : jids) {
+			users.computeIfPresent(jid, (k, entry) -> {
+				ServiceEntry se = entry.services.remove(serviceJid);
+				if (se != null) {
+					loadedViews.addAndGet(-se.loadedCount());
+				}
+				return entry.isEmpty() ? null : entry;
+			});
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Dropped user lists of service {0}, users = {1}",
+					new Object[]{serviceJid, jids.size()});
+		}
+	}
+
+	/**
+	 * Updates index with merged changes of subscriptions of node.
+	 */
+	void subscriptionsChanged(Node node, Collection<UsersSubscription> changes) {
+		for (UsersSubscription s : changes) {
+			UsersSubscription value = s.getSubscription() == Subscription.none ? null : SUBSCRIPTION_COPY.apply(s);
+			changed(node, s.getJid(), SUBSCRIPTIONS, value);
+		}
+	}
+
+	/**
+	 * Updates index with merged changes of affiliations of node.
+	 */
+	void affiliationsChanged(Node node, Collection<UsersAffiliation> changes) {
+		for (UsersAffiliation a : changes) {
+			UsersAffiliation value = a.getAffiliation() == Affiliation.none ? null : AFFILIATION_COPY.apply(a);
+			changed(node, a.getJid(), AFFILIATIONS, value);
+		}
+	}
+
+	/**
+	 * Returns cached nodes in which user is subscribed or affiliated.
+	 *
+	 * @param serviceJid service to which nodes should belong or
+	 *                   <code>null</code> for nodes of all services
+	 */
+	List<Node> getCachedNodes(BareJID userJid, BareJID serviceJid) {
+		List<Node> result = new ArrayList<>();
+		users.computeIfPresent(userJid, (k, entry) -> {
+			for (Node node : entry.cachedNodes) {
+				if (serviceJid == null || serviceJid.equals(node.getServiceJid())) {
+					result.add(node);
+				}
+			}
+			return entry;
+		});
+		for (Node node : largeNodes) {
+			if ((serviceJid == null || serviceJid.equals(node.getServiceJid())) && !result.contains(node)
+					&& (node.getNodeSubscriptions().getSubscriptionsMap().containsKey(userJid)
+							|| node.getNodeAffiliations().getAffiliationsMap().containsKey(userJid))) {
+				result.add(node);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns subscriptions of user in service or <code>null</code> if they
+	 * are not loaded. In the latter case they should be loaded from the
+	 * database and passed to {@link #subscriptionsLoaded}. Returned map should
+	 * not be modified.
+	 */
+	Map<String,UsersSubscription> getSubscriptions(BareJID serviceJid, BareJID userJid) {
+		return get(serviceJid, userJid, SUBSCRIPTIONS);
+	}
+
+	/**
+	 * Stores subscriptions of user loaded from the database, applying changes
+	 * merged while they were loaded, and returns them.
+	 */
+	Map<String,UsersSubscription> subscriptionsLoaded(BareJID serviceJid, BareJID userJid,
+			Map<String,UsersSubscription> loaded) {
+		return loaded(serviceJid, userJid, SUBSCRIPTIONS, SUBSCRIPTION_COPY, loaded);
+	}
+
+	/**
+	 * Returns affiliations of user in service or <code>null</code> if they are
+	 * not loaded. In the latter case they should be loaded from the database
+	 * and passed to {@link #affiliationsLoaded}. Returned map should not be
+	 * modified.
+	 */
+	Map<String,UsersAffiliation> getAffiliations(BareJID serviceJid, BareJID userJid) {
+		return get(serviceJid, userJid, AFFILIATIONS);
+	}
+
+	/**
+	 * Stores affiliations of user loaded from the database, applying changes
+	 * merged while they were loaded, and returns them.
+	 */
+	Map<String,UsersAffiliation> affiliationsLoaded(BareJID serviceJid, BareJID userJid,
+			Map<String,UsersAffiliation> loaded) {
+		return loaded(serviceJid, userJid, AFFILIATIONS, AFFILIATION_COPY, loaded);
+	}
+
+	/**
+	 * Forgets about loading of subscriptions and affiliations of user which
+	 * failed.
+	 */
+	void loadFailed(BareJID serviceJid, BareJID userJid) {
+		users.computeIfPresent(userJid, (k, entry) -> {
+			ServiceEntry se = entry.services.get(serviceJid);
+			if (se != null) {
+				se.subscriptions.pending = null;
+				se.affiliations.pending = null;
+				if (se.isEmpty()) {
+					entry.services.remove(serviceJid);
+					serviceEntryRemoved(serviceJid, userJid);
+				}
+			}
+			return entry.isEmpty() ? null : entry;
+		});
+	}
+
+	/**
+	 * Removes all data of user and all loaded data of service with the same
+	 * JID.
+	 */
+	void userRemoved(BareJID userJid) {
+		UserEntry removed = users.remove(userJid);
+		if (removed != null) {
+			for (Map.Entry<BareJID,ServiceEntry> e : removed.services.entrySet()) {
+				loadedViews.addAndGet(-e.getValue().loadedCount());
+				serviceEntryRemoved(e.getKey(), userJid);
+			}
+		}
+		Set<BareJID> jids = serviceUsers.remove(userJid);
+		if (jids == null) {
+			return;
+		}
+		for (BareJID jid : jids) {
+			users.computeIfPresent(jid, (k, entry) -> {
+				ServiceEntry se = entry.services.remove(userJid);
+				if (se != null) {
+					loadedViews.addAndGet(-se.loadedCount());
+				}
+				return entry.isEmpty() ? null : entry;
+			});
+		}
+	}
+
+	int size() {
+		return users.size();
+	}
+
+	void getStatistics(String name, StatisticsList stats) {
+		stats.add(name, "User index users", users.size(), Level.FINEST);
+		stats.add(name, "User index loaded lists", loadedViews.get(), Level.FINEST);
+		stats.add(name, "User index large nodes", largeNodes.size(), Level.FINEST);
+		stats.add(name, "User index hits", hits.sum(), Level.FINEST);
+		stats.add(name, "User index misses", misses.sum(), Level.FINEST);
+	}
+
+	private void addCachedNode(BareJID jid, Node node) {
+		users.compute(jid, (k, entry) -> {
+			if (entry == null) {
+				entry = new UserEntry();
+			}
+			entry.cachedNodes.add(node);
+			return entry;
+		});
+	}
+
+	private void removeCachedNode(BareJID jid, Node node) {
+		users.computeIfPresent(jid, (k, entry) -> {
+			entry.cachedNodes.remove(node);
+			return entry.isEmpty() ? null : entry;
+		});
+	}
+
+	private void serviceEntryAdded(BareJID serviceJid, BareJID userJid) {
+		serviceUsers.compute(serviceJid, (k, jids) -> {
+			if (jids == null) {
+				jids = ConcurrentHashMap.newKeySet();
+			}
+			jids.add(userJid);
+			return jids;
+		});
+	}
+
+	private void serviceEntryRemoved(BareJID serviceJid, BareJID userJid) {
+		serviceUsers.computeIfPresent(serviceJid, (k, jids) -> {
+			jids.remove(userJid);
+			return jids.isEmpty() ? null : jids;
+		});
+	}
+
+	private <V> void changed(Node node, BareJID jid, Function<ServiceEntry,View<V>> view, V value) {
+		final boolean referenced = !largeNodes.contains(node)
+				&& (node.getNodeSubscriptions().getSubscriptionsMap().containsKey(jid)
+						|| node.getNodeAffiliations().getAffiliationsMap().containsKey(jid));
+		users.compute(jid, (k, entry) -> {
+			if (entry == null) {
+				if (!referenced) {
+					return null;
+				}
+				entry = new UserEntry();
+			}
+			if (referenced) {
+				entry.cachedNodes.add(node);
+			} else {
+				entry.cachedNodes.remove(node);
+			}
+			ServiceEntry se = entry.services.get(node.getServiceJid());
+			if (se != null) {
+				view.apply(se).update(node.getName(), value);
+			}
+			return entry.isEmpty() ? null : entry;
+		});
+	}
+
+	private <V> Map<String,V> get(BareJID serviceJid, BareJID userJid, Function<ServiceEntry,View<V>> view) {
+		if (maxSize <= 0) {
+			return null;
+		}
+		final long now = System.currentTimeMillis();
+		Map<String,V>[] result = new Map[1];
+		users.compute(userJid, (k, entry) -> {
+			if (entry == null) {
+				entry = new UserEntry();
+			}
+			ServiceEntry se = entry.services.get(serviceJid);
+			if (se == null) {
+				se = new ServiceEntry();
+				entry.services.put(serviceJid, se);
+				serviceEntryAdded(serviceJid, userJid);
+			}
+			View<V> v = view.apply(se);
+			if (v.values != null && now - v.loadedAt > maxAge) {
+				v.values = null;
+				loadedViews.decrementAndGet();
+			}
+			if (v.values != null) {
+				result[0] = Collections.unmodifiableMap(new HashMap<>(v.values));
+			} else if (v.pending == null) {
+				// changes merged from now on will be applied to loaded data
+				v.pending = new HashMap<>();
+			}
+			return entry;
+		});
+		if (result[0] != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+		return result[0];
+	}
+
+	private <V> Map<String,V> loaded(BareJID serviceJid, BareJID userJid, Function<ServiceEntry,View<V>> view,
+			UnaryOperator<V> copy, Map<String,V> loaded) {
+		Map<String,V>[] result = new Map[1];
+		boolean[] stored = new boolean[1];
+		users.computeIfPresent(userJid, (k, entry) -> {
+			ServiceEntry se = entry.services.get(serviceJid);
+			View<V> v = se == null ? null : view.apply(se);
+			if (v != null && v.values != null) {
+				// loaded by other thread in the meantime
+				result[0] = Collections.unmodifiableMap(new HashMap<>(v.values));
+			} else if (v != null && v.pending != null) {
+				Map<String,V> values = new HashMap<>();
+				for (Map.Entry<String,V> e : loaded.entrySet()) {
+					values.put(e.getKey(), copy.apply(e.getValue()));
+				}
+				for (Map.Entry<String,V> e : v.pending.entrySet()) {
+					if (e.getValue() == null) {
+						values.remove(e.getKey());
+					} else {
+						values.put(e.getKey(), e.getValue());
+					}
+				}
+				v.values = values;
+				v.loadedAt = System.currentTimeMillis();
+				v.pending = null;
+				stored[0] = true;
+				result[0] = Collections.unmodifiableMap(new HashMap<>(values));
+			}
+			return entry;
+		});
+		if (stored[0]) {
+			loadedViews.incrementAndGet();
+			evictIfNeeded();
+		}
+		if (result[0] == null) {
+			result[0] = Collections.unmodifiableMap(new HashMap<>(loaded));
+		}
+		return result[0];
+	}
+
+	private void evictIfNeeded() {
+		int max = maxSize;
+		if (loadedViews.get() <= max) {
+			return;
+		}
+		// only one thread is trimming index, other threads will not wait
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			int target = max - Math.max(1, max / 20);
+			Iterator<BareJID> it = users.keySet().iterator();
+			while (loadedViews.get() > target && it.hasNext()) {
+				users.computeIfPresent(it.next(), (k, entry) -> {
+					Iterator<Map.Entry<BareJID,ServiceEntry>> sit = entry.services.entrySet().iterator();
+					while (sit.hasNext()) {
+						Map.Entry<BareJID,ServiceEntry> e = sit.next();
+						ServiceEntry se = e.getValue();
+						// keep entries which are being loaded
+						if (se.subscriptions.pending == null && se.affiliations.pending == null) {
+							loadedViews.addAndGet(-se.loadedCount());
+							sit.remove();
+							serviceEntryRemoved(e.getKey(), k);
+						}
+					}
+					return entry.isEmpty() ? null : entry;
+				});
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Trimmed user index, loaded lists = {0}", loadedViews.get());
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private static class UserEntry {
+
+		private final Set<Node> cachedNodes = new HashSet<>();
+		private final Map<BareJID,ServiceEntry> services = new HashMap<>();
+
+		private boolean isEmpty() {
+			return cachedNodes.isEmpty() && services.isEmpty();
+		}
+	}
+
+	private static class ServiceEntry {
+
+		private final View<UsersSubscription> subscriptions = new View<>();
+		private final View<UsersAffiliation> affiliations = new View<>();
+
+		private boolean isEmpty() {
+			return subscriptions.isEmpty() && affiliations.isEmpty();
+		}
+
+		private int loadedCount() {
+			return (subscriptions.values == null ? 0 : 1) + (affiliations.values == null ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Subscriptions or affiliations of user in service, by node name.
+	 */
+	private static class View<V> {
+
+		// null if not loaded yet
+		private Map<String,V> values;
+		private long loadedAt;
+		// changes merged while loading, null value marks removal
+		private Map<String,V> pending;
+
+		private boolean isEmpty() {
+			return values == null && pending == null;
+		}
+
+		private void update(String nodeName, V value) {
+			Map<String,V> target = values != null ? values : pending;
+			if (target == null) {
+				return;
+			}
+			if (value == null && target == values) {
+				values.remove(nodeName);
+			} else {
+				target.put(nodeName, value);
+			}
+		}
+	}
+}
@@ -189,7 +189,217 @@ public class StoredProcedures {
 			conn.close();
 		}			
 	}	
+
+	public static void tigPubSubGetItems(Long nodeId, String itemsIds, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String[] ids = itemsIds.split("\u0001", -1);
+			StringBuilder sb = new StringBuilder("select pi.id, pi.data, p.jid, pi.creation_date, pi.update_date "
+					+ "from tig_pubsub_items pi "
+					+ "inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id "
+					+ "where pi.node_id = ? and pi.id in (");
+			for (int i = 0; i < ids.length; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append('?');
+			}
+			sb.append(')');
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+			ps.setLong(1, nodeId);
+			for (int i = 0; i < ids.length; i++) {
+				ps.setString(i + 2, ids[i]);
+			}
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
 	
+	public static void tigPubSubQueryItems(Long nodeId, Integer order, java.sql.Timestamp since, String afterId,
+			String beforeId, Integer offset, Integer limit, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String dateColumn = (order != null && order == 1) ? "update_date" : "creation_date";
+			java.sql.Timestamp afterDate = null;
+			java.sql.Timestamp beforeDate = null;
+			if (afterId != null) {
+				afterDate = getItemDate(conn, nodeId, dateColumn, afterId);
+				// there is nothing after item which does not exist
+				if (afterDate == null) {
+					limit = 0;
+				}
+			}
+			if (beforeId != null) {
+				beforeDate = getItemDate(conn, nodeId, dateColumn, beforeId);
+			}
+
+			StringBuilder sb = new StringBuilder("select pi.id, pi.data, p.jid, pi.creation_date, pi.update_date "
+					+ "from tig_pubsub_items pi "
+					+ "inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id "
+					+ "where pi.node_id = ?");
+			// fetch clause does not accept 0 rows
+			if (limit != null && limit <= 0) {
+				sb.append(" and 1 = 0");
+				limit = 1;
+			}
+			if (since != null) {
+				sb.append(" and pi.").append(dateColumn).append(" > ?");
+			}
+			if (afterDate != null) {
+				sb.append(" and (pi.").append(dateColumn).append(" < ? or (pi.").append(dateColumn)
+						.append(" = ? and pi.id < ?))");
+			}
+			if (beforeDate != null) {
+				sb.append(" and (pi.").append(dateColumn).append(" > ? or (pi.").append(dateColumn)
+						.append(" = ? and pi.id > ?))");
+			}
+			sb.append(" order by pi.").append(dateColumn).append(" desc, pi.id desc");
+			sb.append(" offset ? rows fetch next ? rows only");
+
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+			int i = 1;
+			ps.setLong(i++, nodeId);
+			if (since != null) {
+				ps.setTimestamp(i++, since);
+			}
+			if (afterDate != null) {
+				ps.setTimestamp(i++, afterDate);
+				ps.setTimestamp(i++, afterDate);
+				ps.setString(i++, afterId);
+			}
+			if (beforeDate != null) {
+				ps.setTimestamp(i++, beforeDate);
+				ps.setTimestamp(i++, beforeDate);
+				ps.setString(i++, beforeId);
+			}
+			ps.setInt(i++, offset == null ? 0 : offset);
+			ps.setInt(i++, limit == null ? Integer.MAX_VALUE : limit);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigPubSubGetNodesRecentItems(String nodesIds, Integer limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String[] ids = nodesIds.split(",");
+			// recent items of every node are selected by a separate limited
+			// select using index on (node_id, update_date, id)
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < ids.length; i++) {
+				if (i > 0) {
+					sb.append(" union all ");
+				}
+				sb.append("select * from (select pi.node_id, pi.id, pi.data, p.jid, pi.creation_date, pi.update_date "
+						+ "from tig_pubsub_items pi "
+						+ "inner join tig_pubsub_jids p on p.jid_id = pi.publisher_id "
+						+ "where pi.node_id = ? ");
+				// fetch clause does not accept 0 rows
+				if (limit != null && limit <= 0) {
+					sb.append("and 1 = 0 ");
+				}
+				sb.append("order by pi.update_date desc, pi.id desc");
+				if (limit != null && limit > 0) {
+					sb.append(" fetch first ? rows only");
+				}
+				sb.append(") n").append(i);
+			}
+			sb.append(" order by node_id, update_date desc, id desc");
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+			int p = 1;
+			for (int i = 0; i < ids.length; i++) {
+				ps.setLong(p++, Long.parseLong(ids[i]));
+				if (limit != null && limit > 0) {
+					ps.setInt(p++, limit);
+				}
+			}
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigPubSubGetItemPosition(Long nodeId, Integer order, String itemId, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String dateColumn = (order != null && order == 1) ? "update_date" : "creation_date";
+			java.sql.Timestamp date = getItemDate(conn, nodeId, dateColumn, itemId);
+			PreparedStatement ps = conn.prepareStatement("select count(1) from tig_pubsub_items "
+					+ "where node_id = ? and (" + dateColumn + " > ? or (" + dateColumn + " = ? and id > ?))");
+			ps.setLong(1, nodeId);
+			ps.setTimestamp(2, date);
+			ps.setTimestamp(3, date);
+			ps.setString(4, itemId);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigPubSubGetNodeItemsCount(Long nodeId, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("select count(1) from tig_pubsub_items where node_id = ?");
+			ps.setLong(1, nodeId);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static java.sql.Timestamp getItemDate(Connection conn, Long nodeId, String dateColumn, String itemId)
+			throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("select " + dateColumn + " from tig_pubsub_items "
+				+ "where node_id = ? and id = ?");
+		ps.setLong(1, nodeId);
+		ps.setString(2, itemId);
+		ResultSet rs = ps.executeQuery();
+		try {
+			return rs.next() ? rs.getTimestamp(1) : null;
+		} finally {
+			rs.close();
+		}
+	}
+
 	public static void tigPubSubWriteItem(Long nodeId, String itemId, String publisher, String itemData,
 			ResultSet[] data) throws SQLException {	
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -636,6 +846,32 @@ public class StoredProcedures {
 		}			
 	}			
 	
+	/**
+	 * Rows of affiliations and subscriptions are separated by character
+	 * <code>1</code> and fields of a row by character <code>2</code>.
+	 * Subscription <code>none</code> removes subscription of jid.
+	 */
+	public static void tigPubSubUpdateNodeAffiliationsAndSubscriptions(Long nodeId, String affiliations,
+			String subscriptions, ResultSet[] data) throws SQLException {
+		if (affiliations != null && !affiliations.isEmpty()) {
+			for (String row : affiliations.split("\u0001", -1)) {
+				String[] fields = row.split("\u0002", -1);
+				tigPubSubSetNodeAffiliation(nodeId, fields[0], fields[1], data);
+			}
+		}
+		if (subscriptions != null && !subscriptions.isEmpty()) {
+			for (String row : subscriptions.split("\u0001", -1)) {
+				String[] fields = row.split("\u0002", -1);
+				if ("none".equals(fields[1])) {
+					tigPubSubDeleteNodeSubscription(nodeId, fields[0], data);
+				} else {
+					tigPubSubSetNodeSubscription(nodeId, fields[0], fields[1], fields[2].isEmpty() ? null : fields[2],
+							data);
+				}
+			}
+		}
+	}
+
 	public static void tigPubSubGetUserAffiliations(String serviceJid, String jid, ResultSet[] data) throws SQLException {	
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
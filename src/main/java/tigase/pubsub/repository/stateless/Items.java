@@ -3,6 +3,7 @@ package tigase.pubsub.repository.stateless;
 import java.util.Date;
 import java.util.List;
 
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.repository.IItems;
 import tigase.pubsub.repository.IPubSubDAO;
 import tigase.pubsub.repository.RepositoryException;
@@ -41,6 +42,21 @@ class Items implements IItems {
 		return this.dao.getItemCreationDate(serviceJid, nodeId, id);
 	}
 
+	@Override
+	public List<Item> getItems(List<String> ids) throws RepositoryException {
+		return this.dao.getItems(serviceJid, nodeId, nodeName, ids);
+	}
+
+	@Override
+	public int getItemPosition(CollectionItemsOrdering ordering, String id) throws RepositoryException {
+		return this.dao.getItemPosition(serviceJid, nodeId, ordering, id);
+	}
+
+	@Override
+	public int getItemsCount() throws RepositoryException {
+		return this.dao.getItemsCount(serviceJid, nodeId);
+	}
+
 	@Override
 	public String[] getItemsIds() throws RepositoryException {
 		return this.dao.getItemsIds(serviceJid, nodeId);
@@ -61,6 +77,12 @@ class Items implements IItems {
 		return this.dao.getItemUpdateDate(serviceJid, nodeId, id);
 	}
 
+	@Override
+	public List<Item> queryItems(CollectionItemsOrdering ordering, Date since, String afterId, String beforeId,
+			int offset, Integer limit) throws RepositoryException {
+		return this.dao.queryItems(serviceJid, nodeId, nodeName, ordering, since, afterId, beforeId, offset, limit);
+	}
+
 	@Override
 	public void writeItem(long timeInMilis, String id, String publisher, Element item) throws RepositoryException {
 		this.dao.writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item);
@@ -0,0 +1,70 @@
+package tigase.pubsub;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AbstractNodeConfigTest {
+
+	@Test
+	public void test_valuesUpdatedAfterModification() {
+		LeafNodeConfig config = new LeafNodeConfig("node-1");
+		assertEquals(AccessModel.open, config.getNodeAccessModel());
+		assertEquals(Integer.valueOf(10), config.getMaxItems());
+
+		config.setValue("pubsub#access_model", AccessModel.whitelist.name());
+		config.setValue("pubsub#max_items", "5");
+		assertEquals(AccessModel.whitelist, config.getNodeAccessModel());
+		assertEquals(Integer.valueOf(5), config.getMaxItems());
+
+		// modification done directly on form is visible as well
+		config.getForm().get("pubsub#title").setValues(new String[] { "Title" });
+		assertEquals("Title", config.getTitle());
+	}
+
+	@Test
+	public void test_copyOnWrite() {
+		CollectionNodeConfig config = new CollectionNodeConfig("node-1");
+		config.setCollection("parent-1");
+		config.addChildren("child-1");
+
+		AbstractNodeConfig copy1 = config.copyOnWrite();
+		AbstractNodeConfig copy2 = config.copyOnWrite();
+		assertTrue(copy1 instanceof CollectionNodeConfig);
+		assertEquals("parent-1", copy1.getCollection());
+
+		copy1.setCollection("parent-2");
+		((CollectionNodeConfig) copy1).addChildren("child-2");
+		assertEquals("parent-2", copy1.getCollection());
+		List<String> children = Arrays.asList(copy1.getChildren());
+		assertTrue(children.contains("child-1"));
+		assertTrue(children.contains("child-2"));
+		assertEquals("parent-1", config.getCollection());
+		children = Arrays.asList(config.getChildren());
+		assertTrue(children.contains("child-1"));
+		assertFalse(children.contains("child-2"));
+		assertEquals("parent-1", copy2.getCollection());
+
+		config.setCollection("parent-3");
+		assertEquals("parent-3", config.getCollection());
+		assertEquals("parent-1", copy2.getCollection());
+		assertEquals("parent-2", copy1.getCollection());
+	}
+
+	@Test
+	public void test_valuesCachedAfterCopyOfExposedForm() {
+		LeafNodeConfig config = new LeafNodeConfig("node-1");
+		config.getForm();
+		AbstractNodeConfig copy = config.copyOnWrite();
+
+		// modification creates own form, which is not exposed
+		config.setValue("pubsub#title", "Title");
+		assertEquals("Title", config.getTitle());
+		assertSame(config.values(), config.values());
+		assertEquals("", copy.getTitle());
+	}
+
+}
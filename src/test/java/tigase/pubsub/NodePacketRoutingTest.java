@@ -0,0 +1,84 @@
+package tigase.pubsub;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.util.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+import static org.junit.Assert.*;
+
+public class NodePacketRoutingTest {
+
+	private static final JID componentJid = JID.jidInstanceNS("pubsub.example.com");
+
+	@Test
+	public void test_getNodeName() throws TigaseStringprepException {
+		assertEquals("node-1", NodePacketRouting.getNodeName(createPubSubPacket("user1@example.com/res", "set",
+				"http://jabber.org/protocol/pubsub", "publish", "node-1")));
+		assertEquals("node-1", NodePacketRouting.getNodeName(createPubSubPacket("user1@example.com/res", "set",
+				"http://jabber.org/protocol/pubsub#owner", "delete", "node-1")));
+
+		Element query = new Element("query", new String[] { "xmlns", "node" },
+				new String[] { "http://jabber.org/protocol/disco#items", "node-2" });
+		assertEquals("node-2", NodePacketRouting.getNodeName(createPacket("user1@example.com/res", "get", query)));
+
+		Element presence = new Element("presence", new String[] { "from", "to" },
+				new String[] { "user1@example.com/res", componentJid.toString() });
+		assertNull(NodePacketRouting.getNodeName(Packet.packetInstance(presence)));
+	}
+
+	@Test
+	public void test_sameNodeSameQueue() throws TigaseStringprepException {
+		NodePacketRouting routing = new NodePacketRouting();
+
+		int hash1 = routing.hashCodeForPacket(createPubSubPacket("user1@example.com/res", "set",
+				"http://jabber.org/protocol/pubsub", "publish", "node-1"), componentJid);
+		int hash2 = routing.hashCodeForPacket(createPubSubPacket("user2@example.com/res", "set",
+				"http://jabber.org/protocol/pubsub", "subscribe", "node-1"), componentJid);
+		int hash3 = routing.hashCodeForPacket(createPubSubPacket("user2@example.com/res", "get",
+				"http://jabber.org/protocol/pubsub", "items", "node-1"), componentJid);
+
+		assertEquals(hash1, hash2);
+		assertEquals(hash1, hash3);
+	}
+
+	@Test
+	public void test_hotNode() throws TigaseStringprepException {
+		NodePacketRouting routing = new NodePacketRouting();
+		routing.setHotNodeThreshold(2);
+
+		Packet publish = createPubSubPacket("user1@example.com/res", "set", "http://jabber.org/protocol/pubsub",
+				"publish", "node-1");
+		Packet items = createPubSubPacket("user2@example.com/res", "get", "http://jabber.org/protocol/pubsub",
+				"items", "node-1");
+
+		int nodeHash = routing.hashCodeForPacket(publish, componentJid);
+		routing.hashCodeForPacket(publish, componentJid);
+		routing.everySecond();
+
+		// read-only requests for hot node are spread, modifications are not
+		assertEquals(items.hashCode(), routing.hashCodeForPacket(items, componentJid));
+		assertEquals(nodeHash, routing.hashCodeForPacket(publish, componentJid));
+
+		// node is not hot after second without packets
+		routing.everySecond();
+		routing.everySecond();
+		assertEquals(nodeHash, routing.hashCodeForPacket(items, componentJid));
+	}
+
+	private Packet createPubSubPacket(String from, String type, String xmlns, String action, String node)
+			throws TigaseStringprepException {
+		Element pubsub = new Element("pubsub", new String[] { "xmlns" }, new String[] { xmlns });
+		pubsub.addChild(new Element(action, new String[] { "node" }, new String[] { node }));
+		return createPacket(from, type, pubsub);
+	}
+
+	private Packet createPacket(String from, String type, Element payload) throws TigaseStringprepException {
+		Element iq = new Element("iq", new String[] { "from", "to", "type", "id" },
+				new String[] { from, componentJid.toString(), type, "1" });
+		iq.addChild(payload);
+		return Packet.packetInstance(iq);
+	}
+
+}
@@ -0,0 +1,143 @@
+package tigase.pubsub;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NotificationBackpressureTest {
+
+	@Test
+	public void test_dropPolicy() {
+		NotificationBackpressure backpressure = new NotificationBackpressure();
+		backpressure.setPolicy(NotificationBackpressure.Policy.drop);
+		backpressure.setBudget(10);
+		backpressure.update(8, false);
+
+		assertTrue(backpressure.acquire(1));
+		assertTrue(backpressure.acquire(1));
+		assertFalse(backpressure.acquire(1));
+		assertEquals(1, backpressure.getDropped());
+
+		// queue was drained
+		backpressure.update(0, false);
+		assertTrue(backpressure.acquire(1));
+
+		backpressure.update(0, true);
+		assertFalse(backpressure.acquire(1));
+		assertEquals(2, backpressure.getDropped());
+	}
+
+	@Test
+	public void test_shedPolicy() {
+		NotificationBackpressure backpressure = new NotificationBackpressure();
+		backpressure.setPolicy(NotificationBackpressure.Policy.shed);
+		backpressure.setBudget(10);
+		backpressure.setShedThreshold(5);
+		backpressure.update(20, false);
+
+		assertFalse(backpressure.acquire(100));
+		assertTrue(backpressure.acquire(5));
+		assertEquals(1, backpressure.getShed());
+		assertEquals(0, backpressure.getDropped());
+	}
+
+	@Test
+	public void test_delayPolicy() throws Exception {
+		final NotificationBackpressure backpressure = new NotificationBackpressure();
+		backpressure.setPolicy(NotificationBackpressure.Policy.delay);
+		backpressure.setBudget(10);
+		backpressure.setMaxDelay(50);
+		backpressure.update(20, false);
+
+		// pressure is not gone, but notification is sent after delay
+		long start = System.currentTimeMillis();
+		assertTrue(backpressure.acquire(1));
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		assertEquals(1, backpressure.getThrottled());
+		assertEquals(0, backpressure.getDropped());
+
+		backpressure.setMaxDelay(10000);
+		Thread t = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+			}
+			backpressure.update(0, false);
+		});
+		t.start();
+		assertTrue(backpressure.acquire(1));
+		t.join();
+		assertEquals(2, backpressure.getThrottled());
+		assertEquals(0, backpressure.getDropped());
+	}
+
+	@Test
+	public void test_admissionWaitsPerBatch() {
+		NotificationBackpressure backpressure = new NotificationBackpressure();
+		backpressure.setPolicy(NotificationBackpressure.Policy.delay);
+		backpressure.setBudget(10);
+		backpressure.setMaxDelay(20);
+		backpressure.update(20, false);
+
+		final int recipients = NotificationBackpressure.DELAY_BATCH_SIZE * 2 + 50;
+		NotificationBackpressure.Admission admission = backpressure.admission(recipients);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < recipients; i++) {
+			assertTrue(admission.acquire());
+		}
+		assertTrue(System.currentTimeMillis() - start >= 20 * 3);
+		assertEquals(3, backpressure.getThrottled());
+		assertEquals(0, backpressure.getDropped());
+		assertEquals(0, admission.getDropped());
+	}
+
+	@Test
+	public void test_fanOutLargerThanBudget() {
+		NotificationBackpressure backpressure = new NotificationBackpressure();
+		backpressure.setPolicy(NotificationBackpressure.Policy.drop);
+		backpressure.setBudget(10);
+		backpressure.setMaxDelay(1000);
+		// outgoing queue is drained as fast as notifications are sent
+		backpressure.setQueueDepthSource(() -> 0);
+		backpressure.update(0, false);
+
+		NotificationBackpressure.Admission admission = backpressure.admission(1000);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(admission.acquire());
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(0, backpressure.getDropped());
+		assertEquals(0, admission.getDropped());
+	}
+
+	@Test
+	public void test_nonBlockingAdmission() {
+		NotificationBackpressure backpressure = new NotificationBackpressure();
+		backpressure.setPolicy(NotificationBackpressure.Policy.delay);
+		backpressure.setBudget(10);
+		backpressure.setMaxDelay(1000);
+		backpressure.update(20, false);
+
+		NotificationBackpressure.Admission admission = backpressure.nonBlockingAdmission(5);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			assertTrue(admission.acquire());
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(0, backpressure.getThrottled());
+		assertEquals(0, admission.getDropped());
+	}
+
+	@Test
+	public void test_disabledBudget() {
+		NotificationBackpressure backpressure = new NotificationBackpressure();
+		backpressure.setPolicy(NotificationBackpressure.Policy.drop);
+		backpressure.setBudget(0);
+		backpressure.update(1000000, false);
+
+		assertTrue(backpressure.acquire(1));
+		assertFalse(backpressure.isOverloaded());
+	}
+
+}
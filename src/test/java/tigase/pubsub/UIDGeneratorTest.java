@@ -0,0 +1,76 @@
+package tigase.pubsub;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class UIDGeneratorTest {
+
+	@Test
+	public void test_uniqueUnderConcurrency() throws Exception {
+		testUnique(new UIDGenerator(false));
+		testUnique(new UIDGenerator(true));
+	}
+
+	@Test
+	public void test_timeOrdered() throws Exception {
+		UIDGenerator generator = new UIDGenerator(true);
+
+		String prev = generator.createUID();
+		for (int i = 0; i < 10000; i++) {
+			if (i % 1000 == 0) {
+				Thread.sleep(1);
+			}
+			String id = generator.createUID();
+			assertTrue(prev + " should be before " + id, prev.compareTo(id) < 0);
+			prev = id;
+		}
+	}
+
+	@Test
+	public void test_format() {
+		String id = new UIDGenerator(false).createUID();
+		assertEquals(19, id.length());
+		assertTrue(id.matches("[0-9a-z]+"));
+
+		id = new UIDGenerator(true).createUID();
+		assertEquals(26, id.length());
+		assertTrue(id.matches("[0-9a-z]+"));
+	}
+
+	private void testUnique(final UIDGenerator generator) throws Exception {
+		final int threads = 8;
+		final int idsPerThread = 50000;
+		final Set<String> ids = ConcurrentHashMap.newKeySet();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>();
+
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int j = 0; j < idsPerThread; j++) {
+					ids.add(generator.createUID());
+				}
+			});
+			t.start();
+			workers.add(t);
+		}
+		start.countDown();
+		for (Thread t : workers) {
+			t.join();
+		}
+
+		assertEquals(threads * idsPerThread, ids.size());
+	}
+
+}
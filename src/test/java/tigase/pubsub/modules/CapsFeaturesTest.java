@@ -0,0 +1,46 @@
+package tigase.pubsub.modules;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CapsFeaturesTest {
+
+	@Test
+	public void test_getAddedFeatures() {
+		Map<String,String[]> nodes = new HashMap<>();
+		nodes.put("client#1", new String[] { "urn:xmpp:ping", "geoloc+notify", "tune+notify" });
+		nodes.put("client#2", new String[] { "urn:xmpp:ping", "tune+notify" });
+		nodes.put("client#ext", new String[] { "mood+notify" });
+		CapsFeatures capsFeatures = new CapsFeatures(nodes::get);
+
+		Set<String> added = capsFeatures.getAddedFeatures(new String[] { "client#1", "client#ext" }, null);
+		assertEquals(4, added.size());
+		assertTrue(added.contains("mood+notify"));
+
+		added = capsFeatures.getAddedFeatures(new String[] { "client#1" }, new String[] { "client#2" });
+		assertEquals(1, added.size());
+		assertEquals("geoloc+notify", added.iterator().next());
+
+		assertTrue(capsFeatures.getAddedFeatures(new String[] { "client#2" }, new String[] { "client#1" }).isEmpty());
+
+		// features of node are not known yet
+		added = capsFeatures.getAddedFeatures(new String[] { "client#3" }, new String[] { "client#2" });
+		assertTrue(added.isEmpty());
+		String[] features = new String[100];
+		for (int i = 0; i < features.length; i++) {
+			features[i] = "feature" + i + "+notify";
+		}
+		nodes.put("client#3", features);
+		capsFeatures.nodeFeaturesChanged("client#3");
+		added = capsFeatures.getAddedFeatures(new String[] { "client#3" }, new String[] { "client#2" });
+		assertEquals(100, new HashSet<String>(added).size());
+		assertTrue(added.contains("feature99+notify"));
+	}
+
+}
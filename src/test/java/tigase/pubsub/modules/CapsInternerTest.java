@@ -0,0 +1,48 @@
+package tigase.pubsub.modules;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CapsInternerTest {
+
+	@Test
+	public void test_intern() {
+		CapsInterner interner = new CapsInterner();
+		assertEquals(CapsInterner.EMPTY, interner.intern(null));
+		assertEquals(CapsInterner.EMPTY, interner.intern(new String[0]));
+		assertEquals(0, interner.get(CapsInterner.EMPTY).length);
+
+		String[] caps = new String[] { "http://example.com#1", "http://example.com#ext" };
+		int id = interner.intern(caps);
+		assertTrue(id != CapsInterner.EMPTY);
+		// equal CAPS share instance and identifier
+		assertEquals(id, interner.intern(new String[] { "http://example.com#1", "http://example.com#ext" }));
+		assertSame(caps, interner.get(id));
+		assertTrue(id != interner.intern(new String[] { "http://example.com#ext", "http://example.com#1" }));
+		assertEquals(2, interner.size());
+	}
+
+	@Test
+	public void test_eviction() {
+		CapsInterner interner = new CapsInterner(16);
+		int used = interner.intern(new String[] { "used" });
+		for (int i = 0; i < 1000; i++) {
+			int id = interner.intern(new String[] { "node#" + i });
+			assertEquals("node#" + i, interner.get(id)[0]);
+			interner.release(id);
+		}
+		// unused entries are evicted, but entry which is still used is kept
+		assertTrue(interner.size() <= 32);
+		assertEquals("used", interner.get(used)[0]);
+		assertEquals(used, interner.intern(new String[] { "used" }));
+
+		interner.release(used);
+		interner.release(used);
+		for (int i = 0; i < 1000; i++) {
+			interner.release(interner.intern(new String[] { "node#" + i }));
+		}
+		assertTrue(interner.size() <= 32);
+	}
+
+}
@@ -0,0 +1,60 @@
+package tigase.pubsub.modules;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class NotificationTemplateTest {
+
+	private static final JID from = JID.jidInstanceNS("pubsub.example.com");
+
+	@Test
+	public void test_packetsShareChildren() {
+		Element items = new Element("items", new String[] { "node" }, new String[] { "node-1" });
+		items.addChild(new Element("item", new String[] { "id", "expire-at" },
+				new String[] { "item-1", "2016-01-01T00:00:00Z" }));
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Collection", "root");
+
+		NotificationTemplate template = new NotificationTemplate(items, null, headers);
+
+		Packet p1 = template.createPacket(from, JID.jidInstanceNS("user1@example.com"), "1");
+		Packet p2 = template.createPacket(from, JID.jidInstanceNS("user2@example.com"), "2");
+
+		assertEquals("user1@example.com", p1.getStanzaTo().toString());
+		assertEquals("2", p2.getStanzaId());
+
+		List<Element> children1 = p1.getElement().getChildren();
+		List<Element> children2 = p2.getElement().getChildren();
+		assertEquals(3, children1.size());
+		assertEquals(children1.size(), children2.size());
+		for (int i = 0; i < children1.size(); i++) {
+			assertSame(children1.get(i), children2.get(i));
+		}
+
+		assertEquals("2016-01-01T00:00:00Z", p1.getElement().getAttributeStaticStr(new String[] { "message", "amp", "rule" }, "value"));
+		assertSame(items, p1.getElement().getChild("event", NotificationTemplate.EVENT_XMLNS).getChild("items"));
+		assertEquals("root", p2.getElement().getChild("headers", NotificationTemplate.SHIM_XMLNS).getChildCData(
+				new String[] { "headers", "header" }));
+	}
+
+	@Test
+	public void test_noOptionalChildren() {
+		Element items = new Element("items", new String[] { "node" }, new String[] { "node-1" });
+		items.addChild(new Element("item", new String[] { "id" }, new String[] { "item-1" }));
+
+		NotificationTemplate template = new NotificationTemplate(items, null, null);
+		Packet p = template.createPacket(from, JID.jidInstanceNS("user1@example.com"), "1");
+
+		assertEquals(1, p.getElement().getChildren().size());
+		assertNull(p.getElement().getChild("amp"));
+	}
+
+}
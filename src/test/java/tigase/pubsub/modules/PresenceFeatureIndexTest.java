@@ -0,0 +1,61 @@
+package tigase.pubsub.modules;
+
+import org.junit.Test;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PresenceFeatureIndexTest {
+
+	@Test
+	public void test_update() {
+		Map<String,String[]> nodes = new HashMap<>();
+		nodes.put("client#1", new String[] { "urn:xmpp:ping", "geoloc+notify", "tune+notify" });
+		nodes.put("client#ext", new String[] { "tune+notify", "mood+notify" });
+		PresenceFeatureIndex index = new PresenceFeatureIndex(nodes::get);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("owner@example.com");
+		JID jid = JID.jidInstanceNS("user@example.com/res");
+
+		index.update(serviceJid, jid, null, new String[] { "client#1", "client#ext" });
+		assertTrue(index.getJidsWithFeature(serviceJid, "geoloc+notify").contains(jid));
+		assertTrue(index.getJidsWithFeature(serviceJid, "tune+notify").contains(jid));
+		assertTrue(index.getJidsWithFeature(serviceJid, "mood+notify").contains(jid));
+		assertTrue(index.getJidsWithFeature(serviceJid, "urn:xmpp:ping").isEmpty());
+
+		// feature provided by remaining node is kept
+		index.update(serviceJid, jid, new String[] { "client#1", "client#ext" }, new String[] { "client#ext" });
+		assertTrue(index.getJidsWithFeature(serviceJid, "geoloc+notify").isEmpty());
+		assertTrue(index.getJidsWithFeature(serviceJid, "tune+notify").contains(jid));
+
+		index.update(serviceJid, jid, new String[] { "client#ext" }, null);
+		assertTrue(index.getJidsWithFeature(serviceJid, "tune+notify").isEmpty());
+		assertTrue(index.getJidsWithFeature(serviceJid, "mood+notify").isEmpty());
+	}
+
+	@Test
+	public void test_nodeFeaturesChanged() {
+		Map<String,String[]> nodes = new HashMap<>();
+		PresenceFeatureIndex index = new PresenceFeatureIndex(nodes::get);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("owner@example.com");
+		JID jid1 = JID.jidInstanceNS("user1@example.com/res");
+		JID jid2 = JID.jidInstanceNS("user2@example.com/res");
+
+		// features of node are not known yet
+		index.update(serviceJid, jid1, null, new String[] { "client#1" });
+		index.update(serviceJid, jid2, null, new String[] { "client#1" });
+		index.update(serviceJid, jid2, new String[] { "client#1" }, null);
+		assertTrue(index.getJidsWithFeature(serviceJid, "geoloc+notify").isEmpty());
+
+		nodes.put("client#1", new String[] { "geoloc+notify" });
+		index.nodeFeaturesChanged("client#1");
+		assertEquals(1, index.getJidsWithFeature(serviceJid, "geoloc+notify").size());
+		assertTrue(index.getJidsWithFeature(serviceJid, "geoloc+notify").contains(jid1));
+	}
+
+}
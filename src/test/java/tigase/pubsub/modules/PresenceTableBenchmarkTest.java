@@ -0,0 +1,91 @@
+package tigase.pubsub.modules;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures memory used by {@link PresenceTable} per available resource and
+ * latency of lookup of resources of a user. It is not a part of regular test
+ * run, remove {@link Ignore} to run it manually.
+ */
+@Ignore
+public class PresenceTableBenchmarkTest {
+
+	private static final int USERS = 200000;
+	private static final int RESOURCES = 300000;
+	private static final int CAPS = 16;
+	private static final int LOOKUPS = 5000000;
+
+	@Test
+	public void test_memoryAndLookup() {
+		final BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+		final CapsInterner interner = new CapsInterner();
+		final int[] capsIds = new int[CAPS];
+		for (int i = 0; i < CAPS; i++) {
+			capsIds[i] = interner.intern(new String[] { "http://example.com/caps#" + i });
+		}
+
+		// JID instances are taken from presence packets, so they are
+		// allocated before measurement and not counted
+		final JID[] jids = new JID[RESOURCES];
+		for (int i = 0; i < RESOURCES; i++) {
+			jids[i] = JID.jidInstanceNS("user-" + (i % USERS) + "@example.com/res-" + (i / USERS));
+		}
+
+		final long before = usedMemory();
+		final PresenceTable table = new PresenceTable(new PresenceTable.Listener() {
+			@Override
+			public void resourceChanged(BareJID serviceJid, JID jid, int oldCapsId, int newCapsId) {
+			}
+
+			@Override
+			public void userRemoved(BareJID serviceJid, BareJID bareJid) {
+			}
+		});
+		for (int i = 0; i < RESOURCES; i++) {
+			table.put(serviceJid, jids[i], capsIds[i % CAPS]);
+		}
+		final long after = usedMemory();
+		System.out.println("PresenceTable: " + ((after - before) / RESOURCES) + " bytes/resource");
+
+		// warm up
+		int found = lookup(table, serviceJid, jids, LOOKUPS / 10);
+		assertTrue(found > 0);
+
+		final long start = System.nanoTime();
+		found = lookup(table, serviceJid, jids, LOOKUPS);
+		final long time = System.nanoTime() - start;
+		System.out.println("PresenceTable: " + (time / LOOKUPS) + " ns/lookup, found " + found + " resources");
+
+		// keeps table reachable until memory is measured and lookups are done
+		assertTrue(table.isAvailable(serviceJid, jids[0].getBareJID()));
+	}
+
+	private static int lookup(PresenceTable table, BareJID serviceJid, JID[] jids, int count) {
+		int found = 0;
+		for (int i = 0; i < count; i++) {
+			List<JID> resources = table.getResources(serviceJid, jids[i % USERS].getBareJID());
+			found += resources.size();
+		}
+		return found;
+	}
+
+	private static long usedMemory() {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
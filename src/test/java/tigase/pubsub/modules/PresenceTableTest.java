@@ -0,0 +1,64 @@
+package tigase.pubsub.modules;
+
+import org.junit.Test;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PresenceTableTest {
+
+	@Test
+	public void test_putAndRemove() {
+		final List<String> changes = new ArrayList<>();
+		final List<BareJID> removedUsers = new ArrayList<>();
+		PresenceTable table = new PresenceTable(new PresenceTable.Listener() {
+			@Override
+			public void resourceChanged(BareJID serviceJid, JID jid, int oldCapsId, int newCapsId) {
+				changes.add(jid.getResource() + ":" + oldCapsId + "->" + newCapsId);
+			}
+
+			@Override
+			public void userRemoved(BareJID serviceJid, BareJID bareJid) {
+				removedUsers.add(bareJid);
+			}
+		});
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("owner@example.com");
+		JID jid1 = JID.jidInstanceNS("user@example.com/res1");
+		JID jid2 = JID.jidInstanceNS("user@example.com/res2");
+		JID jid3 = JID.jidInstanceNS("user@example.com/res3");
+
+		assertEquals(PresenceTable.NOT_AVAILABLE, table.put(serviceJid, jid1, 1));
+		assertEquals(PresenceTable.NOT_AVAILABLE, table.put(serviceJid, jid2, 2));
+		assertEquals(PresenceTable.NOT_AVAILABLE, table.put(serviceJid, jid3, 1));
+		// same CAPS are not reported again
+		assertEquals(1, table.put(serviceJid, jid1, 1));
+		assertEquals(2, table.put(serviceJid, jid2, 3));
+		assertEquals(4, changes.size());
+
+		assertTrue(table.isAvailable(serviceJid, jid1.getBareJID()));
+		assertTrue(table.contains(serviceJid, jid2));
+		assertEquals(3, table.getResources(serviceJid, jid1.getBareJID()).size());
+
+		assertEquals(1, table.remove(serviceJid, jid1));
+		assertEquals(PresenceTable.NOT_AVAILABLE, table.remove(serviceJid, jid1));
+		assertFalse(table.contains(serviceJid, jid1));
+		assertTrue(table.contains(serviceJid, jid3));
+		assertEquals(2, table.getResources(serviceJid, jid1.getBareJID()).size());
+		assertTrue(removedUsers.isEmpty());
+
+		assertTrue(table.removeAll(serviceJid, jid1.getBareJID()));
+		assertFalse(table.isAvailable(serviceJid, jid1.getBareJID()));
+		assertEquals(1, removedUsers.size());
+		assertEquals("res2:3->-1", changes.get(changes.size() - 1));
+
+		final List<JID> all = new ArrayList<>();
+		table.forEach(serviceJid, all::add);
+		assertTrue(all.isEmpty());
+	}
+
+}
@@ -0,0 +1,104 @@
+package tigase.pubsub.modules;
+
+import org.junit.Test;
+import tigase.pubsub.LeafNodeConfig;
+import tigase.xml.Element;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.List;
+
+import javax.xml.transform.Templates;
+
+import static org.junit.Assert.*;
+
+public class XsltToolTest {
+
+	private static final String XSLT = "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'"
+			+ " xmlns:a='http://www.w3.org/2005/Atom'><xsl:template match='/'><body xmlns='jabber:client'>"
+			+ "<xsl:value-of select='items/item/a:entry/a:title'/></body></xsl:template></xsl:stylesheet>";
+
+	@Test
+	public void test_transform() throws Exception {
+		LeafNodeConfig nodeConfig = new LeafNodeConfig("node-1");
+		nodeConfig.setBodyXsltEmbedded(XSLT);
+
+		Element items = new Element("items", new String[] { "node" }, new String[] { "node-1" });
+		Element item = new Element("item", new String[] { "id" }, new String[] { "item-1" });
+		Element entry = new Element("entry", new String[] { "xmlns" }, new String[] { "http://www.w3.org/2005/Atom" });
+		entry.addChild(new Element("title", "Tom &amp; Jerry", null, null));
+		item.addChild(entry);
+		items.addChild(item);
+
+		XsltTool xsltTool = new XsltTool();
+		List<Element> result = xsltTool.transform(items, nodeConfig);
+
+		assertEquals(1, result.size());
+		assertEquals("body", result.get(0).getName());
+		assertEquals("jabber:client", result.get(0).getXMLNS());
+		assertEquals("Tom &amp; Jerry", result.get(0).getCData());
+
+		// compiled XSLT is reused
+		assertSame(xsltTool.getTemplates("xslt:" + XSLT, XSLT, null), xsltTool.getTemplates("xslt:" + XSLT, XSLT, null));
+	}
+
+	@Test
+	public void test_transformMixedContent() throws Exception {
+		String xslt = "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+				+ "<xsl:template match='/'><body>\n  <xsl:copy-of select='items/item/p'/>\n</body>"
+				+ "</xsl:template></xsl:stylesheet>";
+		LeafNodeConfig nodeConfig = new LeafNodeConfig("node-1");
+		nodeConfig.setBodyXsltEmbedded(xslt);
+
+		Element p = new Element("p");
+		p.addCData("Hello ");
+		p.addChild(new Element("b", "x", null, null));
+		p.addCData("!");
+		Element item = new Element("item", new String[] { "id" }, new String[] { "item-1" });
+		item.addChild(p);
+		Element items = new Element("items", new String[] { "node" }, new String[] { "node-1" });
+		items.addChild(item);
+
+		List<Element> result = new XsltTool().transform(items, nodeConfig);
+
+		assertEquals(1, result.size());
+		// text stays in document order, formatting whitespace is dropped
+		assertEquals("<body><p>Hello <b>x</b>!</p></body>", result.get(0).toString());
+	}
+
+	@Test
+	public void test_urlTemplatesDroppedPerNode() throws Exception {
+		File file = File.createTempFile("pubsub-xslt", ".xsl");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(XSLT);
+		} finally {
+			writer.close();
+		}
+		LeafNodeConfig node1 = new LeafNodeConfig("node-1");
+		node1.setValue("pubsub#body_xslt", file.toURI().toString());
+		LeafNodeConfig node2 = new LeafNodeConfig("node-2");
+		node2.setValue("pubsub#body_xslt", file.toURI().toString());
+
+		Element items = new Element("items", new String[] { "node" }, new String[] { "node-1" });
+		XsltTool xsltTool = new XsltTool();
+		assertEquals(1, xsltTool.transform(items, node1).size());
+		assertEquals(1, xsltTool.transform(items, node2).size());
+
+		Templates templates1 = xsltTool.getTemplates(new XsltTool.UrlKey(node1.getNodeName(), node1.getBodyXslt()), null, node1.getBodyXslt());
+		Templates templates2 = xsltTool.getTemplates(new XsltTool.UrlKey(node2.getNodeName(), node2.getBodyXslt()), null, node2.getBodyXslt());
+		assertNotSame(templates1, templates2);
+
+		// only transformation of reconfigured node is loaded again
+		xsltTool.onConfigurationChanged(null, "node-1");
+		assertNotSame(templates1, xsltTool.getTemplates(new XsltTool.UrlKey(node1.getNodeName(), node1.getBodyXslt()), null, node1.getBodyXslt()));
+		assertSame(templates2, xsltTool.getTemplates(new XsltTool.UrlKey(node2.getNodeName(), node2.getBodyXslt()), null, node2.getBodyXslt()));
+	}
+
+	@Test
+	public void test_noXslt() throws Exception {
+		assertNull(new XsltTool().transform(new Element("items"), new LeafNodeConfig("node-1")));
+	}
+
+}
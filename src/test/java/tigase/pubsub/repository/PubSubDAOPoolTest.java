@@ -0,0 +1,58 @@
+package tigase.pubsub.repository;
+
+import org.junit.Test;
+import tigase.pubsub.repository.cached.CachedPubSubRepositoryTest;
+import tigase.xmpp.BareJID;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PubSubDAOPoolTest {
+
+	@Test
+	public void test_borrowTimeout() throws Exception {
+		final CountDownLatch taken = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		PubSubDAOPool pool = new PubSubDAOPool(100, true);
+		pool.addDao(null, new CachedPubSubRepositoryTest.DummyPubSubDAO() {
+			@Override
+			public String[] getAllNodesList(BareJID serviceJid) throws RepositoryException {
+				taken.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					failure.compareAndSet(null, ex);
+				}
+				return new String[0];
+			}
+		});
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+		Thread holder = new Thread(() -> {
+			try {
+				pool.getAllNodesList(serviceJid);
+			} catch (Throwable ex) {
+				failure.compareAndSet(null, ex);
+			}
+		});
+		holder.start();
+		taken.await();
+
+		try {
+			pool.getAllNodesList(serviceJid);
+			fail("RepositoryException expected when no DAO is available");
+		} catch (RepositoryException ex) {
+			// expected
+		}
+
+		release.countDown();
+		holder.join();
+		assertNull("DAO holder failed: " + failure.get(), failure.get());
+
+		// DAO is back in the pool
+		assertArrayEquals(new String[0], pool.getAllNodesList(serviceJid));
+	}
+}
@@ -0,0 +1,110 @@
+package tigase.pubsub.repository;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class RepositoryExecutorTest {
+
+	@Test
+	public void test_orderOfTasksWithSameKey() throws Exception {
+		RepositoryExecutor executor = new RepositoryExecutor(4, 4000);
+		List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+		CompletableFuture<Integer> last = null;
+		for (int i = 0; i < 1000; i++) {
+			final int idx = i;
+			last = executor.submit("node", () -> {
+				executed.add(idx);
+				return idx;
+			});
+		}
+		assertEquals(Integer.valueOf(999), last.get());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(Integer.valueOf(i), executed.get(i));
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void test_exceptionAndNestedTask() throws Exception {
+		RepositoryExecutor executor = new RepositoryExecutor(1, 1);
+
+		// nested task is executed immediately instead of waiting in the queue
+		// of the same thread
+		CompletableFuture<String> nested = executor.submit("node",
+				() -> executor.submit("node", () -> Thread.currentThread().getName()).get());
+		assertEquals("pubsub-repository-0", nested.get());
+
+		CompletableFuture<Object> failed = executor.submit("node", () -> {
+			throw new RepositoryException("failure");
+		});
+		try {
+			failed.get();
+			fail("Exception should be thrown");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof RepositoryException);
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void test_fullQueueRejectsTask() throws Exception {
+		RepositoryExecutor executor = new RepositoryExecutor(1, 1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<Object> running = executor.submit("node", () -> {
+			started.countDown();
+			release.await();
+			return null;
+		});
+		started.await();
+		CompletableFuture<String> queued = executor.submit("node", () -> "queued");
+
+		// submitting thread is not blocked when queue is full
+		CompletableFuture<String> rejected = executor.submit("node", () -> "rejected");
+		assertTrue(rejected.isCompletedExceptionally());
+		try {
+			rejected.get();
+			fail("Exception should be thrown");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof RejectedExecutionException);
+		}
+
+		release.countDown();
+		running.get();
+		assertEquals("queued", queued.get());
+		executor.shutdown();
+	}
+
+	@Test
+	public void test_shutdown() throws Exception {
+		RepositoryExecutor executor = new RepositoryExecutor(2, 100);
+		List<CompletableFuture<Integer>> futures = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			final int idx = i;
+			futures.add(executor.submit(idx, () -> {
+				Thread.sleep(1);
+				return idx;
+			}));
+		}
+		executor.shutdown();
+
+		// all tasks submitted before shutdown are executed
+		for (CompletableFuture<Integer> future : futures) {
+			assertTrue(future.isDone());
+		}
+
+		// tasks submitted after shutdown are executed by calling thread
+		assertEquals(Thread.currentThread().getName(),
+					 executor.submit("node", () -> Thread.currentThread().getName()).get());
+	}
+
+}
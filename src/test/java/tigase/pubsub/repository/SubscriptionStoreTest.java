@@ -0,0 +1,68 @@
+package tigase.pubsub.repository;
+
+import org.junit.Test;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.Utils;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.BareJID;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionStoreTest {
+
+	@Test
+	public void test_putGetRemove() {
+		SubscriptionStore store = new SubscriptionStore();
+		BareJID[] jids = new BareJID[1000];
+		String[] subids = new String[jids.length];
+		for (int i = 0; i < jids.length; i++) {
+			jids[i] = BareJID.bareJIDInstanceNS("user-" + i + "@example.com");
+			subids[i] = Utils.createUID();
+			store.put(jids[i], subids[i], Subscription.subscribed);
+		}
+		assertEquals(jids.length, store.size());
+
+		for (int i = 0; i < jids.length; i++) {
+			UsersSubscription s = store.get(jids[i]);
+			assertEquals(jids[i], s.getJid());
+			assertEquals(subids[i], s.getSubid());
+			assertEquals(Subscription.subscribed, s.getSubscription());
+		}
+
+		store.put(jids[1], subids[1], Subscription.pending);
+		assertEquals(Subscription.pending, store.getSubscription(jids[1]));
+		assertEquals(subids[1], store.get(jids[1]).getSubid());
+
+		for (int i = 0; i < jids.length; i += 2) {
+			store.remove(jids[i]);
+		}
+		assertEquals(jids.length / 2, store.size());
+		assertNull(store.get(jids[0]));
+		assertFalse(store.asMap().containsKey(jids[0]));
+		assertTrue(store.asMap().containsKey(jids[1]));
+
+		Set<BareJID> visited = new HashSet<BareJID>();
+		store.forEach((jid, subscription) -> visited.add(jid));
+		assertEquals(jids.length / 2, visited.size());
+		assertEquals(jids.length / 2, store.toArray().length);
+		assertEquals(visited, store.asMap().keySet());
+	}
+
+	@Test
+	public void test_subids() {
+		SubscriptionStore store = new SubscriptionStore();
+		BareJID jid = BareJID.bareJIDInstanceNS("user@example.com");
+
+		// ids which cannot be packed are kept as they are
+		for (String subid : new String[] { "0", "00a1", "abcdefghijklmnopqrstuvwx", "abcdefghijklmnopqrstuvwxyz",
+				"Upper-Case", "pr:12345", null }) {
+			store.put(jid, subid, Subscription.subscribed);
+			assertEquals(subid, store.get(jid).getSubid());
+			assertEquals(1, store.size());
+		}
+	}
+
+}
@@ -3,10 +3,13 @@ package tigase.pubsub.repository.cached;
 import org.junit.Test;
 import tigase.db.DBInitException;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.LeafNodeConfig;
 import tigase.pubsub.NodeType;
+import tigase.pubsub.Subscription;
 import tigase.pubsub.repository.*;
 import tigase.pubsub.repository.NodeAffiliations;
 import tigase.pubsub.repository.NodeSubscriptions;
+import tigase.pubsub.repository.stateless.NodeMeta;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xml.Element;
@@ -14,6 +17,8 @@ import tigase.xmpp.BareJID;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.*;
 
@@ -148,6 +153,256 @@ public class CachedPubSubRepositoryTest {
 		assertNull(dao.getChildNodes(serviceJid, null));
 	}
 
+	@Test
+	public void test_concurrentLoadingOfNode() throws Exception {
+		AtomicInteger metaLoads = new AtomicInteger(0);
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public INodeMeta getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException {
+				metaLoads.incrementAndGet();
+				sleep();
+				return super.getNodeMeta(serviceJid, nodeName);
+			}
+		};
+		dao.withDelay = true;
+		dao.withNodes = true;
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		String nodeName = "node-" + UUID.randomUUID().toString();
+
+		Node[] results = new Node[10];
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int idx = i;
+			threads[i] = new Thread(() -> {
+				try {
+					results[idx] = cachedPubSubRepository.getNode(serviceJid, nodeName);
+				} catch (RepositoryException ex) {
+					results[idx] = null;
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(1, metaLoads.get());
+		assertNotNull(results[0]);
+		for (Node node : results) {
+			assertSame(results[0], node);
+		}
+	}
+
+	@Test
+	public void test_writeBehindCoalescing() throws Exception {
+		List<UsersSubscription> written = Collections.synchronizedList(new ArrayList<>());
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public void updateNodeSubscription(BareJID serviceJid, Object nodeId, String nodeName,
+											   UsersSubscription userSubscription) throws RepositoryException {
+				written.add(userSubscription);
+			}
+		};
+		dao.withNodes = true;
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setWriteBehind(100, 100, 200);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		String nodeName = "node-" + UUID.randomUUID().toString();
+		BareJID userJid = BareJID.bareJIDInstanceNS("user@example.com");
+
+		ISubscriptions subscriptions = cachedPubSubRepository.getNodeSubscriptions(serviceJid, nodeName);
+		subscriptions.addSubscriberJid(userJid, Subscription.pending);
+		cachedPubSubRepository.update(serviceJid, nodeName, subscriptions);
+		subscriptions.changeSubscription(userJid, Subscription.subscribed);
+		cachedPubSubRepository.update(serviceJid, nodeName, subscriptions);
+
+		// changes are visible before they are written
+		assertEquals(Subscription.subscribed, subscriptions.getSubscription(userJid));
+		assertTrue(written.isEmpty());
+
+		cachedPubSubRepository.destroy();
+
+		assertEquals(1, written.size());
+		assertEquals(Subscription.subscribed, written.get(0).getSubscription());
+	}
+
+	@Test
+	public void test_writeBehindRetry() throws Exception {
+		AtomicInteger attempts = new AtomicInteger(0);
+		List<UsersSubscription> written = Collections.synchronizedList(new ArrayList<>());
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public void updateNodeSubscription(BareJID serviceJid, Object nodeId, String nodeName,
+											   UsersSubscription userSubscription) throws RepositoryException {
+				if (attempts.incrementAndGet() < 3) {
+					throw new RepositoryException("Database not available");
+				}
+				written.add(userSubscription);
+			}
+		};
+		dao.withNodes = true;
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setWriteBehind(100, 100, 50);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		String nodeName = "node-" + UUID.randomUUID().toString();
+		BareJID userJid = BareJID.bareJIDInstanceNS("user@example.com");
+
+		ISubscriptions subscriptions = cachedPubSubRepository.getNodeSubscriptions(serviceJid, nodeName);
+		subscriptions.addSubscriberJid(userJid, Subscription.subscribed);
+		cachedPubSubRepository.update(serviceJid, nodeName, subscriptions);
+
+		Node node = cachedPubSubRepository.getNode(serviceJid, nodeName);
+		for (int i = 0; i < 100 && attempts.get() < 2; i++) {
+			Thread.sleep(10);
+		}
+		// node with changes which failed to be written is kept in cache
+		assertTrue(attempts.get() >= 1);
+		assertSame(node, cachedPubSubRepository.getNode(serviceJid, nodeName));
+
+		cachedPubSubRepository.destroy();
+
+		assertEquals(3, attempts.get());
+		assertEquals(1, written.size());
+		assertEquals(userJid, written.get(0).getJid());
+	}
+
+	@Test
+	public void test_batchedWriteOfChanges() throws Exception {
+		AtomicInteger writes = new AtomicInteger(0);
+		List<UsersSubscription> written = Collections.synchronizedList(new ArrayList<>());
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public void updateNodeAffiliationsAndSubscriptions(BareJID serviceJid, Object nodeId, String nodeName,
+					Collection affiliations, Collection subscriptions) throws RepositoryException {
+				writes.incrementAndGet();
+				written.addAll(subscriptions);
+			}
+		};
+		dao.withNodes = true;
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		String nodeName = "node-" + UUID.randomUUID().toString();
+
+		ISubscriptions subscriptions = cachedPubSubRepository.getNodeSubscriptions(serviceJid, nodeName);
+		for (int i = 0; i < 3; i++) {
+			subscriptions.addSubscriberJid(BareJID.bareJIDInstanceNS("user-" + i + "@example.com"),
+										   Subscription.subscribed);
+		}
+		cachedPubSubRepository.update(serviceJid, nodeName, subscriptions);
+
+		assertEquals(1, writes.get());
+		assertEquals(3, written.size());
+	}
+
+	@Test
+	public void test_getLastItems() throws Exception {
+		AtomicInteger queries = new AtomicInteger(0);
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public Map getNodesRecentItems(BareJID serviceJid, Map nodes, int limit) throws RepositoryException {
+				queries.incrementAndGet();
+				Map<Object, List<IItems.Item>> result = new HashMap<>();
+				for (Object nodeId : nodes.keySet()) {
+					List<IItems.Item> items = new ArrayList<>();
+					if ("node-1".equals(nodes.get(nodeId))) {
+						items.add(new IItems.Item("node-1", "item-1", new Date(), new Date(), new Element("item")));
+					}
+					result.put(nodeId, items);
+				}
+				return result;
+			}
+		};
+		dao.withNodes = true;
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setRecentItemsCacheSize(5);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		List<String> nodesNames = Arrays.asList("node-1", "node-2");
+
+		// last items of all nodes are retrieved by a single query
+		Map<String, IItems.Item> lastItems = cachedPubSubRepository.getLastItems(serviceJid, nodesNames);
+		assertEquals(1, queries.get());
+		assertEquals(1, lastItems.size());
+		assertEquals("item-1", lastItems.get("node-1").getId());
+
+		// and later served from cache of recent items
+		lastItems = cachedPubSubRepository.getLastItems(serviceJid, nodesNames);
+		assertEquals(1, queries.get());
+		assertEquals(1, lastItems.size());
+	}
+
+	@Test
+	public void test_getLastItemsWithoutResult() throws Exception {
+		AtomicInteger queries = new AtomicInteger(0);
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public Map getNodesRecentItems(BareJID serviceJid, Map nodes, int limit) throws RepositoryException {
+				queries.incrementAndGet();
+				return null;
+			}
+		};
+		dao.withNodes = true;
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setRecentItemsCacheSize(5);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		List<String> nodesNames = Arrays.asList("node-1", "node-2");
+
+		// missing result means that nodes have no items
+		assertTrue(cachedPubSubRepository.getLastItems(serviceJid, nodesNames).isEmpty());
+		assertTrue(cachedPubSubRepository.getLastItems(serviceJid, nodesNames).isEmpty());
+		assertEquals(1, queries.get());
+	}
+
+	@Test
+	public void test_userSubscriptionsIndex() throws Exception {
+		AtomicInteger userSubscriptionsLoads = new AtomicInteger(0);
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public Map<String, UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID jid)
+					throws RepositoryException {
+				userSubscriptionsLoads.incrementAndGet();
+				return Collections.emptyMap();
+			}
+		};
+		dao.withNodes = true;
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		String nodeName = "node-" + UUID.randomUUID().toString();
+		BareJID userJid = BareJID.bareJIDInstanceNS("user@example.com");
+
+		assertTrue(cachedPubSubRepository.getUserSubscriptions(serviceJid, userJid).isEmpty());
+
+		ISubscriptions subscriptions = cachedPubSubRepository.getNodeSubscriptions(serviceJid, nodeName);
+		subscriptions.addSubscriberJid(userJid, Subscription.subscribed);
+		cachedPubSubRepository.update(serviceJid, nodeName, subscriptions);
+
+		// merged change is visible without querying database again
+		Map<String, UsersSubscription> result = cachedPubSubRepository.getUserSubscriptions(serviceJid, userJid);
+		assertEquals(1, result.size());
+		assertEquals(Subscription.subscribed, result.get(nodeName).getSubscription());
+		assertEquals(1, userSubscriptionsLoads.get());
+
+		cachedPubSubRepository.onUserRemoved(userJid);
+		assertEquals(Subscription.none, subscriptions.getSubscription(userJid));
+		assertTrue(cachedPubSubRepository.getUserSubscriptions(serviceJid, userJid).isEmpty());
+		assertEquals(2, userSubscriptionsLoads.get());
+
+		subscriptions.addSubscriberJid(userJid, Subscription.subscribed);
+		cachedPubSubRepository.update(serviceJid, nodeName, subscriptions);
+		assertEquals(1, cachedPubSubRepository.getUserSubscriptions(serviceJid, userJid).size());
+
+		cachedPubSubRepository.deleteNode(serviceJid, nodeName);
+		assertTrue(cachedPubSubRepository.getUserSubscriptions(serviceJid, userJid).isEmpty());
+		assertEquals(2, userSubscriptionsLoads.get());
+	}
+
 	protected CachedPubSubRepository createCachedPubSubRepository(PubSubDAO dao) {
 		return new CachedPubSubRepository(dao, 2000);
 	}
@@ -156,6 +411,15 @@ public class CachedPubSubRepositoryTest {
 
 		protected boolean withDelay;
 
+		/**
+		 * If set, every requested node exists and has no affiliations nor
+		 * subscriptions, so tests need to override only methods they check.
+		 */
+		protected boolean withNodes;
+
+		private final Map<String,Long> nodesIds = new ConcurrentHashMap<>();
+		private final AtomicLong nextNodeId = new AtomicLong(1);
+
 		protected Map<BareJID,Set<String>> rootCollections = new ConcurrentHashMap<>();
 
 		@Override
@@ -220,7 +484,7 @@ public class CachedPubSubRepositoryTest {
 
 		@Override
 		public NodeAffiliations getNodeAffiliations(BareJID serviceJid, Object nodeId) throws RepositoryException {
-			return null;
+			return withNodes ? NodeAffiliations.create((Queue<UsersAffiliation>) null) : null;
 		}
 
 		@Override
@@ -235,7 +499,11 @@ public class CachedPubSubRepositoryTest {
 
 		@Override
 		public INodeMeta getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException {
-			return null;
+			if (!withNodes) {
+				return null;
+			}
+			Long nodeId = nodesIds.computeIfAbsent(serviceJid + "/" + nodeName, key -> nextNodeId.getAndIncrement());
+			return new NodeMeta(nodeId, new LeafNodeConfig(nodeName), serviceJid, new Date());
 		}
 
 		@Override
@@ -245,7 +513,7 @@ public class CachedPubSubRepositoryTest {
 
 		@Override
 		public NodeSubscriptions getNodeSubscriptions(BareJID serviceJid, Object nodeId) throws RepositoryException {
-			return null;
+			return withNodes ? NodeSubscriptions.create() : null;
 		}
 
 		@Override
@@ -0,0 +1,87 @@
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.LeafNodeConfig;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.xmpp.BareJID;
+
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+
+public class NodeCacheTest {
+
+	private static final BareJID SERVICE_JID = BareJID.bareJIDInstanceNS("pubsub.example.com");
+
+	@Test
+	public void test_evictionOfLeastRecentlyUsed() {
+		NodeCache<String> cache = new NodeCache<>(20);
+		for (int i = 0; i < 20; i++) {
+			cache.put("node-" + i, createNode("node-" + i));
+		}
+		assertEquals(20, cache.size());
+
+		// node-0 is used again, so node-1 is the least recently used one
+		assertNotNull(cache.get("node-0"));
+
+		cache.put("node-20", createNode("node-20"));
+
+		assertTrue(cache.size() <= 20);
+		assertNotNull(cache.get("node-0"));
+		assertNull(cache.get("node-1"));
+		assertNotNull(cache.get("node-20"));
+	}
+
+	@Test
+	public void test_nodeWithChangesIsNotEvicted() {
+		NodeCache<String> cache = new NodeCache<>(20);
+		Node modified = createNode("node-0");
+		modified.getNodeAffiliations().addAffiliation(BareJID.bareJIDInstanceNS("user@example.com"), Affiliation.member);
+		cache.put("node-0", modified);
+		for (int i = 1; i < 40; i++) {
+			cache.put("node-" + i, createNode("node-" + i));
+		}
+
+		assertTrue(cache.size() <= 21);
+		assertSame(modified, cache.get("node-0"));
+	}
+
+	@Test
+	public void test_noEvictionPassUntilNodeWritten() {
+		NodeCache<String> cache = new NodeCache<>(100);
+		Node[] pinned = new Node[108];
+		for (int i = 0; i < pinned.length; i++) {
+			pinned[i] = createNode("node-" + i);
+			pinned[i].setWritePending(true);
+			cache.put("node-" + i, pinned[i]);
+		}
+		assertEquals(108, cache.size());
+
+		for (Node node : pinned) {
+			node.setWritePending(false);
+		}
+		// last pass found nothing to evict and nothing was written since
+		cache.put("node-108", createNode("node-108"));
+		assertEquals(109, cache.size());
+
+		cache.nodeWritten();
+		cache.put("node-109", createNode("node-109"));
+		assertTrue(cache.size() <= 100);
+	}
+
+	@Test
+	public void test_unlimited() {
+		NodeCache<String> cache = new NodeCache<>(null);
+		for (int i = 0; i < 100; i++) {
+			cache.put("node-" + i, createNode("node-" + i));
+		}
+		assertEquals(100, cache.size());
+	}
+
+	private Node createNode(String name) {
+		NodeAffiliations affiliations = tigase.pubsub.repository.NodeAffiliations.create((Queue<UsersAffiliation>) null);
+		NodeSubscriptions subscriptions = new NodeSubscriptions(tigase.pubsub.repository.NodeSubscriptions.create());
+		return new Node(1L, SERVICE_JID, new LeafNodeConfig(name), affiliations, subscriptions, SERVICE_JID, new java.util.Date());
+	}
+}
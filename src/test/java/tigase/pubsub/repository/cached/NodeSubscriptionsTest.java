@@ -0,0 +1,87 @@
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.BareJID;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class NodeSubscriptionsTest {
+
+	@Test
+	public void test_forEachSubscriber() {
+		NodeSubscriptions subscriptions = new NodeSubscriptions();
+		for (int i = 0; i < 100; i++) {
+			subscriptions.addSubscriberJid(BareJID.bareJIDInstanceNS("user-" + i + "@example.com"), Subscription.subscribed);
+		}
+		assertSameSubscribers(subscriptions);
+		subscriptions.merge();
+		assertEquals(100, subscriptions.getSubscriptionsCount());
+		assertSameSubscribers(subscriptions);
+
+		// changes which are not merged yet should be visible in change set
+		subscriptions.changeSubscription(BareJID.bareJIDInstanceNS("user-1@example.com"), Subscription.pending);
+		subscriptions.addSubscriberJid(BareJID.bareJIDInstanceNS("user-100@example.com"), Subscription.subscribed);
+
+		Map<BareJID, Subscription> visited = assertSameSubscribers(subscriptions);
+		assertEquals(101, visited.size());
+		assertEquals(Subscription.pending, visited.get(BareJID.bareJIDInstanceNS("user-1@example.com")));
+		assertEquals(Subscription.subscribed, visited.get(BareJID.bareJIDInstanceNS("user-100@example.com")));
+	}
+
+	@Test
+	public void test_changeSet() {
+		NodeSubscriptions committed = new NodeSubscriptions();
+		BareJID jid1 = BareJID.bareJIDInstanceNS("user-1@example.com");
+		BareJID jid2 = BareJID.bareJIDInstanceNS("user-2@example.com");
+		committed.addSubscriberJid(jid1, Subscription.subscribed);
+		committed.merge();
+		assertFalse(committed.isChanged());
+
+		NodeSubscriptions changeSet = committed.createChangeSet();
+		NodeSubscriptions other = committed.createChangeSet();
+		assertFalse(changeSet.isChanged());
+		assertEquals(Subscription.subscribed, changeSet.getSubscription(jid1));
+
+		// setting same subscription again is not a change
+		changeSet.changeSubscription(jid1, Subscription.subscribed);
+		assertFalse(changeSet.isChanged());
+
+		changeSet.changeSubscription(jid1, Subscription.none);
+		changeSet.addSubscriberJid(jid2, Subscription.pending);
+		assertTrue(changeSet.isChanged());
+		assertEquals(Subscription.none, changeSet.getSubscription(jid1));
+		assertEquals(Subscription.pending, changeSet.getSubscription(jid2));
+
+		// not merged changes are not visible outside of change set
+		assertFalse(other.isChanged());
+		assertEquals(Subscription.subscribed, other.getSubscription(jid1));
+		assertEquals(Subscription.none, other.getSubscription(jid2));
+		assertEquals(1, committed.getSubscriptionsCount());
+
+		changeSet.merge();
+		assertFalse(changeSet.isChanged());
+		assertEquals(Subscription.none, other.getSubscription(jid1));
+		assertEquals(Subscription.pending, other.getSubscription(jid2));
+		assertEquals(1, committed.getSubscriptionsCount());
+	}
+
+	private Map<BareJID, Subscription> assertSameSubscribers(NodeSubscriptions subscriptions) {
+		Map<BareJID, Subscription> expected = new HashMap<BareJID, Subscription>();
+		for (UsersSubscription s : subscriptions.getSubscriptionsForPublish()) {
+			expected.put(s.getJid(), s.getSubscription());
+		}
+
+		final Map<BareJID, Subscription> visited = new HashMap<BareJID, Subscription>();
+		subscriptions.forEachSubscriber((jid, subscription) -> assertNull("visited twice: " + jid,
+				visited.put(jid, subscription)));
+
+		assertEquals(expected, visited);
+		return visited;
+	}
+
+}
@@ -0,0 +1,123 @@
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.repository.IItems;
+import tigase.xml.Element;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecentItemsTest {
+
+	@Test
+	public void test_notLoaded() {
+		RecentItems recentItems = new RecentItems(2);
+		recentItems.itemWritten("node", "item-1", 1000, new Element("item"));
+
+		assertNull(recentItems.getItems(0, 1));
+		assertNull(recentItems.getItem("item-1"));
+		assertNull(recentItems.getItemsCount());
+	}
+
+	@Test
+	public void test_completeCache() {
+		RecentItems recentItems = new RecentItems(2);
+		long version = recentItems.startLoading();
+		recentItems.loaded(version, createItems("item-1"));
+
+		assertEquals(Integer.valueOf(1), recentItems.getItemsCount());
+
+		recentItems.itemWritten("node", "item-2", 2000, new Element("item"));
+		assertEquals(Integer.valueOf(2), recentItems.getItemsCount());
+		assertArrayEquals(new String[]{"item-1", "item-2"}, recentItems.getItemsIds());
+		assertEquals("item-2", recentItems.getItems(0, 1).get(0).getId());
+		// item which does not exist is skipped
+		assertEquals(1, recentItems.getItems(Arrays.asList("item-1", "item-3")).size());
+
+		// third item does not fit in cache
+		recentItems.itemWritten("node", "item-3", 3000, new Element("item"));
+		assertNull(recentItems.getItemsCount());
+		assertNull(recentItems.getItems(0, 3));
+		assertNull(recentItems.getItems(Arrays.asList("item-1")));
+		List<IItems.Item> items = recentItems.getItems(0, 2);
+		assertEquals("item-3", items.get(0).getId());
+		assertEquals("item-2", items.get(1).getId());
+	}
+
+	@Test
+	public void test_deleteAndRepublish() {
+		RecentItems recentItems = new RecentItems(2);
+		long version = recentItems.startLoading();
+		recentItems.loaded(version, createItems("item-3", "item-2", "item-1"));
+
+		assertNull(recentItems.getItemsCount());
+		assertEquals("item-3", recentItems.getItems(0, 1).get(0).getId());
+
+		// republished item is moved to the top
+		recentItems.itemWritten("node", "item-2", 4000, new Element("item"));
+		assertEquals("item-2", recentItems.getItems(0, 1).get(0).getId());
+		assertEquals(new Date(1000 * 2), recentItems.getItem("item-2").getCreationDate());
+
+		recentItems.itemDeleted("item-2");
+		assertEquals("item-3", recentItems.getItems(0, 1).get(0).getId());
+		assertNull(recentItems.getItems(0, 2));
+
+		// nothing left in not complete cache, so it needs to be loaded again
+		recentItems.itemDeleted("item-3");
+		assertNull(recentItems.getItems(0, 1));
+		assertTrue(recentItems.startLoading() >= 0);
+	}
+
+	@Test
+	public void test_modifiedWhileLoading() {
+		RecentItems recentItems = new RecentItems(2);
+		long version = recentItems.startLoading();
+		assertEquals(-1, recentItems.startLoading());
+
+		recentItems.itemWritten("node", "item-2", 2000, new Element("item"));
+		recentItems.loaded(version, createItems("item-1"));
+
+		assertNull(recentItems.getItems(0, 1));
+	}
+
+	@Test
+	public void test_invalidate() {
+		RecentItems recentItems = new RecentItems(2);
+		long version = recentItems.startLoading();
+		recentItems.loaded(version, createItems("item-1"));
+		assertNotNull(recentItems.getItems(0, 1));
+
+		recentItems.invalidate();
+		assertNull(recentItems.getItems(0, 1));
+
+		// items loaded before invalidation are dropped
+		version = recentItems.startLoading();
+		recentItems.invalidate();
+		recentItems.loaded(version, createItems("item-1"));
+		assertNull(recentItems.getItems(0, 1));
+	}
+
+	@Test
+	public void test_returnedItemsAreCopies() {
+		RecentItems recentItems = new RecentItems(1);
+		long version = recentItems.startLoading();
+		recentItems.loaded(version, createItems("item-1"));
+
+		recentItems.getItems(0, 1).get(0).getItem().addAttribute("modified", "true");
+		assertNull(recentItems.getItems(0, 1).get(0).getItem().getAttributeStaticStr("modified"));
+	}
+
+	private List<IItems.Item> createItems(String... ids) {
+		List<IItems.Item> items = new ArrayList<>();
+		for (String id : ids) {
+			Date date = new Date(1000 * Long.parseLong(id.substring("item-".length())));
+			items.add(new IItems.Item("node", id, date, date,
+					new Element("item", new String[]{"id"}, new String[]{id})));
+		}
+		return items;
+	}
+}
@@ -0,0 +1,94 @@
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.LeafNodeConfig;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.BareJID;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class UserNodesIndexTest {
+
+	private static final BareJID SERVICE_JID = BareJID.bareJIDInstanceNS("pubsub.example.com");
+
+	@Test
+	public void test_largeNodeNotIndexedPerUser() {
+		UserNodesIndex index = new UserNodesIndex(100);
+		Node<Long> small = createNode("small", 10);
+		Node<Long> large = createNode("large", UserNodesIndex.MAX_INDEXED_NODE_SIZE + 1);
+		index.nodeCached(small);
+		index.nodeCached(large);
+		// only users of small node have entries
+		assertEquals(10, index.size());
+
+		List<Node> nodes = index.getCachedNodes(jid(5), SERVICE_JID);
+		assertEquals(2, nodes.size());
+		assertTrue(nodes.contains(small));
+		assertTrue(nodes.contains(large));
+		assertEquals(Collections.singletonList(large), index.getCachedNodes(jid(500), null));
+		assertTrue(index.getCachedNodes(jid(500), BareJID.bareJIDInstanceNS("other.example.com")).isEmpty());
+
+		index.nodeRemoved(large);
+		assertTrue(index.getCachedNodes(jid(500), null).isEmpty());
+		index.nodeRemoved(small);
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void test_userRemoved() {
+		UserNodesIndex index = new UserNodesIndex(100);
+		BareJID owner = BareJID.bareJIDInstanceNS("owner@example.com");
+		assertNull(index.getSubscriptions(owner, jid(1)));
+		index.subscriptionsLoaded(owner, jid(1), Collections.<String,UsersSubscription>emptyMap());
+		assertNull(index.getSubscriptions(SERVICE_JID, jid(2)));
+		index.subscriptionsLoaded(SERVICE_JID, jid(2), Collections.<String,UsersSubscription>emptyMap());
+		assertNotNull(index.getSubscriptions(owner, jid(1)));
+		assertEquals(2, index.size());
+
+		// data loaded for service of removed user are dropped
+		index.userRemoved(owner);
+		assertEquals(1, index.size());
+		assertNull(index.getSubscriptions(owner, jid(1)));
+		Map<String,UsersSubscription> subscriptions = index.getSubscriptions(SERVICE_JID, jid(2));
+		assertNotNull(subscriptions);
+		assertTrue(subscriptions.isEmpty());
+	}
+
+	@Test
+	public void test_listsReloadedWhenChangedOutsideCache() {
+		UserNodesIndex index = new UserNodesIndex(100);
+		assertNull(index.getSubscriptions(SERVICE_JID, jid(1)));
+		index.subscriptionsLoaded(SERVICE_JID, jid(1), Collections.<String,UsersSubscription>emptyMap());
+		assertNotNull(index.getSubscriptions(SERVICE_JID, jid(1)));
+
+		index.serviceChanged(SERVICE_JID);
+		assertEquals(0, index.size());
+		assertNull(index.getSubscriptions(SERVICE_JID, jid(1)));
+		index.subscriptionsLoaded(SERVICE_JID, jid(1), Collections.<String,UsersSubscription>emptyMap());
+		assertNotNull(index.getSubscriptions(SERVICE_JID, jid(1)));
+
+		// expired list is loaded again
+		index.setMaxAge(-1);
+		assertNull(index.getSubscriptions(SERVICE_JID, jid(1)));
+	}
+
+	private static BareJID jid(int i) {
+		return BareJID.bareJIDInstanceNS("user-" + i + "@example.com");
+	}
+
+	private static Node<Long> createNode(String name, int subscribers) {
+		NodeSubscriptions subscriptions = new NodeSubscriptions();
+		for (int i = 0; i < subscribers; i++) {
+			subscriptions.addSubscriberJid(jid(i), Subscription.subscribed);
+		}
+		subscriptions.merge();
+		return new Node<Long>(1L, SERVICE_JID, new LeafNodeConfig(name), new NodeAffiliations(), subscriptions,
+				SERVICE_JID, new Date());
+	}
+}